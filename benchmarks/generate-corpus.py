@@ -0,0 +1,213 @@
+#!/usr/bin/env python3
+"""Generates the sample documents that ExtractionBenchmark extracts text from.
+
+Writes small & large PDF, DOCX & XLSX files of deterministic pseudo-random
+text into src/main/resources/corpus, using only the standard library:
+
+    python3 generate-corpus.py
+"""
+
+import os
+import random
+import zipfile
+import zlib
+
+CORPUS = os.path.join(os.path.dirname(os.path.abspath(__file__)), "src", "main", "resources", "corpus")
+
+WORDS = ("archive collection digital preservation library metadata record "
+         "university research data storage cloud account folder file sync "
+         "index search catalog access policy retention format migration "
+         "budget quarter revenue expense report committee minutes agenda "
+         "review project schedule milestone deliverable analysis summary").split()
+
+# fixed timestamp so the zip entries, and so the files, are reproducible
+ZIP_DATE = (2016, 10, 1, 0, 0, 0)
+
+
+def sentences(rng, count):
+    for _ in range(count):
+        words = [rng.choice(WORDS) for _ in range(rng.randint(8, 18))]
+        yield " ".join(words).capitalize() + "."
+
+
+def xml_escape(text):
+    return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+
+
+def write_zip(path, entries):
+    with zipfile.ZipFile(path, "w", zipfile.ZIP_DEFLATED) as archive:
+        for name, data in entries:
+            info = zipfile.ZipInfo(name, ZIP_DATE)
+            info.compress_type = zipfile.ZIP_DEFLATED
+            archive.writestr(info, data)
+
+
+def write_pdf(path, pages, seed):
+    rng = random.Random(seed)
+    objects = ["<< /Type /Catalog /Pages 2 0 R >>", None,
+               "<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica >>"]
+    page_ids = []
+    for _ in range(pages):
+        lines = []
+        for sentence in sentences(rng, 40):
+            lines.append(sentence[:90])
+        text = ["BT", "/F1 10 Tf", "12 TL", "50 780 Td"]
+        for line in lines:
+            text.append("(%s) Tj T*" % line.replace("\\", "\\\\").replace("(", "\\(").replace(")", "\\)"))
+        text.append("ET")
+        stream = zlib.compress("\n".join(text).encode("latin-1"))
+        objects.append(b"<< /Length %d /Filter /FlateDecode >>\nstream\n" % len(stream) + stream + b"\nendstream")
+        content_id = len(objects)
+        objects.append("<< /Type /Page /Parent 2 0 R /MediaBox [0 0 612 792] "
+                       "/Resources << /Font << /F1 3 0 R >> >> /Contents %d 0 R >>" % content_id)
+        page_ids.append(len(objects))
+    objects[1] = "<< /Type /Pages /Kids [%s] /Count %d >>" % (" ".join("%d 0 R" % i for i in page_ids), pages)
+
+    out = bytearray(b"%PDF-1.4\n")
+    offsets = []
+    for number, body in enumerate(objects, 1):
+        offsets.append(len(out))
+        if isinstance(body, str):
+            body = body.encode("latin-1")
+        out += b"%d 0 obj\n" % number + body + b"\nendobj\n"
+    xref = len(out)
+    out += b"xref\n0 %d\n0000000000 65535 f \n" % (len(objects) + 1)
+    for offset in offsets:
+        out += b"%010d 00000 n \n" % offset
+    out += b"trailer\n<< /Size %d /Root 1 0 R >>\nstartxref\n%d\n%%%%EOF\n" % (len(objects) + 1, xref)
+    with open(path, "wb") as f:
+        f.write(out)
+
+
+def write_docx(path, paragraphs, seed):
+    rng = random.Random(seed)
+    body = []
+    for i, sentence in enumerate(sentences(rng, paragraphs)):
+        if i % 25 == 0:
+            body.append('<w:p><w:pPr><w:pStyle w:val="Heading1"/></w:pPr><w:r><w:t>Section %d</w:t></w:r></w:p>'
+                        % (i // 25 + 1))
+        more = " ".join(sentences(rng, 3))
+        body.append("<w:p><w:r><w:t>%s %s</w:t></w:r></w:p>" % (xml_escape(sentence), xml_escape(more)))
+    document = ('<?xml version="1.0" encoding="UTF-8" standalone="yes"?>'
+                '<w:document xmlns:w="http://schemas.openxmlformats.org/wordprocessingml/2006/main">'
+                "<w:body>%s<w:sectPr/></w:body></w:document>" % "".join(body))
+    write_zip(path, [
+        ("[Content_Types].xml",
+         '<?xml version="1.0" encoding="UTF-8" standalone="yes"?>'
+         '<Types xmlns="http://schemas.openxmlformats.org/package/2006/content-types">'
+         '<Default Extension="rels" ContentType="application/vnd.openxmlformats-package.relationships+xml"/>'
+         '<Default Extension="xml" ContentType="application/xml"/>'
+         '<Override PartName="/word/document.xml" '
+         'ContentType="application/vnd.openxmlformats-officedocument.wordprocessingml.document.main+xml"/>'
+         "</Types>"),
+        ("_rels/.rels",
+         '<?xml version="1.0" encoding="UTF-8" standalone="yes"?>'
+         '<Relationships xmlns="http://schemas.openxmlformats.org/package/2006/relationships">'
+         '<Relationship Id="rId1" '
+         'Type="http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument" '
+         'Target="word/document.xml"/></Relationships>'),
+        ("word/document.xml", document),
+    ])
+
+
+def column(index):
+    name = ""
+    index += 1
+    while index:
+        index, remainder = divmod(index - 1, 26)
+        name = chr(65 + remainder) + name
+    return name
+
+
+def write_xlsx(path, rows, columns, seed):
+    rng = random.Random(seed)
+    strings = []
+    string_ids = {}
+
+    def shared(text):
+        if text not in string_ids:
+            string_ids[text] = len(strings)
+            strings.append(text)
+        return string_ids[text]
+
+    sheet_rows = []
+    for r in range(rows):
+        cells = []
+        for c in range(columns):
+            ref = "%s%d" % (column(c), r + 1)
+            if r == 0:
+                cells.append('<c r="%s" t="s"><v>%d</v></c>' % (ref, shared(rng.choice(WORDS).capitalize())))
+            elif c < 2:
+                text = " ".join(rng.choice(WORDS) for _ in range(3))
+                cells.append('<c r="%s" t="s"><v>%d</v></c>' % (ref, shared(text)))
+            else:
+                cells.append('<c r="%s"><v>%.2f</v></c>' % (ref, rng.uniform(-10000, 100000)))
+        sheet_rows.append('<row r="%d">%s</row>' % (r + 1, "".join(cells)))
+
+    write_zip(path, [
+        ("[Content_Types].xml",
+         '<?xml version="1.0" encoding="UTF-8" standalone="yes"?>'
+         '<Types xmlns="http://schemas.openxmlformats.org/package/2006/content-types">'
+         '<Default Extension="rels" ContentType="application/vnd.openxmlformats-package.relationships+xml"/>'
+         '<Default Extension="xml" ContentType="application/xml"/>'
+         '<Override PartName="/xl/workbook.xml" '
+         'ContentType="application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml"/>'
+         '<Override PartName="/xl/worksheets/sheet1.xml" '
+         'ContentType="application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml"/>'
+         '<Override PartName="/xl/sharedStrings.xml" '
+         'ContentType="application/vnd.openxmlformats-officedocument.spreadsheetml.sharedStrings+xml"/>'
+         '<Override PartName="/xl/styles.xml" '
+         'ContentType="application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml"/>'
+         "</Types>"),
+        ("_rels/.rels",
+         '<?xml version="1.0" encoding="UTF-8" standalone="yes"?>'
+         '<Relationships xmlns="http://schemas.openxmlformats.org/package/2006/relationships">'
+         '<Relationship Id="rId1" '
+         'Type="http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument" '
+         'Target="xl/workbook.xml"/></Relationships>'),
+        ("xl/workbook.xml",
+         '<?xml version="1.0" encoding="UTF-8" standalone="yes"?>'
+         '<workbook xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main" '
+         'xmlns:r="http://schemas.openxmlformats.org/officeDocument/2006/relationships">'
+         '<sheets><sheet name="Sheet1" sheetId="1" r:id="rId1"/></sheets></workbook>'),
+        ("xl/_rels/workbook.xml.rels",
+         '<?xml version="1.0" encoding="UTF-8" standalone="yes"?>'
+         '<Relationships xmlns="http://schemas.openxmlformats.org/package/2006/relationships">'
+         '<Relationship Id="rId1" '
+         'Type="http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet" '
+         'Target="worksheets/sheet1.xml"/>'
+         '<Relationship Id="rId2" '
+         'Type="http://schemas.openxmlformats.org/officeDocument/2006/relationships/sharedStrings" '
+         'Target="sharedStrings.xml"/>'
+         '<Relationship Id="rId3" '
+         'Type="http://schemas.openxmlformats.org/officeDocument/2006/relationships/styles" '
+         'Target="styles.xml"/></Relationships>'),
+        ("xl/styles.xml",
+         '<?xml version="1.0" encoding="UTF-8" standalone="yes"?>'
+         '<styleSheet xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main">'
+         '<fonts count="1"><font><sz val="11"/><name val="Calibri"/></font></fonts>'
+         '<fills count="1"><fill><patternFill patternType="none"/></fill></fills>'
+         '<borders count="1"><border><left/><right/><top/><bottom/><diagonal/></border></borders>'
+         '<cellStyleXfs count="1"><xf numFmtId="0" fontId="0" fillId="0" borderId="0"/></cellStyleXfs>'
+         '<cellXfs count="1"><xf numFmtId="0" fontId="0" fillId="0" borderId="0" xfId="0"/></cellXfs>'
+         '<cellStyles count="1"><cellStyle name="Normal" xfId="0" builtinId="0"/></cellStyles>'
+         "</styleSheet>"),
+        ("xl/worksheets/sheet1.xml",
+         '<?xml version="1.0" encoding="UTF-8" standalone="yes"?>'
+         '<worksheet xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main">'
+         "<sheetData>%s</sheetData></worksheet>" % "".join(sheet_rows)),
+        ("xl/sharedStrings.xml",
+         '<?xml version="1.0" encoding="UTF-8" standalone="yes"?>'
+         '<sst xmlns="http://schemas.openxmlformats.org/spreadsheetml/2006/main" count="%d" uniqueCount="%d">%s</sst>'
+         % (len(strings), len(strings), "".join("<si><t>%s</t></si>" % xml_escape(s) for s in strings))),
+    ])
+
+
+if __name__ == "__main__":
+    os.makedirs(CORPUS, exist_ok=True)
+    write_pdf(os.path.join(CORPUS, "report.pdf"), pages=3, seed=1)
+    write_pdf(os.path.join(CORPUS, "manual.pdf"), pages=60, seed=2)
+    write_docx(os.path.join(CORPUS, "minutes.docx"), paragraphs=40, seed=3)
+    write_docx(os.path.join(CORPUS, "thesis.docx"), paragraphs=1500, seed=4)
+    write_xlsx(os.path.join(CORPUS, "budget.xlsx"), rows=200, columns=6, seed=5)
+    write_xlsx(os.path.join(CORPUS, "ledger.xlsx"), rows=5000, columns=8, seed=6)
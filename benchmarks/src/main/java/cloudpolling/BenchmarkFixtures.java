@@ -0,0 +1,143 @@
+package cloudpolling;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+
+/**
+ * Builds the throwaway polling projects, cloud accounts & Camel contexts that
+ * benchmarks run against.
+ *
+ * @author tlarrue
+ *
+ */
+final class BenchmarkFixtures {
+
+  private BenchmarkFixtures() {
+  }
+
+  /**
+   * Creates a polling project in a new temporary configuration directory, with
+   * a sync folder of its own and no index sink.
+   *
+   * @param name
+   * @return polling project
+   * @throws IOException
+   */
+  static PollingProject createProject(String name) throws IOException {
+    File configDir = Files.createTempDirectory("cloudpolling-bench").toFile();
+    PollingProject project = new PollingProject(name, configDir.getAbsolutePath());
+    project.getAccountsDir().mkdirs();
+
+    File syncFolder = new File(project.getProjectDir(), "sync");
+    syncFolder.mkdirs();
+
+    Properties config = new Properties();
+    config.setProperty("syncFolder", syncFolder.getAbsolutePath());
+    config.setProperty("lastPoll", "1900/01/01-00:00:00");
+    config.setProperty("debounceMillis", "0");
+    config.setProperty("indexSink", "none");
+    store(config, project.getConfigFile());
+    return project;
+  }
+
+  /**
+   * Creates a cloud account of a project from its configuration fields.
+   *
+   * @param project
+   * @param id
+   * @param config
+   * @return cloud account
+   * @throws IOException
+   */
+  static CloudAccount createAccount(PollingProject project, int id, Properties config) throws IOException {
+    CloudAccount account = new CloudAccount(id, project);
+    config.setProperty("configID", Integer.toString(id));
+    config.setProperty("pollToken", "0");
+    store(config, account.getConfigFile());
+    return account;
+  }
+
+  /**
+   * Creates a started Camel context whose "direct:actions" endpoint discards
+   * every exchange, so connectors can be measured without the pipeline.
+   *
+   * @return camel context
+   * @throws Exception
+   */
+  static CamelContext createDiscardingContext() throws Exception {
+    CamelContext context = new DefaultCamelContext();
+    context.addRoutes(new RouteBuilder() {
+      public void configure() {
+        from("direct:actions")
+            .routeId("Discard")
+            .process(new Processor() {
+              public void process(Exchange exchange) {
+              }
+            });
+      }
+    });
+    context.start();
+    return context;
+  }
+
+  /**
+   * Copies a bundled corpus file to a temporary file.
+   *
+   * @param name
+   *          file name in the corpus
+   * @return copy of corpus file
+   * @throws IOException
+   */
+  static File copyCorpusFile(String name) throws IOException {
+    InputStream in = BenchmarkFixtures.class.getResourceAsStream("/corpus/" + name);
+    if (in == null) {
+      throw new IOException("No corpus file named " + name);
+    }
+    String suffix = name.substring(name.lastIndexOf('.'));
+    File file = File.createTempFile("corpus-", suffix);
+    try {
+      Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      in.close();
+    }
+    return file;
+  }
+
+  /**
+   * Deletes a file, or a folder & everything in it.
+   *
+   * @param file
+   */
+  static void deleteTree(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteTree(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static void store(Properties config, File file) throws IOException {
+    file.getParentFile().mkdirs();
+    OutputStream out = new FileOutputStream(file);
+    try {
+      config.store(out, null);
+    } finally {
+      out.close();
+    }
+  }
+
+}
@@ -0,0 +1,233 @@
+package cloudpolling;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxEvent;
+import com.box.sdk.BoxFile;
+import com.dropbox.core.DbxRequestConfig;
+import com.dropbox.core.http.HttpRequestor;
+import com.dropbox.core.v2.DbxClientV2;
+import com.dropbox.core.v2.files.FileMetadata;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+/**
+ * Measures how fast each connector turns one provider change into an event
+ * exchange: building its headers, looking up what it needs from the provider,
+ * and sending it. Provider APIs answer instantly with canned responses, so
+ * the numbers are the connectors' own overhead. Sent exchanges are discarded.
+ *
+ * Box builds its event headers inside its event stream listener, after
+ * fetching each item's info from the API, so its benchmark rebuilds the same
+ * headers from an item info & sends them.
+ *
+ * @author tlarrue
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ConnectorBenchmark {
+
+  private static final String DROPBOX_PARENT = "{\".tag\": \"folder\", \"name\": \"reports\", "
+      + "\"id\": \"id:a4ayc_80_OEAAAAAAAAAXw\", \"path_lower\": \"/reports\", \"path_display\": \"/Reports\"}";
+  private static final String DRIVE_PARENT = "{\"kind\": \"drive#file\", \"id\": \"0B_parent\", \"name\": \"Reports\", "
+      + "\"mimeType\": \"application/vnd.google-apps.folder\"}";
+  private static final String BOX_FILE = "{\"type\": \"file\", \"id\": \"5000948880\", \"name\": \"q3-report.pdf\", "
+      + "\"sha1\": \"134b65991ed521fcfe4724b7d814ab8ded5185dc\", \"size\": 629644, "
+      + "\"parent\": {\"type\": \"folder\", \"id\": \"11446498\", \"name\": \"Reports\"}, "
+      + "\"path_collection\": {\"total_count\": 2, \"entries\": [{\"type\": \"folder\", \"id\": \"0\", "
+      + "\"name\": \"All Files\"}, {\"type\": \"folder\", \"id\": \"11446498\", \"name\": \"Reports\"}]}}";
+
+  private static final String BOX_EVENT = "{\"type\": \"event\", \"event_id\": \"f82c3ba03e41f7e8a7608363cc6c0390\", "
+      + "\"event_type\": \"ITEM_UPLOAD\", \"created_at\": \"2016-10-09T01:00:00-07:00\", \"source\": " + BOX_FILE + "}";
+
+  private PollingProject project;
+  private CamelContext context;
+
+  private DropBoxConnector dropbox;
+  private DbxClientV2 dropboxClient;
+  private FileMetadata dropboxFile;
+
+  private GoogleDriveConnector drive;
+  private Drive driveService;
+  private File driveFile;
+  private DateTime driveChangeTime;
+
+  private BoxConnector box;
+  private BoxEvent boxEvent;
+  private BoxFile.Info boxFile;
+
+  @Setup
+  public void setUp() throws Exception {
+    project = BenchmarkFixtures.createProject("connectorbench");
+    context = BenchmarkFixtures.createDiscardingContext();
+
+    Properties dropboxConfig = new Properties();
+    dropboxConfig.setProperty("configType", "DropBox");
+    dropboxConfig.setProperty("accessToken", "benchmark");
+    dropboxConfig.setProperty("pollFolder", "");
+    dropbox = new DropBoxConnector(BenchmarkFixtures.createAccount(project, 1, dropboxConfig),
+        context.createProducerTemplate());
+    DbxRequestConfig requestConfig = DbxRequestConfig.newBuilder("benchmark")
+        .withHttpRequestor(new CannedDropboxRequestor(DROPBOX_PARENT))
+        .build();
+    dropboxClient = new DbxClientV2(requestConfig, "benchmark");
+    Date modified = new Date(1476000000000L);
+    dropboxFile = FileMetadata.newBuilder("q3-report.pdf", "id:a4ayc_80_OEAAAAAAAAAYa", modified, modified,
+        "a1c10ce0dd78", 629644)
+        .withPathLower("/reports/q3-report.pdf")
+        .withPathDisplay("/Reports/q3-report.pdf")
+        .build();
+
+    Properties driveConfig = new Properties();
+    driveConfig.setProperty("configType", "GoogleDrive");
+    driveConfig.setProperty("appName", "benchmark");
+    drive = new GoogleDriveConnector(BenchmarkFixtures.createAccount(project, 2, driveConfig),
+        context.createProducerTemplate());
+    driveService = new Drive.Builder(new CannedDriveTransport(DRIVE_PARENT), JacksonFactory.getDefaultInstance(),
+        null).setApplicationName("benchmark").build();
+    driveFile = new File()
+        .setId("0B_file")
+        .setName("q3-report.pdf")
+        .setMimeType("application/pdf")
+        .setMd5Checksum("8c3d6f3e9b5ab1a1ff0d0ac3e4f6b7a2")
+        .setDescription("Quarterly report")
+        .setParents(Collections.singletonList("0B_parent"));
+    driveChangeTime = new DateTime(1476000000000L);
+
+    Properties boxConfig = new Properties();
+    boxConfig.setProperty("configType", "Box");
+    box = new BoxConnector(BenchmarkFixtures.createAccount(project, 3, boxConfig), context.createProducerTemplate());
+    BoxAPIConnection boxAPI = new BoxAPIConnection("benchmark");
+    boxEvent = new BoxEvent(boxAPI, BOX_EVENT);
+    boxFile = new BoxFile(boxAPI, "5000948880").new Info(BOX_FILE);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    context.stop();
+    project.closeItemIndexes();
+    BenchmarkFixtures.deleteTree(project.getProjectDir());
+  }
+
+  @Benchmark
+  public void dropboxFileChange() throws Exception {
+    dropbox.processItem(dropboxFile, dropboxClient, false);
+  }
+
+  @Benchmark
+  public void driveFileChange() throws Exception {
+    drive.sendDownloadRequest(driveService, driveFile, driveChangeTime);
+  }
+
+  @Benchmark
+  public void boxFileEvent() {
+    String body = boxEvent.toString();
+    HashMap<String, String> headers = BoxConnector.eventHeaders(boxEvent);
+    headers.putAll(BoxEnricher.fileHeaders(boxFile, "none"));
+    box.sendActionExchangeWithAcctInfo(headers, body);
+  }
+
+  /**
+   * Answers every Dropbox API call with the same JSON.
+   */
+  static class CannedDropboxRequestor extends HttpRequestor {
+
+    private final byte[] json;
+
+    CannedDropboxRequestor(String json) {
+      this.json = json.getBytes();
+    }
+
+    public Response doGet(String url, Iterable<Header> headers) {
+      return respond();
+    }
+
+    public Uploader startPost(String url, Iterable<Header> headers) {
+      return new Uploader() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        public OutputStream getBody() {
+          return body;
+        }
+
+        public void close() {
+        }
+
+        public void abort() {
+        }
+
+        public Response finish() {
+          return respond();
+        }
+      };
+    }
+
+    public Uploader startPut(String url, Iterable<Header> headers) {
+      return startPost(url, headers);
+    }
+
+    private Response respond() {
+      return new Response(200, new ByteArrayInputStream(json), Collections.<String, List<String>> emptyMap());
+    }
+  }
+
+  /**
+   * Answers every Google Drive API call with the same JSON.
+   */
+  static class CannedDriveTransport extends MockHttpTransport {
+
+    private final String json;
+
+    CannedDriveTransport(String json) {
+      this.json = json;
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          return new MockLowLevelHttpResponse()
+              .setContentType("application/json; charset=UTF-8")
+              .setContent(json);
+        }
+      };
+    }
+  }
+
+}
@@ -0,0 +1,117 @@
+package cloudpolling;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures deleting synthetic folder trees, both the recursive local delete
+ * alone & a full folder delete event through DeleteProcessor, which also
+ * removes the tree from the account's item index. Each invocation gets a
+ * freshly built tree of the given depth & fan-out, each folder holding
+ * fan-out small files.
+ *
+ * @author tlarrue
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, batchSize = 1)
+@Measurement(iterations = 20, batchSize = 1)
+public class DeleteBenchmark {
+
+  @Param({ "2", "4" })
+  int depth;
+
+  @Param({ "4", "8" })
+  int fanout;
+
+  private PollingProject project;
+  private DeleteProcessor processor;
+  private File root;
+  private Exchange event;
+
+  @Setup(Level.Trial)
+  public void setUpProject() throws Exception {
+    project = BenchmarkFixtures.createProject("deletebench");
+    processor = new DeleteProcessor(project);
+    root = new File(project.getSyncFolder(), "acct1/tree");
+  }
+
+  @Setup(Level.Invocation)
+  public void setUpTree() throws IOException {
+    ItemIndex items = project.getItemIndex("1");
+    items.put(new ItemIndex.Item("root", "tree", "0", "folder", null));
+    createTree(items, root, "tree", "root", depth);
+
+    event = new DefaultExchange(new DefaultCamelContext());
+    event.getIn().setHeader("action", "delete");
+    event.getIn().setHeader("source_id", "root");
+    event.getIn().setHeader("source_path", "tree");
+    event.getIn().setHeader("details", "remove_childen");
+    event.getIn().setHeader("account_id", "1");
+    event.getIn().setHeader("account_type", "box");
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    project.closeItemIndexes();
+    BenchmarkFixtures.deleteTree(project.getProjectDir());
+  }
+
+  @Benchmark
+  public void deleteTree() throws IOException {
+    DeleteProcessor.delete(root.getAbsolutePath());
+  }
+
+  @Benchmark
+  public void deleteEvent() throws Exception {
+    processor.process(event);
+  }
+
+  /**
+   * Creates a folder with fan-out files & fan-out subfolders down to the given
+   * depth, recording each item in the item index.
+   */
+  private void createTree(ItemIndex items, File folder, String path, String id, int levels) throws IOException {
+    folder.mkdirs();
+    for (int i = 0; i < fanout; i++) {
+      String fileID = id + "." + i;
+      String filePath = path + "/file" + i + ".txt";
+      FileOutputStream out = new FileOutputStream(new File(folder, "file" + i + ".txt"));
+      try {
+        out.write(fileID.getBytes("UTF-8"));
+      } finally {
+        out.close();
+      }
+      items.put(new ItemIndex.Item("f" + fileID, filePath, id, "file", null));
+
+      if (levels > 1) {
+        String folderPath = path + "/folder" + i;
+        items.put(new ItemIndex.Item("d" + fileID, folderPath, id, "folder", null));
+        createTree(items, new File(folder, "folder" + i), folderPath, "d" + fileID, levels - 1);
+      }
+    }
+  }
+
+}
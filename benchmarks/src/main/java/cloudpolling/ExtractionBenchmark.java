@@ -0,0 +1,62 @@
+package cloudpolling;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures Tika text extraction into a spool file, as done for every
+ * downloaded file, over the bundled corpus of sample documents.
+ *
+ * @author tlarrue
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ExtractionBenchmark {
+
+  @Param({ "report.pdf", "minutes.docx", "budget.xlsx", "manual.pdf", "thesis.docx", "ledger.xlsx" })
+  String document;
+
+  private PollingProject project;
+  private CloudDownloadProcessor processor;
+  private File file;
+
+  @Setup
+  public void setUp() throws Exception {
+    project = BenchmarkFixtures.createProject("extractionbench");
+    processor = new CloudDownloadProcessor(project);
+    file = BenchmarkFixtures.copyCorpusFile(document);
+  }
+
+  @TearDown
+  public void tearDown() {
+    file.delete();
+    BenchmarkFixtures.deleteTree(project.getProjectDir());
+  }
+
+  @Benchmark
+  public long extract() throws Exception {
+    File spool = processor.parseToPlainText(file);
+    long length = spool.length();
+    spool.delete();
+    return length;
+  }
+
+}
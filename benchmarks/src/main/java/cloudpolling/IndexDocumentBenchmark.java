@@ -0,0 +1,131 @@
+package cloudpolling;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures building index documents in CloudDownloadProcessor & writing them
+ * as Solr update JSON, with extracted content streamed from spool files of
+ * different sizes. Extraction itself is measured by ExtractionBenchmark.
+ *
+ * @author tlarrue
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class IndexDocumentBenchmark {
+
+  @Param({ "1", "64", "1024" })
+  int contentKB;
+
+  private PollingProject project;
+  private CloudDownloadProcessor processor;
+  private Exchange folderEvent;
+  private IndexDocument document;
+  private Writer discard;
+
+  @Setup
+  public void setUp() throws Exception {
+    project = BenchmarkFixtures.createProject("documentbench");
+    processor = new CloudDownloadProcessor(project);
+
+    folderEvent = new DefaultExchange(new DefaultCamelContext());
+    folderEvent.getIn().setHeader("source_id", "11446498");
+    folderEvent.getIn().setHeader("source_name", "Reports");
+    folderEvent.getIn().setHeader("source_path", "Reports");
+    folderEvent.getIn().setHeader("parent_id", "0");
+    folderEvent.getIn().setHeader("source_type", "folder");
+    folderEvent.getIn().setHeader("account_id", "1");
+    folderEvent.getIn().setHeader("account_type", "box");
+
+    document = new IndexDocument();
+    document.put("id", "5000948880");
+    document.put("name", "q3-report.pdf");
+    document.put("path", "/sync/acct1/Reports/q3-report.pdf");
+    document.put("parent_id", "11446498");
+    document.put("account_type", "box");
+    document.put("account_id", "1");
+    document.put("type", "application/pdf");
+    document.put("metadata", "{\"description\": \"Quarterly \\\"final\\\" report\"}");
+    document.setContent(createContent(contentKB * 1024));
+
+    discard = new Writer() {
+      public void write(char[] buffer, int offset, int length) {
+      }
+
+      public void flush() {
+      }
+
+      public void close() {
+      }
+    };
+  }
+
+  @TearDown
+  public void tearDown() {
+    document.release();
+    project.closeItemIndexes();
+    BenchmarkFixtures.deleteTree(project.getProjectDir());
+  }
+
+  @Benchmark
+  public Object buildFolderDocument() throws Exception {
+    processor.process(folderEvent);
+    return folderEvent.getIn().getBody();
+  }
+
+  @Benchmark
+  public void writeDocument() throws IOException {
+    JsonStreamWriter json = new JsonStreamWriter(discard);
+    json.beginObject().name("add").beginObject().name("doc");
+    document.writeTo(json);
+    json.endObject().endObject();
+    json.flush();
+  }
+
+  /**
+   * Writes a spool file of text that needs some escaping.
+   *
+   * @param bytes
+   * @return spool file
+   * @throws IOException
+   */
+  private File createContent(int bytes) throws IOException {
+    File spool = File.createTempFile("content-", ".txt", project.getSpoolDir());
+    String line = "Revenue grew 4% in Q3;\t\"net\" margin held at 12.5% \\ see table 2.\n";
+    Writer out = new OutputStreamWriter(new FileOutputStream(spool), "UTF-8");
+    try {
+      for (int written = 0; written < bytes; written += line.length()) {
+        out.write(line);
+      }
+    } finally {
+      out.close();
+    }
+    return spool;
+  }
+
+}
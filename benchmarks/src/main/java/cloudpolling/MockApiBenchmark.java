@@ -0,0 +1,303 @@
+package cloudpolling;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.impl.DefaultExchange;
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
+import org.bouncycastle.openssl.jcajce.JcePEMEncryptorBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.util.store.FileDataStoreFactory;
+
+/**
+ * Measures the real connectors & download processors against local
+ * stand-ins for the Box, DropBox & Drive APIs, with injected latency &
+ * throttling: first syncs & change polls of a whole account, and single file
+ * downloads. Exchanges sent by the connectors are discarded.
+ *
+ * Throttling is off by default; pass -p throttleEvery=N to refuse every Nth
+ * request with 429 & see how each account's rate limiter backs off. The
+ * accounts allow requestsPerSecond requests per second. DropBox first syncs
+ * list the account's folders on listThreads threads; pass -p listThreads=1
+ * to compare with a single recursive listing.
+ *
+ * @author tlarrue
+ *
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class MockApiBenchmark {
+
+  @Param({ "0", "20" })
+  long latencyMillis;
+
+  @Param({ "0" })
+  int throttleEvery;
+
+  @Param({ "500" })
+  int items;
+
+  @Param({ "100" })
+  int pageSize;
+
+  @Param({ "64" })
+  int fileKB;
+
+  @Param({ "1000" })
+  int requestsPerSecond;
+
+  @Param({ "4" })
+  int listThreads;
+
+  private MockBoxServer boxServer;
+  private MockDropboxServer dropboxServer;
+  private MockDriveServer driveServer;
+
+  private PollingProject project;
+  private CloudAccount boxAccount;
+  private CloudAccount dropboxAccount;
+  private CloudAccount driveAccount;
+  private CamelContext context;
+  private ProducerTemplate producer;
+
+  private BoxDownloadProcessor boxDownloader;
+  private DropBoxDownloadProcessor dropboxDownloader;
+  private GoogleDriveDownloadProcessor driveDownloader;
+
+  @Setup
+  public void setUp() throws Exception {
+    boxServer = startServer(new MockBoxServer());
+    dropboxServer = startServer(new MockDropboxServer());
+    driveServer = startServer(new MockDriveServer());
+
+    project = BenchmarkFixtures.createProject("mockapibench");
+    context = BenchmarkFixtures.createDiscardingContext();
+    producer = context.createProducerTemplate();
+
+    Properties box = new Properties();
+    box.setProperty("configType", "Box");
+    box.setProperty("clientID", "mock-client");
+    box.setProperty("clientSecret", "mock-secret");
+    box.setProperty("enterpriseID", "mock-enterprise");
+    box.setProperty("appUserID", "mock-user");
+    box.setProperty("appUserName", "mock-user");
+    box.setProperty("publicKeyID", "mock-key");
+    box.setProperty("privateKeyFile", createPrivateKey("mock-password").getAbsolutePath());
+    box.setProperty("privateKeyPassword", "mock-password");
+    box.setProperty("apiBaseURL", boxServer.getBaseURL());
+    box.setProperty("requestsPerSecond", Integer.toString(requestsPerSecond));
+    boxAccount = BenchmarkFixtures.createAccount(project, 1, box);
+
+    Properties dropbox = new Properties();
+    dropbox.setProperty("configType", "DropBox");
+    dropbox.setProperty("appKey", "mock-key");
+    dropbox.setProperty("appSecret", "mock-secret");
+    dropbox.setProperty("userID", "mock-user");
+    dropbox.setProperty("accessToken", "mock-access-token");
+    dropbox.setProperty("pollFolder", "");
+    dropbox.setProperty("apiBaseURL", dropboxServer.getBaseURL());
+    dropbox.setProperty("requestsPerSecond", Integer.toString(requestsPerSecond));
+    dropbox.setProperty("listThreads", Integer.toString(listThreads));
+    dropboxAccount = BenchmarkFixtures.createAccount(project, 2, dropbox);
+
+    Properties drive = new Properties();
+    drive.setProperty("configType", "GoogleDrive");
+    drive.setProperty("appName", "mock-app");
+    drive.setProperty("clientSecretFile", createClientSecret().getAbsolutePath());
+    drive.setProperty("apiBaseURL", driveServer.getBaseURL());
+    drive.setProperty("requestsPerSecond", Integer.toString(requestsPerSecond));
+    driveAccount = BenchmarkFixtures.createAccount(project, 3, drive);
+    storeDriveCredential(driveAccount);
+
+    boxDownloader = new BoxDownloadProcessor(project);
+    dropboxDownloader = new DropBoxDownloadProcessor(project);
+    driveDownloader = new GoogleDriveDownloadProcessor(project);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    for (MockApiServer server : new MockApiServer[] { boxServer, dropboxServer, driveServer }) {
+      System.out.println("\n" + server.getClass().getSimpleName() + ": " + server.getRequests() + " requests, "
+          + server.getThrottled() + " throttled");
+      server.stop();
+    }
+    context.stop();
+    project.closeItemIndexes();
+    BenchmarkFixtures.deleteTree(project.getProjectDir());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public void boxFirstSync() throws Exception {
+    boxAccount.updateConfiguration("pollToken", "0");
+    new BoxConnector(boxAccount, producer).poll();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public void dropboxFirstSync() throws Exception {
+    dropboxAccount.updateConfiguration("pollToken", "0");
+    new DropBoxConnector(dropboxAccount, producer).poll();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public void dropboxChanges() throws Exception {
+    dropboxAccount.updateConfiguration("pollToken", dropboxServer.getChangesCursor());
+    new DropBoxConnector(dropboxAccount, producer).poll();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 2)
+  @Measurement(iterations = 5)
+  public void driveChanges() throws Exception {
+    driveAccount.updateConfiguration("pollToken", "1");
+    new GoogleDriveConnector(driveAccount, producer).poll();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 2)
+  public Object boxDownload() throws Exception {
+    Exchange exchange = downloadEvent(boxAccount, "box", "2000007", "folder0/file7.txt", null);
+    boxDownloader.process(exchange);
+    return release(exchange);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 2)
+  public Object dropboxDownload() throws Exception {
+    Exchange exchange = downloadEvent(dropboxAccount, "dropbox", "id:file7", "/folder0/file7.txt",
+        "000000007");
+    dropboxDownloader.process(exchange);
+    return release(exchange);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 3, time = 2)
+  @Measurement(iterations = 5, time = 2)
+  public Object driveDownload() throws Exception {
+    Exchange exchange = downloadEvent(driveAccount, "googledrive", "file7", "/folder0/file7", null);
+    driveDownloader.process(exchange);
+    return release(exchange);
+  }
+
+  private <T extends MockApiServer> T startServer(T server) throws IOException {
+    server.setLatencyMillis(latencyMillis);
+    server.setThrottleEvery(throttleEvery);
+    server.setItemCount(items);
+    server.setPageSize(pageSize);
+    server.setFileBytes(fileKB * 1024);
+    server.start(16);
+    return server;
+  }
+
+  private Exchange downloadEvent(CloudAccount account, String type, String id, String path, String details) {
+    Exchange exchange = new DefaultExchange(context);
+    exchange.getIn().setHeader("action", "download");
+    exchange.getIn().setHeader("source_id", id);
+    exchange.getIn().setHeader("source_name", path.substring(path.lastIndexOf('/') + 1));
+    exchange.getIn().setHeader("source_path", path);
+    exchange.getIn().setHeader("source_type", "file");
+    exchange.getIn().setHeader("details", details);
+    exchange.getIn().setHeader("metadata", "none");
+    exchange.getIn().setHeader("account_id", Integer.toString(account.getID()));
+    exchange.getIn().setHeader("account_type", type);
+    return exchange;
+  }
+
+  private static Object release(Exchange exchange) {
+    IndexDocument document = exchange.getIn().getBody(IndexDocument.class);
+    if (document != null) {
+      document.release();
+    }
+    return document;
+  }
+
+  /**
+   * Writes a new RSA private key, encrypted as Box app keys are, for signing
+   * the JWT assertions BoxConnector authenticates with.
+   */
+  private File createPrivateKey(String password) throws Exception {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    KeyPair pair = generator.generateKeyPair();
+
+    File file = new File(project.getProjectDir(), "mock_private_key.pem");
+    JcaPEMWriter writer = new JcaPEMWriter(new FileWriter(file));
+    try {
+      writer.writeObject(pair, new JcePEMEncryptorBuilder("AES-128-CBC").build(password.toCharArray()));
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+
+  private File createClientSecret() throws IOException {
+    File file = new File(project.getProjectDir(), "mock_client_secret.json");
+    Writer writer = new FileWriter(file);
+    try {
+      writer.write("{\"installed\": {\"client_id\": \"mock-client\", \"client_secret\": \"mock-secret\", "
+          + "\"auth_uri\": \"" + driveServer.getBaseURL() + "/auth\", "
+          + "\"token_uri\": \"" + driveServer.getBaseURL() + "/token\", "
+          + "\"redirect_uris\": [\"urn:ietf:wg:oauth:2.0:oob\"]}}");
+    } finally {
+      writer.close();
+    }
+    return file;
+  }
+
+  /**
+   * Stores a credential for a Drive account where GoogleDriveConnector looks
+   * for one, so that it does not start the browser authorization flow.
+   */
+  private static void storeDriveCredential(CloudAccount account) throws IOException {
+    File dataStoreDir = new File(account.getConfigFile().getParent(), ".credentials/googledrive_" + account.getID());
+    StoredCredential credential = new StoredCredential();
+    credential.setAccessToken("mock-access-token");
+    credential.setRefreshToken("mock-refresh-token");
+    StoredCredential.getDefaultDataStore(new FileDataStoreFactory(dataStoreDir)).set("acct" + account.getID(),
+        credential);
+  }
+
+}
@@ -0,0 +1,293 @@
+package cloudpolling;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Base class of the local stand-ins for cloud storage APIs that connectors
+ * are benchmarked against, by pointing an account's apiBaseURL at them.
+ *
+ * Each serves a simulated account of itemCount files spread over folders of
+ * filesPerFolder files, with listings & change feeds in pages of pageSize
+ * items & file bodies of fileBytes bytes. Every response is delayed by
+ * latencyMillis, and if throttleEvery is set, every throttleEvery-th request
+ * is refused with 429 Too Many Requests & a Retry-After header.
+ *
+ * @author tlarrue
+ *
+ */
+abstract class MockApiServer implements HttpHandler {
+
+  static final String MODIFIED = "2016-10-01T00:00:00Z";
+
+  static {
+    // without TCP_NODELAY, delayed ACKs add ~40ms to responses written in parts
+    System.setProperty("sun.net.httpserver.nodelay", "true");
+  }
+
+  private HttpServer server;
+  private ExecutorService executor;
+
+  private long latencyMillis;
+  private int throttleEvery;
+  private int retryAfterSeconds = 1;
+  private int itemCount = 1000;
+  private int filesPerFolder = 50;
+  private int pageSize = 100;
+  private int fileBytes = 64 * 1024;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong throttled = new AtomicLong();
+
+  /**
+   * Starts serving on a free loopback port.
+   *
+   * @param threads
+   *          number of requests handled at once
+   * @throws IOException
+   */
+  void start(int threads) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+    server.createContext("/", this);
+    executor = Executors.newFixedThreadPool(threads);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  void stop() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  /**
+   * Gets the URL to set as an account's apiBaseURL.
+   *
+   * @return base URL of this server
+   */
+  String getBaseURL() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  public void handle(HttpExchange exchange) throws IOException {
+    try {
+      long count = requests.incrementAndGet();
+      String path = exchange.getRequestURI().getPath();
+      Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+      String body = new String(readAll(exchange.getRequestBody()), "UTF-8");
+
+      if (latencyMillis > 0) {
+        TimeUnit.MILLISECONDS.sleep(latencyMillis);
+      }
+      if (throttleEvery > 0 && count % throttleEvery == 0 && isThrottled(path)) {
+        throttled.incrementAndGet();
+        exchange.getResponseHeaders().set("Retry-After", Integer.toString(retryAfterSeconds));
+        sendJson(exchange, 429, throttledBody());
+        return;
+      }
+
+      respond(exchange, exchange.getRequestMethod(), path, query, body);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      sendJson(exchange, 500, "{\"error\": \"" + e + "\"}");
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Answers a request.
+   *
+   * @param exchange
+   * @param method
+   * @param path
+   * @param query
+   *          decoded query parameters
+   * @param body
+   * @throws IOException
+   */
+  abstract void respond(HttpExchange exchange, String method, String path, Map<String, String> query, String body)
+      throws IOException;
+
+  /**
+   * Gets the body of a 429 response in the provider's error format.
+   */
+  abstract String throttledBody();
+
+  /**
+   * Returns whether requests to a path may be throttled. Authentication
+   * requests are not.
+   *
+   * @param path
+   */
+  boolean isThrottled(String path) {
+    return true;
+  }
+
+  void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+    byte[] bytes = json.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  void sendNotFound(HttpExchange exchange) throws IOException {
+    sendJson(exchange, 404, "{\"error\": \"not_found\"}");
+  }
+
+  /**
+   * Sends fileBytes of plain text, the same each time for the same item.
+   *
+   * @param exchange
+   * @param item
+   * @throws IOException
+   */
+  void sendContent(HttpExchange exchange, int item) throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream(fileBytes);
+    SyntheticDownloadProcessor.write(content, fileBytes, new Random(item));
+    exchange.getResponseHeaders().set("Content-Type", "text/plain");
+    exchange.sendResponseHeaders(200, content.size());
+    OutputStream out = exchange.getResponseBody();
+    content.writeTo(out);
+    out.close();
+  }
+
+  int getFolderCount() {
+    return (itemCount + filesPerFolder - 1) / filesPerFolder;
+  }
+
+  /**
+   * Gets the folder of a file.
+   *
+   * @param file
+   * @return folder number
+   */
+  int folderOf(int file) {
+    return file / filesPerFolder;
+  }
+
+  /**
+   * Returns whether the item at a position of the account's full listing,
+   * which holds every folder followed by every file, is a folder.
+   *
+   * @param index
+   */
+  boolean isFolderAt(int index) {
+    return index < getFolderCount();
+  }
+
+  int getListingSize() {
+    return getFolderCount() + itemCount;
+  }
+
+  static Map<String, String> parseQuery(String query) throws IOException {
+    Map<String, String> params = new HashMap<String, String>();
+    if (query == null) {
+      return params;
+    }
+    for (String pair : query.split("&")) {
+      int split = pair.indexOf('=');
+      if (split > 0) {
+        params.put(URLDecoder.decode(pair.substring(0, split), "UTF-8"),
+            URLDecoder.decode(pair.substring(split + 1), "UTF-8"));
+      } else if (!pair.isEmpty()) {
+        params.put(URLDecoder.decode(pair, "UTF-8"), "");
+      }
+    }
+    return params;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  long getRequests() {
+    return requests.get();
+  }
+
+  long getThrottled() {
+    return throttled.get();
+  }
+
+  long getLatencyMillis() {
+    return latencyMillis;
+  }
+
+  void setLatencyMillis(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
+  int getThrottleEvery() {
+    return throttleEvery;
+  }
+
+  void setThrottleEvery(int throttleEvery) {
+    this.throttleEvery = throttleEvery;
+  }
+
+  int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  void setRetryAfterSeconds(int retryAfterSeconds) {
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  int getItemCount() {
+    return itemCount;
+  }
+
+  void setItemCount(int itemCount) {
+    this.itemCount = itemCount;
+  }
+
+  int getFilesPerFolder() {
+    return filesPerFolder;
+  }
+
+  void setFilesPerFolder(int filesPerFolder) {
+    this.filesPerFolder = filesPerFolder;
+  }
+
+  int getPageSize() {
+    return pageSize;
+  }
+
+  void setPageSize(int pageSize) {
+    this.pageSize = pageSize;
+  }
+
+  int getFileBytes() {
+    return fileBytes;
+  }
+
+  void setFileBytes(int fileBytes) {
+    this.fileBytes = fileBytes;
+  }
+
+}
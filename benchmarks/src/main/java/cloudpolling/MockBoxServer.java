@@ -0,0 +1,170 @@
+package cloudpolling;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A local stand-in for the Box 2.0 API, serving the token endpoint, folder
+ * listings, file & folder info, file content, and the event stream with its
+ * long poll. The account's root folder holds folders "folder[N]", each
+ * holding files "file[M].txt". Folder IDs are 1000000 + N & file IDs are
+ * 2000000 + M.
+ *
+ * Each events request after stream position "now" returns pageSize
+ * ITEM_UPLOAD events for the next files of the account, and the long poll
+ * reports a new change after longpollMillis.
+ *
+ * @author tlarrue
+ *
+ */
+class MockBoxServer extends MockApiServer {
+
+  private static final int FOLDER_IDS = 1000000;
+  private static final int FILE_IDS = 2000000;
+
+  private long longpollMillis;
+
+  @Override
+  void respond(HttpExchange exchange, String method, String path, Map<String, String> query, String body)
+      throws IOException {
+
+    if (path.equals("/oauth2/token")) {
+      sendJson(exchange, 200, "{\"access_token\": \"mock-access-token\", \"expires_in\": 3600, "
+          + "\"restricted_to\": [], \"token_type\": \"bearer\"}");
+      return;
+    }
+
+    if (path.equals("/realtime")) {
+      try {
+        Thread.sleep(longpollMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      sendJson(exchange, 200, "{\"message\": \"new_change\"}");
+      return;
+    }
+
+    String[] parts = path.replaceFirst("^/2\\.0/", "").replaceAll("/+$", "").split("/");
+
+    if (parts[0].equals("events") && method.equals("OPTIONS")) {
+      sendJson(exchange, 200, "{\"chunk_size\": 1, \"entries\": [{\"type\": \"realtime_server\", "
+          + "\"url\": \"" + getBaseURL() + "/realtime?channel=mock\", \"ttl\": \"10\", \"max_retries\": \"10\", "
+          + "\"retry_timeout\": 610}]}");
+
+    } else if (parts[0].equals("events")) {
+      sendJson(exchange, 200, events(query.get("stream_position")));
+
+    } else if (parts[0].equals("folders") && parts.length == 3 && parts[2].equals("items")) {
+      int folder = Integer.parseInt(parts[1]);
+      int offset = query.containsKey("offset") ? Integer.parseInt(query.get("offset")) : 0;
+      int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : getPageSize();
+      sendJson(exchange, 200, folderItems(folder, offset, Math.min(limit, getPageSize())));
+
+    } else if (parts[0].equals("folders") && parts.length == 2) {
+      int folder = Integer.parseInt(parts[1]);
+      sendJson(exchange, 200, folder == 0 ? rootFolder() : folder(folder - FOLDER_IDS, true));
+
+    } else if (parts[0].equals("files") && parts.length == 2) {
+      sendJson(exchange, 200, file(Integer.parseInt(parts[1]) - FILE_IDS, true));
+
+    } else if (parts[0].equals("files") && parts.length == 3 && parts[2].equals("content")) {
+      sendContent(exchange, Integer.parseInt(parts[1]) - FILE_IDS);
+
+    } else {
+      sendNotFound(exchange);
+    }
+  }
+
+  @Override
+  String throttledBody() {
+    return "{\"type\": \"error\", \"status\": 429, \"code\": \"rate_limit_exceeded\", "
+        + "\"message\": \"Request rate limit exceeded, please try again later\"}";
+  }
+
+  @Override
+  boolean isThrottled(String path) {
+    return !path.equals("/oauth2/token");
+  }
+
+  /**
+   * Gets a page of events following a stream position, or no events & the
+   * current position if the position is "now".
+   */
+  private String events(String position) {
+    if (position == null || position.equals("now")) {
+      return "{\"chunk_size\": 0, \"next_stream_position\": 1, \"entries\": []}";
+    }
+    long start = Long.parseLong(position);
+    StringBuilder json = new StringBuilder("{\"chunk_size\": ").append(getPageSize())
+        .append(", \"next_stream_position\": ").append(start + getPageSize()).append(", \"entries\": [");
+    for (int i = 0; i < getPageSize(); i++) {
+      if (i > 0) {
+        json.append(", ");
+      }
+      long event = start + i;
+      json.append("{\"type\": \"event\", \"event_id\": \"event-").append(event).append("\", ")
+          .append("\"event_type\": \"ITEM_UPLOAD\", \"created_at\": \"").append(MODIFIED).append("\", ")
+          .append("\"source\": ").append(file((int) (event % getItemCount()), true)).append("}");
+    }
+    return json.append("]}").toString();
+  }
+
+  private String folderItems(int folder, int offset, int limit) {
+    int first;
+    int count;
+    boolean folders = folder == 0;
+    if (folders) {
+      first = 0;
+      count = getFolderCount();
+    } else {
+      first = (folder - FOLDER_IDS) * getFilesPerFolder();
+      count = Math.min(getFilesPerFolder(), getItemCount() - first);
+    }
+
+    StringBuilder json = new StringBuilder("{\"total_count\": ").append(count).append(", \"entries\": [");
+    for (int i = offset; i < Math.min(count, offset + limit); i++) {
+      if (i > offset) {
+        json.append(", ");
+      }
+      json.append(folders ? folder(i, false) : file(first + i, false));
+    }
+    return json.append("], \"offset\": ").append(offset).append(", \"limit\": ").append(limit).append("}")
+        .toString();
+  }
+
+  private String rootFolder() {
+    return "{\"type\": \"folder\", \"id\": \"0\", \"name\": \"All Files\"}";
+  }
+
+  private String folder(int folder, boolean full) {
+    String json = "{\"type\": \"folder\", \"id\": \"" + (FOLDER_IDS + folder) + "\", \"name\": \"folder" + folder
+        + "\"";
+    if (full) {
+      json += ", \"parent\": " + rootFolder() + ", \"path_collection\": {\"total_count\": 1, \"entries\": ["
+          + rootFolder() + "]}";
+    }
+    return json + "}";
+  }
+
+  private String file(int file, boolean full) {
+    String json = "{\"type\": \"file\", \"id\": \"" + (FILE_IDS + file) + "\", \"name\": \"file" + file
+        + ".txt\", \"sha1\": \"" + String.format("%040x", file) + "\"";
+    if (full) {
+      json += ", \"size\": " + getFileBytes() + ", \"parent\": " + folder(folderOf(file), false)
+          + ", \"path_collection\": {\"total_count\": 2, \"entries\": [" + rootFolder() + ", "
+          + folder(folderOf(file), false) + "]}, \"modified_at\": \"" + MODIFIED + "\"";
+    }
+    return json + "}";
+  }
+
+  long getLongpollMillis() {
+    return longpollMillis;
+  }
+
+  void setLongpollMillis(long longpollMillis) {
+    this.longpollMillis = longpollMillis;
+  }
+
+}
@@ -0,0 +1,232 @@
+package cloudpolling;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A local stand-in for the Google Drive v3 API, serving file listings, file
+ * metadata, revisions, exports & downloads, and the changes feed. The account
+ * has folders "folder[N]" in its root, holding Google Docs "file[M]". File
+ * metadata & revisions may also be requested through the batch endpoint.
+ *
+ * The changes feed has a page of pageSize changed files for each page token
+ * from "1" up to getLastChangePage(), after which it gives that token as the
+ * new start page token. A GoogleDriveConnector whose poll token is "1" syncs
+ * every page of changes in one poll.
+ *
+ * @author tlarrue
+ *
+ */
+class MockDriveServer extends MockApiServer {
+
+  private static final String API = "/drive/v3/";
+  private static final String BATCH = "/batch/drive/v3";
+  private static final String BOUNDARY = "batch_mock";
+  private static final String FOLDER_TYPE = "application/vnd.google-apps.folder";
+  private static final String DOCUMENT_TYPE = "application/vnd.google-apps.document";
+
+  @Override
+  void respond(HttpExchange exchange, String method, String path, Map<String, String> query, String body)
+      throws IOException {
+
+    if (path.equals(BATCH) && method.equals("POST")) {
+      sendBatch(exchange, body);
+      return;
+    }
+    if (!path.startsWith(API)) {
+      sendNotFound(exchange);
+      return;
+    }
+    String[] parts = path.substring(API.length()).split("/");
+    String metadata = metadata(parts, query);
+
+    if (parts[0].equals("files") && parts.length == 1) {
+      sendJson(exchange, 200, fileList(query));
+
+    } else if (parts[0].equals("files") && parts.length == 2 && "media".equals(query.get("alt"))
+        && fileNumber(parts[1]) >= 0) {
+      sendContent(exchange, fileNumber(parts[1]));
+
+    } else if (metadata != null) {
+      sendJson(exchange, 200, metadata);
+
+    } else if (parts[0].equals("files") && parts.length == 3 && parts[2].equals("export")
+        && fileNumber(parts[1]) >= 0) {
+      sendContent(exchange, fileNumber(parts[1]));
+
+    } else if (parts[0].equals("changes") && parts.length == 2 && parts[1].equals("startPageToken")) {
+      sendJson(exchange, 200, "{\"startPageToken\": \"" + getLastChangePage() + "\"}");
+
+    } else if (parts[0].equals("changes") && parts.length == 1) {
+      sendJson(exchange, 200, changeList(query));
+
+    } else {
+      sendNotFound(exchange);
+    }
+  }
+
+  /**
+   * Gets the metadata of a file or folder, or the revisions of a file.
+   *
+   * @param parts
+   *          segments of the path after the API prefix
+   * @param query
+   * @return JSON, or null if the path names no such metadata
+   */
+  private String metadata(String[] parts, Map<String, String> query) {
+    if (!parts[0].equals("files") || parts.length < 2) {
+      return null;
+    } else if (parts.length == 2 && fileNumber(parts[1]) >= 0) {
+      return file(fileNumber(parts[1]));
+    } else if (parts.length == 2 && folderNumber(parts[1]) >= 0) {
+      return folder(folderNumber(parts[1]));
+    } else if (parts.length == 2 && parts[1].equals("root")) {
+      return "{\"kind\": \"drive#file\", \"id\": \"root\", \"name\": \"My Drive\", "
+          + "\"mimeType\": \"" + FOLDER_TYPE + "\"}";
+    } else if (parts.length == 3 && parts[2].equals("revisions")) {
+      return "{\"kind\": \"drive#revisionList\", \"revisions\": [{\"kind\": \"drive#revision\", "
+          + "\"id\": \"1\", \"modifiedTime\": \"" + MODIFIED + "\"}]}";
+    }
+    return null;
+  }
+
+  /**
+   * Answers a batch of metadata requests, each an application/http part of a
+   * multipart/mixed body, with a part holding its response.
+   */
+  private void sendBatch(HttpExchange exchange, String body) throws IOException {
+    String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+    String boundary = "--" + contentType.substring(contentType.indexOf("boundary=") + 9).replace("\"", "");
+
+    StringBuilder response = new StringBuilder();
+    for (String part : body.split(boundary)) {
+      int request = part.indexOf("\r\n\r\n");
+      if (request < 0) {
+        continue; // preamble or closing delimiter
+      }
+      String contentID = header(part.substring(0, request), "Content-ID");
+      String requestLine = part.substring(request + 4).split("\r\n")[0];
+      URI uri = URI.create(requestLine.split(" ")[1]);
+      String json = null;
+      if (uri.getPath().startsWith(API)) {
+        json = metadata(uri.getPath().substring(API.length()).split("/"), parseQuery(uri.getRawQuery()));
+      }
+
+      response.append("--").append(BOUNDARY).append("\r\nContent-Type: application/http\r\n");
+      if (contentID != null) {
+        response.append("Content-ID: response-").append(contentID).append("\r\n");
+      }
+      response.append("\r\n")
+          .append(json != null ? "HTTP/1.1 200 OK" : "HTTP/1.1 404 Not Found")
+          .append("\r\nContent-Type: application/json; charset=UTF-8\r\n\r\n")
+          .append(json != null ? json : "{\"error\": {\"code\": 404, \"message\": \"File not found\"}}")
+          .append("\r\n");
+    }
+    response.append("--").append(BOUNDARY).append("--\r\n");
+
+    byte[] bytes = response.toString().getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "multipart/mixed; boundary=" + BOUNDARY);
+    exchange.sendResponseHeaders(200, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static String header(String headers, String name) {
+    for (String line : headers.split("\r\n")) {
+      if (line.regionMatches(true, 0, name + ":", 0, name.length() + 1)) {
+        return line.substring(name.length() + 1).trim();
+      }
+    }
+    return null;
+  }
+
+  @Override
+  String throttledBody() {
+    return "{\"error\": {\"errors\": [{\"domain\": \"usageLimits\", \"reason\": \"userRateLimitExceeded\", "
+        + "\"message\": \"User Rate Limit Exceeded\"}], \"code\": 429, \"message\": \"User Rate Limit Exceeded\"}}";
+  }
+
+  /**
+   * Gets the last page token of the changes feed.
+   */
+  int getLastChangePage() {
+    return 1 + (getItemCount() + getPageSize() - 1) / getPageSize();
+  }
+
+  /**
+   * Gets a page of the full listing, of pageSize items or the requested page
+   * size if it is smaller.
+   */
+  private String fileList(Map<String, String> query) {
+    int pageSize = getPageSize();
+    if (query.containsKey("pageSize")) {
+      pageSize = Math.min(pageSize, Integer.parseInt(query.get("pageSize")));
+    }
+    int start = query.containsKey("pageToken") ? Integer.parseInt(query.get("pageToken")) : 0;
+    int end = Math.min(getListingSize(), start + pageSize);
+
+    StringBuilder json = new StringBuilder("{\"kind\": \"drive#fileList\", ");
+    if (end < getListingSize()) {
+      json.append("\"nextPageToken\": \"").append(end).append("\", ");
+    }
+    json.append("\"files\": [");
+    for (int index = start; index < end; index++) {
+      if (index > start) {
+        json.append(", ");
+      }
+      json.append(isFolderAt(index) ? folder(index) : file(index - getFolderCount()));
+    }
+    return json.append("]}").toString();
+  }
+
+  private String changeList(Map<String, String> query) {
+    int page = Integer.parseInt(query.get("pageToken"));
+
+    StringBuilder json = new StringBuilder("{\"kind\": \"drive#changeList\", ");
+    if (page < getLastChangePage()) {
+      json.append("\"nextPageToken\": \"").append(page + 1).append("\", ");
+    } else {
+      json.append("\"newStartPageToken\": \"").append(page).append("\", ");
+    }
+    json.append("\"changes\": [");
+    if (page < getLastChangePage()) {
+      int first = (page - 1) * getPageSize();
+      int end = Math.min(getItemCount(), first + getPageSize());
+      for (int item = first; item < end; item++) {
+        if (item > first) {
+          json.append(", ");
+        }
+        json.append("{\"kind\": \"drive#change\", \"fileId\": \"file").append(item).append("\", ")
+            .append("\"removed\": false, \"time\": \"").append(MODIFIED).append("\", \"file\": ").append(file(item))
+            .append("}");
+      }
+    }
+    return json.append("]}").toString();
+  }
+
+  private String folder(int folder) {
+    return "{\"kind\": \"drive#file\", \"id\": \"folder" + folder + "\", \"name\": \"folder" + folder + "\", "
+        + "\"mimeType\": \"" + FOLDER_TYPE + "\", \"parents\": [\"root\"]}";
+  }
+
+  private String file(int file) {
+    return "{\"kind\": \"drive#file\", \"id\": \"file" + file + "\", \"name\": \"file" + file + "\", "
+        + "\"mimeType\": \"" + DOCUMENT_TYPE + "\", \"parents\": [\"folder" + folderOf(file) + "\"], "
+        + "\"md5Checksum\": \"" + String.format("%032x", file) + "\", \"description\": \"Mock document " + file
+        + "\", \"size\": \"" + getFileBytes() + "\", \"modifiedTime\": \"" + MODIFIED + "\"}";
+  }
+
+  private static int fileNumber(String id) {
+    return id.matches("file\\d+") ? Integer.parseInt(id.substring(4)) : -1;
+  }
+
+  private static int folderNumber(String id) {
+    return id.matches("folder\\d+") ? Integer.parseInt(id.substring(6)) : -1;
+  }
+
+}
@@ -0,0 +1,224 @@
+package cloudpolling;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * A local stand-in for the DropBox v2 API, serving list_folder & its
+ * continuations, list_folder/get_latest_cursor, list_folder/longpoll,
+ * get_metadata, list_revisions & download. The account has folders /folder[N]
+ * holding files /folder[N]/file[M].txt.
+ *
+ * Recursive listings of the whole account have cursors "page:[N]". Continuing
+ * such a cursor past the end of the full listing returns a page of changed
+ * files, so a DropBoxConnector whose poll token is getChangesCursor() syncs
+ * one page of changes per poll; get_latest_cursor returns that cursor. The top
+ * level alone (cursors "top:[N]") holds the folders, and listing a folder
+ * (cursors "folder[F]:[N]") gives its files.
+ *
+ * @author tlarrue
+ *
+ */
+class MockDropboxServer extends MockApiServer {
+
+  private static final Pattern PATH = Pattern.compile("\"path\"\\s*:\\s*\"([^\"]*)\"");
+  private static final Pattern CURSOR = Pattern.compile("\"cursor\"\\s*:\\s*\"page:(\\d+)\"");
+  private static final Pattern TOP_CURSOR = Pattern.compile("\"cursor\"\\s*:\\s*\"top:(\\d+)\"");
+  private static final Pattern FOLDER_CURSOR = Pattern.compile("\"cursor\"\\s*:\\s*\"folder(\\d+):(\\d+)\"");
+  private static final Pattern RECURSIVE = Pattern.compile("\"recursive\"\\s*:\\s*true");
+  private static final Pattern FOLDER_PATH = Pattern.compile("/folder(\\d+)");
+  private static final Pattern FILE_PATH = Pattern.compile("/folder\\d+/file(\\d+)\\.txt");
+
+  private long longpollMillis;
+
+  @Override
+  void respond(HttpExchange exchange, String method, String path, Map<String, String> query, String body)
+      throws IOException {
+
+    if (path.equals("/2/files/list_folder")) {
+      Matcher folder = FOLDER_PATH.matcher(pathOf(body));
+      if (folder.matches()) {
+        sendJson(exchange, 200, folderPage(Integer.parseInt(folder.group(1)), 0));
+      } else if (RECURSIVE.matcher(body).find()) {
+        sendJson(exchange, 200, page(0));
+      } else {
+        sendJson(exchange, 200, topPage(0));
+      }
+
+    } else if (path.equals("/2/files/list_folder/continue")) {
+      Matcher cursor = CURSOR.matcher(body);
+      Matcher top = TOP_CURSOR.matcher(body);
+      Matcher folder = FOLDER_CURSOR.matcher(body);
+      if (top.find()) {
+        sendJson(exchange, 200, topPage(Integer.parseInt(top.group(1))));
+      } else if (folder.find()) {
+        sendJson(exchange, 200, folderPage(Integer.parseInt(folder.group(1)), Integer.parseInt(folder.group(2))));
+      } else {
+        sendJson(exchange, 200, page(cursor.find() ? Integer.parseInt(cursor.group(1)) : 0));
+      }
+
+    } else if (path.equals("/2/files/list_folder/get_latest_cursor")) {
+      sendJson(exchange, 200, "{\"cursor\": \"" + getChangesCursor() + "\"}");
+
+    } else if (path.equals("/2/files/list_folder/longpoll")) {
+      try {
+        Thread.sleep(longpollMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      sendJson(exchange, 200, "{\"changes\": true}");
+
+    } else if (path.equals("/2/files/get_metadata")) {
+      String itemPath = pathOf(body);
+      Matcher folder = FOLDER_PATH.matcher(itemPath);
+      Matcher file = FILE_PATH.matcher(itemPath);
+      if (file.matches()) {
+        sendJson(exchange, 200, file(Integer.parseInt(file.group(1)), 0));
+      } else if (folder.matches()) {
+        sendJson(exchange, 200, folder(Integer.parseInt(folder.group(1))));
+      } else {
+        sendNotFoundError(exchange);
+      }
+
+    } else if (path.equals("/2/files/list_revisions")) {
+      Matcher file = FILE_PATH.matcher(pathOf(body));
+      if (file.matches()) {
+        sendJson(exchange, 200, "{\"is_deleted\": true, \"entries\": [" + file(Integer.parseInt(file.group(1)), 0)
+            + "]}");
+      } else {
+        sendNotFoundError(exchange);
+      }
+
+    } else if (path.equals("/2/files/download")) {
+      String arg = exchange.getRequestHeaders().getFirst("Dropbox-API-Arg");
+      Matcher file = FILE_PATH.matcher(arg == null ? "" : pathOf(arg));
+      if (file.matches()) {
+        int item = Integer.parseInt(file.group(1));
+        exchange.getResponseHeaders().set("Dropbox-API-Result", file(item, 0));
+        sendContent(exchange, item);
+      } else {
+        sendNotFoundError(exchange);
+      }
+
+    } else {
+      sendNotFound(exchange);
+    }
+  }
+
+  @Override
+  String throttledBody() {
+    return "{\"error_summary\": \"too_many_requests/\", \"error\": {\"reason\": {\".tag\": \"too_many_requests\"}, "
+        + "\"retry_after\": " + getRetryAfterSeconds() + "}}";
+  }
+
+  /**
+   * Gets the cursor whose continuation is a page of changes.
+   */
+  String getChangesCursor() {
+    return "page:" + (getListingSize() + getPageSize() - 1) / getPageSize();
+  }
+
+  /**
+   * Gets a page of the full listing, or of changed files once past its end.
+   */
+  private String page(int page) {
+    int pages = (getListingSize() + getPageSize() - 1) / getPageSize();
+    StringBuilder json = new StringBuilder("{\"entries\": [");
+
+    if (page < pages) {
+      int end = Math.min(getListingSize(), (page + 1) * getPageSize());
+      for (int index = page * getPageSize(); index < end; index++) {
+        if (index > page * getPageSize()) {
+          json.append(", ");
+        }
+        json.append(isFolderAt(index) ? folder(index) : file(index - getFolderCount(), 0));
+      }
+    } else {
+      // each page of changes updates the next files of the account
+      int first = (page - pages) * getPageSize();
+      for (int i = 0; i < getPageSize(); i++) {
+        if (i > 0) {
+          json.append(", ");
+        }
+        int item = (first + i) % getItemCount();
+        json.append(file(item, 1 + (first + i) / getItemCount()));
+      }
+    }
+
+    json.append("], \"cursor\": \"page:").append(page + 1).append("\", \"has_more\": ").append(page + 1 < pages)
+        .append("}");
+    return json.toString();
+  }
+
+  /**
+   * Gets a page of the folders at the top level.
+   */
+  private String topPage(int page) {
+    int end = Math.min(getFolderCount(), (page + 1) * getPageSize());
+    StringBuilder json = new StringBuilder("{\"entries\": [");
+    for (int folder = page * getPageSize(); folder < end; folder++) {
+      if (folder > page * getPageSize()) {
+        json.append(", ");
+      }
+      json.append(folder(folder));
+    }
+    json.append("], \"cursor\": \"top:").append(page + 1).append("\", \"has_more\": ")
+        .append(end < getFolderCount()).append("}");
+    return json.toString();
+  }
+
+  /**
+   * Gets a page of the files of a folder.
+   */
+  private String folderPage(int folder, int page) {
+    int first = folder * getFilesPerFolder();
+    int last = Math.min(getItemCount(), first + getFilesPerFolder());
+    int end = Math.min(last, first + (page + 1) * getPageSize());
+    StringBuilder json = new StringBuilder("{\"entries\": [");
+    for (int file = first + page * getPageSize(); file < end; file++) {
+      if (file > first + page * getPageSize()) {
+        json.append(", ");
+      }
+      json.append(file(file, 0));
+    }
+    json.append("], \"cursor\": \"folder").append(folder).append(':').append(page + 1)
+        .append("\", \"has_more\": ").append(end < last).append("}");
+    return json.toString();
+  }
+
+  private String folder(int folder) {
+    return "{\".tag\": \"folder\", \"name\": \"folder" + folder + "\", \"id\": \"id:folder" + folder + "\", "
+        + "\"path_lower\": \"/folder" + folder + "\", \"path_display\": \"/folder" + folder + "\"}";
+  }
+
+  private String file(int file, int revision) {
+    String path = "/folder" + folderOf(file) + "/file" + file + ".txt";
+    return "{\".tag\": \"file\", \"name\": \"file" + file + ".txt\", \"id\": \"id:file" + file + "\", "
+        + "\"client_modified\": \"" + MODIFIED + "\", \"server_modified\": \"" + MODIFIED + "\", "
+        + "\"rev\": \"" + String.format("%09x", (long) revision << 32 | file) + "\", \"size\": " + getFileBytes()
+        + ", \"path_lower\": \"" + path + "\", \"path_display\": \"" + path + "\"}";
+  }
+
+  private void sendNotFoundError(HttpExchange exchange) throws IOException {
+    sendJson(exchange, 409, "{\"error_summary\": \"path/not_found/\", "
+        + "\"error\": {\".tag\": \"path\", \"path\": {\".tag\": \"not_found\"}}}");
+  }
+
+  private static String pathOf(String json) {
+    Matcher path = PATH.matcher(json);
+    return path.find() ? path.group(1) : "";
+  }
+
+  long getLongpollMillis() {
+    return longpollMillis;
+  }
+
+  void setLongpollMillis(long longpollMillis) {
+    this.longpollMillis = longpollMillis;
+  }
+
+}
@@ -0,0 +1,111 @@
+package cloudpolling;
+
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.impl.DefaultCamelContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxFile;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+/**
+ * Measures building an item's full cloud path: Box from an item's collection
+ * of ancestor folders, and Google Drive from a lookup of each of its parents, which
+ * the API answers instantly with a canned response.
+ *
+ * @author tlarrue
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PathBenchmark {
+
+  /**
+   * A Box file nested in a chain of folders under the root folder.
+   */
+  @State(Scope.Benchmark)
+  public static class BoxItem {
+
+    @Param({ "1", "4", "16" })
+    int depth;
+
+    BoxFile.Info file;
+
+    @Setup
+    public void setUp() {
+      StringBuilder folders = new StringBuilder("{\"type\": \"folder\", \"id\": \"0\", \"name\": \"All Files\"}");
+      for (int i = 1; i <= depth; i++) {
+        folders.append(", {\"type\": \"folder\", \"id\": \"").append(1000 + i).append("\", \"name\": \"folder")
+            .append(i).append("\"}");
+      }
+      String json = "{\"type\": \"file\", \"id\": \"5000948880\", \"name\": \"q3-report.pdf\", "
+          + "\"path_collection\": {\"total_count\": " + (depth + 1) + ", \"entries\": [" + folders + "]}}";
+      file = new BoxFile(new BoxAPIConnection("benchmark"), "5000948880").new Info(json);
+    }
+  }
+
+  /**
+   * A Google Drive file & a connector whose API answers every call with the
+   * same parent folder.
+   */
+  @State(Scope.Benchmark)
+  public static class DriveItem {
+
+    PollingProject project;
+    GoogleDriveConnector connector;
+    Drive service;
+    File file;
+
+    @Setup
+    public void setUp() throws Exception {
+      project = BenchmarkFixtures.createProject("pathbench");
+      Properties config = new Properties();
+      config.setProperty("configType", "GoogleDrive");
+      config.setProperty("appName", "benchmark");
+      connector = new GoogleDriveConnector(BenchmarkFixtures.createAccount(project, 1, config),
+          new DefaultCamelContext().createProducerTemplate());
+      service = new Drive.Builder(
+          new ConnectorBenchmark.CannedDriveTransport("{\"id\": \"0B_parent\", \"name\": \"Reports\"}"),
+          JacksonFactory.getDefaultInstance(), null).setApplicationName("benchmark").build();
+      file = new File()
+          .setId("0B_file")
+          .setName("q3-report.pdf")
+          .setParents(Collections.singletonList("0B_parent"));
+    }
+
+    @TearDown
+    public void tearDown() {
+      BenchmarkFixtures.deleteTree(project.getProjectDir());
+    }
+  }
+
+  @Benchmark
+  public String boxPath(BoxItem item) {
+    return BoxConnector.getFullBoxPath(item.file);
+  }
+
+  @Benchmark
+  public String drivePath(DriveItem item) throws Exception {
+    return item.connector.getSourcePath(item.service, item.file);
+  }
+
+}
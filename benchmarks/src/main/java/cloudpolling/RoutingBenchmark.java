@@ -0,0 +1,114 @@
+package cloudpolling;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures routing an event by its action with SyncRouter's predicates: first
+ * evaluating them alone in ActionListener's order, then sending the event
+ * through a Camel route with ActionListener's choice, whose branches discard
+ * it.
+ *
+ * @author tlarrue
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RoutingBenchmark {
+
+  @Param({ "download", "delete", "make_directory", "move" })
+  String action;
+
+  private SyncRouter router;
+  private CamelContext context;
+  private ProducerTemplate producer;
+  private Exchange exchange;
+
+  @Setup
+  public void setUp() throws Exception {
+    router = new SyncRouter(null, null, false);
+
+    context = new DefaultCamelContext();
+    context.addRoutes(new RouteBuilder() {
+      public void configure() {
+        from("direct:dispatch")
+            .routeId("ActionListener")
+            .choice()
+            .when(router.move)
+            .to("direct:discard")
+            .when(router.download)
+            .to("direct:discard")
+            .when(router.delete)
+            .to("direct:discard")
+            .when(router.makedir)
+            .to("direct:discard")
+            .otherwise()
+            .to("direct:discard");
+
+        from("direct:discard")
+            .routeId("Discard")
+            .process(new Processor() {
+              public void process(Exchange exchange) {
+              }
+            });
+      }
+    });
+    context.start();
+    producer = context.createProducerTemplate();
+
+    exchange = new DefaultExchange(context);
+    exchange.getIn().setHeader("action", action);
+    exchange.getIn().setHeader("source_id", "5000948880");
+    exchange.getIn().setHeader("source_type", "file");
+    exchange.getIn().setHeader("account_id", "1");
+    exchange.getIn().setHeader("account_type", "box");
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    context.stop();
+  }
+
+  @Benchmark
+  public String predicates() {
+    if (router.move.matches(exchange)) {
+      return "move";
+    } else if (router.download.matches(exchange)) {
+      return "download";
+    } else if (router.delete.matches(exchange)) {
+      return "delete";
+    } else if (router.makedir.matches(exchange)) {
+      return "make_directory";
+    }
+    return "default";
+  }
+
+  @Benchmark
+  public Exchange route() {
+    return producer.send("direct:dispatch", exchange.copy());
+  }
+
+}
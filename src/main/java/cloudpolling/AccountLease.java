@@ -0,0 +1,172 @@
+package cloudpolling;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.Service;
+import org.apache.log4j.Logger;
+
+/**
+ * A lease on polling a cloud account, kept in a file shared by every node
+ * polling the account's project, so that only one node polls the account at a
+ * time.
+ *
+ * The file holds the node that holds the lease & when the lease expires. A
+ * node takes the lease when it is free or has expired, and must renew it
+ * before it expires to keep it; if the node dies, another node takes the lease
+ * over once it expires, and carries on from the account's saved poll token.
+ * As a camel service, the lease is released when its context stops.
+ *
+ * @author tlarrue
+ *
+ */
+public class AccountLease implements Service {
+
+  /**
+   * Name of this node in lease files: its process id & host name.
+   */
+  public static final String NODE = ManagementFactory.getRuntimeMXBean().getName();
+
+  private final File file;
+  private final long leaseMillis;
+  private boolean held;
+
+  private static Logger log = Logger.getLogger(AccountLease.class);
+
+  /**
+   * Constructs a lease, not yet held.
+   *
+   * @param file
+   *          lease file shared by the nodes
+   * @param leaseMillis
+   *          time a lease lasts unless it is renewed
+   */
+  public AccountLease(File file, long leaseMillis) {
+    this.file = file;
+    this.leaseMillis = leaseMillis;
+  }
+
+  /**
+   * Creates the lease of one of a project's cloud accounts, lasting the
+   * project's "leaseMillis" setting (default 30000).
+   *
+   * @param project
+   * @param accountID
+   * @return lease of the account
+   */
+  public static AccountLease forAccount(PollingProject project, String accountID) {
+    return new AccountLease(new File(project.getAccountsDir(), "acct" + accountID + ".lease"),
+        Long.parseLong(project.readConfiguration("leaseMillis", "30000")));
+  }
+
+  /**
+   * Takes this lease if it is free or expired, or renews it if this node
+   * already holds it.
+   *
+   * @return true if this node holds the lease
+   */
+  public synchronized boolean acquire() {
+    boolean wasHeld = held;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        FileChannel channel = raf.getChannel();
+        FileLock lock = channel.lock(); // other nodes may be reading or writing the file
+        try {
+          String line = raf.readLine();
+          String[] lease = line == null ? new String[0] : line.trim().split(" ");
+          long now = System.currentTimeMillis();
+          held = lease.length < 2 || NODE.equals(lease[0]) || Long.parseLong(lease[1]) < now;
+          if (held) {
+            raf.setLength(0);
+            raf.writeBytes(NODE + " " + (now + leaseMillis) + "\n");
+            channel.force(false);
+          }
+        } finally {
+          lock.release();
+        }
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      log.error("Could not read lease " + file.getAbsolutePath(), e);
+      held = false;
+    } catch (NumberFormatException e) {
+      log.error("Lease " + file.getAbsolutePath() + " is corrupt; it will be taken over once it is rewritten.", e);
+      held = false;
+    }
+    if (held != wasHeld) {
+      log.info((held ? "Took lease " : "Lost lease ") + file.getName() + " of project folder "
+          + file.getParentFile().getParent());
+    }
+    return held;
+  }
+
+  /**
+   * Gives this lease up, if this node holds it, so that another node can take
+   * it over without waiting for it to expire.
+   */
+  public synchronized void release() {
+    if (!held) {
+      return;
+    }
+    held = false;
+    try {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        FileLock lock = raf.getChannel().lock();
+        try {
+          String line = raf.readLine();
+          if (line != null && line.startsWith(NODE + " ")) {
+            raf.setLength(0);
+          }
+        } finally {
+          lock.release();
+        }
+      } finally {
+        raf.close();
+      }
+    } catch (IOException e) {
+      log.error("Could not release lease " + file.getAbsolutePath(), e);
+    }
+  }
+
+  public void start() {
+  }
+
+  public void stop() {
+    release();
+  }
+
+  /**
+   * Creates a processor that stops polls of the account unless this node
+   * holds its lease, taking or renewing the lease first.
+   *
+   * @return processor
+   */
+  public Processor skipUnlessHeld() {
+    return new Processor() {
+      public void process(Exchange exchange) throws Exception {
+        if (!acquire()) {
+          log.debug("Skipping poll of " + file.getName() + ", held by another node.");
+          exchange.setProperty(Exchange.ROUTE_STOP, Boolean.TRUE);
+        }
+      }
+    };
+  }
+
+  public synchronized boolean isHeld() {
+    return held;
+  }
+
+  public long getLeaseMillis() {
+    return leaseMillis;
+  }
+
+}
@@ -0,0 +1,492 @@
+package cloudpolling;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the progress of a cloud account's first full sync (backfill) in a
+ * journal next to the account's configuration, so that a backfill that was
+ * interrupted resumes where it stopped instead of starting over or losing
+ * files.
+ *
+ * The journal holds the poll token to switch to once the backfill is
+ * complete, taken before the crawl starts so that no change made during it is
+ * missed, and then the items whose events have completed, the folders whose
+ * items have all completed, and the listing page to resume from: the first
+ * page with an item that has not completed. An event has completed once it
+ * has been synced, and its index update sent, or once it is kept on disk by
+ * the overflow buffer, the dead letter store or the event queue. Only then is
+ * the account's poll token replaced and the journal removed. An event that
+ * failed holds back the folder or page of its item, and the end of the
+ * backfill, until the backfill is resumed & its item sent again.
+ *
+ * Connectors report the folders & pages they list as nested scopes, and the
+ * items they send as belonging to the innermost scope. Each thread has its own
+ * scopes, so that folders can be listed in parallel.
+ *
+ * @author tlarrue
+ *
+ */
+public class BackfillCheckpoint {
+
+  /**
+   * Name of the exchange property holding the completion of a backfill event
+   * (see recorder).
+   */
+  public static final String COMPLETION = "backfill_completion";
+
+  private final CloudAccount account;
+  private final File file;
+  private Writer journal;
+
+  private boolean started;
+  private String pollToken;
+  private String resumeToken;
+  private final HashSet<String> completedItems = new HashSet<String>();
+  private final HashSet<String> completedFolders = new HashSet<String>();
+
+  private final HashMap<String, Scope> pending = new HashMap<String, Scope>();
+  private ThreadLocal<ArrayDeque<Scope>> listing = newListing();
+  private final LinkedList<Scope> pages = new LinkedList<Scope>();
+  private int failures;
+  private boolean crawled;
+  private boolean complete;
+
+  private static Logger log = Logger.getLogger(BackfillCheckpoint.class);
+
+  /**
+   * Constructs the checkpoint of a cloud account, reading its journal if a
+   * backfill was interrupted.
+   *
+   * @param account
+   */
+  public BackfillCheckpoint(CloudAccount account) {
+    this.account = account;
+    this.file = journalFile(account.getParent(), Integer.toString(account.getID()));
+    if (file.exists()) {
+      load();
+    }
+  }
+
+  /**
+   * Gets the journal of one of a project's cloud accounts.
+   *
+   * @param project
+   * @param accountID
+   * @return journal file
+   */
+  public static File journalFile(PollingProject project, String accountID) {
+    return new File(project.getAccountsDir(), "acct" + accountID + ".backfill");
+  }
+
+  private void load() {
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          int space = line.indexOf(' ');
+          String entry = space < 0 ? line : line.substring(0, space);
+          String value = space < 0 ? null : line.substring(space + 1);
+          if (entry.equals("start")) {
+            started = true;
+            pollToken = value;
+          } else if (entry.equals("token")) {
+            pollToken = value;
+          } else if (entry.equals("page")) {
+            resumeToken = value;
+          } else if (entry.equals("item")) {
+            completedItems.add(value);
+          } else if (entry.equals("folder")) {
+            completedFolders.add(value);
+          }
+        }
+      } finally {
+        in.close();
+      }
+      log.info("Resuming backfill of account " + account.getID() + ": " + completedFolders.size() + " folders & "
+          + completedItems.size() + " items were already synced.");
+    } catch (IOException e) {
+      log.error("Could not read backfill journal " + file.getAbsolutePath() + ". The backfill will start over.", e);
+      started = false;
+    }
+  }
+
+  /**
+   * Returns true if a backfill of the account was started, and not completed.
+   *
+   * @return whether the backfill is resumed
+   */
+  public synchronized boolean isStarted() {
+    return started;
+  }
+
+  /**
+   * Starts a backfill, or resumes it if it was started before.
+   *
+   * @param pollToken
+   *          poll token to switch to once the backfill is complete, or null if
+   *          it is only known at the end of the crawl
+   */
+  public synchronized void start(String pollToken) {
+    crawled = false;
+    failures = 0;
+    listing = newListing(); // drops the scopes of an interrupted listing
+    pages.clear();
+    if (started) {
+      return;
+    }
+    started = true;
+    this.pollToken = pollToken;
+    write(pollToken == null ? "start" : "start " + pollToken);
+  }
+
+  /**
+   * Sets the poll token to switch to once the backfill is complete.
+   *
+   * @param pollToken
+   */
+  public synchronized void setPollToken(String pollToken) {
+    this.pollToken = pollToken;
+    write("token " + pollToken);
+  }
+
+  /**
+   * Gets the poll token to switch to once the backfill is complete.
+   *
+   * @return poll token, or null if it is not known yet
+   */
+  public synchronized String getPollToken() {
+    return pollToken;
+  }
+
+  /**
+   * Gets the token of the first listing page with an item that has not
+   * completed.
+   *
+   * @return page token, or null to list from the start
+   */
+  public synchronized String getResumeToken() {
+    return resumeToken;
+  }
+
+  public synchronized boolean isItemCompleted(String id) {
+    return completedItems.contains(id);
+  }
+
+  public synchronized boolean isFolderCompleted(String id) {
+    return completedFolders.contains(id);
+  }
+
+  /**
+   * Starts listing a folder, within the folder this thread is listing.
+   *
+   * @param id
+   */
+  public synchronized void beginFolder(String id) {
+    begin(new Scope(id));
+  }
+
+  /**
+   * Finishes listing the folder begun last.
+   */
+  public synchronized void endFolder() {
+    end(null);
+  }
+
+  /**
+   * Starts listing a page, the first one or the one listed by the token
+   * passed to the last endPage.
+   */
+  public synchronized void beginPage() {
+    Scope page = new Scope(null);
+    pages.add(page);
+    begin(page);
+  }
+
+  /**
+   * Finishes listing the page begun last.
+   *
+   * @param nextToken
+   *          token listing the next page
+   */
+  public synchronized void endPage(String nextToken) {
+    end(nextToken);
+  }
+
+  /**
+   * Records that an event is sent for an item of the folder or page being
+   * listed.
+   *
+   * @param id
+   */
+  public synchronized void sent(String id) {
+    if (id == null || pending.containsKey(id)) {
+      return;
+    }
+    Scope scope = listing.get().peek();
+    pending.put(id, scope);
+    if (scope != null) {
+      scope.outstanding++;
+    }
+  }
+
+  /**
+   * Records that the event of an item has completed.
+   *
+   * @param id
+   */
+  public synchronized void completed(String id) {
+    if (!pending.containsKey(id)) {
+      return;
+    }
+    Scope scope = pending.remove(id);
+    write("item " + id);
+    if (scope != null) {
+      scope.outstanding--;
+      finishIfDone(scope);
+    }
+    completeIfDone();
+  }
+
+  /**
+   * Records that the event of an item has failed. Its folder or page is not
+   * finished, and the backfill not completed, until the backfill is resumed.
+   *
+   * @param id
+   */
+  public synchronized void failed(String id) {
+    if (!pending.containsKey(id)) {
+      return;
+    }
+    pending.remove(id);
+    failures++;
+    log.warn("Event of item " + id + " failed. The backfill of account " + account.getID()
+        + " will sync it again when it is resumed.");
+  }
+
+  /**
+   * Records that every folder or page of the account has been listed. The
+   * backfill is complete once the events of their items have completed too.
+   */
+  public synchronized void crawled() {
+    crawled = true;
+    completeIfDone();
+  }
+
+  /**
+   * Returns true once the backfill is complete & the account's poll token has
+   * been replaced.
+   *
+   * @return whether the backfill is complete
+   */
+  public synchronized boolean isComplete() {
+    return complete;
+  }
+
+  private void begin(Scope scope) {
+    scope.parent = listing.get().peek();
+    if (scope.parent != null) {
+      scope.parent.outstanding++;
+    }
+    listing.get().push(scope);
+  }
+
+  private void end(String nextToken) {
+    Scope scope = listing.get().pop();
+    scope.listed = true;
+    scope.nextToken = nextToken;
+    finishIfDone(scope);
+  }
+
+  private void finishIfDone(Scope scope) {
+    if (!scope.listed || scope.outstanding > 0 || scope.finished) {
+      return;
+    }
+    scope.finished = true;
+    if (scope.folder != null) {
+      completedFolders.add(scope.folder);
+      write("folder " + scope.folder);
+    }
+    while (!pages.isEmpty() && pages.getFirst().finished) {
+      String next = pages.removeFirst().nextToken;
+      if (next != null) {
+        resumeToken = next;
+        write("page " + next);
+      }
+    }
+    if (scope.parent != null) {
+      scope.parent.outstanding--;
+      finishIfDone(scope.parent);
+    }
+  }
+
+  private void completeIfDone() {
+    if (!crawled || !pending.isEmpty() || failures > 0 || complete) {
+      return;
+    }
+    complete = true;
+    close();
+    if (pollToken != null) {
+      account.updateConfiguration("pollToken", pollToken);
+    }
+    if (!file.delete()) {
+      log.warn("Could not remove backfill journal " + file.getAbsolutePath());
+    }
+    log.info("Backfill of account " + account.getID() + " is complete.");
+  }
+
+  private static ThreadLocal<ArrayDeque<Scope>> newListing() {
+    return new ThreadLocal<ArrayDeque<Scope>>() {
+      @Override
+      protected ArrayDeque<Scope> initialValue() {
+        return new ArrayDeque<Scope>();
+      }
+    };
+  }
+
+  private void write(String line) {
+    try {
+      if (journal == null) {
+        journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+      }
+      journal.write(line + "\n");
+      journal.flush();
+    } catch (IOException e) {
+      log.error("Could not write backfill journal " + file.getAbsolutePath(), e);
+    }
+  }
+
+  private void close() {
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException e) {
+        log.error("Could not close backfill journal " + file.getAbsolutePath(), e);
+      }
+      journal = null;
+    }
+  }
+
+  /**
+   * Creates a processor recording when the events of backfills have completed,
+   * or failed, for the checkpoints of a project's accounts. Events of any
+   * traffic are recorded, as a backfill event may have been merged into a later
+   * change of the same item. An event's completion is set as exchange property
+   * COMPLETION, for an index sink to hold until the event's update is sent.
+   *
+   * @param project
+   * @return processor
+   */
+  public static Processor recorder(final PollingProject project) {
+    return new Processor() {
+      public void process(Exchange exchange) throws Exception {
+        BackfillCheckpoint checkpoint = project.findBackfillCheckpoint(
+            exchange.getIn().getHeader("account_id", String.class));
+        String id = exchange.getIn().getHeader("source_id", String.class);
+        if (checkpoint != null && id != null) {
+          final Completion completion = new Completion(checkpoint, id);
+          exchange.setProperty(COMPLETION, completion);
+          exchange.addOnCompletion(new SynchronizationAdapter() {
+            @Override
+            public void onComplete(Exchange exchange) {
+              completion.release(true);
+            }
+
+            @Override
+            public void onFailure(Exchange exchange) {
+              completion.release(false);
+            }
+          });
+        }
+      }
+    };
+  }
+
+  /**
+   * Holds off the completion of the backfill event of an exchange, if it has
+   * one, until the hold is released.
+   *
+   * @param exchange
+   * @return completion held, or null if the exchange is not of a backfill
+   */
+  public static Completion hold(Exchange exchange) {
+    Completion completion = exchange.getProperty(COMPLETION, Completion.class);
+    return completion == null ? null : completion.hold();
+  }
+
+  /**
+   * The completion of a backfill event, recorded once its exchange has
+   * completed & every hold on it, such as an index update waiting in a batch,
+   * has been released. It fails if its exchange or any hold does.
+   */
+  public static class Completion {
+    private final BackfillCheckpoint checkpoint;
+    private final String id;
+    private int holds = 1; // the exchange's
+    private boolean failed;
+
+    Completion(BackfillCheckpoint checkpoint, String id) {
+      this.checkpoint = checkpoint;
+      this.id = id;
+    }
+
+    synchronized Completion hold() {
+      holds++;
+      return this;
+    }
+
+    /**
+     * Releases a hold on this completion.
+     *
+     * @param applied
+     *          true if what the hold was for has been applied, or kept on disk
+     */
+    public synchronized void release(boolean applied) {
+      holds--;
+      if (failed) {
+        return;
+      }
+      if (!applied) {
+        failed = true;
+        checkpoint.failed(id);
+      } else if (holds == 0) {
+        checkpoint.completed(id);
+      }
+    }
+  }
+
+  /**
+   * A folder or page being listed, which is finished once it has been listed &
+   * the events of its items & subfolders have completed.
+   */
+  private static class Scope {
+    final String folder;
+    Scope parent;
+    String nextToken;
+    int outstanding;
+    boolean listed;
+    boolean finished;
+
+    Scope(String folder) {
+      this.folder = folder;
+    }
+  }
+
+}
@@ -5,8 +5,12 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.camel.ProducerTemplate;
 import org.apache.log4j.Logger;
@@ -20,13 +24,16 @@ import com.box.sdk.BoxItem;
 import com.box.sdk.BoxJSONResponse;
 import com.box.sdk.BoxUser;
 import com.box.sdk.CreateUserParams;
+import com.box.sdk.DeveloperEditionEntityType;
 import com.box.sdk.EncryptionAlgorithm;
 import com.box.sdk.EventListener;
 import com.box.sdk.EventStream;
 import com.box.sdk.IAccessTokenCache;
 import com.box.sdk.InMemoryLRUAccessTokenCache;
 import com.box.sdk.JWTEncryptionPreferences;
+import com.eclipsesource.json.JsonArray;
 import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
 
 /**
  * Represents a connection between a box account and a camel context.
@@ -36,6 +43,8 @@ import com.eclipsesource.json.JsonObject;
  */
 public class BoxConnector extends CloudConnector {
 
+  private static final String ROOT_FOLDER_ID = "0";
+
   private String accountID;
   private String clientID;
   private String clientSecret;
@@ -45,8 +54,10 @@ public class BoxConnector extends CloudConnector {
   private String publicKeyID;
   private String privateKeyFile;
   private String privateKeyPassword;
+  private String apiBaseURL;
   private long streamPosition;
   private int maxCacheEntries = 100;
+  private final Map<String, BoxEnricher.CachedMetadata> metadataCache = BoxEnricher.newMetadataCache();
 
   private static Logger log = Logger.getLogger(BoxConnector.class);
 
@@ -77,6 +88,7 @@ public class BoxConnector extends CloudConnector {
     this.publicKeyID = config.getProperty("publicKeyID");
     this.privateKeyFile = config.getProperty("privateKeyFile");
     this.privateKeyPassword = config.getProperty("privateKeyPassword");
+    this.apiBaseURL = config.getProperty("apiBaseURL", "");
     this.streamPosition = defineStreamPosition(config.getProperty("pollToken"));
   }
 
@@ -98,9 +110,35 @@ public class BoxConnector extends CloudConnector {
 
     IAccessTokenCache accessTokenCache = new InMemoryLRUAccessTokenCache(getMaxCacheEntries());
 
-    BoxDeveloperEditionAPIConnection api = BoxDeveloperEditionAPIConnection.getAppUserConnection(this.getUserID(),
+    return authenticate(this.getUserID(), DeveloperEditionEntityType.USER, encryptionPref, accessTokenCache);
+  }
+
+  /**
+   * Authenticates an API connection as an enterprise or app user. If this
+   * account has an apiBaseURL, such as a local stand-in for the Box API, the
+   * connection's API, upload & token URLs are all under it.
+   *
+   * @param entityID
+   * @param entityType
+   * @param encryptionPref
+   * @param accessTokenCache
+   * @return an authenticated box API connection
+   */
+  private BoxDeveloperEditionAPIConnection authenticate(String entityID, DeveloperEditionEntityType entityType,
+      JWTEncryptionPreferences encryptionPref, IAccessTokenCache accessTokenCache) {
+
+    BoxDeveloperEditionAPIConnection api = new BoxDeveloperEditionAPIConnection(entityID, entityType,
         this.getClientID(), this.getClientSecret(), encryptionPref, accessTokenCache);
 
+    if (!this.getApiBaseURL().isEmpty()) {
+      String base = this.getApiBaseURL().replaceAll("/+$", "");
+      api.setBaseURL(base + "/2.0/");
+      api.setBaseUploadURL(base + "/upload/2.0/");
+      api.setTokenURL(base + "/oauth2/token");
+    }
+    RateLimitedRequestInterceptor.install(api, getAccount().getParent().getRateLimiter(getAccount()));
+
+    api.authenticate();
     return api;
   }
 
@@ -108,150 +146,208 @@ public class BoxConnector extends CloudConnector {
    * Connects to Box and starts long polling Box events. On an event, sends
    * exchange to ActionListener and update's account's poll token.
    */
-  public void poll() throws Exception {
+  public synchronized void poll() throws Exception {
 
     final BoxDeveloperEditionAPIConnection api = connect();
 
+    // A backfill saves the stream position once it is complete
+    if (this.getStreamPosition() == 0) {
+      this.streamPosition = defineStreamPosition(getAccount().readConfiguration("pollToken"));
+    }
+
     // If stream position is not 0, start an event stream to poll updates on API
     // connection
     if (this.getStreamPosition() != 0) {
 
       EventStream stream = new EventStream(api, getStreamPosition());
+      AtomicReference<Throwable> streamFailure = new AtomicReference<Throwable>();
+      BoxEnricher enricher = newEnricher(api);
+      stream.addListener(eventListener(enricher, streamFailure));
 
-      stream.addListener(new EventListener() {
-
-        String body;
-        HashMap<String, String> headers;
-
-        public void onEvent(BoxEvent event) {
-
-          log.info("Box event received of type: " + event.getType().toString());
-
-          body = event.toString();
-          headers = new HashMap<String, String>();
-
-          BoxItem.Info srcInfo = (BoxItem.Info) event.getSourceInfo();
-          if (srcInfo != null) {
-
-            headers.put("source_id", srcInfo.getID());
-            headers.put("source_name", srcInfo.getName());
-            headers.put("source_path", getFullBoxPath(srcInfo));
-
-            switch (event.getType()) {
-
-            case ITEM_UPLOAD:
-            case ITEM_CREATE:
-            case ITEM_UNDELETE_VIA_TRASH:
-            case ITEM_COPY:
-
-              if (srcInfo instanceof BoxFile.Info) {
-
-                // BoxFile file = (BoxFile) srcInfo.getResource();
-                BoxFile file = new BoxFile(api, srcInfo.getID());
-
-                headers.put("source_type", "file");
-                BoxFolder.Info parent = file.getInfo().getParent();
-                headers.put("parent_id", parent.getID());
-                try {
-                  headers.put("metadata", file.getMetadata().toString());
-                } catch (Exception ex) {
-                  headers.put("metadata", "none");
-                }
-
-                headers.put("action", "download");
-
-              } else {
-                BoxFolder folder = new BoxFolder(api, srcInfo.getID());
-                headers.put("source_type", "folder");
-                BoxFolder.Info parent = folder.getInfo().getParent();
-                headers.put("parent_id", parent.getID());
-                headers.put("action", "make_directory");
-              }
-              sendActionExchangeWithAcctInfo(headers, body);
-              break;
-
-            case ITEM_RENAME:
-            case ITEM_MOVE:
-
-              // It does not look like there is a way to see attributes of a
-              // previous version of file.
-              // If an item is renamed or moved, we download the most recent
-              // version of the file
-              // BUT THE OLD VERSION MAY STILL BE IN THE LOCAL STORE since we
-              // cannot look it up by path location
-              // NOTE: We can 'guess' the location of the old file, if it is
-              // still in
-              // the same directory using BoxFile.getVersions(), and
-              // BoxFileVersion.getName(), but I do not implement this here
-              // since it will only work some of the time.
-              // I leave these 2 event types to handled separately in case a new
-              // handling method is found.
-
-              if (srcInfo instanceof BoxFile.Info) {
-
-                // BoxFile file = (BoxFile) srcInfo.getResource();
-                BoxFile file = new BoxFile(api, srcInfo.getID());
-
-                headers.put("source_type", "file");
-                BoxFolder.Info parent = file.getInfo().getParent();
-                headers.put("parent_id", parent.getID());
-                try {
-                  headers.put("metadata", file.getMetadata().toString());
-                } catch (Exception ex) {
-                  headers.put("metadata", "none");
-                }
-
-                headers.put("action", "download");
-
-              } else {
-                BoxFolder folder = new BoxFolder(api, srcInfo.getID());
-                headers.put("source_type", "folder");
-                BoxFolder.Info parent = folder.getInfo().getParent();
-                headers.put("parent_id", parent.getID());
-                headers.put("action", "make_directory");
-              }
-              sendActionExchangeWithAcctInfo(headers, body);
-              break;
-
-            case ITEM_TRASH:
-              headers.put("action", "delete");
-              headers.put("details", "remove_childen");
-              sendActionExchangeWithAcctInfo(headers, body);
-              break;
-
-            default:
-              log.info("Unhandled Box event.");
-              break;
-            }
-
-          }
+      log.info("Starting event long polling for Box Account " + accountID + "...");
 
+      try {
+        stream.start();
+        Thread.sleep(1000 * 30 * 1); // 30 seconds to receive events from box
+        stream.stop();
+      } finally {
+        enricher.shutdown();
+      }
+      if (streamFailure.get() != null) {
+        throw new IOException("Event stream of Box Account " + accountID + " failed", streamFailure.get());
+      }
+
+      // If poll token is 0, download all files from that account to the sync
+      // folder, resuming an interrupted backfill, and switch to the stream
+      // position from before it started once it is complete
+    } else {
+      BackfillCheckpoint checkpoint = getBackfillCheckpoint();
+      if (!checkpoint.isStarted()) {
+        log.info("First time connecting to Box Account " + this.getAccountID()
+            + ". Downloading all account items to local sync folder...");
+      }
+      checkpoint.start(Long.toString(getCurrentStreamPosition(api)));
+      setBackfilling(true);
+      try {
+        downloadAllFiles(api, checkpoint);
+      } finally {
+        setBackfilling(false);
+      }
+    }
+  }
+
+  /**
+   * Polls the Box events of this account since its stream position at once,
+   * without waiting for more, when a webhook notifies this account of a
+   * change. A first full sync is polled as usual.
+   */
+  public synchronized void pollNotified() throws Exception {
+
+    if (this.getStreamPosition() == 0) {
+      this.streamPosition = defineStreamPosition(getAccount().readConfiguration("pollToken"));
+    }
+    if (this.getStreamPosition() == 0) {
+      poll();
+      return;
+    }
+
+    log.info("Polling notified changes of Box Account " + accountID + "...");
+
+    BoxDeveloperEditionAPIConnection api = connect();
+    BoxEnricher enricher = newEnricher(api);
+    EventListener listener = eventListener(enricher, new AtomicReference<Throwable>());
+    JsonArray entries;
+    try {
+      do {
+        URL url = new URL(api.getBaseURL() + "events?stream_position=" + getStreamPosition() + "&limit=500");
+        BoxJSONResponse response = (BoxJSONResponse) new BoxAPIRequest(api, url, "GET").send();
+        JsonObject page = JsonObject.readFrom(response.getJSON());
+        entries = page.get("entries").asArray();
+        for (JsonValue entry : entries) {
+          listener.onEvent(new BoxEvent(api, entry.toString()));
         }
+        JsonValue next = page.get("next_stream_position");
+        listener.onNextPosition(next.isString() ? Long.parseLong(next.asString()) : next.asLong());
+      } while (!entries.isEmpty());
+    } finally {
+      enricher.shutdown();
+    }
+  }
+
+  /**
+   * Creates the stage fetching what this account's events need before they
+   * are sent, on up to enrichThreads threads (default 4), with file metadata
+   * cached for up to metadataCacheMillis (default 10 minutes).
+   *
+   * @param api
+   * @return enrichment stage
+   */
+  private BoxEnricher newEnricher(BoxDeveloperEditionAPIConnection api) {
+    Properties config = getAccount().getConfiguration();
+    String threads = config.getProperty("enrichThreads", "").trim();
+    String cacheMillis = config.getProperty("metadataCacheMillis", "").trim();
+    return new BoxEnricher(this, api, threads.isEmpty() ? 4 : Integer.parseInt(threads), metadataCache,
+        cacheMillis.isEmpty() ? 10 * 60 * 1000 : Long.parseLong(cacheMillis));
+  }
 
-        public void onNextPosition(long position) {
-          updatePollToken(position);
+  /**
+   * Creates a listener sending the events of an event stream to ActionListener
+   * through an enrichment stage, & saving the stream's position as this
+   * account's poll token once the events before it are sent.
+   *
+   * @param enricher
+   * @param streamFailure
+   *          set to the stream's first failure
+   * @return event listener
+   */
+  private EventListener eventListener(final BoxEnricher enricher, final AtomicReference<Throwable> streamFailure) {
+    return new EventListener() {
+
+      String body;
+      HashMap<String, String> headers;
+
+      public void onEvent(BoxEvent event) {
+
+        log.info("Box event received of type: " + event.getType().toString());
+
+        body = event.toString();
+        headers = eventHeaders(event);
+        if (headers == null) {
+          log.info("Unhandled Box event.");
+          return;
         }
 
-        public boolean onException(Throwable e) {
-          e.printStackTrace();
-          return false;
+        // Renamed & moved items are sent like any other change, and are
+        // recognized by ActionListener against the account's item index so
+        // that they are moved locally instead of downloaded again. Their
+        // parent, path, hash, size & metadata are fetched by the enrichment stage.
+        String action = headers.get("action");
+        if (action.equals("download")) {
+          enricher.submitFile(headers, body, headers.get("source_id"));
+        } else if (action.equals("make_directory")) {
+          enricher.submitFolder(headers, body, headers.get("source_id"));
+        } else {
+          enricher.submit(headers, body);
         }
-      });
 
-      log.info("Starting event long polling for Box Account " + accountID + "...");
+      }
 
-      stream.start();
-      Thread.sleep(1000 * 30 * 1); // 30 seconds to receive events from box
-      stream.stop();
+      public void onNextPosition(long position) {
+        enricher.flush();
+        updatePollToken(position);
+      }
 
-      // If poll token is 0, get a current stream position and download all
-      // files
-      // from that account to the sync folder
-    } else {
-      updatePollToken(getCurrentStreamPosition(api));
-      log.info("First time connecting to Box Account " + this.getAccountID()
-          + ". Downloading all account items to local sync folder...");
-      downloadAllFiles(api);
+      public boolean onException(Throwable e) {
+        streamFailure.compareAndSet(null, e); // fail the poll once the stream stops
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Builds the headers of a Box event of an item, without the ones fetched for
+   * it by the enrichment stage (see BoxEnricher).
+   *
+   * @param event
+   * @return headers, or null if the event is not of an item or not handled
+   */
+  static HashMap<String, String> eventHeaders(BoxEvent event) {
+    BoxItem.Info srcInfo = (BoxItem.Info) event.getSourceInfo();
+    if (srcInfo == null) {
+      return null;
+    }
+    HashMap<String, String> headers = new HashMap<String, String>();
+    if (event.getCreatedAt() != null) {
+      headers.put("change_time", String.valueOf(event.getCreatedAt().getTime()));
+    }
+    headers.put("source_id", srcInfo.getID());
+    headers.put("source_name", srcInfo.getName());
+    headers.put("source_path", getFullBoxPath(srcInfo));
+
+    switch (event.getType()) {
+
+    case ITEM_UPLOAD:
+    case ITEM_CREATE:
+    case ITEM_UNDELETE_VIA_TRASH:
+    case ITEM_COPY:
+    case ITEM_RENAME:
+    case ITEM_MOVE:
+      if (srcInfo instanceof BoxFile.Info) {
+        headers.put("source_type", "file");
+        headers.put("action", "download");
+      } else {
+        headers.put("source_type", "folder");
+        headers.put("action", "make_directory");
+      }
+      return headers;
+
+    case ITEM_TRASH:
+      headers.put("action", "delete");
+      headers.put("details", "remove_childen");
+      return headers;
+
+    default:
+      return null;
     }
   }
 
@@ -274,8 +370,8 @@ public class BoxConnector extends CloudConnector {
 
     IAccessTokenCache accessTokenCache = new InMemoryLRUAccessTokenCache(this.getMaxCacheEntries());
 
-    BoxDeveloperEditionAPIConnection api = BoxDeveloperEditionAPIConnection.getAppEnterpriseConnection(
-        this.getEnterpriseID(), this.getClientID(), this.getClientSecret(), encryptionPref, accessTokenCache);
+    BoxDeveloperEditionAPIConnection api = authenticate(this.getEnterpriseID(), DeveloperEditionEntityType.ENTERPRISE,
+        encryptionPref, accessTokenCache);
 
     CreateUserParams params = new CreateUserParams();
     params.setSpaceAmount(1073741824); // 1 GB
@@ -289,14 +385,21 @@ public class BoxConnector extends CloudConnector {
 
   /**
    * Sends exchanges to ActionListener to download all files associated with an
-   * api connection to account's local sync folder starting from root folder
+   * api connection to account's local sync folder starting from root folder,
+   * skipping the folders & files a checkpoint holds as completed
    *
    * @param api
+   * @param checkpoint
    */
-  private void downloadAllFiles(BoxDeveloperEditionAPIConnection api) {
+  private void downloadAllFiles(BoxDeveloperEditionAPIConnection api, BackfillCheckpoint checkpoint) {
     BoxFolder rootFolder = BoxFolder.getRootFolder(api);
     String rootPath = Paths.get("").toString();
-    exchangeFolderItems(rootFolder, rootPath, api);
+    if (!checkpoint.isFolderCompleted(rootFolder.getID())) {
+      checkpoint.beginFolder(rootFolder.getID());
+      exchangeFolderItems(rootFolder, rootPath, api, checkpoint);
+      checkpoint.endFolder();
+    }
+    checkpoint.crawled();
   }
 
   /**
@@ -305,13 +408,19 @@ public class BoxConnector extends CloudConnector {
    *
    * @param folder
    * @param depth
+   * @param checkpoint
    */
-  private void exchangeFolderItems(BoxFolder folder, String path, BoxDeveloperEditionAPIConnection api) {
+  private void exchangeFolderItems(BoxFolder folder, String path, BoxDeveloperEditionAPIConnection api,
+      BackfillCheckpoint checkpoint) {
 
     for (BoxItem.Info itemInfo : folder) {
 
       HashMap<String, String> headers = new HashMap<String, String>();
       String itemID = itemInfo.getID();
+      if (checkpoint.isFolderCompleted(itemID)
+          || itemInfo instanceof BoxFile.Info && checkpoint.isItemCompleted(itemID)) {
+        continue;
+      }
       String itemName = itemInfo.getName();
       String itemPath = Paths.get(path, itemName).toString();
       headers.put("source_id", itemID);
@@ -322,24 +431,33 @@ public class BoxConnector extends CloudConnector {
         BoxFile file = new BoxFile(api, itemID); // need to connect again to get
                                                  // all file info
 
+        BoxFile.Info fileInfo = file.getInfo();
         headers.put("action", "download");
-        headers.put("parent_id", file.getInfo().getParent().getID());
-        sendActionExchangeWithAcctInfo(headers, file.getInfo().toString());
+        headers.put("source_type", "file");
+        headers.put("parent_id", fileInfo.getParent().getID());
+        headers.put("content_hash", fileInfo.getSha1());
+        headers.put("size", Long.toString(fileInfo.getSize()));
+        sendActionExchangeWithAcctInfo(headers, fileInfo.toString());
 
       } else if (itemInfo instanceof BoxFolder.Info) {
         BoxFolder dir = new BoxFolder(api, itemID); // need to connect again to
                                                     // get all folder info
 
         headers.put("action", "make_directory");
+        headers.put("source_type", "folder");
         BoxFolder.Info parent = dir.getInfo().getParent();
         if (parent == null) {
-          headers.put("parnet_id", "none");
+          headers.put("parent_id", "none");
         } else {
           headers.put("parent_id", parent.getID());
         }
 
-        sendActionExchangeWithAcctInfo(headers, dir.getInfo().toString());
-        exchangeFolderItems(dir, itemPath, api);
+        if (!checkpoint.isItemCompleted(itemID)) {
+          sendActionExchangeWithAcctInfo(headers, dir.getInfo().toString());
+        }
+        checkpoint.beginFolder(itemID);
+        exchangeFolderItems(dir, itemPath, api, checkpoint);
+        checkpoint.endFolder();
       }
     }
   }
@@ -351,7 +469,7 @@ public class BoxConnector extends CloudConnector {
    * @param headers
    * @param body
    */
-  private void sendActionExchangeWithAcctInfo(HashMap<String, String> headers, String body) {
+  void sendActionExchangeWithAcctInfo(HashMap<String, String> headers, String body) {
     headers.put("account_id", this.getAccountID());
     headers.put("account_type", "box");
     sendActionExchange(headers, body);
@@ -384,21 +502,31 @@ public class BoxConnector extends CloudConnector {
   }
 
   /**
-   * Returns the full box path of a box item as a String.
+   * Returns the path of a box item under the account's root folder, as the
+   * backfill builds it (e.g. "reports/q3.pdf"), from the item's collection of
+   * ancestor folders. An item without one, such as the mini info of an item,
+   * gets the path of its chain of parent infos instead.
    *
    * @param srcInfo
-   * @return absolute path name of box item in box file system
+   * @return path of box item relative to the root folder
    */
-  private static String getFullBoxPath(BoxItem.Info srcInfo) {
+  static String getFullBoxPath(BoxItem.Info srcInfo) {
 
-    BoxItem.Info parentInfo = srcInfo;
-    String dest = "";
+    List<BoxFolder.Info> folders = srcInfo.getPathCollection();
+    if (folders == null) {
+      folders = new ArrayList<BoxFolder.Info>();
+      for (BoxFolder.Info parent = srcInfo.getParent(); parent != null; parent = parent.getParent()) {
+        folders.add(0, parent);
+      }
+    }
 
-    while (parentInfo != null) {
-      dest = Paths.get(parentInfo.getName(), dest).toString();
-      parentInfo = parentInfo.getParent();
+    String dest = "";
+    for (BoxFolder.Info folder : folders) {
+      if (!ROOT_FOLDER_ID.equals(folder.getID())) {
+        dest = Paths.get(dest, folder.getName()).toString();
+      }
     }
-    return dest;
+    return Paths.get(dest, srcInfo.getName()).toString();
   }
 
   /**
@@ -453,6 +581,10 @@ public class BoxConnector extends CloudConnector {
     return streamPosition;
   }
 
+  private String getApiBaseURL() {
+    return apiBaseURL;
+  }
+
   private int getMaxCacheEntries() {
     return maxCacheEntries;
   }
@@ -0,0 +1,362 @@
+package cloudpolling;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxAPIException;
+import com.box.sdk.BoxFile;
+import com.box.sdk.BoxFolder;
+
+/**
+ * Fetches the info & metadata that the events of a Box event stream need
+ * before they are sent, on a bounded pool of threads, so that one event's
+ * requests do not hold up the next. Events are still sent in the order they
+ * arrived: an event waits for its own fetch and those of the events before
+ * it.
+ *
+ * Events of the same item within a window, e.g. a page of events, share one
+ * fetch. The metadata of a file is cached, by the file's SHA-1, for
+ * metadataCacheMillis, since most events of a file, like renames & moves,
+ * leave it unchanged.
+ *
+ * The path of an item is rebuilt from its fetched path collection, since the
+ * item of an event only names its parent, so that it matches the path the
+ * item was synced under by a backfill.
+ *
+ * An item that is gone by the time its info is fetched, e.g. trashed or no
+ * longer shared with the account, has its events sent as deletes of it, so
+ * that the page of events it is in is still passed on.
+ *
+ * Events are submitted & flushed by the thread delivering them, such as an
+ * event stream's.
+ *
+ * @author tlarrue
+ *
+ */
+public class BoxEnricher {
+
+  private static final int METADATA_CACHE_SIZE = 10000;
+
+  private final BoxConnector connector;
+  private final BoxAPIConnection api;
+  private final ExecutorService pool;
+  private final Map<String, CachedMetadata> metadataCache;
+  private final long metadataCacheMillis;
+
+  private final List<Enriched> events = new ArrayList<Enriched>();
+  private final HashMap<String, Future<Map<String, String>>> window =
+      new HashMap<String, Future<Map<String, String>>>();
+
+  private static Logger log = Logger.getLogger(BoxEnricher.class);
+
+  /**
+   * Constructs an enrichment stage, with threads of its own.
+   *
+   * @param connector
+   *          connector sending the enriched events
+   * @param api
+   * @param threads
+   *          most fetches run at once
+   * @param metadataCache
+   *          metadata cache, kept by the connector from one poll to the next
+   * @param metadataCacheMillis
+   *          longest a file's cached metadata is used
+   */
+  public BoxEnricher(BoxConnector connector, BoxAPIConnection api, int threads,
+      Map<String, CachedMetadata> metadataCache, long metadataCacheMillis) {
+    this.connector = connector;
+    this.api = api;
+    this.pool = Executors.newFixedThreadPool(Math.max(1, threads));
+    this.metadataCache = metadataCache;
+    this.metadataCacheMillis = metadataCacheMillis;
+  }
+
+  /**
+   * Creates a metadata cache, evicting its least recently used files.
+   *
+   * @return metadata cache
+   */
+  public static Map<String, CachedMetadata> newMetadataCache() {
+    return new LinkedHashMap<String, CachedMetadata>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedMetadata> eldest) {
+        return size() > METADATA_CACHE_SIZE;
+      }
+    };
+  }
+
+  /**
+   * Queues an event of a file, to send once its parent, path, hash, size &
+   * metadata are known.
+   *
+   * @param headers
+   * @param body
+   * @param id
+   */
+  public void submitFile(HashMap<String, String> headers, String body, final String id) {
+    Future<Map<String, String>> fetch = window.get(id);
+    if (fetch == null) {
+      fetch = pool.submit(new Callable<Map<String, String>>() {
+        public Map<String, String> call() {
+          return fetchFile(id);
+        }
+      });
+      window.put(id, fetch);
+    }
+    submit(headers, body, fetch);
+  }
+
+  /**
+   * Queues an event of a folder, to send once its parent & path are known.
+   *
+   * @param headers
+   * @param body
+   * @param id
+   */
+  public void submitFolder(HashMap<String, String> headers, String body, final String id) {
+    Future<Map<String, String>> fetch = window.get(id);
+    if (fetch == null) {
+      fetch = pool.submit(new Callable<Map<String, String>>() {
+        public Map<String, String> call() {
+          HashMap<String, String> headers = new HashMap<String, String>();
+          try {
+            BoxFolder.Info folderInfo = new BoxFolder(api, id).getInfo("name", "parent", "path_collection");
+            headers.put("parent_id", folderInfo.getParent().getID());
+            headers.put("source_path", BoxConnector.getFullBoxPath(folderInfo));
+          } catch (BoxAPIException ex) {
+            if (!isGone(ex)) {
+              throw ex;
+            }
+            return goneHeaders(id);
+          }
+          return headers;
+        }
+      });
+      window.put(id, fetch);
+    }
+    submit(headers, body, fetch);
+  }
+
+  /**
+   * Queues an event that needs nothing fetched, to send after the events
+   * queued before it.
+   *
+   * @param headers
+   * @param body
+   */
+  public void submit(HashMap<String, String> headers, String body) {
+    submit(headers, body, null);
+  }
+
+  private void submit(HashMap<String, String> headers, String body, Future<Map<String, String>> fetch) {
+    events.add(new Enriched(headers, body, fetch));
+    sendReady();
+  }
+
+  /**
+   * Sends the queued events whose fetches, and those of every event before
+   * them, are done.
+   */
+  private void sendReady() {
+    Iterator<Enriched> queued = events.iterator();
+    while (queued.hasNext()) {
+      Enriched event = queued.next();
+      if (event.fetch != null && !event.fetch.isDone()) {
+        return;
+      }
+      try {
+        send(event);
+      } catch (IllegalStateException e) {
+        return; // thrown by flush
+      }
+      queued.remove();
+    }
+  }
+
+  /**
+   * Waits for the fetches of every queued event & sends them, and closes the
+   * window in which events of the same item share a fetch. If a fetch failed
+   * for a reason other than its item being gone, the events from its event on
+   * are dropped, to be polled again.
+   *
+   * @throws IllegalStateException
+   *           if a fetch failed
+   */
+  public void flush() {
+    try {
+      Iterator<Enriched> queued = events.iterator();
+      while (queued.hasNext()) {
+        send(queued.next());
+        queued.remove();
+      }
+    } finally {
+      events.clear();
+      window.clear();
+    }
+  }
+
+  /**
+   * Stops the threads of this stage. Events that were not flushed are dropped.
+   */
+  public void shutdown() {
+    pool.shutdownNow();
+  }
+
+  private void send(Enriched event) {
+    if (event.fetch != null) {
+      try {
+        event.headers.putAll(event.fetch.get());
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Could not fetch info of Box item " + event.headers.get("source_id"),
+            e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while fetching info of Box item "
+            + event.headers.get("source_id"), e);
+      }
+    }
+    connector.sendActionExchangeWithAcctInfo(event.headers, event.body);
+  }
+
+  private Map<String, String> fetchFile(String id) {
+    BoxFile file = new BoxFile(api, id);
+    BoxFile.Info fileInfo;
+    try {
+      fileInfo = file.getInfo("name", "parent", "path_collection", "sha1", "size");
+    } catch (BoxAPIException ex) {
+      if (!isGone(ex)) {
+        throw ex;
+      }
+      return goneHeaders(id);
+    }
+    return fileHeaders(fileInfo, getMetadata(file, fileInfo.getSha1()));
+  }
+
+  /**
+   * Tells if a request failed because its item no longer exists for the
+   * account, rather than for a reason that may pass.
+   *
+   * @param ex
+   * @return true if the response was 404 Not Found or 410 Gone
+   */
+  static boolean isGone(BoxAPIException ex) {
+    return ex.getResponseCode() == 404 || ex.getResponseCode() == 410;
+  }
+
+  /**
+   * Builds the headers turning the event of an item that is gone into a delete
+   * of the item & anything under it.
+   *
+   * @param id
+   * @return headers
+   */
+  private static Map<String, String> goneHeaders(String id) {
+    log.info("Box item " + id + " is gone. Sending its event as a delete.");
+    HashMap<String, String> headers = new HashMap<String, String>();
+    headers.put("action", "delete");
+    headers.put("details", "remove_childen");
+    return headers;
+  }
+
+  /**
+   * Builds the headers that the event of a file gets from its fetched info &
+   * metadata.
+   *
+   * @param fileInfo
+   *          info of the file, with its name, parent, path collection, SHA-1
+   *          & size
+   * @param metadata
+   *          metadata JSON of the file, or "none"
+   * @return headers
+   */
+  static Map<String, String> fileHeaders(BoxFile.Info fileInfo, String metadata) {
+    HashMap<String, String> headers = new HashMap<String, String>();
+    headers.put("parent_id", fileInfo.getParent().getID());
+    headers.put("source_path", BoxConnector.getFullBoxPath(fileInfo));
+    headers.put("content_hash", fileInfo.getSha1());
+    headers.put("size", Long.toString(fileInfo.getSize()));
+    headers.put("metadata", metadata);
+    return headers;
+  }
+
+  /**
+   * Gets the metadata of a file, from the cache if it was fetched for the
+   * same content within metadataCacheMillis. A file without metadata has
+   * "none", which is cached too.
+   *
+   * @param file
+   * @param sha1
+   * @return metadata JSON, or "none"
+   */
+  private String getMetadata(BoxFile file, String sha1) {
+    long now = System.currentTimeMillis();
+    synchronized (metadataCache) {
+      CachedMetadata cached = metadataCache.get(file.getID());
+      if (cached != null && cached.sha1 != null && cached.sha1.equals(sha1)
+          && now - cached.fetchedMillis < metadataCacheMillis) {
+        return cached.metadata;
+      }
+    }
+
+    String metadata;
+    try {
+      metadata = file.getMetadata().toString();
+    } catch (BoxAPIException ex) {
+      if (ex.getResponseCode() != 404) {
+        log.debug("Could not get metadata of Box file " + file.getID(), ex);
+        return "none"; // not cached, in case it is there next time
+      }
+      metadata = "none";
+    } catch (Exception ex) {
+      log.debug("Could not get metadata of Box file " + file.getID(), ex);
+      return "none";
+    }
+    synchronized (metadataCache) {
+      metadataCache.put(file.getID(), new CachedMetadata(sha1, metadata, now));
+    }
+    return metadata;
+  }
+
+  /**
+   * The metadata of a file, as fetched for one version of its content.
+   */
+  public static class CachedMetadata {
+    final String sha1;
+    final String metadata;
+    final long fetchedMillis;
+
+    CachedMetadata(String sha1, String metadata, long fetchedMillis) {
+      this.sha1 = sha1;
+      this.metadata = metadata;
+      this.fetchedMillis = fetchedMillis;
+    }
+  }
+
+  /**
+   * An event waiting for its fetch, or for the events before it.
+   */
+  private static class Enriched {
+    final HashMap<String, String> headers;
+    final String body;
+    final Future<Map<String, String>> fetch;
+
+    Enriched(HashMap<String, String> headers, String body, Future<Map<String, String>> fetch) {
+      this.headers = headers;
+      this.body = body;
+      this.fetch = fetch;
+    }
+  }
+
+}
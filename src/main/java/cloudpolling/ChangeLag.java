@@ -0,0 +1,91 @@
+package cloudpolling;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+
+/**
+ * Records how long changes take from being made in a cloud account to being
+ * applied to the index, from the "change_time" header (milliseconds since the
+ * epoch) that connectors set on each event. Each account has a histogram of
+ * lags plus a gauge of the lag of the change it indexed most recently.
+ *
+ * @author tlarrue
+ *
+ */
+public class ChangeLag {
+
+  private final PipelineMetrics metrics;
+  private final ConcurrentSkipListMap<String, AtomicLong> lastLag = new ConcurrentSkipListMap<String, AtomicLong>();
+
+  public ChangeLag(PipelineMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Records the lag of the change described by an exchange's headers.
+   *
+   * @param exchange
+   */
+  public void record(Exchange exchange) {
+    record(exchange.getIn().getHeader("account_id", String.class),
+        exchange.getIn().getHeader("change_time", String.class));
+  }
+
+  /**
+   * Records the lag of a change to an account, if its change time is known.
+   *
+   * @param accountID
+   * @param changeTime
+   *          milliseconds since the epoch, or null
+   */
+  public void record(String accountID, String changeTime) {
+    if (accountID == null || changeTime == null) {
+      return;
+    }
+    long lagMillis;
+    try {
+      lagMillis = Math.max(0, System.currentTimeMillis() - Long.parseLong(changeTime));
+    } catch (NumberFormatException e) {
+      return;
+    }
+
+    metrics.histogram("change_lag_millis", "account", accountID).record(lagMillis);
+
+    AtomicLong last = lastLag.get(accountID);
+    if (last == null) {
+      final AtomicLong gauge = new AtomicLong();
+      last = lastLag.putIfAbsent(accountID, gauge);
+      if (last == null) {
+        last = gauge;
+        metrics.gauge("change_lag_last_millis", new PipelineMetrics.Gauge() {
+          public long getValue() {
+            return gauge.get();
+          }
+        }, "account", accountID);
+      }
+    }
+    last.set(lagMillis);
+  }
+
+  /**
+   * Summarizes the lag percentiles of each account that indexed a change.
+   *
+   * @return one line per account, or an empty string
+   */
+  public String summary() {
+    StringBuilder summary = new StringBuilder();
+    for (Map.Entry<String, AtomicLong> account : lastLag.entrySet()) {
+      LatencyHistogram lags = metrics.histogram("change_lag_millis", "account", account.getKey());
+      summary.append(String.format(
+          "acct%s change lag: p50=%.1fs p90=%.1fs p99=%.1fs max=%.1fs last=%.1fs (%d changes)%n",
+          account.getKey(), lags.getPercentile50() / 1000.0, lags.getPercentile90() / 1000.0,
+          lags.getPercentile99() / 1000.0, lags.getMax() / 1000.0, account.getValue().get() / 1000.0,
+          lags.getCount()));
+    }
+    return summary.toString();
+  }
+
+}
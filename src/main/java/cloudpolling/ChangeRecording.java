@@ -0,0 +1,232 @@
+package cloudpolling;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A gzip compressed recording of the change events a connector sends, each
+ * with the time it was sent, so that the workload can be replayed later by a
+ * ReplayConnector. Files downloaded for recorded events can be kept in a blob
+ * folder, named by blobKey, for ReplayDownloadProcessor to serve.
+ *
+ * Records are flushed as they are written; a recording is only complete once
+ * it is closed, which happens at shutdown at the latest.
+ *
+ * @author tlarrue
+ *
+ */
+public class ChangeRecording implements Closeable {
+
+  private final File file;
+  private DataOutputStream out;
+  private Thread shutdownHook;
+  private boolean closed;
+
+  private static Logger log = Logger.getLogger(ChangeRecording.class);
+
+  /**
+   * A recorded change event.
+   */
+  public static class Record {
+    public long time;
+    public HashMap<String, String> headers;
+    public String body;
+  }
+
+  /**
+   * Constructs a recording that will be written to the given file. The file
+   * is created, replacing any previous one, when the first event is recorded.
+   *
+   * @param file
+   */
+  public ChangeRecording(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Appends an event to this recording.
+   *
+   * @param headers
+   * @param body
+   * @throws IOException
+   */
+  public synchronized void record(Map<String, String> headers, String body) throws IOException {
+    if (closed) {
+      throw new IOException("Change recording " + file.getAbsolutePath() + " is closed");
+    }
+    if (out == null) {
+      open();
+    }
+    out.writeLong(System.currentTimeMillis());
+    out.writeInt(headers.size());
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      out.writeUTF(header.getKey());
+      writeString(header.getValue());
+    }
+    writeString(body);
+    out.flush();
+  }
+
+  private void open() throws IOException {
+    file.getParentFile().mkdirs();
+    out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(file)), true));
+    shutdownHook = new Thread() {
+      public void run() {
+        close();
+      }
+    };
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+    log.info("Recording change events to " + file.getAbsolutePath());
+  }
+
+  /**
+   * Writes a string that may be null or longer than writeUTF allows.
+   */
+  private void writeString(String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Completes this recording.
+   */
+  public synchronized void close() {
+    closed = true;
+    if (out == null) {
+      return;
+    }
+    try {
+      out.close();
+    } catch (IOException e) {
+      log.error("Could not complete change recording " + file.getAbsolutePath(), e);
+    }
+    out = null;
+    try {
+      if (Thread.currentThread() != shutdownHook) {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      }
+    } catch (IllegalStateException e) {
+      // already shutting down
+    }
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Reads the events of a recording in the order they were recorded.
+   */
+  public static class Reader implements Closeable {
+
+    private final DataInputStream in;
+
+    public Reader(File file) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+    }
+
+    /**
+     * Reads the next event.
+     *
+     * @return the next event, or null at the end of the recording (or where an
+     *         incomplete recording was cut off)
+     * @throws IOException
+     */
+    public Record next() throws IOException {
+      Record record = new Record();
+      try {
+        record.time = in.readLong();
+        int count = in.readInt();
+        record.headers = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+          String key = in.readUTF();
+          record.headers.put(key, readString());
+        }
+        record.body = readString();
+      } catch (EOFException e) {
+        return null;
+      }
+      return record;
+    }
+
+    private String readString() throws IOException {
+      int length = in.readInt();
+      if (length < 0) {
+        return null;
+      }
+      byte[] bytes = new byte[length];
+      in.readFully(bytes);
+      return new String(bytes, "UTF-8");
+    }
+
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Gets the name a downloaded file is kept under in a blob folder: a hash of
+   * the item's ID, details & content hash, which identify its version.
+   *
+   * @param sourceID
+   * @param details
+   * @param contentHash
+   * @return blob name
+   */
+  public static String blobKey(String sourceID, String details, String contentHash) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update((sourceID + "\n" + details + "\n" + contentHash).getBytes("UTF-8"));
+      return String.format("%040x", new BigInteger(1, digest.digest()));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Copies a downloaded file into a blob folder under the given name, unless
+   * it is already there.
+   *
+   * @param blobFolder
+   * @param key
+   * @param file
+   * @throws IOException
+   */
+  public static void saveBlob(File blobFolder, String key, File file) throws IOException {
+    File blob = new File(blobFolder, key);
+    if (blob.exists()) {
+      return;
+    }
+    blobFolder.mkdirs();
+    File tmp = new File(blobFolder, key + ".tmp");
+    Files.copy(file.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    Files.move(tmp.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+}
@@ -0,0 +1,265 @@
+package cloudpolling;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.apache.log4j.Logger;
+
+import com.box.sdk.BoxAPIException;
+import com.dropbox.core.InvalidAccessTokenException;
+import com.google.api.client.http.HttpResponseException;
+
+/**
+ * Quarantines a cloud account whose polls or downloads keep failing, so that
+ * it does not tie up the pipeline while the project's other accounts carry on.
+ *
+ * The breaker opens after a number of consecutive failures that point at the
+ * account rather than at an item: transient failures (see TransientFailure)
+ * and rejected credentials. While it is open, polls of the account are skipped
+ * & its events fail at once, into the dead letter store. Once the open period
+ * has passed, a single poll or download is let through to try the account
+ * again: if it succeeds the breaker closes, otherwise it opens again for twice
+ * as long, up to a maximum.
+ *
+ * @author tlarrue
+ *
+ */
+public class CircuitBreaker {
+
+  /**
+   * States of a circuit breaker, reported as the value of its gauge.
+   */
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  /**
+   * Thrown instead of handling an event of a quarantined account.
+   */
+  public static class OpenException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public OpenException(String message) {
+      super(message);
+    }
+  }
+
+  private final String name;
+  private final int failureThreshold;
+  private final long openMillis;
+  private final long maxOpenMillis;
+  private final AtomicLong rejected;
+
+  private State state = State.CLOSED;
+  private int failures;
+  private long openedAt;
+  private long currentOpenMillis;
+  private boolean trialInFlight;
+
+  private static Logger log = Logger.getLogger(CircuitBreaker.class);
+
+  /**
+   * Constructs a closed circuit breaker.
+   *
+   * @param name
+   *          name used in log messages
+   * @param failureThreshold
+   *          consecutive failures that open the breaker
+   * @param openMillis
+   *          time the breaker first stays open before a trial
+   * @param maxOpenMillis
+   *          longest time the breaker stays open before a trial
+   * @param rejected
+   *          counter of polls & events rejected while open
+   */
+  public CircuitBreaker(String name, int failureThreshold, long openMillis, long maxOpenMillis, AtomicLong rejected) {
+    this.name = name;
+    this.failureThreshold = Math.max(1, failureThreshold);
+    this.openMillis = openMillis;
+    this.maxOpenMillis = Math.max(openMillis, maxOpenMillis);
+    this.currentOpenMillis = openMillis;
+    this.rejected = rejected;
+  }
+
+  /**
+   * Creates the circuit breaker of one of a project's cloud accounts from the
+   * project's "breakerFailureThreshold" (default 5), "breakerOpenMillis"
+   * (default 60000) & "breakerMaxOpenMillis" (default 900000) settings, and
+   * reports its state as the account_circuit_state gauge.
+   *
+   * @param project
+   * @param accountID
+   * @return circuit breaker of the account
+   */
+  public static CircuitBreaker forAccount(PollingProject project, String accountID) {
+    PipelineMetrics metrics = project.getMetrics();
+    final CircuitBreaker breaker = new CircuitBreaker("account " + accountID,
+        Integer.parseInt(project.readConfiguration("breakerFailureThreshold", "5")),
+        Long.parseLong(project.readConfiguration("breakerOpenMillis", "60000")),
+        Long.parseLong(project.readConfiguration("breakerMaxOpenMillis", "900000")),
+        metrics.counter("circuit_rejected_total", "account", accountID));
+    metrics.gauge("account_circuit_state", new PipelineMetrics.Gauge() {
+      public long getValue() {
+        return breaker.getState().ordinal();
+      }
+    }, "account", accountID);
+    return breaker;
+  }
+
+  /**
+   * Returns whether a poll or download may go ahead, moving an open breaker
+   * to half open once its open period has passed. A half open breaker lets
+   * one trial through at a time.
+   *
+   * @return true if the account may be used
+   */
+  public synchronized boolean allowRequest() {
+    if (state == State.OPEN && System.currentTimeMillis() - openedAt >= currentOpenMillis) {
+      state = State.HALF_OPEN;
+      trialInFlight = false;
+      log.info("Trying quarantined " + name + " again.");
+    }
+    if (state == State.CLOSED) {
+      return true;
+    }
+    if (state == State.HALF_OPEN && !trialInFlight) {
+      trialInFlight = true;
+      return true;
+    }
+    rejected.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Records a poll or download that succeeded, or failed for a reason that
+   * says nothing about the account, closing the breaker.
+   */
+  public synchronized void recordSuccess() {
+    if (state != State.CLOSED) {
+      log.info("Closed circuit breaker of " + name + "; it is no longer quarantined.");
+    }
+    state = State.CLOSED;
+    failures = 0;
+    trialInFlight = false;
+    currentOpenMillis = openMillis;
+  }
+
+  /**
+   * Records a poll or download that failed because of the account, opening
+   * the breaker after enough consecutive failures or a failed trial.
+   *
+   * @param failure
+   */
+  public synchronized void recordFailure(Throwable failure) {
+    failures++;
+    if (state == State.HALF_OPEN) {
+      open(Math.min(maxOpenMillis, currentOpenMillis * 2), failure);
+    } else if (state == State.CLOSED && failures >= failureThreshold) {
+      open(openMillis, failure);
+    }
+  }
+
+  /**
+   * Records the outcome of a poll or download.
+   *
+   * @param failure
+   *          what it failed with, or null if it succeeded
+   */
+  public void record(Throwable failure) {
+    if (failure != null && isAccountFailure(failure)) {
+      recordFailure(failure);
+    } else {
+      recordSuccess();
+    }
+  }
+
+  private void open(long millis, Throwable failure) {
+    state = State.OPEN;
+    openedAt = System.currentTimeMillis();
+    currentOpenMillis = millis;
+    trialInFlight = false;
+    log.error("Opened circuit breaker of " + name + " after " + failures + " consecutive failures (last: " + failure
+        + "). It is quarantined for " + millis + "ms.");
+  }
+
+  /**
+   * Creates a processor that fails events of the account with an
+   * OpenException while it is quarantined, and otherwise records the outcome
+   * of the event once it is done.
+   *
+   * @return processor
+   */
+  public Processor guard() {
+    return new Processor() {
+      public void process(Exchange exchange) throws Exception {
+        if (!allowRequest()) {
+          throw new OpenException(name + " is quarantined after repeated failures.");
+        }
+        recordWhenDone(exchange);
+      }
+    };
+  }
+
+  /**
+   * Creates a processor that stops polls of the account while it is
+   * quarantined, and otherwise records the outcome of the poll once it is
+   * done.
+   *
+   * @return processor
+   */
+  public Processor skipWhenOpen() {
+    return new Processor() {
+      public void process(Exchange exchange) throws Exception {
+        if (!allowRequest()) {
+          log.debug("Skipping poll of quarantined " + name + ".");
+          exchange.setProperty(Exchange.ROUTE_STOP, Boolean.TRUE);
+          return;
+        }
+        recordWhenDone(exchange);
+      }
+    };
+  }
+
+  private void recordWhenDone(Exchange exchange) {
+    exchange.addOnCompletion(new SynchronizationAdapter() {
+      @Override
+      public void onDone(Exchange exchange) {
+        // a failure handled by the dead letter channel is only kept as a
+        // property
+        Throwable failure = exchange.getException();
+        if (failure == null) {
+          failure = exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Throwable.class);
+        }
+        record(failure);
+      }
+    });
+  }
+
+  /**
+   * Returns true if a failure points at the account rather than an item: it
+   * may go away on its own, or the account's credentials were rejected.
+   *
+   * @param failure
+   * @return true if the failure counts against the account
+   */
+  public static boolean isAccountFailure(Throwable failure) {
+    if (TransientFailure.isTransient(failure)) {
+      return true;
+    }
+    for (Throwable cause = failure; cause != null && cause.getCause() != cause; cause = cause.getCause()) {
+      if (cause instanceof InvalidAccessTokenException
+          || cause instanceof HttpResponseException && ((HttpResponseException) cause).getStatusCode() == 401
+          || cause instanceof BoxAPIException && ((BoxAPIException) cause).getResponseCode() == 401) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+}
@@ -32,7 +32,7 @@ public class CloudAccount {
    *
    */
   public enum Type {
-    BOX, DROPBOX, GOOGLEDRIVE
+    BOX, DROPBOX, GOOGLEDRIVE, SYNTHETIC, REPLAY
   }
 
   public static HashMap<Type, File> TEMPLATES;
@@ -48,6 +48,12 @@ public class CloudAccount {
     File googleDriveTemplate = new File("src/main/resources/templates/googledrive.properties");
     map.put(CloudAccount.Type.GOOGLEDRIVE, googleDriveTemplate);
 
+    File syntheticTemplate = new File("src/main/resources/templates/synthetic.properties");
+    map.put(CloudAccount.Type.SYNTHETIC, syntheticTemplate);
+
+    File replayTemplate = new File("src/main/resources/templates/replay.properties");
+    map.put(CloudAccount.Type.REPLAY, replayTemplate);
+
     TEMPLATES = map;
   }
 
@@ -227,6 +233,13 @@ public class CloudAccount {
       fieldsOK = clientSecretFile.exists();
       break;
 
+    case REPLAY:
+      // check if recording file exists
+      String recordFileName = config.getProperty("recordFile");
+      File recordFile = new File(recordFileName);
+      fieldsOK = recordFile.exists();
+      break;
+
     default:
       break;
 
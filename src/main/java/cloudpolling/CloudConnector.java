@@ -1,5 +1,9 @@
 package cloudpolling;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -8,12 +12,15 @@ import org.apache.camel.Message;
 import org.apache.camel.ProducerTemplate;
 import org.apache.camel.impl.DefaultExchange;
 import org.apache.camel.impl.DefaultMessage;
+import org.apache.log4j.Logger;
 
 /**
  * The abstract base class for connections made by all cloud account types.
  *
  * This class handles sending message exchanges with information received from
- * polling updates from cloud accounts.
+ * polling updates from cloud accounts. If the account has a recordFolder
+ * configured, the events are also recorded there, with the files downloaded
+ * for them, so that they can be replayed by a ReplayConnector.
  *
  * @author tlarrue
  *
@@ -22,6 +29,11 @@ public abstract class CloudConnector {
 
   private CloudAccount account;
   private ProducerTemplate producer;
+  private ChangeRecording recording;
+  private File blobFolder;
+  private boolean backfilling;
+
+  private static Logger log = Logger.getLogger(CloudConnector.class);
 
   /**
    * Constructs a cloud connector from a cloud account and producer template
@@ -32,16 +44,44 @@ public abstract class CloudConnector {
   public CloudConnector(CloudAccount account, ProducerTemplate producer) {
     this.account = account;
     this.producer = producer;
+
+    String recordFolder = account.getConfiguration().getProperty("recordFolder", "");
+    if (!recordFolder.isEmpty()) {
+      String started = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+      this.recording = new ChangeRecording(
+          new File(recordFolder, "acct" + account.getID() + "-" + started + ".changes.gz"));
+      this.blobFolder = new File(recordFolder, "blobs");
+    }
   }
 
   /**
    * Sends a new message exchange with given headers and body to ActionListener
-   * route
+   * route. Events without a "change_time" header from their provider, such as
+   * those of a first full sync, are stamped with the time they were sent.
+   * Events are marked as "backfill" or "incremental" traffic by their
+   * "traffic" header, unless they already are (e.g. when replayed).
    *
    * @param headers
    * @param body
    */
   public void sendActionExchange(HashMap<String, String> headers, String body) {
+    if (!headers.containsKey("change_time")) {
+      headers.put("change_time", String.valueOf(System.currentTimeMillis()));
+    }
+    if (!headers.containsKey("traffic")) {
+      headers.put("traffic", isBackfilling() ? "backfill" : "incremental");
+    }
+    if (isBackfilling()) {
+      getBackfillCheckpoint().sent(headers.get("source_id"));
+    }
+    if (recording != null) {
+      try {
+        recording.record(headers, body);
+      } catch (IOException e) {
+        log.error("Could not record change event for item " + headers.get("source_id"), e);
+      }
+      headers.put("record_blob_folder", blobFolder.getAbsolutePath());
+    }
     Exchange exchange = new DefaultExchange(this.getProducer().getCamelContext());
     Message message = new DefaultMessage();
     message.setBody(body);
@@ -51,7 +91,16 @@ public abstract class CloudConnector {
     }
 
     exchange.setIn(message);
-    this.getProducer().send("direct:actions", exchange);
+    this.getProducer().send("direct:" + getAccount().getParent().getEndpointPrefix() + "actions", exchange);
+  }
+
+  /**
+   * Completes this connection's change recording, if it has one.
+   */
+  public void closeRecording() {
+    if (recording != null) {
+      recording.close();
+    }
   }
 
   /**
@@ -72,4 +121,27 @@ public abstract class CloudConnector {
     return producer;
   }
 
+  /**
+   * Returns true while this connector is sending the events of a full sync of
+   * its account, rather than its changes since the last poll.
+   *
+   * @return whether events are backfill traffic
+   */
+  public boolean isBackfilling() {
+    return backfilling;
+  }
+
+  public void setBackfilling(boolean backfilling) {
+    this.backfilling = backfilling;
+  }
+
+  /**
+   * Gets the checkpoint of this connector's backfill.
+   *
+   * @return backfill checkpoint of this connector's account
+   */
+  public BackfillCheckpoint getBackfillCheckpoint() {
+    return getAccount().getParent().getBackfillCheckpoint(getAccount());
+  }
+
 }
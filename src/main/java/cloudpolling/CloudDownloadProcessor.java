@@ -1,23 +1,30 @@
 package cloudpolling;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.file.Paths;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
+import org.apache.camel.support.SynchronizationAdapter;
 import org.apache.tika.Tika;
-import org.apache.tika.exception.TikaException;
 import org.apache.tika.metadata.Metadata;
 import org.apache.tika.parser.AutoDetectParser;
 import org.apache.tika.sax.BodyContentHandler;
-import org.json.JSONObject;
-import org.xml.sax.SAXException;
 
 public class CloudDownloadProcessor implements Processor {
 
+  // loading tika's detectors & parsers is slow, so every project shares them
+  private static final Tika TIKA = new Tika();
+  private static final AutoDetectParser PARSER = new AutoDetectParser();
+
   PollingProject project;
 
   public CloudDownloadProcessor(PollingProject project) {
@@ -33,7 +40,10 @@ public class CloudDownloadProcessor implements Processor {
   }
 
   /**
-   * Processes message exchange by creating a JSON for SolrUpdater exchange
+   * Processes message exchange by creating an index document for SolrUpdater
+   * exchange. A file's extracted text is streamed to a spool file rather than
+   * held in memory, which is deleted once the exchange is done, failed or not,
+   * unless an index sink claimed it.
    */
   public void process(Exchange exchange) throws Exception {
 
@@ -48,50 +58,89 @@ public class CloudDownloadProcessor implements Processor {
     String destPath = Paths.get(this.getProject().getSyncFolder(), "acct" + accountID, sourcePath).toString();
     File destItem = new File(destPath);
 
-    JSONObject json = new JSONObject();
-    json.put("id", sourceID);
-    json.put("name", sourceName);
-    json.put("path", destPath);
-    json.put("parent_id", parentID);
-    json.put("account_type", accountType);
-    json.put("account_id", accountID);
-
-    if (sourceType == "file") {
-      Tika tika = new Tika();
-
+    final IndexDocument doc = new IndexDocument();
+    exchange.addOnCompletion(new SynchronizationAdapter() {
+      @Override
+      public void onDone(Exchange exchange) {
+        if (!doc.isClaimed()) {
+          doc.release();
+        }
+      }
+    });
+    doc.put("id", sourceID);
+    doc.put("name", sourceName);
+    doc.put("path", destPath);
+    doc.put("parent_id", parentID);
+    doc.put("account_type", accountType);
+    doc.put("account_id", accountID);
+
+    if ("file".equals(sourceType)) {
       String metadata = exchange.getIn().getHeader("metadata", String.class);
 
-      json.put("type", tika.detect(destItem));
-      json.put("content", parseToPlainText(destItem));
-      json.put("metadata", metadata);
+      // keep the file for replaying a recording of this account's changes
+      String blobFolder = exchange.getIn().getHeader("record_blob_folder", String.class);
+      if (blobFolder != null && destItem.isFile()) {
+        ChangeRecording.saveBlob(new File(blobFolder), ChangeRecording.blobKey(sourceID,
+            exchange.getIn().getHeader("details", String.class),
+            exchange.getIn().getHeader("content_hash", String.class)), destItem);
+      }
+
+      doc.put("type", TIKA.detect(destItem));
+      doc.put("metadata", metadata);
+
+      PipelineMetrics metrics = this.getProject().getMetrics();
+      metrics.counter("bytes_downloaded_total", "account", accountID, "provider", accountType)
+          .addAndGet(destItem.length());
+      long start = System.nanoTime();
+      doc.setContent(parseToPlainText(destItem));
+      long micros = (System.nanoTime() - start) / 1000;
+      metrics.counter("extraction_micros_total", "account", accountID, "provider", accountType).addAndGet(micros);
+      metrics.histogram("extraction_latency_micros", "account", accountID, "provider", accountType).record(micros);
     }
 
-    exchange.getIn().setBody("[" + json.toString() + "]");
+    this.getProject().getItemIndex(accountID)
+        .put(new ItemIndex.Item(sourceID, sourcePath, parentID, sourceType,
+            exchange.getIn().getHeader("content_hash", String.class)));
+
+    exchange.getIn().setBody(doc);
 
   }
 
   /***
-   * Convert the File into Plain Text file
+   * Extracts the plain text of a file into a spool file in this project's
+   * spool folder.
    *
    * @param file
-   * @return
+   * @return spool file of UTF-8 plain text
    * @throws IOException
-   * @throws SAXException
-   * @throws TikaException
    */
-  public String parseToPlainText(File file) throws IOException, SAXException, TikaException {
-    BodyContentHandler handler = new BodyContentHandler();
-
-    AutoDetectParser parser = new AutoDetectParser();
-    Metadata metadata = new Metadata();
+  public File parseToPlainText(File file) throws IOException {
+    File spool = File.createTempFile("content-", ".txt", this.getProject().getSpoolDir());
     try {
-      InputStream targetStream = new FileInputStream(file.getAbsolutePath());
-      parser.parse(targetStream, handler, metadata);
-      return handler.toString();
-    } catch (Exception e) {
-      e.printStackTrace();
-      return "Empty String";
+      Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spool), "UTF-8"));
+      BodyContentHandler handler = new BodyContentHandler(out);
+
+      Metadata metadata = new Metadata();
+      InputStream targetStream = null;
+      try {
+        targetStream = new FileInputStream(file.getAbsolutePath());
+        PARSER.parse(targetStream, handler, metadata);
+      } catch (FileNotFoundException e) {
+        throw e;
+      } catch (Exception e) {
+        e.printStackTrace();
+      } finally {
+        if (targetStream != null) {
+          targetStream.close();
+        }
+        out.close();
+      }
+    } catch (IOException e) {
+      // the spool file was not handed out
+      spool.delete();
+      throw e;
     }
+    return spool;
   }
 
 }
@@ -1,13 +1,21 @@
 package cloudpolling;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Map;
 
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.camel.component.ActiveMQComponent;
 import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
 import org.apache.camel.ProducerTemplate;
 import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
 
 /**
  * Main application to poll and handle events from multiple cloud storage
@@ -25,7 +33,7 @@ public class CloudPollingApp {
    *
    */
   private static enum Command {
-    NEW, ADD, POLL, RESET, BOXAPPUSER
+    NEW, ADD, POLL, POLL_ALL, DAEMON, BROKER, RESET, REPLAY, BOXAPPUSER
   }
 
   /**
@@ -77,11 +85,31 @@ public class CloudPollingApp {
       pollPollingProject(COMMANDS.PROJECTNAME, CONFIGDIR);
       break;
 
+    case POLL_ALL:
+
+      pollAllPollingProjects(CONFIGDIR, false);
+      break;
+
+    case DAEMON:
+
+      pollAllPollingProjects(CONFIGDIR, true);
+      break;
+
+    case BROKER:
+
+      runBroker(CONFIGDIR);
+      break;
+
     case RESET:
 
       resetPollingProject(COMMANDS.PROJECTNAME, CONFIGDIR);
       break;
 
+    case REPLAY:
+
+      replayPollingProject(COMMANDS.PROJECTNAME, CONFIGDIR);
+      break;
+
     case BOXAPPUSER:
 
       createBoxAppUser(COMMANDS.PROJECTNAME, COMMANDS.ACCT_NAME, CONFIGDIR);
@@ -137,6 +165,7 @@ public class CloudPollingApp {
     for (Integer id : ids) {
       CloudAccount acct = new CloudAccount(id, project);
       acct.updateConfiguration("pollToken", "0");
+      BackfillCheckpoint.journalFile(project, Integer.toString(id)).delete(); // start backfills over
       System.out.println("\tAccount " + Integer.toString(id) + "'s poll token reset.");
     }
 
@@ -175,19 +204,233 @@ public class CloudPollingApp {
   private static void pollPollingProject(String projectName, String topConfigDir) throws Exception {
     PollingProject project = loadProject(projectName, topConfigDir);
 
-    CamelContext context = new DefaultCamelContext();
-    SyncRouter routes = new SyncRouter(project, context.createProducerTemplate());
+    CamelContext context = createContext();
+    SyncRouter routes = assignRole(new SyncRouter(project, context.createProducerTemplate()));
     context.addRoutes(routes);
 
     context.start();
-    Thread.sleep(1000 * 60 * 5); // 5 minutes
+    for (int minute = 0; minute < 5; minute++) { // 5 minutes
+      Thread.sleep(1000 * 60);
+      System.out.print(project.getChangeLag().summary());
+    }
     context.stop();
+    project.closeItemIndexes();
+    System.out.print(project.getChangeLag().summary());
 
     SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd-HH:mm:ss");
     Date dateobj = new Date();
     project.updateConfiguration("lastPoll", sdf.format(dateobj));
   }
 
+  /**
+   * Polls every polling project in the configuration directory in one camel
+   * context. The projects' accounts download on one pool of $CPOLL_THREADS
+   * threads (default 16), shared fairly between the projects, and the
+   * projects share one copy of tika.
+   *
+   * @param topConfigDir
+   * @param daemon
+   *          whether to keep polling every project until the JVM is shut down,
+   *          every pollIntervalMillis or every minute by default, rather than
+   *          polling each project once for 5 minutes
+   * @throws Exception
+   */
+  private static void pollAllPollingProjects(String topConfigDir, boolean daemon) throws Exception {
+    String threads = System.getenv().get("CPOLL_THREADS");
+    final FairExecutor executor = new FairExecutor("Downloader",
+        threads == null ? 16 : Integer.parseInt(threads));
+
+    final CamelContext context = createContext();
+    ProducerTemplate producer = context.createProducerTemplate();
+    final ArrayList<PollingProject> projects = new ArrayList<PollingProject>();
+    for (String projectName : findProjects(topConfigDir)) {
+      System.out.println("Loading polling project '" + projectName + "'...");
+      PollingProject project = new PollingProject(projectName, topConfigDir);
+      if (!project.setConfiguration()) {
+        continue;
+      }
+      project.setEndpointPrefix(projectName + ".");
+      context.addRoutes(assignRole(new SyncRouter(project, producer, executor, daemon ? 60000 : 0)));
+      projects.add(project);
+    }
+    if (projects.isEmpty()) {
+      System.out.println("No valid polling projects found in " + topConfigDir);
+      return;
+    }
+
+    final Thread main = Thread.currentThread();
+    if (daemon) {
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() {
+          main.interrupt();
+          try {
+            main.join();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      });
+    }
+
+    context.start();
+    try {
+      for (int minute = 0; daemon || minute < 5; minute++) { // 5 minutes
+        Thread.sleep(1000 * 60);
+        for (PollingProject project : projects) {
+          System.out.print("Project '" + project.getName() + "':\n" + project.getChangeLag().summary());
+        }
+      }
+    } catch (InterruptedException e) {
+      System.out.println("Shutting down...");
+    }
+    context.stop();
+    executor.shutdown();
+
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd-HH:mm:ss");
+    Date dateobj = new Date();
+    for (PollingProject project : projects) {
+      project.closeItemIndexes();
+      System.out.print("Project '" + project.getName() + "':\n" + project.getChangeLag().summary());
+      project.updateConfiguration("lastPoll", sdf.format(dateobj));
+    }
+  }
+
+  /**
+   * Creates a camel context, connected to the message broker at $CPOLL_BROKER
+   * if it is set.
+   *
+   * @return camel context
+   */
+  private static CamelContext createContext() {
+    CamelContext context = new DefaultCamelContext();
+    String brokerURL = System.getenv().get("CPOLL_BROKER");
+    if (brokerURL != null) {
+      context.addComponent("activemq", ActiveMQComponent.activeMQComponent(brokerURL));
+    }
+    return context;
+  }
+
+  /**
+   * Gives a project's routes this node's role in polling the project. With
+   * $CPOLL_BROKER set, events pass from pollers to workers through a queue of
+   * the broker, and $CPOLL_ROLE makes this node a "poller" (polling the
+   * accounts whose leases it holds) or a "worker" (downloading & indexing),
+   * or both if it is not set. Without a broker, a node does both in process.
+   * Worker nodes cannot share an embedded lucene index, so a project indexed
+   * with lucene is only worked on through a broker embedded in the node.
+   *
+   * @param routes
+   * @return the routes
+   */
+  private static SyncRouter assignRole(SyncRouter routes) {
+    String role = System.getenv().get("CPOLL_ROLE");
+    if (System.getenv().get("CPOLL_BROKER") == null) {
+      if (role != null) {
+        System.out.println("WARNING: $CPOLL_ROLE is ignored unless $CPOLL_BROKER is set.");
+      }
+      return routes;
+    }
+    routes.eventQueue = "activemq:queue:cloudpolling." + routes.getProject().getName() + ".events";
+    if ("poller".equalsIgnoreCase(role)) {
+      routes.work = false;
+    } else if ("worker".equalsIgnoreCase(role)) {
+      routes.poll = false;
+    } else if (role != null) {
+      System.out.println("ERROR: $CPOLL_ROLE must be poller or worker.");
+      System.exit(1);
+    }
+    if (routes.work && !System.getenv().get("CPOLL_BROKER").startsWith("vm:")
+        && "lucene".equalsIgnoreCase(routes.getProject().readConfiguration("indexSink", ""))) {
+      System.out.println("ERROR: Project '" + routes.getProject().getName() + "' has a lucene index sink, which only "
+          + "one node can write to. Index it with solr to share its events between worker nodes.");
+      System.exit(1);
+    }
+    return routes;
+  }
+
+  /**
+   * Runs a message broker for poller & worker nodes at $CPOLL_BROKER (default
+   * tcp://localhost:61616) until the JVM is shut down, keeping queued events
+   * in the configuration directory.
+   *
+   * @param topConfigDir
+   * @throws Exception
+   */
+  private static void runBroker(String topConfigDir) throws Exception {
+    String brokerURL = System.getenv().get("CPOLL_BROKER");
+    BrokerService broker = new BrokerService();
+    broker.setBrokerName("cloudpolling");
+    broker.setDataDirectory(Paths.get(topConfigDir, "broker").toString());
+    broker.addConnector(brokerURL == null ? "tcp://localhost:61616" : brokerURL);
+    broker.start();
+    System.out.println("Message broker is running. Press Ctrl-C to stop it.");
+    broker.waitUntilStopped();
+  }
+
+  /**
+   * Finds the names of the polling projects in a configuration directory: its
+   * subdirectories holding a configuration file of the same name.
+   *
+   * @param topConfigDir
+   * @return names of the polling projects
+   */
+  private static ArrayList<String> findProjects(String topConfigDir) {
+    ArrayList<String> names = new ArrayList<String>();
+    File[] dirs = new File(topConfigDir).listFiles();
+    if (dirs == null) {
+      return names;
+    }
+    Arrays.sort(dirs);
+    for (File dir : dirs) {
+      if (new File(dir, dir.getName() + ".properties").isFile()) {
+        names.add(dir.getName());
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Sends every event in the given polling project's dead letter store back
+   * through the sync routes, along with any index batches that could not be
+   * sent. Events that fail again are returned to the dead letter store.
+   *
+   * @param projectName
+   * @param topConfigDir
+   * @throws Exception
+   */
+  private static void replayPollingProject(String projectName, String topConfigDir) throws Exception {
+    PollingProject project = loadProject(projectName, topConfigDir);
+    EventStore deadLetters = project.getDeadLetterStore();
+
+    CamelContext context = new DefaultCamelContext();
+    ProducerTemplate producer = context.createProducerTemplate();
+    SyncRouter routes = new SyncRouter(project, producer, false);
+    context.addRoutes(routes);
+    context.start();
+
+    File[] events = deadLetters.list();
+    System.out.println("Replaying " + events.length + " failed events...");
+    for (File file : events) {
+      Exchange exchange = new DefaultExchange(context);
+      for (Map.Entry<String, String> header : deadLetters.readHeaders(file).entrySet()) {
+        exchange.getIn().setHeader(header.getKey(), header.getValue());
+      }
+      exchange.getIn().setBody(deadLetters.readBody(file));
+      deadLetters.remove(file);
+      producer.send("direct:dispatch", exchange);
+    }
+
+    if (routes.indexer instanceof SolrIndexer) {
+      int batches = ((SolrIndexer) routes.indexer).replayFailedBatches();
+      System.out.println("Replayed " + batches + " failed index batches.");
+    }
+
+    context.stop();
+    project.closeItemIndexes();
+    System.out.println(deadLetters.list().length + " events failed again and remain in "
+        + deadLetters.getDir().getAbsolutePath());
+  }
+
   /**
    * Constructs a polling project object and checks its configuration.
    *
@@ -213,9 +456,14 @@ public class CloudPollingApp {
   private static CommandSet parseArguments(String[] args) {
 
     String USAGE = "\n new <projectname> : creates a new polling project"
-        + "\n add <projectname> <acct_type> : adds a cloud account to a project (types: Box, DropBox, Drive)"
+        + "\n add <projectname> <acct_type> : adds a cloud account to a project "
+        + "(types: Box, DropBox, Drive, Synthetic, Replay)"
         + "\n poll <projectname> : polls all accounts in a project and syncs account folder with local system"
+        + "\n poll-all : polls all accounts in every project, sharing threads between the projects"
+        + "\n daemon : polls all accounts in every project repeatedly until stopped"
+        + "\n broker : runs a message broker at $CPOLL_BROKER for poller & worker nodes"
         + "\n reset <projectname> : resets poll tokens on all accounts associated with given project"
+        + "\n replay <projectname> : retries all events of a project that previously failed to sync"
         + "\n boxappuser <projectname> <acct_name> : creates a box app user for given account - "
         + "enterpriseID and appUserName must be filled out in account's configuration file";
 
@@ -224,6 +472,11 @@ public class CloudPollingApp {
 
     switch (numArgs) {
 
+    case 1:
+
+      set.COMMAND = Command.valueOf(args[0].toUpperCase().replace('-', '_'));
+      break;
+
     case 2:
 
       set.COMMAND = Command.valueOf(args[0].toUpperCase());
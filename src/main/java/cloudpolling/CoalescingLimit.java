@@ -0,0 +1,80 @@
+package cloudpolling;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
+import org.apache.camel.Processor;
+import org.apache.camel.spi.AggregationRepository;
+import org.apache.log4j.Logger;
+
+/**
+ * Bounds the number of items whose events are held in memory by an aggregator
+ * for their debounce window. An event of an item that is not held yet waits,
+ * on the thread sending it, such as a connector's, while the limit is reached,
+ * so that a poll or backfill producing events faster than they are passed on
+ * is slowed down to their pace instead of filling the heap. Events of items
+ * already held are merged into them, so they never wait.
+ *
+ * Threads sending events at once may each add an item after checking the
+ * limit, so it may be exceeded by as many items as there are such threads.
+ *
+ * @author tlarrue
+ *
+ */
+public class CoalescingLimit implements Processor {
+
+  private static final long WAIT_MILLIS = 10;
+
+  private final AggregationRepository repository;
+  private final Expression correlation;
+  private final int maxPending;
+
+  private static Logger log = Logger.getLogger(CoalescingLimit.class);
+
+  /**
+   * Constructs a limit in front of an aggregator.
+   *
+   * @param repository
+   *          aggregation repository of the aggregator
+   * @param correlation
+   *          correlation expression of the aggregator
+   * @param maxPending
+   *          number of items held before events of other items wait
+   */
+  public CoalescingLimit(AggregationRepository repository, Expression correlation, int maxPending) {
+    this.repository = repository;
+    this.correlation = correlation;
+    this.maxPending = maxPending;
+  }
+
+  /**
+   * Waits until the event's item is held, or there is room to hold it.
+   */
+  public void process(Exchange exchange) throws Exception {
+    String key = correlation.evaluate(exchange, String.class);
+    boolean waited = false;
+    while (repository.getKeys().size() >= maxPending && !repository.getKeys().contains(key)) {
+      if (!waited) {
+        log.warn(maxPending + " items are being coalesced. Waiting to coalesce events for item "
+            + exchange.getIn().getHeader("source_id") + ".");
+        waited = true;
+      }
+      TimeUnit.MILLISECONDS.sleep(WAIT_MILLIS);
+    }
+  }
+
+  public AggregationRepository getRepository() {
+    return repository;
+  }
+
+  /**
+   * Gets the number of items currently held.
+   *
+   * @return number of items held
+   */
+  public int getPending() {
+    return repository.getKeys().size();
+  }
+
+}
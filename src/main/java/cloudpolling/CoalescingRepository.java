@@ -0,0 +1,199 @@
+package cloudpolling;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.processor.aggregate.AggregationStrategy;
+import org.apache.camel.spi.AggregationRepository;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.apache.log4j.Logger;
+
+/**
+ * Holds the events that an aggregator is coalescing for each item (keyed by
+ * "account_id:source_id") in an on-disk event store as well as in memory, so
+ * that events whose poll token has been saved are not lost if the process
+ * dies during their debounce window.
+ *
+ * An item's event is kept on disk until the event passed on for it is done:
+ * the processor of releasing() must follow the aggregator. Events found in the
+ * store on construction, held or passed on when the process stopped, are
+ * merged per item & held again for another debounce window.
+ *
+ * @author tlarrue
+ *
+ */
+public class CoalescingRepository implements AggregationRepository {
+
+  private final EventStore store;
+  private final AggregationStrategy strategy;
+  private final long timeoutMillis;
+  private final Map<String, Held> held = new ConcurrentHashMap<String, Held>();
+  private final Map<String, List<File>> released = new HashMap<String, List<File>>();
+
+  private static Logger log = Logger.getLogger(CoalescingRepository.class);
+
+  /**
+   * Constructs a repository holding events in a store, along with those
+   * already in it.
+   *
+   * @param store
+   * @param strategy
+   *          aggregation strategy merging the stored events of an item
+   * @param timeoutMillis
+   *          completion timeout of the aggregator, to hold stored events for
+   */
+  public CoalescingRepository(EventStore store, AggregationStrategy strategy, long timeoutMillis) {
+    this.store = store;
+    this.strategy = strategy;
+    this.timeoutMillis = timeoutMillis;
+    for (File file : store.list()) {
+      try {
+        HashMap<String, String> headers = store.readHeaders(file);
+        String key = headers.get("account_id") + ":" + headers.get("source_id");
+        if (!held.containsKey(key)) {
+          held.put(key, new Held(null));
+        }
+        held.get(key).files.add(file);
+      } catch (IOException e) {
+        log.error("Could not read coalesced event " + file.getAbsolutePath(), e);
+      }
+    }
+    if (!held.isEmpty()) {
+      log.info("Restored coalesced events of " + held.size() + " items from " + store.getDir().getAbsolutePath());
+    }
+  }
+
+  /**
+   * Stores the event of an item, replacing the one it was merged with.
+   */
+  public synchronized Exchange add(CamelContext context, String key, Exchange exchange) {
+    File file;
+    try {
+      file = store.write(exchange, null);
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not store coalesced event for item " + key, e);
+    }
+    Held previous = held.put(key, new Held(exchange));
+    held.get(key).files.add(file);
+    if (previous == null) {
+      return null;
+    }
+    for (File superseded : previous.files) {
+      store.remove(superseded);
+    }
+    return previous.exchange;
+  }
+
+  /**
+   * Gets the event of an item, merging the item's restored events into one on
+   * first use.
+   */
+  public synchronized Exchange get(CamelContext context, String key) {
+    Held item = held.get(key);
+    if (item == null) {
+      return null;
+    }
+    if (item.exchange == null) {
+      for (File file : item.files) {
+        try {
+          Exchange restored = new DefaultExchange(context);
+          for (Map.Entry<String, String> header : store.readHeaders(file).entrySet()) {
+            restored.getIn().setHeader(header.getKey(), header.getValue());
+          }
+          restored.getIn().setBody(store.readBody(file));
+          item.exchange = strategy.aggregate(item.exchange, restored);
+        } catch (IOException e) {
+          log.error("Could not read coalesced event " + file.getAbsolutePath(), e);
+        }
+      }
+      if (item.exchange != null) {
+        // lets the aggregator time the restored event out again
+        item.exchange.setProperty(Exchange.AGGREGATED_TIMEOUT, timeoutMillis);
+      }
+    }
+    return item.exchange;
+  }
+
+  /**
+   * Stops holding the event of an item as it is passed on, keeping it on disk
+   * until releasing() sees it done.
+   */
+  public synchronized void remove(CamelContext context, String key, Exchange exchange) {
+    Held item = held.remove(key);
+    if (item == null) {
+      return;
+    }
+    List<File> files = released.get(key);
+    if (files == null) {
+      files = new ArrayList<File>();
+      released.put(key, files);
+    }
+    files.addAll(item.files);
+  }
+
+  /**
+   * Does nothing, as the aggregator only confirms events that did not fail,
+   * while failed events are kept by the dead letter channel.
+   */
+  public void confirm(CamelContext context, String exchangeId) {
+  }
+
+  public Set<String> getKeys() {
+    return Collections.unmodifiableSet(held.keySet());
+  }
+
+  /**
+   * Creates a processor that, following the aggregator, removes the stored
+   * event of each item passed on from disk once it is done, failed or not.
+   * An item passed on again before its previous event is done has the stored
+   * events of both removed with whichever of them is done first.
+   *
+   * @return processor
+   */
+  public Processor releasing() {
+    return new Processor() {
+      public void process(Exchange exchange) throws Exception {
+        final List<File> files;
+        synchronized (CoalescingRepository.this) {
+          files = released.remove(exchange.getProperty(Exchange.AGGREGATED_CORRELATION_KEY, String.class));
+        }
+        if (files == null) {
+          return;
+        }
+        exchange.addOnCompletion(new SynchronizationAdapter() {
+          @Override
+          public void onDone(Exchange exchange) {
+            for (File file : files) {
+              store.remove(file);
+            }
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * The event held for an item, & the files it is stored in, which are more
+   * than one only while restored.
+   */
+  private static class Held {
+    Exchange exchange;
+    final List<File> files = new ArrayList<File>();
+
+    Held(Exchange exchange) {
+      this.exchange = exchange;
+    }
+  }
+
+}
@@ -0,0 +1,39 @@
+package cloudpolling;
+
+import java.io.File;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.log4j.Logger;
+
+/**
+ * Stores an event that could not be processed in the project's dead letter
+ * store, along with the reason it failed, so it can be replayed later.
+ *
+ * @author tlarrue
+ *
+ */
+public class DeadLetterProcessor implements Processor {
+
+  PollingProject project;
+
+  private static Logger log = Logger.getLogger(DeadLetterProcessor.class);
+
+  public DeadLetterProcessor(PollingProject project) {
+    this.project = project;
+  }
+
+  public void process(Exchange exchange) throws Exception {
+    Throwable failure = exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Throwable.class);
+    String reason = failure == null ? "unknown" : failure.toString();
+
+    File file = this.getProject().getDeadLetterStore().write(exchange, reason);
+    log.error("Could not process " + exchange.getIn().getHeader("action") + " event for item "
+        + exchange.getIn().getHeader("source_id") + " (" + reason + "). Saved to " + file.getAbsolutePath());
+  }
+
+  public PollingProject getProject() {
+    return this.project;
+  }
+
+}
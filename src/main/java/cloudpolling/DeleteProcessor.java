@@ -25,40 +25,79 @@ public class DeleteProcessor implements Processor {
 
   /**
    * Deletes a file or a folder and its children, specified by header
-   * "source_path" and constructs a JSON string for Solr deletion.
+   * "source_id" or "source_path", and sets the headers for its index
+   * deletion. Folder deletions also drop the folder's children from the
+   * account's item index & set header "index_path_prefix" so that every
+   * indexed child is removed by one delete-by-query.
    */
   public void process(Exchange exchange) throws Exception {
 
-    // Delete file from local file system
     String accountID = exchange.getIn().getHeader("account_id", String.class);
+    String sourceID = exchange.getIn().getHeader("source_id", String.class);
     String cloudPath = exchange.getIn().getHeader("source_path", String.class);
+    String type = exchange.getIn().getHeader("source_type", String.class);
+    String details = exchange.getIn().getHeader("details", String.class);
+
+    // Prefer what the item index knows about the item over the event, since
+    // providers often report trashed items without a usable path or ID.
+    // DropBox deletions are reported by path, & the same ID may already have
+    // been moved to a new path, so those are only looked up by path.
+    ItemIndex items = this.getProject().getItemIndex(accountID);
+    boolean byPath = "dropbox".equals(exchange.getIn().getHeader("account_type", String.class))
+        && cloudPath != null;
+    ItemIndex.Item item = byPath ? items.getByPath(cloudPath) : items.get(sourceID);
+    if (item == null && cloudPath != null) {
+      item = items.getByPath(cloudPath);
+    }
+    if (item != null) {
+      sourceID = item.id;
+      cloudPath = item.path;
+      type = item.type;
+      exchange.getIn().setHeader("source_id", sourceID);
+      exchange.getIn().setHeader("source_path", cloudPath);
+    }
+
+    // Delete file from local file system
     String fileName = Paths.get(this.getProject().getSyncFolder(), "acct" + accountID, cloudPath).toString();
     File file = new File(fileName);
+    boolean folder = file.isDirectory() || "folder".equals(type)
+        || (type == null && "remove_childen".equals(details));
 
-    String type = exchange.getIn().getHeader("source_type", String.class);
-    if (type == "file") {
+    if (!folder) {
       boolean fileDeleted = file.delete();
       if (fileDeleted) {
         log.info("File deleted: " + fileName);
       } else {
         log.info("WARNING: Could not delete file: " + fileName);
       }
+      if (item != null) {
+        items.remove(item.id);
+      }
     } else {
       try {
         // Deleting the directory recursively.
-        delete(fileName);
+        if (file.exists()) {
+          delete(fileName);
+        }
         log.info("Directory & its children deleted: " + fileName);
       } catch (IOException e) {
         log.info("WARNING: Could not delete directory: " + fileName);
       }
+      int removed = items.removeTree(cloudPath);
+      log.info("Removed " + removed + " items under " + cloudPath + " from item index of account " + accountID);
 
+      // all of the folder's children are indexed under this path
+      exchange.getIn().setHeader("index_path_prefix", fileName + File.separator);
     }
 
-    // create JSON for Solr Exchange
-    String sourceID = exchange.getIn().getHeader("source_id", String.class);
-    log.info("Creating JSON for deleting cloud file with ID:" + sourceID);
-    String delete_json = "{ \"delete\" : { \"id\" : \"" + sourceID + "\" } }";
-    exchange.getIn().setBody(delete_json);
+    // set deletion headers for SolrDeleter exchange
+    if (byPath && item == null) {
+      // the ID may belong to an item that now lives at another path
+      log.info("Deleting index document of cloud file at path:" + fileName);
+      exchange.getIn().setHeader("index_path", fileName);
+    } else {
+      log.info("Deleting index document of cloud file with ID:" + sourceID);
+    }
 
   }
 
@@ -70,7 +109,7 @@ public class DeleteProcessor implements Processor {
    * @throws IOException
    *           Exception when problem occurs during deleting the directory.
    */
-  private static void delete(String directoryName) throws IOException {
+  static void delete(String directoryName) throws IOException {
 
     Path directory = Paths.get(directoryName);
     Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
@@ -0,0 +1,291 @@
+package cloudpolling;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.Revision;
+import com.google.api.services.drive.model.RevisionList;
+
+/**
+ * Sends the Google Drive metadata lookups of an account through Drive's batch
+ * endpoint, up to MAX_BATCH_SIZE lookups to an HTTP request.
+ *
+ * A connector looks up the files a page of changes needs all at once. Lookups
+ * made one at a time by concurrent threads, like downloads, are collected
+ * instead: the first waits up to lingerMillis for others to join it, unless
+ * the batch fills up first, and each thread then gets its own file back.
+ *
+ * A lookup of a file that does not exist (404) gives null; other failures are
+ * thrown as the GoogleJsonResponseException a single request would throw.
+ *
+ * @author tlarrue
+ *
+ */
+public class DriveBatcher {
+
+  public static final int MAX_BATCH_SIZE = 100;
+
+  private final Drive service;
+  private final long lingerMillis;
+  private Batch collecting;
+
+  private static Logger log = Logger.getLogger(DriveBatcher.class);
+
+  /**
+   * Constructs a batcher.
+   *
+   * @param service
+   *          authorized Drive client service of the account
+   * @param lingerMillis
+   *          longest a single lookup waits for others to join its batch
+   */
+  public DriveBatcher(Drive service, long lingerMillis) {
+    this.service = service;
+    this.lingerMillis = lingerMillis;
+  }
+
+  public Drive getService() {
+    return service;
+  }
+
+  /**
+   * Looks up files, in as few batches as they fit in.
+   *
+   * @param ids
+   * @param fields
+   *          fields of each file to get
+   * @return files by ID, without those that do not exist
+   * @throws IOException
+   */
+  public Map<String, File> getFiles(Collection<String> ids, String fields) throws IOException {
+    LinkedHashMap<String, DriveRequest<File>> requests = new LinkedHashMap<String, DriveRequest<File>>();
+    for (String id : ids) {
+      requests.put(id, service.files().get(id).setFields(fields));
+    }
+    return execute(requests);
+  }
+
+  /**
+   * Looks up files as they were at given revisions, such as removed files at
+   * their last revision.
+   *
+   * @param revisions
+   *          revision IDs by file ID
+   * @param fields
+   *          fields of each file to get
+   * @return files by ID, without those that do not exist
+   * @throws IOException
+   */
+  public Map<String, File> getFileRevisions(Map<String, String> revisions, String fields) throws IOException {
+    LinkedHashMap<String, DriveRequest<File>> requests = new LinkedHashMap<String, DriveRequest<File>>();
+    for (Map.Entry<String, String> revision : revisions.entrySet()) {
+      requests.put(revision.getKey(), service.files().get(revision.getKey())
+          .setFields(fields)
+          .set("revisionId", revision.getValue()));
+    }
+    return execute(requests);
+  }
+
+  /**
+   * Looks up the first revision listed for each of several files.
+   *
+   * @param ids
+   * @return revision IDs by file ID, without files that have none
+   * @throws IOException
+   */
+  public Map<String, String> getFirstRevisions(Collection<String> ids) throws IOException {
+    LinkedHashMap<String, DriveRequest<RevisionList>> requests =
+        new LinkedHashMap<String, DriveRequest<RevisionList>>();
+    for (String id : ids) {
+      requests.put(id, service.revisions().list(id).setFields("revisions(id)"));
+    }
+    HashMap<String, String> revisions = new HashMap<String, String>();
+    for (Map.Entry<String, RevisionList> list : execute(requests).entrySet()) {
+      List<Revision> listed = list.getValue().getRevisions();
+      if (listed != null && !listed.isEmpty()) {
+        revisions.put(list.getKey(), listed.get(0).getId());
+      }
+    }
+    return revisions;
+  }
+
+  /**
+   * Looks up a file together with the lookups other threads make meanwhile.
+   *
+   * @param id
+   * @param fields
+   *          fields of the file to get
+   * @return file, or null if it does not exist
+   * @throws IOException
+   */
+  public File getFile(String id, String fields) throws IOException {
+    Lookup lookup = new Lookup(service.files().get(id).setFields(fields));
+    Batch batch;
+    boolean leader;
+    boolean full;
+    synchronized (this) {
+      leader = collecting == null;
+      if (leader) {
+        collecting = new Batch();
+      }
+      batch = collecting;
+      batch.lookups.add(lookup);
+      full = batch.lookups.size() >= MAX_BATCH_SIZE;
+      if (full) {
+        collecting = null;
+      }
+    }
+
+    if (leader && !full) {
+      try {
+        TimeUnit.MILLISECONDS.sleep(lingerMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt(); // sends the batch now
+      }
+      synchronized (this) {
+        full = collecting == batch; // or else it filled up & was sent
+        if (full) {
+          collecting = null;
+        }
+      }
+    }
+    if (full) {
+      send(batch);
+    }
+    return lookup.await();
+  }
+
+  private void send(Batch batch) {
+    LinkedHashMap<String, DriveRequest<File>> requests = new LinkedHashMap<String, DriveRequest<File>>();
+    for (int i = 0; i < batch.lookups.size(); i++) {
+      requests.put(Integer.toString(i), batch.lookups.get(i).request);
+    }
+    try {
+      Map<String, File> files = execute(requests, batch.failures);
+      for (int i = 0; i < batch.lookups.size(); i++) {
+        Lookup lookup = batch.lookups.get(i);
+        lookup.done(files.get(Integer.toString(i)), batch.failures.get(Integer.toString(i)));
+      }
+    } catch (IOException e) {
+      for (Lookup lookup : batch.lookups) {
+        lookup.done(null, e);
+      }
+    } catch (RuntimeException e) {
+      for (Lookup lookup : batch.lookups) {
+        lookup.done(null, new IOException("Batch of Google Drive lookups failed", e));
+      }
+    }
+  }
+
+  private <T> Map<String, T> execute(Map<String, ? extends DriveRequest<T>> requests) throws IOException {
+    HashMap<String, IOException> failures = new HashMap<String, IOException>();
+    Map<String, T> results = execute(requests, failures);
+    if (!failures.isEmpty()) {
+      throw failures.values().iterator().next();
+    }
+    return results;
+  }
+
+  /**
+   * Sends requests in batches of up to MAX_BATCH_SIZE.
+   *
+   * @param requests
+   *          requests by key
+   * @param failures
+   *          where the failure of each failed request, other than a 404, is
+   *          put by key
+   * @return results by key, without the requests that failed
+   * @throws IOException
+   *           if a batch could not be sent
+   */
+  private <T> Map<String, T> execute(Map<String, ? extends DriveRequest<T>> requests,
+      final Map<String, IOException> failures) throws IOException {
+    final HashMap<String, T> results = new HashMap<String, T>();
+    List<String> keys = new ArrayList<String>(requests.keySet());
+    for (int start = 0; start < keys.size(); start += MAX_BATCH_SIZE) {
+      BatchRequest batch = service.batch()
+          .setBatchUrl(new GenericUrl(service.getRootUrl() + "batch/drive/v3"));
+      for (final String key : keys.subList(start, Math.min(keys.size(), start + MAX_BATCH_SIZE))) {
+        requests.get(key).queue(batch, new JsonBatchCallback<T>() {
+          @Override
+          public void onSuccess(T result, HttpHeaders responseHeaders) {
+            results.put(key, result);
+          }
+
+          @Override
+          public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+            if (error.getCode() != 404) {
+              failures.put(key, new GoogleJsonResponseException(
+                  new HttpResponseException.Builder(error.getCode(), error.getMessage(), responseHeaders), error));
+            }
+          }
+        });
+      }
+      log.debug("Sending a batch of " + batch.size() + " Google Drive lookups");
+      batch.execute();
+    }
+    return results;
+  }
+
+  /**
+   * Lookups collected from several threads.
+   */
+  private static class Batch {
+    final List<Lookup> lookups = new ArrayList<Lookup>();
+    final Map<String, IOException> failures = new HashMap<String, IOException>();
+  }
+
+  /**
+   * A lookup waiting for its batch to be sent.
+   */
+  private static class Lookup {
+    final DriveRequest<File> request;
+    final CountDownLatch sent = new CountDownLatch(1);
+    File file;
+    IOException failure;
+
+    Lookup(DriveRequest<File> request) {
+      this.request = request;
+    }
+
+    void done(File file, IOException failure) {
+      this.file = file;
+      this.failure = failure;
+      sent.countDown();
+    }
+
+    File await() throws IOException {
+      try {
+        sent.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for a batch of Google Drive lookups");
+      }
+      if (failure != null) {
+        throw failure;
+      }
+      return file;
+    }
+  }
+
+}
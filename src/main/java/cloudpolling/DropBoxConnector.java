@@ -6,8 +6,15 @@ import java.io.InputStreamReader;
 import java.net.SocketTimeoutException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.camel.ProducerTemplate;
@@ -22,11 +29,13 @@ import com.dropbox.core.DbxHost;
 import com.dropbox.core.DbxRequestConfig;
 import com.dropbox.core.DbxWebAuth;
 import com.dropbox.core.NetworkIOException;
+import com.dropbox.core.http.HttpRequestor;
 import com.dropbox.core.http.StandardHttpRequestor;
 import com.dropbox.core.v2.DbxClientV2;
 import com.dropbox.core.v2.files.DeletedMetadata;
 import com.dropbox.core.v2.files.FileMetadata;
 import com.dropbox.core.v2.files.FolderMetadata;
+import com.dropbox.core.v2.files.GetMetadataErrorException;
 import com.dropbox.core.v2.files.ListFolderLongpollResult;
 import com.dropbox.core.v2.files.ListFolderResult;
 import com.dropbox.core.v2.files.ListRevisionsErrorException;
@@ -41,12 +50,16 @@ import com.dropbox.core.v2.files.Metadata;
  */
 public class DropBoxConnector extends CloudConnector {
 
+  /** Times a throttled or failed request is retried after its backoff. */
+  static final int MAX_RETRIES = 3;
+
   private String accountID;
   private String appKey;
   private String appSecret;
   private String userID;
   private String accessToken;
   private String pollFolder;
+  private String apiBaseURL;
   private String cursor;
 
   private static Logger log = Logger.getLogger(DropBoxConnector.class);
@@ -87,6 +100,7 @@ public class DropBoxConnector extends CloudConnector {
     this.userID = config.getProperty("userID");
     this.accessToken = config.getProperty("accessToken");
     this.pollFolder = config.getProperty("pollFolder", "");
+    this.apiBaseURL = config.getProperty("apiBaseURL", "");
     this.cursor = config.getProperty("pollToken");
   }
 
@@ -95,8 +109,26 @@ public class DropBoxConnector extends CloudConnector {
    * exchange to ActionListener and update's account's poll token.
    *
    * @throws IOException
+   * @throws DbxException
+   *           if DropBox could not be reached or refused a request
    */
-  public void poll() throws IOException {
+  public synchronized void poll() throws IOException, DbxException {
+    poll(false);
+  }
+
+  /**
+   * Lists the DropBox changes since this account's cursor at once, without
+   * long polling for them, when a webhook notifies this account of a change.
+   *
+   * @throws IOException
+   * @throws DbxException
+   *           if DropBox could not be reached or refused a request
+   */
+  public synchronized void pollNotified() throws IOException, DbxException {
+    poll(true);
+  }
+
+  private void poll(boolean notified) throws IOException, DbxException {
 
     // Create 2 DropBox clients:
     // 1) for long poll request (longer read timeout)
@@ -112,26 +144,55 @@ public class DropBoxConnector extends CloudConnector {
         // long) documentation for details.
         .withReadTimeout(5, TimeUnit.MINUTES)
         .build();
-    DbxClientV2 dbxClient = createClient(getAccountID(), auth, config);
-    DbxClientV2 dbxLongpollClient = createClient(getAccountID(), auth, longpollConfig);
+    DbxClientV2 dbxClient = createClient(getAccount(), auth, config);
+    DbxClientV2 dbxLongpollClient = createClient(getAccount(), auth, longpollConfig);
     ListFolderResult result = null;
     boolean ignoreDeleted = false;
+    BackfillCheckpoint checkpoint = null;
+
+    // A backfill saves its cursor once it is complete
+    if (this.getCursor().equals("0")) {
+      this.cursor = this.getAccount().getConfiguration().getProperty("pollToken", "0");
+    }
 
     try {
 
       if (this.getCursor().equals("0")) {
-        // If cursor=="0", request all items in DropBox account
-        log.info("First time connecting to DropBox Account " + accountID
-            + ". Downloading all account items to local sync folder...");
-
-        result = dbxClient.files()
-            .listFolderBuilder(this.getPollFolder())
-            .withIncludeDeleted(true)
-            .withIncludeMediaInfo(false)
-            .withRecursive(true)
-            .start();
+        // If cursor=="0", request all items in DropBox account, resuming an
+        // interrupted backfill from its checkpoint: folder by folder on
+        // several threads, unless the backfill was started with one listing
+        checkpoint = getBackfillCheckpoint();
+        String threads = getAccount().getConfiguration().getProperty("listThreads", "").trim();
+        int listThreads = threads.isEmpty() ? 4 : Integer.parseInt(threads);
+        if (listThreads > 1 && (!checkpoint.isStarted() || checkpoint.getPollToken() != null)) {
+          setBackfilling(true);
+          listInParallel(dbxClient, checkpoint, listThreads);
+          return;
+        }
+        checkpoint.start(null); // the cursor is only known at the end of the listing
+        String resumeCursor = checkpoint.getResumeToken();
+        setBackfilling(true);
+
+        if (resumeCursor != null) {
+          log.info("Resuming download of all items of DropBox Account " + accountID + " to local sync folder...");
+          result = dbxClient.files().listFolderContinue(resumeCursor);
+        } else {
+          log.info("First time connecting to DropBox Account " + accountID
+              + ". Downloading all account items to local sync folder...");
+          result = dbxClient.files()
+              .listFolderBuilder(this.getPollFolder())
+              .withIncludeDeleted(true)
+              .withIncludeMediaInfo(false)
+              .withRecursive(true)
+              .start();
+        }
         ignoreDeleted = true;
 
+      } else if (notified) {
+        // A webhook told us there are changes since the last cursor
+        log.info("Listing notified changes of DropBox Account " + accountID + "...");
+        result = dbxClient.files().listFolderContinue(this.getCursor());
+
       } else {
         // If cursor !="0", only request changes since last cursor
         log.info("Longpolling for DropBox changes... press CTRL-C to exit.");
@@ -146,35 +207,186 @@ public class DropBoxConnector extends CloudConnector {
 
       // process all entries in request results
       while (result != null) {
+        if (checkpoint != null) {
+          checkpoint.beginPage();
+        }
         for (Metadata metadata : result.getEntries()) {
+          if (checkpoint != null && isCompleted(metadata, checkpoint)) {
+            continue;
+          }
           processItem(metadata, dbxClient, ignoreDeleted);
         }
+
+        if (checkpoint != null) {
+          // a backfill resumes after this page once its items are synced, and
+          // switches to polling changes once it is complete
+          checkpoint.endPage(result.getCursor());
+          if (!result.getHasMore()) {
+            checkpoint.setPollToken(result.getCursor());
+            checkpoint.crawled();
+          }
+        } else {
+          // update this cursor & poll token in account configuration, so that
+          // the next poll continues after this page
+          this.cursor = result.getCursor();
+          this.getAccount().updateConfiguration("pollToken", this.getCursor());
+        }
+
         if (!result.getHasMore()) {
           break;
         }
         result = dbxClient.files().listFolderContinue(result.getCursor());
-
-        // update this cursor & poll token in account configuration
-        this.cursor = result.getCursor();
-        this.getAccount().updateConfiguration("pollToken", this.getCursor());
       }
 
     } catch (DbxApiException ex) {
       // if a user message is available, try using that instead
       String message = ex.getUserMessage() != null ? ex.getUserMessage().getText() : ex.getMessage();
-      System.err.println("Error making API call: " + message);
-      System.exit(1);
+      log.error("Error making API call for DropBox Account " + accountID + ": " + message);
+      throw ex;
     } catch (NetworkIOException ex) {
-      System.err.println("Error making API call: " + ex.getMessage());
+      log.error("Error making API call for DropBox Account " + accountID + ": " + ex.getMessage());
       if (ex.getCause() instanceof SocketTimeoutException) {
-        System.err.println("Consider increasing socket read timeout or decreasing longpoll timeout.");
+        log.error("Consider increasing socket read timeout or decreasing longpoll timeout.");
       }
-      System.exit(1);
-    } catch (DbxException ex) {
-      System.err.println("Error making API call: " + ex.getMessage());
-      System.exit(1);
+      throw ex;
+    } finally {
+      setBackfilling(false);
+    }
+
+  }
+
+  /**
+   * Lists every item of this account for a first full sync, listing each
+   * folder at the top of its pollFolder with a recursive cursor of its own, on
+   * up to listThreads threads. The cursor to poll changes from afterwards is
+   * taken before the listing starts, so that changes made during it are
+   * polled once the backfill is complete. An interrupted backfill skips the
+   * folders it completed, and the items it completed in the others.
+   *
+   * @param client
+   * @param checkpoint
+   * @param threads
+   * @throws DbxException
+   *           if DropBox could not be reached or refused a request
+   */
+  private void listInParallel(final DbxClientV2 client, final BackfillCheckpoint checkpoint, int threads)
+      throws DbxException {
+
+    if (!checkpoint.isStarted()) {
+      log.info("First time connecting to DropBox Account " + accountID + ". Downloading all account items to "
+          + "local sync folder, listing its folders on " + threads + " threads...");
+      checkpoint.start(client.files()
+          .listFolderGetLatestCursorBuilder(this.getPollFolder())
+          .withIncludeDeleted(true)
+          .withIncludeMediaInfo(false)
+          .withRecursive(true)
+          .start()
+          .getCursor());
+    } else {
+      log.info("Resuming download of all items of DropBox Account " + accountID + " to local sync folder...");
+      checkpoint.start(null); // keeps the cursor it was started with
     }
 
+    // list the top level, then each of its folders in parallel
+    List<FolderMetadata> folders = new ArrayList<FolderMetadata>();
+    ListFolderResult result = client.files()
+        .listFolderBuilder(this.getPollFolder())
+        .withIncludeMediaInfo(false)
+        .start();
+    while (true) {
+      for (Metadata metadata : result.getEntries()) {
+        if (metadata instanceof FolderMetadata) {
+          folders.add((FolderMetadata) metadata);
+        }
+        if (!isCompleted(metadata, checkpoint)) {
+          processItem(metadata, client, true);
+        }
+      }
+      if (!result.getHasMore()) {
+        break;
+      }
+      result = client.files().listFolderContinue(result.getCursor());
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> listings = new ArrayList<Future<Void>>();
+      for (final FolderMetadata folder : folders) {
+        if (checkpoint.isFolderCompleted(folder.getId())) {
+          continue;
+        }
+        listings.add(pool.submit(new Callable<Void>() {
+          public Void call() throws DbxException {
+            listFolder(client, folder, checkpoint);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> listing : listings) {
+        try {
+          listing.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof DbxException) {
+            throw (DbxException) e.getCause();
+          }
+          throw new IllegalStateException("Could not list DropBox Account " + accountID, e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted listing DropBox Account " + accountID, e);
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    checkpoint.crawled();
+  }
+
+  /**
+   * Lists a folder & everything under it for a first full sync.
+   *
+   * @param client
+   * @param folder
+   * @param checkpoint
+   * @throws DbxException
+   *           if DropBox could not be reached or refused a request
+   */
+  private void listFolder(DbxClientV2 client, FolderMetadata folder, BackfillCheckpoint checkpoint)
+      throws DbxException {
+    checkpoint.beginFolder(folder.getId());
+    ListFolderResult result = client.files()
+        .listFolderBuilder(folder.getPathLower())
+        .withIncludeMediaInfo(false)
+        .withRecursive(true)
+        .start();
+    while (true) {
+      for (Metadata metadata : result.getEntries()) {
+        if (!isCompleted(metadata, checkpoint)) {
+          processItem(metadata, client, true);
+        }
+      }
+      if (!result.getHasMore()) {
+        break;
+      }
+      result = client.files().listFolderContinue(result.getCursor());
+    }
+    checkpoint.endFolder();
+  }
+
+  /**
+   * Returns true if the event of a file or folder listed by a backfill has
+   * already completed.
+   *
+   * @param metadata
+   * @param checkpoint
+   * @return whether the item is synced
+   */
+  private static boolean isCompleted(Metadata metadata, BackfillCheckpoint checkpoint) {
+    if (metadata instanceof FileMetadata) {
+      return checkpoint.isItemCompleted(((FileMetadata) metadata).getId());
+    } else if (metadata instanceof FolderMetadata) {
+      return checkpoint.isItemCompleted(((FolderMetadata) metadata).getId());
+    }
+    return false;
   }
 
   /**
@@ -187,7 +399,7 @@ public class DropBoxConnector extends CloudConnector {
    * @throws DbxException
    * @throws ListRevisionsErrorException
    */
-  private void processItem(Metadata metadata, DbxClientV2 client, boolean ignoreDeleted)
+  void processItem(Metadata metadata, DbxClientV2 client, boolean ignoreDeleted)
       throws ListRevisionsErrorException, DbxException {
 
     HashMap<String, String> headers = new HashMap<String, String>();
@@ -208,9 +420,15 @@ public class DropBoxConnector extends CloudConnector {
       }
       headers.put("parent_id", parentID);
       headers.put("details", fileMetadata.getRev()); // revision id
+      // a move keeps the client's modification time & size, but not the rev
+      headers.put("content_hash", fileMetadata.getSize() + ":" + fileMetadata.getClientModified().getTime());
+      headers.put("size", Long.toString(fileMetadata.getSize()));
       headers.put("source_type", "file");
       headers.put("metadata", "none"); // TODO: gather custom metadata from
                                        // FileMetadata attributes
+      if (!ignoreDeleted) { // not a first full sync
+        headers.put("change_time", String.valueOf(fileMetadata.getServerModified().getTime()));
+      }
 
     } else if (metadata instanceof FolderMetadata) {
       FolderMetadata folderMetadata = (FolderMetadata) metadata;
@@ -246,6 +464,17 @@ public class DropBoxConnector extends CloudConnector {
           headers.put("source_id", "unknown");
         }
 
+        // DropBox reports a move as a deleted entry at the old path plus an
+        // entry at the new path with the same ID, in either order & maybe on
+        // different pages. The new entry moves the item from the path of its
+        // ID in the item index, so the delete would only remove it first.
+        String movedTo = deleted_id == null ? null : movedPath(client, deleted_id, metadata.getPathLower());
+        if (movedTo != null) {
+          log.info("Item " + deleted_id + " of DropBox Account " + accountID + " moved from "
+              + metadata.getPathLower() + " to " + movedTo);
+          return;
+        }
+
         headers.put("action", "delete");
         headers.put("source_path", metadata.getPathLower());
         headers.put("details", "remove_childen");
@@ -260,10 +489,40 @@ public class DropBoxConnector extends CloudConnector {
     sendActionExchange(headers, "");
   }
 
+  /**
+   * Finds where a deleted item that is still in this account's poll folder
+   * under another path has moved.
+   *
+   * @param client
+   * @param id
+   *          ID of the deleted item
+   * @param deletedPath
+   *          path it was deleted from
+   * @return lower case path of the item, or null if it is gone or out of reach
+   * @throws DbxException
+   */
+  private String movedPath(DbxClientV2 client, String id, String deletedPath) throws DbxException {
+    Metadata item;
+    try {
+      item = client.files().getMetadata(id);
+    } catch (GetMetadataErrorException e) {
+      return null; // deleted for good
+    }
+    String path = item.getPathLower();
+    String folder = this.getPollFolder().toLowerCase().replaceAll("/+$", "");
+    if (item instanceof DeletedMetadata || path == null || path.equals(deletedPath)
+        || !folder.isEmpty() && !path.startsWith(folder + "/")) {
+      return null;
+    }
+    return path;
+  }
+
   /**
    * Create a new Dropbox client using the given authentication information and
    * HTTP client config.
    *
+   * @param account
+   *          account whose API base URL & rate limiter requests use
    * @param auth
    *          Authentication information
    * @param config
@@ -271,16 +530,40 @@ public class DropBoxConnector extends CloudConnector {
    *
    * @return new Dropbox V2 client
    */
-  private static DbxClientV2 createClient(String accountID, DbxAuthInfo auth, StandardHttpRequestor.Config config) {
-    String clientUserAgentId = accountID;
-    StandardHttpRequestor requestor = new StandardHttpRequestor(config);
-    DbxRequestConfig requestConfig = DbxRequestConfig.newBuilder(clientUserAgentId)
-        .withHttpRequestor(requestor)
-        .build();
+  private static DbxClientV2 createClient(CloudAccount account, DbxAuthInfo auth,
+      StandardHttpRequestor.Config config) {
+    String clientUserAgentId = account.readConfiguration("configID");
+    DbxRequestConfig requestConfig = createRequestConfig(clientUserAgentId, config, account);
 
     return new DbxClientV2(requestConfig, auth.getAccessToken(), auth.getHost());
   }
 
+  /**
+   * Creates the configuration of DropBox requests for an account. Requests are
+   * sent to the account's API base URL if it has one, at the pace of its rate
+   * limiter, and throttled requests are retried.
+   *
+   * @param clientIdentifier
+   * @param config
+   *          HTTP request configuration
+   * @param account
+   * @return request configuration
+   */
+  static DbxRequestConfig createRequestConfig(String clientIdentifier, StandardHttpRequestor.Config config,
+      CloudAccount account) {
+    HttpRequestor requestor = new StandardHttpRequestor(config);
+    String apiBaseURL = account.readConfiguration("apiBaseURL");
+    if (apiBaseURL != null && !apiBaseURL.isEmpty()) {
+      requestor = new RebasingHttpRequestor(requestor, apiBaseURL);
+    }
+    requestor = new RateLimitedHttpRequestor(requestor, account.getParent().getRateLimiter(account));
+
+    return DbxRequestConfig.newBuilder(clientIdentifier)
+        .withHttpRequestor(requestor)
+        .withAutoRetryEnabled(MAX_RETRIES)
+        .build();
+  }
+
   /**
    * Run Dropbox API Authorization process
    *
@@ -355,4 +638,8 @@ public class DropBoxConnector extends CloudConnector {
     return pollFolder;
   }
 
+  public String getApiBaseURL() {
+    return apiBaseURL;
+  }
+
 }
@@ -8,6 +8,7 @@ import org.apache.camel.Exchange;
 import org.apache.log4j.Logger;
 
 import com.dropbox.core.DbxRequestConfig;
+import com.dropbox.core.http.StandardHttpRequestor;
 import com.dropbox.core.v2.DbxClientV2;
 
 public class DropBoxDownloadProcessor extends CloudDownloadProcessor {
@@ -25,7 +26,8 @@ public class DropBoxDownloadProcessor extends CloudDownloadProcessor {
     int accountID = exchange.getIn().getHeader("account_id", Integer.class);
     CloudAccount account = new CloudAccount(accountID, getProject());
     account.setConfiguration();
-    DbxRequestConfig config = new DbxRequestConfig(account.readConfiguration("configID"));
+    DbxRequestConfig config = DropBoxConnector.createRequestConfig(account.readConfiguration("configID"),
+        StandardHttpRequestor.Config.DEFAULT_INSTANCE, account);
     DbxClientV2 client = new DbxClientV2(config, account.readConfiguration("accessToken"));
 
     // Get source file info
@@ -0,0 +1,134 @@
+package cloudpolling;
+
+import java.io.File;
+import java.nio.file.Paths;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.processor.aggregate.AggregationStrategy;
+import org.apache.log4j.Logger;
+
+/**
+ * Merges pending cloud events for the same item (account_id, source_id) so
+ * that only their net effect is sent on to the ActionListener route.
+ *
+ * Several uploads of the same file collapse into one download, and an item
+ * that is created and then trashed within the debounce window (and so never
+ * reached the local sync folder) collapses into nothing.
+ *
+ * @author tlarrue
+ *
+ */
+public class EventCoalescingStrategy implements AggregationStrategy {
+
+  public static final String NONE = "none";
+
+  private PollingProject project;
+
+  private static Logger log = Logger.getLogger(EventCoalescingStrategy.class);
+
+  /**
+   * Constructs a coalescing strategy for events of a polling project
+   *
+   * @param project
+   */
+  public EventCoalescingStrategy(PollingProject project) {
+    this.project = project;
+  }
+
+  /**
+   * Merges a new event into the pending event for the same item.
+   */
+  public Exchange aggregate(Exchange oldExchange, Exchange newExchange) {
+
+    if (oldExchange == null) {
+      newExchange.getIn().setHeader("coalesced_events", 1);
+      return newExchange;
+    }
+
+    String oldAction = oldExchange.getIn().getHeader("action", String.class);
+    String newAction = newExchange.getIn().getHeader("action", String.class);
+    int count = oldExchange.getIn().getHeader("coalesced_events", 1, Integer.class) + 1;
+
+    Exchange result = newExchange;
+
+    if ("delete".equals(newAction) && !"delete".equals(oldAction)) {
+
+      if (isMovedAway(oldExchange, newExchange)) {
+        // DropBox reports a move as a new entry at the new path plus a deleted
+        // entry at the old path, both with the same ID
+        result = oldExchange;
+
+      } else if (!existsLocally(oldExchange)) {
+        // An item that was created & trashed before it was ever synced
+        // locally has no net effect
+        result.getIn().setHeader("action", NONE);
+      }
+    }
+
+    result.getIn().setHeader("coalesced_events", count);
+    result.getIn().setHeader("change_time", earliest(oldExchange.getIn().getHeader("change_time", String.class),
+        newExchange.getIn().getHeader("change_time", String.class)));
+
+    log.debug("Coalesced " + oldAction + " + " + newAction + " for item "
+        + newExchange.getIn().getHeader("source_id") + " into " + result.getIn().getHeader("action"));
+
+    return result;
+  }
+
+  /**
+   * Gets the earlier of two change times, so that the lag of coalesced events
+   * is measured from the first change that was waiting.
+   *
+   * @param a
+   * @param b
+   * @return earlier change time, or whichever is not null
+   */
+  private static String earliest(String a, String b) {
+    if (a == null || b == null) {
+      return a == null ? b : a;
+    }
+    try {
+      return Long.parseLong(a) <= Long.parseLong(b) ? a : b;
+    } catch (NumberFormatException e) {
+      return b;
+    }
+  }
+
+  /**
+   * Returns true if a delete event only removes the former path of an item
+   * that a pending event has already placed at a new path.
+   *
+   * @param pending
+   * @param delete
+   * @return true if the delete refers to an old location of the item
+   */
+  private static boolean isMovedAway(Exchange pending, Exchange delete) {
+    String accountType = delete.getIn().getHeader("account_type", String.class);
+    String pendingPath = pending.getIn().getHeader("source_path", String.class);
+    String deletedPath = delete.getIn().getHeader("source_path", String.class);
+    return "dropbox".equals(accountType) && pendingPath != null && deletedPath != null
+        && !pendingPath.equals(deletedPath);
+  }
+
+  /**
+   * Returns true if the item described by an exchange is already present in
+   * this project's sync folder.
+   *
+   * @param exchange
+   * @return true if item exists on local file system
+   */
+  private boolean existsLocally(Exchange exchange) {
+    String accountID = exchange.getIn().getHeader("account_id", String.class);
+    String sourcePath = exchange.getIn().getHeader("source_path", String.class);
+    if (sourcePath == null) {
+      return true; // cannot tell, so let the delete through
+    }
+    File item = new File(Paths.get(this.getProject().getSyncFolder(), "acct" + accountID, sourcePath).toString());
+    return item.exists();
+  }
+
+  public PollingProject getProject() {
+    return project;
+  }
+
+}
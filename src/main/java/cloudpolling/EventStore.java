@@ -0,0 +1,165 @@
+package cloudpolling;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Message;
+
+/**
+ * Persists cloud events (an exchange's headers & string body) as properties
+ * files in a directory, so they survive restarts until they are processed.
+ *
+ * @author tlarrue
+ *
+ */
+public class EventStore {
+
+  private static final String HEADER_PREFIX = "header.";
+  private static final AtomicLong SEQUENCE = new AtomicLong();
+
+  private final File dir;
+
+  /**
+   * Constructs an event store in the given directory, creating it if needed.
+   *
+   * @param dir
+   */
+  public EventStore(File dir) {
+    this.dir = dir;
+    dir.mkdirs();
+  }
+
+  /**
+   * Writes an exchange's message as a new event in this store.
+   *
+   * @param exchange
+   * @param reason
+   *          why the event is stored, or null
+   * @return file holding the event
+   * @throws IOException
+   */
+  public File write(Exchange exchange, String reason) throws IOException {
+    Properties event = new Properties();
+    Message message = exchange.getIn();
+
+    for (Map.Entry<String, Object> header : message.getHeaders().entrySet()) {
+      if (header.getValue() != null && !header.getKey().startsWith("Camel")) {
+        event.setProperty(HEADER_PREFIX + header.getKey(), header.getValue().toString());
+      }
+    }
+    Object body = message.getBody();
+    if (body instanceof String) {
+      event.setProperty("body", (String) body);
+    }
+    if (reason != null) {
+      event.setProperty("reason", reason);
+    }
+
+    // names sort in the order events were stored
+    String name = String.format("%013d-%06d-%s.event", System.currentTimeMillis(),
+        SEQUENCE.incrementAndGet() % 1000000, UUID.randomUUID().toString().substring(0, 8));
+    File file = new File(dir, name);
+    File tmp = new File(dir, name + ".tmp");
+    OutputStream out = new FileOutputStream(tmp);
+    try {
+      event.store(out, reason);
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Could not store event " + file.getAbsolutePath());
+    }
+    return file;
+  }
+
+  /**
+   * Lists the events in this store, oldest first.
+   *
+   * @return event files
+   */
+  public File[] list() {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      return new File[0];
+    }
+    int count = 0;
+    for (File file : files) {
+      if (file.getName().endsWith(".event")) {
+        files[count++] = file;
+      }
+    }
+    File[] events = Arrays.copyOf(files, count);
+    Arrays.sort(events);
+    return events;
+  }
+
+  /**
+   * Reads the headers of a stored event.
+   *
+   * @param file
+   * @return headers of the event
+   * @throws IOException
+   */
+  public HashMap<String, String> readHeaders(File file) throws IOException {
+    Properties event = read(file);
+    HashMap<String, String> headers = new HashMap<String, String>();
+    for (String key : event.stringPropertyNames()) {
+      if (key.startsWith(HEADER_PREFIX)) {
+        headers.put(key.substring(HEADER_PREFIX.length()), event.getProperty(key));
+      }
+    }
+    return headers;
+  }
+
+  /**
+   * Reads the body of a stored event.
+   *
+   * @param file
+   * @return body of the event, or an empty string
+   * @throws IOException
+   */
+  public String readBody(File file) throws IOException {
+    return read(file).getProperty("body", "");
+  }
+
+  /**
+   * Removes an event from this store.
+   *
+   * @param file
+   */
+  public void remove(File file) {
+    file.delete();
+  }
+
+  /**
+   * Gets the directory of this store.
+   *
+   * @return directory of this store
+   */
+  public File getDir() {
+    return dir;
+  }
+
+  private static Properties read(File file) throws IOException {
+    Properties event = new Properties();
+    InputStream in = new FileInputStream(file);
+    try {
+      event.load(in);
+    } finally {
+      in.close();
+    }
+    return event;
+  }
+
+}
@@ -0,0 +1,354 @@
+package cloudpolling;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.Service;
+import org.apache.log4j.Logger;
+
+/**
+ * A pool of threads shared by several polling projects, handing out its
+ * threads fairly. Work is submitted to lanes, e.g. one per cloud account,
+ * which belong to groups, e.g. one per project. Free threads take work from
+ * each group with queued work in turn, so that a busy project gets no more
+ * than its share while others have work queued, but may use every thread
+ * while they are idle.
+ *
+ * Within a group, lanes with queued work are served in proportion to their
+ * weights (stride scheduling): each task taken from a lane advances the lane's
+ * pass by 1/weight, and the lane with the lowest pass goes next. A lane that
+ * was idle rejoins at the group's current pass, so it cannot save up a burst
+ * of turns while it has nothing to do.
+ *
+ * A lane may run at most maxRunning tasks at once, and a group at most its
+ * quota, if one is set. A lane runs its tasks in the order they were
+ * submitted, unless a task is deferred: it is then run as if it had been
+ * submitted that much later, so it waits for tasks submitted since, but only
+ * for so long. As a camel service, the executor shuts down when its
+ * context stops.
+ *
+ * @author tlarrue
+ *
+ */
+public class FairExecutor implements Service {
+
+  private final String name;
+  private final List<Thread> workers = new ArrayList<Thread>();
+  private final LinkedHashMap<String, Group> groups = new LinkedHashMap<String, Group>();
+  private int nextGroup;
+  private long sequence;
+  private boolean stopped;
+
+  private static Logger log = Logger.getLogger(FairExecutor.class);
+
+  /**
+   * Constructs & starts a fair executor.
+   *
+   * @param name
+   *          prefix of its threads' names
+   * @param threads
+   *          number of threads shared by all lanes
+   */
+  public FairExecutor(String name, int threads) {
+    this.name = name;
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread(new Runnable() {
+        public void run() {
+          work();
+        }
+      }, name + "-" + i);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * Gets a lane of this executor with a weight of 1, creating it & its group if
+   * needed.
+   *
+   * @param group
+   * @param lane
+   * @param maxRunning
+   *          most tasks of the lane run at once
+   * @return executor service submitting to the lane
+   */
+  public Lane lane(String group, String lane, int maxRunning) {
+    return lane(group, lane, maxRunning, 1);
+  }
+
+  /**
+   * Gets a lane of this executor, creating it & its group if needed.
+   *
+   * @param group
+   * @param lane
+   * @param maxRunning
+   *          most tasks of the lane run at once
+   * @param weight
+   *          share of the group's threads the lane gets while its other lanes
+   *          are busy too, relative to their weights
+   * @return executor service submitting to the lane
+   */
+  public synchronized Lane lane(String group, String lane, int maxRunning, double weight) {
+    Group g = getGroup(group);
+    Lane l = g.lanes.get(lane);
+    if (l == null) {
+      l = new Lane(g, group + "/" + lane, maxRunning, weight);
+      g.lanes.put(lane, l);
+    }
+    return l;
+  }
+
+  /**
+   * Limits the number of this executor's threads one group may use at once.
+   *
+   * @param group
+   * @param quota
+   *          most tasks of the group run at once, or 0 for no limit
+   */
+  public synchronized void setQuota(String group, int quota) {
+    getGroup(group).quota = quota > 0 ? quota : Integer.MAX_VALUE;
+  }
+
+  /**
+   * Stops this executor's threads once they finish their current task. Queued
+   * tasks are dropped.
+   */
+  public synchronized void shutdown() {
+    stopped = true;
+    notifyAll();
+  }
+
+  public void start() {
+  }
+
+  public void stop() {
+    shutdown();
+  }
+
+  public int getThreads() {
+    return workers.size();
+  }
+
+  private Group getGroup(String group) {
+    Group g = groups.get(group);
+    if (g == null) {
+      g = new Group();
+      groups.put(group, g);
+    }
+    return g;
+  }
+
+  private void work() {
+    while (true) {
+      Lane lane;
+      Runnable task;
+      synchronized (this) {
+        while ((lane = nextLane()) == null) {
+          if (stopped) {
+            return;
+          }
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        task = lane.queue.poll().task;
+        lane.running++;
+        lane.group.running++;
+      }
+
+      try {
+        task.run();
+      } catch (Throwable t) {
+        log.error("Task of " + name + " lane " + lane.name + " failed", t);
+      } finally {
+        synchronized (this) {
+          lane.running--;
+          lane.group.running--;
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  /**
+   * Finds the next lane to run a task of, taking groups in turn & the lanes of
+   * each group by weight.
+   *
+   * @return lane, or null if no lane may run a task now
+   */
+  private Lane nextLane() {
+    if (stopped) {
+      return null;
+    }
+    List<Group> all = new ArrayList<Group>(groups.values());
+    for (int i = 0; i < all.size(); i++) {
+      int index = (nextGroup + i) % all.size();
+      Lane lane = all.get(index).nextLane();
+      if (lane != null) {
+        nextGroup = index + 1;
+        return lane;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A group of lanes, e.g. a project.
+   */
+  private static class Group {
+    final LinkedHashMap<String, Lane> lanes = new LinkedHashMap<String, Lane>();
+    int quota = Integer.MAX_VALUE;
+    int running;
+    double pass;
+
+    Lane nextLane() {
+      if (running >= quota) {
+        return null;
+      }
+      Lane next = null;
+      for (Lane lane : lanes.values()) {
+        if (!lane.queue.isEmpty() && lane.running < lane.maxRunning && (next == null || lane.pass < next.pass)) {
+          next = lane;
+        }
+      }
+      if (next != null) {
+        pass = next.pass;
+        next.pass += 1 / next.weight;
+      }
+      return next;
+    }
+  }
+
+  /**
+   * A task waiting in a lane, ordered by when it is due.
+   */
+  private static class Queued implements Comparable<Queued> {
+    final Runnable task;
+    final long due;
+    final long sequence;
+
+    Queued(Runnable task, long due, long sequence) {
+      this.task = task;
+      this.due = due;
+      this.sequence = sequence;
+    }
+
+    public int compareTo(Queued other) {
+      if (due != other.due) {
+        return due < other.due ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+    }
+  }
+
+  /**
+   * A queue of tasks run by a FairExecutor's shared threads.
+   */
+  public class Lane extends AbstractExecutorService {
+
+    private final Group group;
+    private final String name;
+    private final int maxRunning;
+    private final double weight;
+    private final PriorityQueue<Queued> queue = new PriorityQueue<Queued>();
+    private int running;
+    private double pass;
+    private boolean shutdown;
+
+    Lane(Group group, String name, int maxRunning, double weight) {
+      this.group = group;
+      this.name = name;
+      this.maxRunning = Math.max(1, maxRunning);
+      this.weight = weight > 0 ? weight : 1;
+    }
+
+    public void execute(Runnable task) {
+      execute(task, 0);
+    }
+
+    /**
+     * Submits a task to run as if it were submitted a while from now.
+     *
+     * @param task
+     * @param deferMillis
+     *          time the task gives way to tasks submitted after it
+     */
+    public void execute(Runnable task, long deferMillis) {
+      synchronized (FairExecutor.this) {
+        if (shutdown || stopped) {
+          throw new RejectedExecutionException("Lane " + name + " of " + FairExecutor.this.name + " is shut down");
+        }
+        if (queue.isEmpty() && running == 0) {
+          pass = Math.max(pass, group.pass);
+        }
+        queue.add(new Queued(task, System.currentTimeMillis() + deferMillis, sequence++));
+        FairExecutor.this.notifyAll();
+      }
+    }
+
+    /**
+     * Gets the number of tasks waiting for a thread.
+     *
+     * @return queued tasks
+     */
+    public int getQueued() {
+      synchronized (FairExecutor.this) {
+        return queue.size();
+      }
+    }
+
+    public void shutdown() {
+      synchronized (FairExecutor.this) {
+        shutdown = true;
+      }
+    }
+
+    public List<Runnable> shutdownNow() {
+      synchronized (FairExecutor.this) {
+        shutdown = true;
+        List<Runnable> dropped = new ArrayList<Runnable>();
+        for (Queued queued : queue) {
+          dropped.add(queued.task);
+        }
+        queue.clear();
+        return dropped;
+      }
+    }
+
+    public boolean isShutdown() {
+      synchronized (FairExecutor.this) {
+        return shutdown;
+      }
+    }
+
+    public boolean isTerminated() {
+      synchronized (FairExecutor.this) {
+        return shutdown && queue.isEmpty() && running == 0;
+      }
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      synchronized (FairExecutor.this) {
+        while (!isTerminated()) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(FairExecutor.this, remaining);
+        }
+        return true;
+      }
+    }
+
+  }
+
+}
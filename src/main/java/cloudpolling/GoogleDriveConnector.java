@@ -4,10 +4,17 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.camel.ProducerTemplate;
 import org.apache.log4j.Logger;
@@ -23,15 +30,15 @@ import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
 import com.google.api.client.util.store.FileDataStoreFactory;
 import com.google.api.services.drive.Drive;
 import com.google.api.services.drive.DriveScopes;
 import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.Channel;
 import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
-import com.google.api.services.drive.model.Revision;
-import com.google.api.services.drive.model.RevisionList;
 import com.google.api.services.drive.model.StartPageToken;
 
 /**
@@ -45,15 +52,36 @@ public class GoogleDriveConnector extends CloudConnector {
   private final String accountID;
   private final String appName;
   private final String clientSecretFileName;
+  private final String apiBaseURL;
   private final java.io.File dataStoreDir;
   private FileDataStoreFactory dataStoreFactory;
   private String pageToken;
+  private Channel channel;
+  private final boolean restrictToMyDrive;
+  private final String spaces;
+  private final Map<String, String> folderNames = new LinkedHashMap<String, String>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > FOLDER_NAME_CACHE_SIZE;
+    }
+  };
 
   private static Logger log = Logger.getLogger(GoogleDriveConnector.class);
 
   private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
   private static HttpTransport HTTP_TRANSPORT;
   private static final List<String> SCOPES = Arrays.asList(DriveScopes.DRIVE);
+  private static final String FOLDER_TYPE = "application/vnd.google-apps.folder";
+  private static final int PAGE_SIZE = 1000;
+  private static final int FOLDER_NAME_CACHE_SIZE = 10000;
+
+  // Everything the requests of a change or listed file need, so that they are
+  // sent without fetching the file again
+  private static final String FILE_FIELDS = "id, name, mimeType, parents, md5Checksum, size, trashed, modifiedTime, "
+      + "description";
+  private static final String CHANGE_FIELDS = "nextPageToken, newStartPageToken, changes(fileId, removed, time, file("
+      + FILE_FIELDS + "))";
+  private static final String LIST_FIELDS = "nextPageToken, files(" + FILE_FIELDS + ")";
 
   static {
     try {
@@ -77,26 +105,31 @@ public class GoogleDriveConnector extends CloudConnector {
     this.accountID = config.getProperty("configID");
     this.appName = config.getProperty("appName");
     this.clientSecretFileName = config.getProperty("clientSecretFile");
+    this.apiBaseURL = config.getProperty("apiBaseURL", "");
     String accountConfigDir = this.getAccount().getConfigFile().getParent();
     this.dataStoreDir = new java.io.File(accountConfigDir, ".credentials/googledrive_" + this.accountID);
     try {
       this.dataStoreFactory = new FileDataStoreFactory(this.dataStoreDir);
-    } catch (Throwable t) {
-      t.printStackTrace();
-      System.exit(1);
+    } catch (IOException e) {
+      throw new IllegalStateException("Cannot open credential store " + this.dataStoreDir, e);
     }
     this.pageToken = config.getProperty("pollToken", "0");
+    this.restrictToMyDrive = Boolean.parseBoolean(config.getProperty("restrictToMyDrive", "").trim());
+    String spaces = config.getProperty("spaces", "").trim();
+    this.spaces = spaces.isEmpty() ? "drive" : spaces;
   }
 
   /**
    * Gets the absolute path of a file or folder as it stands in cloud storage.
+   * The names of its parents are looked up in the folders this connector has
+   * seen or synced, and only fetched if neither knows them.
    *
    * @param service
    * @param item
    * @return
    * @throws IOException
    */
-  private String getSourcePath(Drive service, File item) throws IOException {
+  String getSourcePath(Drive service, File item) throws IOException {
 
     String fullPath = null;
     String itemName = item.getName();
@@ -108,9 +141,7 @@ public class GoogleDriveConnector extends CloudConnector {
       fullPath = itemName;
     } else {
       for (String id : parentIDs) {
-        File parent = service.files().get(id).execute();
-        String parentName = parent.getName();
-        fullPathStringBuffer.append("/").append(parentName);
+        fullPathStringBuffer.append("/").append(getFolderName(service, id));
       }
     }
 
@@ -120,6 +151,99 @@ public class GoogleDriveConnector extends CloudConnector {
     return fullPath;
   }
 
+  /**
+   * Gets the name of a folder, from the folders listed by changes & full syncs
+   * or looked up by resolveParents, then from the account's item index, and
+   * only then from Google Drive.
+   *
+   * @param service
+   * @param id
+   * @return folder name
+   * @throws IOException
+   */
+  private String getFolderName(Drive service, String id) throws IOException {
+    synchronized (folderNames) {
+      String name = folderNames.get(id);
+      if (name != null) {
+        return name;
+      }
+    }
+    String name = getIndexedFolderName(id);
+    if (name == null) {
+      name = service.files().get(id).setFields("name").execute().getName();
+    }
+    rememberFolder(id, name);
+    return name;
+  }
+
+  private String getIndexedFolderName(String id) throws IOException {
+    ItemIndex.Item indexed = getIndexedItem(id);
+    if (indexed != null && indexed.isFolder()) {
+      String name = indexed.path.substring(indexed.path.lastIndexOf('/') + 1);
+      rememberFolder(id, name);
+      return name;
+    }
+    return null;
+  }
+
+  private ItemIndex.Item getIndexedItem(String id) throws IOException {
+    return this.getAccount().getParent().getItemIndex(this.accountID).get(id);
+  }
+
+  /**
+   * Looks up the names of the parents of several files that are not known yet,
+   * in batches, so that their paths are then found without further requests.
+   *
+   * @param batcher
+   * @param files
+   * @throws IOException
+   */
+  private void resolveParents(DriveBatcher batcher, Collection<File> files) throws IOException {
+    ArrayList<String> unknown = new ArrayList<String>();
+    for (File file : files) {
+      if (file.getParents() == null) {
+        continue;
+      }
+      for (String id : file.getParents()) {
+        boolean known;
+        synchronized (folderNames) {
+          known = folderNames.containsKey(id);
+        }
+        if (!known && !unknown.contains(id) && getIndexedFolderName(id) == null) {
+          unknown.add(id);
+        }
+      }
+    }
+    if (unknown.isEmpty()) {
+      return;
+    }
+    for (Entry<String, File> parent : batcher.getFiles(unknown, "id, name").entrySet()) {
+      rememberFolder(parent.getKey(), parent.getValue().getName());
+    }
+  }
+
+  /**
+   * Looks up removed files the item index does not know, as they were at
+   * their first listed revision, in batches.
+   *
+   * @param batcher
+   * @param ids
+   * @return removed files by ID, without those that could not be found
+   * @throws IOException
+   */
+  private Map<String, File> getRemovedFiles(DriveBatcher batcher, List<String> ids) throws IOException {
+    if (ids.isEmpty()) {
+      return new HashMap<String, File>();
+    }
+    return batcher.getFileRevisions(batcher.getFirstRevisions(ids), FILE_FIELDS);
+  }
+
+  private void rememberFolder(String id, String name) {
+    synchronized (folderNames) {
+      folderNames.put(id, name);
+    }
+  }
+
   /**
    * Connects to a Google Drive account and starts syncing a local system by
    * detecting changes to account since last interval and sending message
@@ -128,28 +252,70 @@ public class GoogleDriveConnector extends CloudConnector {
    * @throws IOException
    * @throws JSONException
    */
-  public void poll() throws IOException, JSONException {
+  public synchronized void poll() throws IOException, JSONException {
 
+    // A backfill saves the page token once it is complete
+    if (this.pageToken.equals("0")) {
+      this.pageToken = this.getAccount().getConfiguration().getProperty("pollToken", "0");
+    }
     String token = this.pageToken;
     Drive service = getDriveService(); // authorized API client service
+    DriveBatcher batcher = new DriveBatcher(service, 0);
 
-    // If it is the first time connecting, download all files from this account.
+    // If it is the first time connecting, download all files from this account,
+    // resuming an interrupted backfill, and switch to the page token from
+    // before it started once it is complete.
     // If it is NOT the first time connecting, begin polling changes from the
     // last saved polling token
     if (token.equals("0")) {
 
-      downloadAllFiles(service);
-
-      // save latest page token
-      StartPageToken response = service.changes().getStartPageToken().execute();
-      this.pageToken = response.getStartPageToken();
-      this.getAccount().updateConfiguration("pollToken", this.pageToken);
+      BackfillCheckpoint checkpoint = getBackfillCheckpoint();
+      if (!checkpoint.isStarted()) {
+        StartPageToken response = service.changes().getStartPageToken().execute();
+        checkpoint.start(response.getStartPageToken());
+      } else {
+        checkpoint.start(null); // keeps the page token it was started with
+      }
+      setBackfilling(true);
+      try {
+        downloadAllFiles(service, batcher, checkpoint);
+      } finally {
+        setBackfilling(false);
+      }
 
     } else {
 
       while (token != null) {
 
-        ChangeList changes = service.changes().list(token).execute();
+        ChangeList changes = service.changes().list(token)
+            .setPageSize(PAGE_SIZE)
+            .setFields(CHANGE_FIELDS)
+            .setRestrictToMyDrive(this.restrictToMyDrive)
+            .setSpaces(this.spaces)
+            .execute();
+
+        // folders first, so that the names of this page's new parents are
+        // known, then whatever else the page's requests need, in batches; the
+        // item index may have been written by worker nodes since the last page
+        this.getAccount().getParent().getItemIndex(this.accountID).refresh();
+        ArrayList<File> located = new ArrayList<File>();
+        ArrayList<String> unindexed = new ArrayList<String>();
+        for (Change change : changes.getChanges()) {
+          File changeItem = change.getFile();
+          if (Boolean.TRUE.equals(change.getRemoved()) || changeItem == null) {
+            if (getIndexedItem(change.getFileId()) == null) {
+              unindexed.add(change.getFileId());
+            }
+            continue;
+          }
+          located.add(changeItem);
+          if (FOLDER_TYPE.equals(changeItem.getMimeType())) {
+            rememberFolder(changeItem.getId(), changeItem.getName());
+          }
+        }
+        Map<String, File> removedFiles = getRemovedFiles(batcher, unindexed);
+        located.addAll(removedFiles.values());
+        resolveParents(batcher, located);
 
         for (Change change : changes.getChanges()) {
 
@@ -157,16 +323,19 @@ public class GoogleDriveConnector extends CloudConnector {
           log.info("Change detected for Google Drive Account " + this.accountID + " item: "
               + change.getFileId());
 
-          if (change.getRemoved()) {
-            sendDeleteRequest(service, change);
+          if (Boolean.TRUE.equals(change.getRemoved()) || changeItem == null) {
+            sendDeleteRequest(service, change, removedFiles.get(change.getFileId()));
+
+          } else if (Boolean.TRUE.equals(changeItem.getTrashed())) {
+            sendDeleteRequest(service, change, changeItem);
 
-          } else if (changeItem.getMimeType().equals("application/vnd.google-apps.folder")) {
+          } else if (changeItem.getMimeType().equals(FOLDER_TYPE)) {
 
-            sendMakedirRequest(service, changeItem);
+            sendMakedirRequest(service, changeItem, change.getTime());
 
           } else {
 
-            sendDownloadRequest(service, changeItem);
+            sendDownloadRequest(service, changeItem, change.getTime());
 
           }
         }
@@ -181,82 +350,167 @@ public class GoogleDriveConnector extends CloudConnector {
 
       }
 
+      watchChanges(service);
     }
 
   }
 
+  /**
+   * Polls the changes of this Google Drive account when a webhook notifies
+   * it of a change. Drive changes are listed at once anyway.
+   *
+   * @throws IOException
+   * @throws JSONException
+   */
+  public synchronized void pollNotified() throws IOException, JSONException {
+    poll();
+  }
+
+  /**
+   * Asks Google Drive to notify this account's webhook of its changes, if it
+   * has a webhookAddress, through a channel lasting a day. The channel is
+   * renewed by the first poll after half of its day is over, and the old one
+   * stopped.
+   *
+   * @param service
+   */
+  private void watchChanges(Drive service) {
+    String address = this.getAccount().getConfiguration().getProperty("webhookAddress", "").trim();
+    if (address.isEmpty()) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (channel != null && channel.getExpiration() != null
+        && channel.getExpiration() - now > TimeUnit.HOURS.toMillis(12)) {
+      return;
+    }
+    Channel old = channel;
+    try {
+      channel = service.changes().watch(this.pageToken, new Channel()
+          .setId(UUID.randomUUID().toString())
+          .setType("web_hook")
+          .setAddress(address.replaceAll("/+$", "") + "/webhooks/googledrive/" + this.getAccount().getID())
+          .setToken(this.getAccount().getConfiguration().getProperty("webhookToken", ""))
+          .setExpiration(now + TimeUnit.DAYS.toMillis(1)))
+          .execute();
+      log.info("Watching changes of Google Drive Account " + this.accountID + " through channel " + channel.getId());
+    } catch (IOException e) {
+      log.warn("Could not watch changes of Google Drive Account " + this.accountID + "; it is only polled.", e);
+      return;
+    }
+    if (old != null) {
+      try {
+        service.channels().stop(old).execute();
+      } catch (IOException e) {
+        log.warn("Could not stop channel " + old.getId() + " of Google Drive Account " + this.accountID, e);
+      }
+    }
+  }
+
   /**
    * Sends requests to make all directories and download all files associated
-   * with a Google Drive account.
+   * with a Google Drive account, page by page, from the first page a
+   * checkpoint holds as not completed & skipping the items it holds as
+   * completed.
    *
    * @param service
+   * @param batcher
+   * @param checkpoint
    * @throws IOException
    * @throws JSONException
    */
-  private void downloadAllFiles(Drive service) throws IOException, JSONException {
+  private void downloadAllFiles(Drive service, DriveBatcher batcher, BackfillCheckpoint checkpoint)
+      throws IOException, JSONException {
 
-    log.info("First time connecting to Google Drive Account " + this.accountID + ".");
+    String pageToken = checkpoint.getResumeToken();
+    if (pageToken == null) {
+      log.info("First time connecting to Google Drive Account " + this.accountID + ".");
+    }
     log.info("Sending requests to download all files of this account...");
 
-    FileList result = service.files().list()
-        .setPageSize(10) // 10 item limit - CHANGE AFTER TESTING
-        .setFields("nextPageToken, files")
-        .execute();
+    do {
+      FileList result = service.files().list()
+          .setPageSize(PAGE_SIZE)
+          .setFields(LIST_FIELDS)
+          .setQ("trashed = false")
+          .setSpaces(this.spaces)
+          .setPageToken(pageToken)
+          .execute();
+
+      for (File file : result.getFiles()) {
+        if (FOLDER_TYPE.equals(file.getMimeType())) {
+          rememberFolder(file.getId(), file.getName());
+        }
+      }
+      resolveParents(batcher, result.getFiles());
 
-    List<File> files = result.getFiles();
+      checkpoint.beginPage();
+      for (File file : result.getFiles()) {
 
-    for (File file : files) {
+        if (checkpoint.isItemCompleted(file.getId())) {
 
-      if (file.getMimeType().equals("application/vnd.google-apps.folder")) {
+          continue;
 
-        sendMakedirRequest(service, file);
+        } else if (file.getMimeType().equals(FOLDER_TYPE)) {
 
-      } else {
+          sendMakedirRequest(service, file, null);
 
-        sendDownloadRequest(service, file);
+        } else {
 
-      }
+          sendDownloadRequest(service, file, null);
 
-    }
+        }
+
+      }
+      pageToken = result.getNextPageToken();
+      checkpoint.endPage(pageToken);
+    } while (pageToken != null);
 
+    checkpoint.crawled();
   }
 
   /**
    * Sends a new message exchange to ActionListener requesting to delete a file
-   * or folder from the local system, along with its children.
+   * or folder from the local system, along with its children. The file is
+   * located by its trashed or last revision's metadata, or else by the item
+   * index; a removed file neither knows is not synced, so nothing is sent.
    *
    * @param service
-   * @param file
+   * @param change
+   * @param deletedFile
+   *          the trashed or removed file, or null if it was not looked up
    * @throws IOException
    */
-  private void sendDeleteRequest(Drive service, Change change) throws IOException {
+  private void sendDeleteRequest(Drive service, Change change, File deletedFile) throws IOException {
 
     HashMap<String, String> headers = new HashMap<String, String>();
 
     headers.put("action", "delete");
     headers.put("source_id", change.getFileId());
     headers.put("details", "remove_childen");
+    if (change.getTime() != null) {
+      headers.put("change_time", String.valueOf(change.getTime().getValue()));
+    }
 
-    // get revisions of deleted file
-    RevisionList revList = service.revisions()
-        .list(change.getFileId())
-        .execute();
-
-    List<Revision> revisions = revList.getRevisions();
-    String prevRevID = revisions.get(0).getId();
-
-    File deletedFile = service.files()
-        .get(change.getFileId())
-        .set("revisionId", prevRevID)
-        .execute();
-
-    // file source path of the deleted file
-    headers.put("source_path", getSourcePath(service, deletedFile));
+    if (deletedFile != null) {
+      // file source path of the deleted file
+      headers.put("source_path", getSourcePath(service, deletedFile));
 
-    if (deletedFile.getMimeType().equals("application/vnd.google-apps.folder")) {
-      headers.put("source_type", "folder");
+      if (FOLDER_TYPE.equals(deletedFile.getMimeType())) {
+        headers.put("source_type", "folder");
+      } else {
+        headers.put("source_type", "file");
+      }
     } else {
-      headers.put("source_type", "file");
+      ItemIndex.Item indexed = getIndexedItem(change.getFileId());
+      if (indexed == null) {
+        log.warn("Removed item " + change.getFileId() + " of Google Drive Account " + this.accountID
+            + " could not be found; nothing to delete.");
+        return;
+      }
+      // DeleteProcessor takes the path & type from the item index
+      headers.put("source_path", indexed.path);
+      headers.put("source_type", indexed.type);
     }
     headers.put("account_type", "googledrive");
     headers.put("account_id", this.accountID);
@@ -269,15 +523,20 @@ public class GoogleDriveConnector extends CloudConnector {
    *
    * @param service
    * @param file
+   * @param changeTime
+   *          time of the change that made the directory, or null if unknown
    * @throws IOException
    */
-  private void sendMakedirRequest(Drive service, File file) throws IOException {
+  void sendMakedirRequest(Drive service, File file, DateTime changeTime) throws IOException {
 
     HashMap<String, String> headers = new HashMap<String, String>();
 
     headers.put("action", "make_directory");
     headers.put("source_type", "folder");
     headers.put("source_id", file.getId());
+    if (changeTime != null) {
+      headers.put("change_time", String.valueOf(changeTime.getValue()));
+    }
     headers.put("source_path", getSourcePath(service, file));
     headers.put("source_name", file.getName());
     List<String> parentIDs = file.getParents();
@@ -297,16 +556,21 @@ public class GoogleDriveConnector extends CloudConnector {
    *
    * @param service
    * @param file
+   * @param changeTime
+   *          time of the change to the file, or null if unknown
    * @throws IOException
    * @throws JSONException
    */
-  private void sendDownloadRequest(Drive service, File file) throws IOException, JSONException {
+  void sendDownloadRequest(Drive service, File file, DateTime changeTime) throws IOException, JSONException {
 
     HashMap<String, String> headers = new HashMap<String, String>();
 
     headers.put("action", "download");
     headers.put("source_type", "file");
     headers.put("source_id", file.getId());
+    if (changeTime != null) {
+      headers.put("change_time", String.valueOf(changeTime.getValue()));
+    }
     headers.put("source_path", getSourcePath(service, file));
     headers.put("source_name", file.getName());
     List<String> parentIDs = file.getParents();
@@ -316,6 +580,11 @@ public class GoogleDriveConnector extends CloudConnector {
       headers.put("parent_id", parentIDs.get(0));
     }
 
+    headers.put("content_hash", file.getMd5Checksum());
+    if (file.getSize() != null) { // Google Docs have no size
+      headers.put("size", file.getSize().toString());
+    }
+
     JSONObject meta = new JSONObject();
     meta.put("description", file.getDescription());
     headers.put("metadata", meta.toString());
@@ -354,17 +623,24 @@ public class GoogleDriveConnector extends CloudConnector {
   }
 
   /**
-   * Build and return an authorized Drive client service.
+   * Build and return an authorized Drive client service. If this account has
+   * an apiBaseURL, such as a local stand-in for the Drive API, requests are
+   * sent there instead of to Google. Requests are paced by the account's
+   * rate limiter.
    *
    * @return an authorized Drive client service
    * @throws IOException
    */
   public Drive getDriveService() throws IOException {
     Credential credential = authorize();
-    return new Drive.Builder(
-        HTTP_TRANSPORT, JSON_FACTORY, credential)
-            .setApplicationName(this.appName)
-            .build();
+    RateLimiter limiter = this.getAccount().getParent().getRateLimiter(this.getAccount());
+    Drive.Builder builder = new Drive.Builder(
+        HTTP_TRANSPORT, JSON_FACTORY, new RateLimitedRequestInitializer(credential, limiter))
+            .setApplicationName(this.appName);
+    if (!this.apiBaseURL.isEmpty()) {
+      builder.setRootUrl(this.apiBaseURL.replaceAll("/+$", "") + "/");
+    }
+    return builder.build();
   }
 
 }
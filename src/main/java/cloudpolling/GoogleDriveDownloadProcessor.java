@@ -1,8 +1,10 @@
 package cloudpolling;
 
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.ProducerTemplate;
@@ -14,6 +16,12 @@ import com.google.api.services.drive.model.File;
 
 public class GoogleDriveDownloadProcessor extends CloudDownloadProcessor {
 
+  // how long a file lookup waits for the lookups of concurrent downloads to
+  // join its batch
+  private static final long LOOKUP_LINGER_MILLIS = 20;
+
+  private final ConcurrentHashMap<Integer, DriveBatcher> batchers = new ConcurrentHashMap<Integer, DriveBatcher>();
+
   private static Logger log = Logger.getLogger(GoogleDriveDownloadProcessor.class);
 
   public GoogleDriveDownloadProcessor(PollingProject project) {
@@ -27,15 +35,16 @@ public class GoogleDriveDownloadProcessor extends CloudDownloadProcessor {
 
     // Get authorized Drive client service
     int accountID = exchange.getIn().getHeader("account_id", Integer.class);
-    CloudAccount account = new CloudAccount(accountID, getProject());
-    account.setConfiguration();
-    ProducerTemplate dummy = new DefaultCamelContext().createProducerTemplate();
-    GoogleDriveConnector connector = new GoogleDriveConnector(account, dummy);
-    Drive service = connector.getDriveService();
+    DriveBatcher batcher = getBatcher(accountID);
+    Drive service = batcher.getService();
 
-    // Get file & get its file type
+    // Get file & get its file type, batched with the lookups of other downloads
     String sourceID = exchange.getIn().getHeader("source_id", String.class);
-    File file = service.files().get(sourceID).execute();
+    File file = batcher.getFile(sourceID, "id, mimeType");
+    if (file == null) {
+      log.info("Google Drive file " + sourceID + " no longer exists; it is not downloaded.");
+      return;
+    }
     String sourceMimeType = file.getMimeType();
     String downloadMimeType = null;
 
@@ -92,4 +101,28 @@ public class GoogleDriveDownloadProcessor extends CloudDownloadProcessor {
 
   }
 
+  /**
+   * Gets the lookup batcher of an account, shared by its downloads, with an
+   * authorized Drive client service.
+   *
+   * @param accountID
+   * @return batcher
+   * @throws IOException
+   */
+  private DriveBatcher getBatcher(int accountID) throws IOException {
+    DriveBatcher batcher = batchers.get(accountID);
+    if (batcher == null) {
+      CloudAccount account = new CloudAccount(accountID, getProject());
+      account.setConfiguration();
+      ProducerTemplate dummy = new DefaultCamelContext().createProducerTemplate();
+      GoogleDriveConnector connector = new GoogleDriveConnector(account, dummy);
+      batcher = new DriveBatcher(connector.getDriveService(), LOOKUP_LINGER_MILLIS);
+      DriveBatcher existing = batchers.putIfAbsent(accountID, batcher);
+      if (existing != null) {
+        batcher = existing;
+      }
+    }
+    return batcher;
+  }
+
 }
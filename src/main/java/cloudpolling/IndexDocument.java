@@ -0,0 +1,138 @@
+package cloudpolling;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Represents a document to be indexed: a set of small metadata fields plus
+ * the item's extracted text, which is kept in a spool file instead of memory.
+ *
+ * @author tlarrue
+ *
+ */
+public class IndexDocument {
+
+  private final LinkedHashMap<String, String> fields = new LinkedHashMap<String, String>();
+  private File content;
+  private volatile boolean claimed;
+
+  /**
+   * Sets a metadata field of this document.
+   *
+   * @param name
+   * @param value
+   */
+  public void put(String name, String value) {
+    fields.put(name, value);
+  }
+
+  /**
+   * Gets a metadata field of this document.
+   *
+   * @param name
+   * @return field value, or null if not set
+   */
+  public String get(String name) {
+    return fields.get(name);
+  }
+
+  /**
+   * Gets all metadata fields of this document in insertion order.
+   *
+   * @return metadata fields
+   */
+  public Map<String, String> getFields() {
+    return fields;
+  }
+
+  /**
+   * Gets the spool file holding this document's extracted text.
+   *
+   * @return UTF-8 text file, or null if this document has no content
+   */
+  public File getContent() {
+    return content;
+  }
+
+  /**
+   * Sets the spool file holding this document's extracted text.
+   *
+   * @param content
+   */
+  public void setContent(File content) {
+    this.content = content;
+  }
+
+  /**
+   * Opens a reader on this document's extracted text.
+   *
+   * @return reader on spooled content
+   * @throws IOException
+   */
+  public Reader openContent() throws IOException {
+    return new InputStreamReader(new FileInputStream(content), "UTF-8");
+  }
+
+  /**
+   * Estimates the serialized size of this document in bytes.
+   *
+   * @return approximate size in bytes
+   */
+  public long length() {
+    long length = content == null ? 0 : content.length();
+    for (Map.Entry<String, String> field : fields.entrySet()) {
+      length += field.getKey().length() + (field.getValue() == null ? 4 : field.getValue().length()) + 6;
+    }
+    return length;
+  }
+
+  /**
+   * Writes this document as a JSON object, streaming its content field from
+   * the spool file.
+   *
+   * @param json
+   * @throws IOException
+   */
+  public void writeTo(JsonStreamWriter json) throws IOException {
+    json.beginObject();
+    for (Map.Entry<String, String> field : fields.entrySet()) {
+      json.name(field.getKey()).value(field.getValue());
+    }
+    if (content != null) {
+      json.name("content").value(openContent());
+    }
+    json.endObject();
+  }
+
+  /**
+   * Hands this document's spool file over to an index sink that reads it
+   * after the document's exchange is done, & releases it once it has.
+   */
+  public void claim() {
+    claimed = true;
+  }
+
+  /**
+   * Tells if this document's spool file was handed over to an index sink.
+   *
+   * @return true if claimed
+   */
+  public boolean isClaimed() {
+    return claimed;
+  }
+
+  /**
+   * Deletes this document's spool file.
+   */
+  public void release() {
+    if (content != null) {
+      content.delete();
+    }
+  }
+
+}
@@ -0,0 +1,59 @@
+package cloudpolling;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Service;
+
+/**
+ * A destination for index updates made by a polling project's SolrUpdater,
+ * SolrPartialUpdater & SolrDeleter routes. Implementations may batch updates,
+ * but must apply them in order for any one item and apply all pending updates
+ * when stopped. An update of a backfill event holds off the event's completion
+ * (see BackfillCheckpoint.hold) until it is applied, or kept on disk.
+ *
+ * @author tlarrue
+ *
+ */
+public interface IndexSink extends Service {
+
+  /**
+   * Adds or replaces the IndexDocument in an exchange's body.
+   *
+   * @param exchange
+   * @throws Exception
+   */
+  void update(Exchange exchange) throws Exception;
+
+  /**
+   * Sets only the fields present in each of the list of IndexDocuments in an
+   * exchange's body, leaving all other fields of those documents unchanged.
+   *
+   * @param exchange
+   * @throws Exception
+   */
+  void partialUpdate(Exchange exchange) throws Exception;
+
+  /**
+   * Deletes the document with header "source_id", or with path header
+   * "index_path" if it is set, plus every document whose path starts with
+   * header "index_path_prefix" if it is set.
+   *
+   * @param exchange
+   * @throws Exception
+   */
+  void delete(Exchange exchange) throws Exception;
+
+  /**
+   * Applies all pending updates.
+   *
+   * @throws Exception
+   */
+  void flush() throws Exception;
+
+  /**
+   * Gets the number of updates & deletions queued but not yet applied.
+   *
+   * @return number of pending updates
+   */
+  int getPending();
+
+}
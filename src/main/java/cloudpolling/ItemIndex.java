@@ -0,0 +1,410 @@
+package cloudpolling;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps track of every item synced from one cloud account: its cloud path,
+ * parent and type, looked up by source ID or by path. Items under a folder
+ * are found with a single range scan over the sorted paths.
+ *
+ * The index lives in memory and is persisted as an append-only journal in the
+ * project's items folder, which is compacted each time it is loaded.
+ *
+ * Nodes sharing the project folder may open the same journal: each write &
+ * each compaction holds a lock on the journal's lock file, and first replays
+ * whatever other nodes appended to the journal since this node last read it
+ * (or all of it, if another node compacted it meanwhile). A node that only
+ * reads the index, like a poller, catches up with refresh().
+ *
+ * @author tlarrue
+ *
+ */
+public class ItemIndex {
+
+  private final File journalFile;
+  private final File lockFile;
+  private final ConcurrentHashMap<String, Item> items = new ConcurrentHashMap<String, Item>();
+  private final ConcurrentSkipListMap<String, String> paths = new ConcurrentSkipListMap<String, String>();
+  private Writer journal;
+  private Object journalKey; // identity of the journal file read & appended to
+  private long journalRead; // bytes of the journal replayed into memory
+  private FileLock lock;
+  private int lockDepth;
+
+  private static Logger log = Logger.getLogger(ItemIndex.class);
+
+  /**
+   * Represents a synced cloud item.
+   */
+  public static class Item {
+    public final String id;
+    public final String path;
+    public final String parentID;
+    public final String type;
+    public final String hash;
+
+    public Item(String id, String path, String parentID, String type, String hash) {
+      this.id = id;
+      this.path = path;
+      this.parentID = parentID;
+      this.type = type;
+      this.hash = hash;
+    }
+
+    public boolean isFolder() {
+      return "folder".equals(type);
+    }
+  }
+
+  /**
+   * Opens the item index stored in a journal file, creating it if needed.
+   *
+   * @param journalFile
+   * @throws IOException
+   */
+  public ItemIndex(File journalFile) throws IOException {
+    this.journalFile = journalFile;
+    this.lockFile = new File(journalFile.getAbsolutePath() + ".lock");
+    journalFile.getParentFile().mkdirs();
+    FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+    try {
+      FileLock compacting = lock(channel); // other nodes may be writing or compacting the journal
+      try {
+        if (journalFile.exists()) {
+          load();
+        }
+        compact();
+      } finally {
+        compacting.release();
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Gets an item by its source ID.
+   *
+   * @param id
+   * @return item, or null if unknown
+   */
+  public Item get(String id) {
+    return id == null ? null : items.get(id);
+  }
+
+  /**
+   * Gets an item by its cloud path.
+   *
+   * @param path
+   * @return item, or null if unknown
+   */
+  public Item getByPath(String path) {
+    String id = path == null ? null : paths.get(path);
+    return id == null ? null : items.get(id);
+  }
+
+  /**
+   * Records an item, replacing any earlier record of it.
+   *
+   * @param item
+   */
+  public synchronized void put(Item item) {
+    lockJournal();
+    try {
+      Item old = items.put(item.id, item);
+      if (old != null && !old.path.equals(item.path)) {
+        paths.remove(old.path, old.id);
+      }
+      paths.put(item.path, item.id);
+      append("P\t" + item.id + "\t" + item.type + "\t" + item.parentID + "\t" + item.hash + "\t" + item.path);
+    } finally {
+      unlockJournal();
+    }
+  }
+
+  /**
+   * Removes an item.
+   *
+   * @param id
+   * @return removed item, or null if unknown
+   */
+  public synchronized Item remove(String id) {
+    lockJournal();
+    try {
+      Item old = items.remove(id);
+      if (old != null) {
+        paths.remove(old.path, old.id);
+        append("R\t" + id);
+      }
+      return old;
+    } finally {
+      unlockJournal();
+    }
+  }
+
+  /**
+   * Gets every item below a folder path, not including the folder itself.
+   *
+   * @param path
+   * @return descendants of the folder at the given path
+   */
+  public List<Item> getDescendants(String path) {
+    String prefix = path.endsWith("/") ? path : path + "/";
+    List<Item> descendants = new ArrayList<Item>();
+    for (String id : paths.subMap(prefix, prefix + Character.MAX_VALUE).values()) {
+      Item item = items.get(id);
+      if (item != null) {
+        descendants.add(item);
+      }
+    }
+    return descendants;
+  }
+
+  /**
+   * Removes an item and, if it is a folder, everything below it.
+   *
+   * @param path
+   * @return number of items removed
+   */
+  public synchronized int removeTree(String path) {
+    lockJournal();
+    try {
+      int removed = 0;
+      Item root = getByPath(path);
+      if (root != null && remove(root.id) != null) {
+        removed++;
+      }
+      for (Item item : getDescendants(path)) {
+        if (remove(item.id) != null) {
+          removed++;
+        }
+      }
+      return removed;
+    } finally {
+      unlockJournal();
+    }
+  }
+
+  /**
+   * Replays whatever other nodes wrote to the journal since this index last
+   * read it.
+   */
+  public synchronized void refresh() {
+    lockJournal();
+    unlockJournal();
+  }
+
+  /**
+   * Gets the number of items in this index.
+   *
+   * @return number of items
+   */
+  public int size() {
+    return items.size();
+  }
+
+  /**
+   * Flushes & closes this index's journal.
+   */
+  public synchronized void close() {
+    try {
+      journal.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void append(String line) {
+    try {
+      journal.write(line);
+      journal.write('\n');
+      journal.flush();
+      if (lock != null) {
+        journalRead = journalFile.length(); // no other node appended meanwhile
+      }
+    } catch (IOException e) {
+      log.error("Could not write to item index journal " + journalFile.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * Locks the journal against other nodes, unless this index already holds
+   * the lock, & catches up with what they wrote to it.
+   */
+  private void lockJournal() {
+    if (lockDepth++ > 0) {
+      return;
+    }
+    FileChannel channel = null;
+    try {
+      channel = new RandomAccessFile(lockFile, "rw").getChannel();
+      lock = lock(channel);
+      catchUp();
+    } catch (IOException e) {
+      log.error("Could not lock item index journal " + journalFile.getAbsolutePath()
+          + "; writes of other nodes may be missed.", e);
+    }
+    if (lock == null && channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.debug("Could not close lock file " + lockFile.getAbsolutePath(), e);
+      }
+    }
+  }
+
+  /**
+   * Locks a channel of the lock file, waiting for other nodes, and for other
+   * indexes of the journal in this JVM, to release it.
+   *
+   * @param channel
+   * @return lock
+   * @throws IOException
+   */
+  private FileLock lock(FileChannel channel) throws IOException {
+    while (true) {
+      try {
+        return channel.lock();
+      } catch (OverlappingFileLockException e) {
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting to lock " + lockFile.getAbsolutePath());
+        }
+      }
+    }
+  }
+
+  private void unlockJournal() {
+    if (--lockDepth > 0 || lock == null) {
+      return;
+    }
+    try {
+      lock.channel().close(); // releases the lock
+    } catch (IOException e) {
+      log.error("Could not unlock item index journal " + journalFile.getAbsolutePath(), e);
+    }
+    lock = null;
+  }
+
+  /**
+   * Replays the journal from where this index last read it, or from the
+   * start, & reopens it for appending, if another node compacted it since.
+   *
+   * @throws IOException
+   */
+  private void catchUp() throws IOException {
+    Object key = fileKey();
+    if (key == null || !key.equals(journalKey) || journalFile.length() < journalRead) {
+      items.clear();
+      paths.clear();
+      journalRead = 0;
+      journal.close();
+      journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+      journalKey = fileKey();
+    }
+    if (journalFile.length() > journalRead) {
+      load();
+    }
+  }
+
+  private Object fileKey() throws IOException {
+    if (!journalFile.exists()) {
+      return null;
+    }
+    return Files.readAttributes(journalFile.toPath(), BasicFileAttributes.class).fileKey();
+  }
+
+  /**
+   * Replays the journal into memory, from the first byte this index has not
+   * read, up to its last complete line.
+   *
+   * @throws IOException
+   */
+  private void load() throws IOException {
+    FileInputStream in = new FileInputStream(journalFile);
+    try {
+      long end = in.getChannel().size();
+      in.getChannel().position(journalRead);
+      BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        long read = line.getBytes("UTF-8").length + 1;
+        if (journalRead + read > end) {
+          break; // still being written
+        }
+        journalRead += read;
+        replay(line.split("\t", 6));
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private void replay(String[] fields) {
+    if (fields[0].equals("P") && fields.length == 6) {
+      Item item = new Item(fields[1], fields[5], nullable(fields[3]), fields[2], nullable(fields[4]));
+      Item old = items.put(item.id, item);
+      if (old != null) {
+        paths.remove(old.path, old.id);
+      }
+      paths.put(item.path, item.id);
+    } else if (fields[0].equals("R") && fields.length == 2) {
+      Item old = items.remove(fields[1]);
+      if (old != null) {
+        paths.remove(old.path, old.id);
+      }
+    }
+  }
+
+  /**
+   * Rewrites the journal with one record per item & opens it for appending.
+   *
+   * @throws IOException
+   */
+  private void compact() throws IOException {
+    File tmp = new File(journalFile.getAbsolutePath() + ".tmp");
+    journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+    for (Map.Entry<String, Item> entry : items.entrySet()) {
+      Item item = entry.getValue();
+      journal.write("P\t" + item.id + "\t" + item.type + "\t" + item.parentID + "\t" + item.hash + "\t" + item.path
+          + "\n");
+    }
+    journal.close();
+    if (!tmp.renameTo(journalFile)) {
+      journalFile.delete();
+      tmp.renameTo(journalFile);
+    }
+    journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+    journalKey = fileKey();
+    journalRead = journalFile.length();
+  }
+
+  private static String nullable(String field) {
+    return field.equals("null") ? null : field;
+  }
+
+}
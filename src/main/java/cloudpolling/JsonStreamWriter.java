@@ -0,0 +1,161 @@
+package cloudpolling;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Writes JSON directly to an underlying writer without building it in memory,
+ * so large string values can be streamed from a reader.
+ *
+ * @author tlarrue
+ *
+ */
+public class JsonStreamWriter {
+
+  private final Writer out;
+  private boolean first = true;
+
+  /**
+   * Constructs a JSON stream writer on top of a character writer
+   *
+   * @param out
+   */
+  public JsonStreamWriter(Writer out) {
+    this.out = out;
+  }
+
+  /**
+   * Writes the opening brace of an object.
+   *
+   * @throws IOException
+   */
+  public JsonStreamWriter beginObject() throws IOException {
+    out.write('{');
+    first = true;
+    return this;
+  }
+
+  /**
+   * Writes the closing brace of an object.
+   *
+   * @throws IOException
+   */
+  public JsonStreamWriter endObject() throws IOException {
+    out.write('}');
+    first = false;
+    return this;
+  }
+
+  /**
+   * Writes the name of the next member of the current object.
+   *
+   * @param name
+   * @throws IOException
+   */
+  public JsonStreamWriter name(String name) throws IOException {
+    if (!first) {
+      out.write(',');
+    }
+    first = false;
+    writeQuoted(name);
+    out.write(':');
+    return this;
+  }
+
+  /**
+   * Writes a string value, or null.
+   *
+   * @param value
+   * @throws IOException
+   */
+  public JsonStreamWriter value(String value) throws IOException {
+    if (value == null) {
+      out.write("null");
+    } else {
+      writeQuoted(value);
+    }
+    return this;
+  }
+
+  /**
+   * Writes a string value read in chunks from a reader, which is closed after.
+   *
+   * @param value
+   * @throws IOException
+   */
+  public JsonStreamWriter value(Reader value) throws IOException {
+    char[] buffer = new char[8192];
+    int n;
+    out.write('"');
+    try {
+      while ((n = value.read(buffer)) != -1) {
+        escape(buffer, 0, n);
+      }
+    } finally {
+      value.close();
+    }
+    out.write('"');
+    return this;
+  }
+
+  /**
+   * Writes an already serialized JSON value as is.
+   *
+   * @param json
+   * @throws IOException
+   */
+  public JsonStreamWriter raw(String json) throws IOException {
+    out.write(json);
+    return this;
+  }
+
+  /**
+   * Flushes the underlying writer.
+   *
+   * @throws IOException
+   */
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  private void writeQuoted(String value) throws IOException {
+    out.write('"');
+    char[] chars = value.toCharArray();
+    escape(chars, 0, chars.length);
+    out.write('"');
+  }
+
+  /**
+   * Writes characters with JSON string escaping, passing runs of plain
+   * characters straight through.
+   */
+  private void escape(char[] chars, int offset, int length) throws IOException {
+    int start = offset;
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      char c = chars[i];
+      String replacement = null;
+      if (c == '"') {
+        replacement = "\\\"";
+      } else if (c == '\\') {
+        replacement = "\\\\";
+      } else if (c == '\n') {
+        replacement = "\\n";
+      } else if (c == '\r') {
+        replacement = "\\r";
+      } else if (c == '\t') {
+        replacement = "\\t";
+      } else if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+        replacement = String.format("\\u%04x", (int) c);
+      }
+      if (replacement != null) {
+        out.write(chars, start, i - start);
+        out.write(replacement);
+        start = i + 1;
+      }
+    }
+    out.write(chars, start, end - start);
+  }
+
+}
@@ -0,0 +1,133 @@
+package cloudpolling;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies, in the style of HdrHistogram. Values are
+ * counted in log-linear buckets: exact below 128, and 64 linear sub-buckets per
+ * power of two above that, so any recorded value is reported within 1.6% of its
+ * true value using a fixed 18KB of counts. Values above 2^40 are counted as
+ * 2^40. Latencies are in microseconds unless the metric's name says otherwise.
+ *
+ * @author tlarrue
+ *
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+  private static final int LINEAR_BUCKETS = 128;
+  private static final int SUB_BUCKETS = 64;
+  private static final int MAX_BIT = 40;
+  private static final long MAX_VALUE = 1L << MAX_BIT;
+
+  private final AtomicLongArray counts = new AtomicLongArray(LINEAR_BUCKETS + (MAX_BIT - 6) * SUB_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a latency.
+   *
+   * @param latency
+   */
+  public void record(long latency) {
+    long value = Math.min(Math.max(latency, 0), MAX_VALUE);
+    counts.incrementAndGet(indexOf(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public double getMean() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public long getPercentile50() {
+    return getValueAtPercentile(50);
+  }
+
+  public long getPercentile90() {
+    return getValueAtPercentile(90);
+  }
+
+  public long getPercentile99() {
+    return getValueAtPercentile(99);
+  }
+
+  public long getPercentile999() {
+    return getValueAtPercentile(99.9);
+  }
+
+  /**
+   * Gets the smallest value that the given percentage of recorded values are
+   * less than or equal to.
+   *
+   * @param percentile
+   *          between 0 & 100
+   * @return value at percentile, or 0 if nothing was recorded
+   */
+  public long getValueAtPercentile(double percentile) {
+    long total = 0;
+    long[] snapshot = new long[counts.length()];
+    for (int i = 0; i < snapshot.length; i++) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+
+    long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+    for (int i = 0; i < snapshot.length; i++) {
+      seen += snapshot[i];
+      if (seen >= target) {
+        return Math.min(highestEquivalentValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Gets the bucket a value is counted in.
+   *
+   * @param value
+   * @return bucket index
+   */
+  private static int indexOf(long value) {
+    if (value < LINEAR_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - 6; // leaves value >> shift in [64, 128)
+    return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+  }
+
+  /**
+   * Gets the largest value counted in a bucket.
+   *
+   * @param index
+   * @return largest value of bucket
+   */
+  private static long highestEquivalentValue(int index) {
+    if (index < LINEAR_BUCKETS) {
+      return index;
+    }
+    int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+    long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+
+}
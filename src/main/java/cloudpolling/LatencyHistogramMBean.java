@@ -0,0 +1,26 @@
+package cloudpolling;
+
+/**
+ * JMX view of a LatencyHistogram. Values are in the histogram's unit,
+ * microseconds unless its type says otherwise.
+ *
+ * @author tlarrue
+ *
+ */
+public interface LatencyHistogramMBean {
+
+  long getCount();
+
+  double getMean();
+
+  long getMax();
+
+  long getPercentile50();
+
+  long getPercentile90();
+
+  long getPercentile99();
+
+  long getPercentile999();
+
+}
@@ -0,0 +1,315 @@
+package cloudpolling;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.Exchange;
+import org.apache.log4j.Logger;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Indexes a polling project into an embedded Lucene index in a local
+ * directory, as an alternative to a remote Solr instance.
+ *
+ * Updates are applied to the index writer as they arrive. Searchers are
+ * refreshed from the writer on a short interval (near-real-time), while
+ * commits to disk are batched on a longer interval. Extracted text is indexed
+ * straight from its spool file; it is also stored, for partial updates, if it
+ * is small enough.
+ *
+ * @author tlarrue
+ *
+ */
+public class LuceneIndexer implements IndexSink {
+
+  private static final String[] KEYWORD_FIELDS = { "id", "path", "parent_id", "account_type", "account_id",
+      "type" };
+
+  private final PollingProject project;
+  private final File indexDir;
+  private final long refreshMillis;
+  private final long commitMillis;
+  private final long maxStoredContent;
+  private IndexWriter writer;
+  private SearcherManager searcherManager;
+  private ScheduledExecutorService scheduler;
+  private final AtomicInteger uncommitted = new AtomicInteger();
+  private final List<BackfillCheckpoint.Completion> completions = new ArrayList<BackfillCheckpoint.Completion>();
+  private final ChangeLag changeLag;
+
+  private static Logger log = Logger.getLogger(LuceneIndexer.class);
+
+  /**
+   * Constructs a Lucene indexer from a polling project's configuration.
+   *
+   * @param project
+   */
+  public LuceneIndexer(PollingProject project) {
+    this.project = project;
+    this.indexDir = new File(project.readConfiguration("luceneIndexDir",
+        new File(project.getProjectDir(), "index").getAbsolutePath()));
+    this.refreshMillis = Long.parseLong(project.readConfiguration("luceneRefreshMillis", "1000"));
+    this.commitMillis = Long.parseLong(project.readConfiguration("luceneCommitMillis", "10000"));
+    this.maxStoredContent = Long.parseLong(project.readConfiguration("luceneMaxStoredContent", "1048576"));
+    this.changeLag = project.getChangeLag();
+  }
+
+  /**
+   * Opens the index writer & starts refreshing searchers and committing.
+   */
+  public void start() throws Exception {
+    indexDir.mkdirs();
+    IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+    config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
+    writer = new IndexWriter(FSDirectory.open(indexDir.toPath()), config);
+    searcherManager = new SearcherManager(writer, true, null);
+
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          searcherManager.maybeRefresh();
+        } catch (IOException e) {
+          log.error("Could not refresh Lucene searcher.", e);
+        }
+      }
+    }, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        try {
+          flush();
+        } catch (IOException e) {
+          log.error("Could not commit Lucene index.", e);
+        }
+      }
+    }, commitMillis, commitMillis, TimeUnit.MILLISECONDS);
+
+    log.info("Indexing to Lucene index at " + indexDir.getAbsolutePath());
+  }
+
+  /**
+   * Commits pending updates & closes the index.
+   */
+  public void stop() throws Exception {
+    scheduler.shutdown();
+    scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    flush();
+    searcherManager.close();
+    writer.close();
+  }
+
+  public void update(Exchange exchange) throws IOException {
+    IndexDocument doc = exchange.getIn().getBody(IndexDocument.class);
+    try {
+      Document document = toDocument(doc.getFields());
+      File content = doc.getContent();
+      if (content != null) {
+        if (content.length() <= maxStoredContent) {
+          document.add(new TextField("content", readFully(doc.openContent()), Field.Store.YES));
+        } else {
+          document.add(new TextField("content", doc.openContent()));
+        }
+      }
+      writer.updateDocument(new Term("id", doc.get("id")), document);
+      uncommitted.incrementAndGet();
+      holdUntilCommitted(exchange);
+      changeLag.record(exchange); // searchable from the next refresh
+    } finally {
+      doc.release();
+    }
+  }
+
+  /**
+   * Rewrites each document with its new fields. Lucene cannot change a
+   * document in place, so content that was too large to be stored is
+   * extracted again from the item in the local sync folder.
+   */
+  @SuppressWarnings("unchecked")
+  public void partialUpdate(Exchange exchange) throws IOException {
+    List<IndexDocument> docs = exchange.getIn().getBody(List.class);
+    searcherManager.maybeRefreshBlocking();
+    IndexSearcher searcher = searcherManager.acquire();
+    try {
+      for (IndexDocument update : docs) {
+        uncommitted.incrementAndGet();
+        TopDocs hits = searcher.search(new TermQuery(new Term("id", update.get("id"))), 1);
+        if (hits.totalHits == 0) {
+          continue;
+        }
+        Document old = searcher.doc(hits.scoreDocs[0].doc);
+        IndexDocument doc = new IndexDocument();
+        for (IndexableField field : old.getFields()) {
+          if (!field.name().equals("content")) {
+            doc.put(field.name(), field.stringValue());
+          }
+        }
+        doc.getFields().putAll(update.getFields());
+
+        Document document = toDocument(doc.getFields());
+        String storedContent = old.get("content");
+        if (storedContent != null) {
+          document.add(new TextField("content", storedContent, Field.Store.YES));
+          writer.updateDocument(new Term("id", doc.get("id")), document);
+        } else if (doc.get("type") != null) { // only files have a content type
+          File spool = new CloudDownloadProcessor(project).parseToPlainText(new File(doc.get("path")));
+          doc.setContent(spool);
+          try {
+            document.add(new TextField("content", doc.openContent()));
+            writer.updateDocument(new Term("id", doc.get("id")), document);
+          } finally {
+            doc.release();
+          }
+        } else {
+          writer.updateDocument(new Term("id", doc.get("id")), document);
+        }
+      }
+    } finally {
+      searcherManager.release(searcher);
+    }
+    holdUntilCommitted(exchange);
+    changeLag.record(exchange);
+  }
+
+  public void delete(Exchange exchange) throws IOException {
+    String sourceID = exchange.getIn().getHeader("source_id", String.class);
+    String path = exchange.getIn().getHeader("index_path", String.class);
+    String pathPrefix = exchange.getIn().getHeader("index_path_prefix", String.class);
+
+    if (path != null) {
+      writer.deleteDocuments(new Term("path", path));
+    } else if (sourceID != null) {
+      writer.deleteDocuments(new Term("id", sourceID));
+    }
+    if (pathPrefix != null) {
+      writer.deleteDocuments(new PrefixQuery(new Term("path", pathPrefix)));
+    }
+    uncommitted.incrementAndGet();
+    holdUntilCommitted(exchange);
+    changeLag.record(exchange);
+  }
+
+  /**
+   * Commits all pending updates to disk, & releases the backfill events
+   * waiting for them.
+   */
+  public void flush() throws IOException {
+    List<BackfillCheckpoint.Completion> committing;
+    synchronized (completions) {
+      committing = new ArrayList<BackfillCheckpoint.Completion>(completions);
+      completions.clear();
+    }
+    boolean committed = false;
+    try {
+      if (writer.hasUncommittedChanges()) {
+        uncommitted.set(0);
+        writer.commit();
+        log.info("Committed Lucene index at " + indexDir.getAbsolutePath());
+      }
+      committed = true;
+    } finally {
+      for (BackfillCheckpoint.Completion completion : committing) {
+        completion.release(committed);
+      }
+    }
+  }
+
+  /**
+   * Holds off the completion of an exchange's backfill event until its
+   * update is committed.
+   *
+   * @param exchange
+   */
+  private void holdUntilCommitted(Exchange exchange) {
+    BackfillCheckpoint.Completion completion = BackfillCheckpoint.hold(exchange);
+    if (completion != null) {
+      synchronized (completions) {
+        completions.add(completion);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of updates & deletions made since the last commit.
+   */
+  public int getPending() {
+    return uncommitted.get();
+  }
+
+  /**
+   * Gets the manager of near-real-time searchers over this index, for serving
+   * search from the same node.
+   *
+   * @return searcher manager of this index
+   */
+  public SearcherManager getSearcherManager() {
+    return searcherManager;
+  }
+
+  /**
+   * Builds a Lucene document from metadata fields, indexing identifiers as
+   * single keywords & everything else as analyzed text.
+   *
+   * @param fields
+   * @return Lucene document with all fields stored
+   */
+  private static Document toDocument(Map<String, String> fields) {
+    Document document = new Document();
+    for (Map.Entry<String, String> field : fields.entrySet()) {
+      if (field.getValue() == null) {
+        continue;
+      }
+      if (isKeyword(field.getKey())) {
+        document.add(new StringField(field.getKey(), field.getValue(), Field.Store.YES));
+      } else {
+        document.add(new TextField(field.getKey(), field.getValue(), Field.Store.YES));
+      }
+    }
+    return document;
+  }
+
+  private static boolean isKeyword(String name) {
+    for (String keyword : KEYWORD_FIELDS) {
+      if (keyword.equals(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String readFully(Reader reader) throws IOException {
+    StringBuilder text = new StringBuilder();
+    char[] buffer = new char[8192];
+    int n;
+    try {
+      while ((n = reader.read(buffer)) != -1) {
+        text.append(buffer, 0, n);
+      }
+    } finally {
+      reader.close();
+    }
+    return text.toString();
+  }
+
+}
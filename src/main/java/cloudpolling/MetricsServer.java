@@ -0,0 +1,110 @@
+package cloudpolling;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.Service;
+import org.apache.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a polling project's pipeline metrics as plain text at
+ * http://localhost:&lt;port&gt;/metrics, one "name{labels} value" line per
+ * value, in the Prometheus text format. Histograms are reported as
+ * percentiles plus their count & max.
+ *
+ * @author tlarrue
+ *
+ */
+public class MetricsServer implements Service {
+
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+  private final PipelineMetrics metrics;
+  private final int port;
+  private HttpServer server;
+
+  private static Logger log = Logger.getLogger(MetricsServer.class);
+
+  public MetricsServer(PipelineMetrics metrics, int port) {
+    this.metrics = metrics;
+    this.port = port;
+  }
+
+  public void start() throws Exception {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+          out.write(body);
+        } finally {
+          out.close();
+        }
+      }
+    });
+    server.start();
+    log.info("Serving metrics at http://localhost:" + port + "/metrics");
+  }
+
+  public void stop() throws Exception {
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  /**
+   * Renders all metrics as plain text.
+   *
+   * @return metrics text
+   */
+  public String render() {
+    StringBuilder text = new StringBuilder();
+    for (PipelineMetrics.Metric metric : metrics.getMetrics()) {
+      String name = "cloudpolling_" + metric.name;
+      if (metric.value instanceof LatencyHistogram) {
+        LatencyHistogram histogram = (LatencyHistogram) metric.value;
+        for (double quantile : QUANTILES) {
+          line(text, name, metric.labels, "quantile", String.valueOf(quantile),
+              histogram.getValueAtPercentile(quantile * 100));
+        }
+        line(text, name + "_count", metric.labels, null, null, histogram.getCount());
+        line(text, name + "_max", metric.labels, null, null, histogram.getMax());
+      } else if (metric.value instanceof AtomicLong) {
+        line(text, name, metric.labels, null, null, ((AtomicLong) metric.value).get());
+      } else {
+        line(text, name, metric.labels, null, null, ((PipelineMetrics.Gauge) metric.value).getValue());
+      }
+    }
+    return text.toString();
+  }
+
+  private void line(StringBuilder text, String name, String[] labels, String extraLabel, String extraValue,
+      long value) {
+    text.append(name).append("{project=\"").append(escape(metrics.getProjectName())).append('"');
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      text.append(',').append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+    }
+    if (extraLabel != null) {
+      text.append(',').append(extraLabel).append("=\"").append(extraValue).append('"');
+    }
+    text.append("} ").append(value).append('\n');
+  }
+
+  private static String escape(String value) {
+    if (value == null) {
+      return "";
+    }
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+}
@@ -0,0 +1,59 @@
+package cloudpolling;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.log4j.Logger;
+
+/**
+ * Detects renamed & moved items by comparing a download or make_directory
+ * event against the account's item index. An item already synced under a
+ * different path is redirected to the "move" action, with header
+ * "previous_path" set to its old path. Header "content_changed" is set if a
+ * moved file's content hash no longer matches, so that it is downloaded again
+ * after being moved.
+ *
+ * @author tlarrue
+ *
+ */
+public class MoveDetector implements Processor {
+
+  PollingProject project;
+
+  private static Logger log = Logger.getLogger(MoveDetector.class);
+
+  public MoveDetector(PollingProject project) {
+    this.project = project;
+  }
+
+  public void process(Exchange exchange) throws Exception {
+
+    String action = exchange.getIn().getHeader("action", String.class);
+    if (!"download".equals(action) && !"make_directory".equals(action)) {
+      return;
+    }
+
+    String accountID = exchange.getIn().getHeader("account_id", String.class);
+    String sourceID = exchange.getIn().getHeader("source_id", String.class);
+    String sourcePath = exchange.getIn().getHeader("source_path", String.class);
+
+    ItemIndex.Item item = this.getProject().getItemIndex(accountID).get(sourceID);
+    if (item == null || sourcePath == null || item.path.equals(sourcePath)) {
+      return;
+    }
+
+    log.info("Item " + sourceID + " moved from " + item.path + " to " + sourcePath);
+    exchange.getIn().setHeader("action", "move");
+    exchange.getIn().setHeader("previous_path", item.path);
+
+    if (!item.isFolder()) {
+      String hash = exchange.getIn().getHeader("content_hash", String.class);
+      boolean changed = hash == null || item.hash == null || !hash.equals(item.hash);
+      exchange.getIn().setHeader("content_changed", changed);
+    }
+  }
+
+  public PollingProject getProject() {
+    return this.project;
+  }
+
+}
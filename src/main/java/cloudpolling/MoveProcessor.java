@@ -0,0 +1,192 @@
+package cloudpolling;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.log4j.Logger;
+
+/**
+ * Moves a renamed or moved item, and everything below it if it is a folder,
+ * from header "previous_path" to header "source_path" on the local file
+ * system & in the account's item index. Then constructs the partial index
+ * updates of name, path & parent for the item and its descendants, so nothing
+ * has to be downloaded or extracted again.
+ *
+ * If the item cannot be moved locally, neither the item index nor the index
+ * is touched. Header "move_failed" is set instead, and the body holds the
+ * events syncing the item again from scratch: a delete of the item at its
+ * previous path, then a make_directory or download of the item and of every
+ * indexed descendant at its new path, parents first.
+ *
+ * @author tlarrue
+ *
+ */
+public class MoveProcessor implements Processor {
+
+  PollingProject project;
+
+  private static Logger log = Logger.getLogger(MoveProcessor.class);
+
+  public MoveProcessor(PollingProject project) {
+    this.project = project;
+  }
+
+  public void process(Exchange exchange) throws Exception {
+
+    String accountID = exchange.getIn().getHeader("account_id", String.class);
+    String sourceID = exchange.getIn().getHeader("source_id", String.class);
+    String sourceName = exchange.getIn().getHeader("source_name", String.class);
+    String sourcePath = exchange.getIn().getHeader("source_path", String.class);
+    String parentID = exchange.getIn().getHeader("parent_id", String.class);
+    String previousPath = exchange.getIn().getHeader("previous_path", String.class);
+    String accountDir = Paths.get(this.getProject().getSyncFolder(), "acct" + accountID).toString();
+
+    // Move item on local file system
+    Path from = Paths.get(accountDir, previousPath);
+    Path to = Paths.get(accountDir, sourcePath);
+    ItemIndex items = this.getProject().getItemIndex(accountID);
+    try {
+      Files.createDirectories(to.getParent());
+      Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+      log.info("Moved " + from + " to " + to);
+    } catch (IOException e) {
+      log.warn("Could not move " + from + " to " + to + ". It will be synced again from the cloud.", e);
+      exchange.getIn().setHeader("move_failed", true);
+      exchange.getIn().setBody(resyncEvents(exchange, items, previousPath, sourcePath));
+      return;
+    }
+
+    // Move item & its descendants in item index
+    ItemIndex.Item item = items.get(sourceID);
+    String hash = item == null ? null : item.hash;
+    String type = item == null ? exchange.getIn().getHeader("source_type", String.class) : item.type;
+    List<ItemIndex.Item> descendants = items.getDescendants(previousPath);
+
+    items.put(new ItemIndex.Item(sourceID, sourcePath, parentID, type, hash));
+
+    // create partial updates for SolrPartialUpdater exchange
+    List<IndexDocument> updates = new ArrayList<IndexDocument>();
+    IndexDocument update = new IndexDocument();
+    update.put("id", sourceID);
+    update.put("name", sourceName);
+    update.put("path", to.toString());
+    update.put("parent_id", parentID);
+    updates.add(update);
+
+    for (ItemIndex.Item descendant : descendants) {
+      String descendantPath = sourcePath + descendant.path.substring(previousPath.length());
+      items.put(new ItemIndex.Item(descendant.id, descendantPath, descendant.parentID, descendant.type,
+          descendant.hash));
+
+      update = new IndexDocument();
+      update.put("id", descendant.id);
+      update.put("path", Paths.get(accountDir, descendantPath).toString());
+      updates.add(update);
+    }
+
+    log.info("Creating partial index updates for " + updates.size() + " moved items under " + to
+        + File.separator);
+    exchange.getIn().setBody(updates);
+  }
+
+  /**
+   * Creates the events syncing an item that could not be moved again: the
+   * delete of its previous path, then the item & its indexed descendants at
+   * the new path.
+   *
+   * @param exchange
+   *          exchange of the move
+   * @param items
+   *          item index of the item's account
+   * @param previousPath
+   * @param sourcePath
+   * @return headers of each event, in the order to send them
+   */
+  private List<Map<String, Object>> resyncEvents(Exchange exchange, ItemIndex items, String previousPath,
+      String sourcePath) {
+    Map<String, Object> move = exchange.getIn().getHeaders();
+    String sourceID = (String) move.get("source_id");
+    ItemIndex.Item item = items.get(sourceID);
+    String type = item == null ? (String) move.get("source_type") : item.type;
+    boolean folder = "folder".equals(type);
+
+    List<Map<String, Object>> events = new ArrayList<Map<String, Object>>();
+
+    Map<String, Object> delete = event(move, "delete", sourceID, previousPath, type);
+    delete.put("details", "remove_childen");
+    events.add(delete);
+
+    Map<String, Object> itself = new HashMap<String, Object>(move);
+    itself.remove("previous_path");
+    itself.remove("content_changed");
+    itself.remove("move_failed");
+    itself.put("action", folder ? "make_directory" : "download");
+    events.add(itself);
+
+    if (folder) {
+      // in path order, so parents come first
+      for (ItemIndex.Item descendant : items.getDescendants(previousPath)) {
+        String descendantPath = sourcePath + descendant.path.substring(previousPath.length());
+        Map<String, Object> event = event(move, descendant.isFolder() ? "make_directory" : "download",
+            descendant.id, descendantPath, descendant.type);
+        event.put("source_name", descendantPath.substring(descendantPath.lastIndexOf('/') + 1));
+        event.put("parent_id", descendant.parentID);
+        if (descendant.hash != null) {
+          event.put("content_hash", descendant.hash);
+        }
+        events.add(event);
+      }
+    }
+    log.info("Syncing " + (events.size() - 1) + " items under " + sourcePath + " again after a failed move.");
+    return events;
+  }
+
+  private static Map<String, Object> event(Map<String, Object> move, String action, String sourceID,
+      String sourcePath, String type) {
+    Map<String, Object> event = new HashMap<String, Object>();
+    for (String header : new String[] { "account_id", "account_type", "traffic", "change_time" }) {
+      if (move.get(header) != null) {
+        event.put(header, move.get(header));
+      }
+    }
+    event.put("action", action);
+    event.put("source_id", sourceID);
+    event.put("source_path", sourcePath);
+    if (type != null) {
+      event.put("source_type", type);
+    }
+    return event;
+  }
+
+  /**
+   * Creates a processor turning one of the events of a failed move, split from
+   * its body, into an event of its own.
+   *
+   * @return processor
+   */
+  public static Processor resyncEvent() {
+    return new Processor() {
+      @SuppressWarnings("unchecked")
+      public void process(Exchange exchange) throws Exception {
+        Map<String, Object> headers = exchange.getIn().getBody(Map.class);
+        exchange.getIn().setHeaders(new HashMap<String, Object>(headers));
+        exchange.getIn().setBody("");
+      }
+    };
+  }
+
+  public PollingProject getProject() {
+    return this.project;
+  }
+
+}
@@ -0,0 +1,179 @@
+package cloudpolling;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.Service;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.support.SynchronizationAdapter;
+import org.apache.log4j.Logger;
+
+/**
+ * Bounds the number of events held in memory by the pipeline, including those
+ * waiting to be retried. Events arriving while the limit is reached are
+ * spilled to an on-disk event store & fed back into the pipeline once enough
+ * in-flight events have completed.
+ *
+ * Backfill events, those of a full sync of an account, may only take up part
+ * of the limit, so that a large backfill cannot crowd the incremental changes
+ * of other accounts out to disk. They are spilled to a separate store, which
+ * is only drained while there is room for them after the incremental events.
+ *
+ * @author tlarrue
+ *
+ */
+public class OverflowBuffer implements Processor, Service {
+
+  private final EventStore store;
+  private final EventStore backfillStore;
+  private final int maxInFlight;
+  private final int maxBackfillInFlight;
+  private final ProducerTemplate producer;
+  private final String endpoint;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger backfillInFlight = new AtomicInteger();
+  private ScheduledExecutorService drainer;
+
+  private static Logger log = Logger.getLogger(OverflowBuffer.class);
+
+  /**
+   * Constructs an overflow buffer in front of an endpoint.
+   *
+   * @param store
+   *          where spilled events are kept
+   * @param maxInFlight
+   *          number of events held in memory before spilling
+   * @param producer
+   * @param endpoint
+   *          where spilled events are sent back to
+   */
+  public OverflowBuffer(EventStore store, int maxInFlight, ProducerTemplate producer, String endpoint) {
+    this(store, maxInFlight, maxInFlight, producer, endpoint);
+  }
+
+  /**
+   * Constructs an overflow buffer in front of an endpoint, holding fewer
+   * backfill events than others in memory.
+   *
+   * @param store
+   *          where spilled events are kept
+   * @param maxInFlight
+   *          number of events held in memory before spilling
+   * @param maxBackfillInFlight
+   *          number of backfill events held in memory before spilling them
+   * @param producer
+   * @param endpoint
+   *          where spilled events are sent back to
+   */
+  public OverflowBuffer(EventStore store, int maxInFlight, int maxBackfillInFlight, ProducerTemplate producer,
+      String endpoint) {
+    this.store = store;
+    this.backfillStore = new EventStore(new File(store.getDir(), "backfill"));
+    this.maxInFlight = maxInFlight;
+    this.maxBackfillInFlight = Math.min(maxInFlight, maxBackfillInFlight);
+    this.producer = producer;
+    this.endpoint = endpoint;
+  }
+
+  /**
+   * Lets an event continue if there is room in memory for it, otherwise spills
+   * it to disk and stops it.
+   */
+  public void process(Exchange exchange) throws Exception {
+    final boolean backfill = "backfill".equals(exchange.getIn().getHeader("traffic"));
+    int events = inFlight.incrementAndGet();
+    int backfills = backfill ? backfillInFlight.incrementAndGet() : 0;
+    if (events > maxInFlight || backfills > maxBackfillInFlight) {
+      inFlight.decrementAndGet();
+      EventStore spill = store;
+      if (backfill) {
+        backfillInFlight.decrementAndGet();
+        spill = backfillStore;
+      }
+      spill.write(exchange, "overflow");
+      log.warn((backfill ? backfills + " backfill" : events) + " events in flight. Spilled event for item "
+          + exchange.getIn().getHeader("source_id") + " to " + spill.getDir().getAbsolutePath());
+      exchange.setProperty(Exchange.ROUTE_STOP, Boolean.TRUE);
+      return;
+    }
+
+    exchange.addOnCompletion(new SynchronizationAdapter() {
+      @Override
+      public void onDone(Exchange exchange) {
+        inFlight.decrementAndGet();
+        if (backfill) {
+          backfillInFlight.decrementAndGet();
+        }
+      }
+    });
+  }
+
+  /**
+   * Sends spilled events back to the pipeline, oldest first, while in-flight
+   * events are below half the limit, and then spilled backfill events while
+   * in-flight backfill events are below half of theirs too.
+   */
+  public void drain() {
+    drain(store, false);
+    drain(backfillStore, true);
+  }
+
+  private void drain(EventStore spilled, boolean backfill) {
+    for (File file : spilled.list()) {
+      if (inFlight.get() >= maxInFlight / 2 || backfill && backfillInFlight.get() >= maxBackfillInFlight / 2) {
+        return;
+      }
+      try {
+        Exchange exchange = new DefaultExchange(producer.getCamelContext());
+        for (Map.Entry<String, String> header : spilled.readHeaders(file).entrySet()) {
+          exchange.getIn().setHeader(header.getKey(), header.getValue());
+        }
+        exchange.getIn().setBody(spilled.readBody(file));
+        spilled.remove(file);
+        producer.asyncSend(endpoint, exchange);
+      } catch (IOException e) {
+        log.error("Could not read spilled event " + file.getAbsolutePath(), e);
+      }
+    }
+  }
+
+  /**
+   * Gets the number of events currently in flight.
+   *
+   * @return number of events in flight
+   */
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  /**
+   * Gets the number of backfill events currently in flight.
+   *
+   * @return number of backfill events in flight
+   */
+  public int getBackfillInFlight() {
+    return backfillInFlight.get();
+  }
+
+  public void start() throws Exception {
+    drainer = Executors.newSingleThreadScheduledExecutor();
+    drainer.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        drain();
+      }
+    }, 1, 1, TimeUnit.SECONDS);
+  }
+
+  public void stop() throws Exception {
+    drainer.shutdown();
+  }
+
+}
@@ -0,0 +1,232 @@
+package cloudpolling;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.log4j.Logger;
+
+/**
+ * Holds the latency histograms, counters & gauges of a polling project's
+ * pipeline. Each metric is identified by a name plus label pairs such as
+ * account & provider, and is registered as an MBean under the "cloudpolling"
+ * JMX domain when it is first used.
+ *
+ * @author tlarrue
+ *
+ */
+public class PipelineMetrics {
+
+  /**
+   * A value read when metrics are reported, e.g. a queue depth.
+   */
+  public interface Gauge {
+    long getValue();
+  }
+
+  /**
+   * A named & labelled histogram, counter or gauge.
+   */
+  public static class Metric {
+    public final String name;
+    public final String[] labels;
+    public final Object value;
+
+    Metric(String name, String[] labels, Object value) {
+      this.name = name;
+      this.labels = labels;
+      this.value = value;
+    }
+  }
+
+  private final String projectName;
+  private final ConcurrentSkipListMap<String, Metric> metrics = new ConcurrentSkipListMap<String, Metric>();
+
+  private static Logger log = Logger.getLogger(PipelineMetrics.class);
+
+  public PipelineMetrics(String projectName) {
+    this.projectName = projectName;
+  }
+
+  /**
+   * Gets a latency histogram, creating it if needed.
+   *
+   * @param name
+   * @param labels
+   *          alternating label names & values
+   * @return histogram
+   */
+  public LatencyHistogram histogram(String name, String... labels) {
+    Metric metric = metrics.get(key(name, labels));
+    if (metric == null) {
+      metric = register(name, labels, new LatencyHistogram());
+    }
+    return (LatencyHistogram) metric.value;
+  }
+
+  /**
+   * Gets a counter, creating it if needed.
+   *
+   * @param name
+   * @param labels
+   *          alternating label names & values
+   * @return counter
+   */
+  public AtomicLong counter(String name, String... labels) {
+    Metric metric = metrics.get(key(name, labels));
+    if (metric == null) {
+      metric = register(name, labels, new AtomicLong());
+    }
+    return (AtomicLong) metric.value;
+  }
+
+  /**
+   * Adds a gauge, replacing any gauge of the same name & labels.
+   *
+   * @param name
+   * @param gauge
+   * @param labels
+   *          alternating label names & values
+   */
+  public void gauge(String name, Gauge gauge, String... labels) {
+    Metric old = metrics.remove(key(name, labels));
+    if (old != null) {
+      unregister(old);
+    }
+    register(name, labels, gauge);
+  }
+
+  /**
+   * Gets all metrics, sorted by name & labels.
+   *
+   * @return metrics of this project
+   */
+  public Collection<Metric> getMetrics() {
+    return metrics.values();
+  }
+
+  public String getProjectName() {
+    return projectName;
+  }
+
+  /**
+   * Creates a processor that starts timing an exchange through a pipeline
+   * stage.
+   *
+   * @param stage
+   * @return processor
+   */
+  public Processor startTimer(final String stage) {
+    return new Processor() {
+      public void process(Exchange exchange) throws Exception {
+        exchange.setProperty("metrics.start." + stage, System.nanoTime());
+      }
+    };
+  }
+
+  /**
+   * Creates a processor that records the time an exchange took through a
+   * pipeline stage since its timer was started.
+   *
+   * @param stage
+   * @return processor
+   */
+  public Processor stopTimer(final String stage) {
+    final LatencyHistogram histogram = histogram("stage_latency_micros", "stage", stage);
+    return new Processor() {
+      public void process(Exchange exchange) throws Exception {
+        Long start = exchange.getProperty("metrics.start." + stage, Long.class);
+        if (start != null) {
+          histogram.record((System.nanoTime() - start) / 1000);
+        }
+      }
+    };
+  }
+
+  /**
+   * Creates a processor that counts each exchange as an event of its account
+   * & provider.
+   *
+   * @return processor
+   */
+  public Processor eventCounter() {
+    return new Processor() {
+      public void process(Exchange exchange) throws Exception {
+        counter("events_total",
+            "account", exchange.getIn().getHeader("account_id", String.class),
+            "provider", exchange.getIn().getHeader("account_type", String.class),
+            "action", exchange.getIn().getHeader("action", String.class)).incrementAndGet();
+      }
+    };
+  }
+
+  /**
+   * Adds a metric unless another thread added it first, and registers it with
+   * the platform MBean server.
+   *
+   * @param name
+   * @param labels
+   * @param value
+   * @return metric of that name & labels
+   */
+  private Metric register(String name, String[] labels, Object value) {
+    Metric metric = new Metric(name, labels, value);
+    Metric existing = metrics.putIfAbsent(key(name, labels), metric);
+    if (existing != null) {
+      return existing;
+    }
+
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (value instanceof LatencyHistogram) {
+        server.registerMBean(value, objectName(metric));
+      } else if (value instanceof Gauge) {
+        server.registerMBean(new StandardMBean((Gauge) value, Gauge.class), objectName(metric));
+      } else {
+        final AtomicLong counter = (AtomicLong) value;
+        server.registerMBean(new StandardMBean(new Gauge() {
+          public long getValue() {
+            return counter.get();
+          }
+        }, Gauge.class), objectName(metric));
+      }
+    } catch (Exception e) {
+      log.debug("Could not register MBean for metric " + name, e);
+    }
+    return metric;
+  }
+
+  private void unregister(Metric metric) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(metric));
+    } catch (Exception e) {
+      log.debug("Could not unregister MBean for metric " + metric.name, e);
+    }
+  }
+
+  private ObjectName objectName(Metric metric) throws Exception {
+    StringBuilder name = new StringBuilder("cloudpolling:type=").append(metric.name);
+    name.append(",project=").append(ObjectName.quote(projectName));
+    for (int i = 0; i + 1 < metric.labels.length; i += 2) {
+      name.append(',').append(metric.labels[i]).append('=')
+          .append(ObjectName.quote(String.valueOf(metric.labels[i + 1])));
+    }
+    return new ObjectName(name.toString());
+  }
+
+  private static String key(String name, String[] labels) {
+    StringBuilder key = new StringBuilder(name);
+    for (String label : labels) {
+      key.append('\u0000').append(label);
+    }
+    return key.toString();
+  }
+
+}
@@ -9,6 +9,7 @@ import java.io.InputStream;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Properties;
 
 /**
@@ -24,6 +25,13 @@ public class PollingProject {
   public File configFile;
   public File projectDir;
   public File accountsDir;
+  private String endpointPrefix = "";
+  private HashMap<String, ItemIndex> itemIndexes = new HashMap<String, ItemIndex>();
+  private HashMap<Integer, RateLimiter> rateLimiters = new HashMap<Integer, RateLimiter>();
+  private HashMap<String, CircuitBreaker> circuitBreakers = new HashMap<String, CircuitBreaker>();
+  private HashMap<String, BackfillCheckpoint> checkpoints = new HashMap<String, BackfillCheckpoint>();
+  private PipelineMetrics metrics;
+  private ChangeLag changeLag;
 
   /**
    * Constructs a PollingProject from a unique name and directory where all
@@ -45,8 +53,10 @@ public class PollingProject {
    * Creates a configuration file using polling project template if it does not
    * already exist. If it does exist, validates the fields and report if further
    * action is needed to configure the account.
+   *
+   * @return true if the configuration file already existed & is valid
    */
-  public void setConfiguration() {
+  public boolean setConfiguration() {
 
     // Create project & accounts configuration directory if it doesn't exist
     if (!this.getAccountsDir().exists()) {
@@ -64,6 +74,7 @@ public class PollingProject {
     if (!fileCreated) {
       if (configsValid()) {
         System.out.println("Configuration file for project '" + this.getName() + "' has been validated.");
+        return true;
 
       } else {
         System.out.println("Configuration file for project '" + this.getName()
@@ -74,6 +85,7 @@ public class PollingProject {
       System.out.println("New file has been created: " + this.getConfigFile().getAbsolutePath());
       copyTemplateToConfigFile();
     }
+    return false;
 
   }
 
@@ -236,6 +248,42 @@ public class PollingProject {
     return config.getProperty(key);
   }
 
+  /**
+   * Reads the given field value from this project's configuration file,
+   * falling back to a default value if the field is missing or blank.
+   *
+   * @param key
+   * @param defaultValue
+   * @return given field value from project's configuration file
+   */
+  public String readConfiguration(String key, String defaultValue) {
+    String value = readConfiguration(key);
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    return value.trim();
+  }
+
+  /**
+   * Returns debounceMillis field from this project's configuration file, the
+   * window in which repeated events for the same item are merged.
+   *
+   * @return debounce window in milliseconds (0 disables coalescing)
+   */
+  public long getDebounceMillis() {
+    return Long.parseLong(readConfiguration("debounceMillis", "2000"));
+  }
+
+  /**
+   * Returns solrURL field from this project's configuration file
+   *
+   * @return base URL of the solr core that indexes this project, or null if
+   *         this project is not indexed
+   */
+  public String getSolrURL() {
+    return readConfiguration("solrURL", null);
+  }
+
   /**
    * Returns syncFolder field from this project's configuration file
    *
@@ -255,6 +303,164 @@ public class PollingProject {
     return projectDir;
   }
 
+  /**
+   * Gets the folder where this polling project spools extracted text awaiting
+   * indexing, creating it if needed.
+   *
+   * @return spool folder of this polling project
+   */
+  public File getSpoolDir() {
+    File spoolDir = new File(getProjectDir(), "spool");
+    if (!spoolDir.exists()) {
+      spoolDir.mkdirs();
+    }
+    return spoolDir;
+  }
+
+  /**
+   * Gets the index of items synced from one of this project's cloud accounts,
+   * opening it on first use.
+   *
+   * @param accountID
+   * @return item index of the given account
+   * @throws IOException
+   */
+  public synchronized ItemIndex getItemIndex(String accountID) throws IOException {
+    ItemIndex index = itemIndexes.get(accountID);
+    if (index == null) {
+      File journal = new File(Paths.get(getProjectDir().getAbsolutePath(), "items", "acct" + accountID + ".journal")
+          .toString());
+      index = new ItemIndex(journal);
+      itemIndexes.put(accountID, index);
+    }
+    return index;
+  }
+
+  /**
+   * Closes all item indexes opened by this project.
+   */
+  public synchronized void closeItemIndexes() {
+    for (ItemIndex index : itemIndexes.values()) {
+      index.close();
+    }
+    itemIndexes.clear();
+  }
+
+  /**
+   * Gets the limiter of API requests to one of this project's cloud accounts,
+   * shared by its connector & download processors.
+   *
+   * @param account
+   * @return rate limiter of the given account
+   */
+  public synchronized RateLimiter getRateLimiter(CloudAccount account) {
+    RateLimiter limiter = rateLimiters.get(account.getID());
+    if (limiter == null) {
+      limiter = RateLimiter.forAccount(account);
+      rateLimiters.put(account.getID(), limiter);
+    }
+    return limiter;
+  }
+
+  /**
+   * Gets the circuit breaker quarantining one of this project's cloud accounts
+   * while it keeps failing.
+   *
+   * @param accountID
+   * @return circuit breaker of the given account
+   */
+  public synchronized CircuitBreaker getCircuitBreaker(String accountID) {
+    CircuitBreaker breaker = circuitBreakers.get(accountID);
+    if (breaker == null) {
+      breaker = CircuitBreaker.forAccount(this, accountID);
+      circuitBreakers.put(accountID, breaker);
+    }
+    return breaker;
+  }
+
+  /**
+   * Gets the checkpoint of the backfill of one of this project's cloud
+   * accounts, shared by its connector & the sync routes. A new checkpoint is
+   * made for each backfill.
+   *
+   * @param account
+   * @return backfill checkpoint of the given account
+   */
+  public synchronized BackfillCheckpoint getBackfillCheckpoint(CloudAccount account) {
+    String accountID = Integer.toString(account.getID());
+    BackfillCheckpoint checkpoint = checkpoints.get(accountID);
+    if (checkpoint == null || checkpoint.isComplete()) {
+      checkpoint = new BackfillCheckpoint(account);
+      checkpoints.put(accountID, checkpoint);
+    }
+    return checkpoint;
+  }
+
+  /**
+   * Finds the checkpoint of the backfill of one of this project's cloud
+   * accounts, if it has one.
+   *
+   * @param accountID
+   * @return backfill checkpoint of the given account, or null
+   */
+  public synchronized BackfillCheckpoint findBackfillCheckpoint(String accountID) {
+    return checkpoints.get(accountID);
+  }
+
+  /**
+   * Gets the pipeline metrics of this project.
+   *
+   * @return metrics of this polling project
+   */
+  public synchronized PipelineMetrics getMetrics() {
+    if (metrics == null) {
+      metrics = new PipelineMetrics(getName());
+    }
+    return metrics;
+  }
+
+  /**
+   * Gets the tracker of how long changes to this project's cloud accounts take
+   * to reach its index.
+   *
+   * @return change lag of this polling project
+   */
+  public synchronized ChangeLag getChangeLag() {
+    if (changeLag == null) {
+      changeLag = new ChangeLag(getMetrics());
+    }
+    return changeLag;
+  }
+
+  /**
+   * Gets the store of events that could not be processed by this project.
+   *
+   * @return dead letter store of this polling project
+   */
+  public EventStore getDeadLetterStore() {
+    return new EventStore(new File(getProjectDir(), "deadletter"));
+  }
+
+  /**
+   * Gets the store of events spilled to disk while too many events were in
+   * flight.
+   *
+   * @return overflow store of this polling project
+   */
+  public EventStore getOverflowStore() {
+    return new EventStore(new File(getProjectDir(), "overflow"));
+  }
+
+  /**
+   * Gets the store of events held while they are coalesced with later events
+   * of their items.
+   *
+   * @return coalescing store of this polling project
+   */
+  public EventStore getCoalescingStore() {
+    return new EventStore(new File(getProjectDir(), "coalescing"));
+  }
+
   /**
    * Gets the configuration directory of the cloud accounts associated with this
    * polling project.
@@ -275,6 +481,20 @@ public class PollingProject {
     return name;
   }
 
+  /**
+   * Gets the prefix of this polling project's camel endpoints & route ids,
+   * which keeps them apart from other projects' in a shared camel context.
+   *
+   * @return endpoint prefix, empty if the project has its own context
+   */
+  public String getEndpointPrefix() {
+    return endpointPrefix;
+  }
+
+  public void setEndpointPrefix(String endpointPrefix) {
+    this.endpointPrefix = endpointPrefix;
+  }
+
   /**
    * Gets the configuration file for this polling project.
    *
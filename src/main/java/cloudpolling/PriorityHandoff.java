@@ -0,0 +1,98 @@
+package cloudpolling;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.camel.AsyncCallback;
+import org.apache.camel.AsyncProcessor;
+import org.apache.camel.Exchange;
+import org.apache.camel.util.AsyncProcessorHelper;
+
+/**
+ * Hands file downloads over to a lane of a FairExecutor, which carries on
+ * with the rest of their route, smaller files first.
+ *
+ * A file no larger than smallFileBytes is queued in the order it arrived. A
+ * larger file is deferred by agingMillis for each time it doubles that size,
+ * so that the small files arriving meanwhile overtake it, but it is never
+ * overtaken by files that arrive more than its deferral later: e.g. with the
+ * defaults of 1MB & 2s, a 1GB file gives way to smaller files arriving in the
+ * next 20s. Files of unknown size (no "size" header) are not deferred.
+ *
+ * Downloads are tracked while queued & running (see QueuedDownloads), so that
+ * one whose item was deleted or moved meanwhile is dropped or sent to the
+ * item's new path.
+ *
+ * @author tlarrue
+ *
+ */
+public class PriorityHandoff implements AsyncProcessor {
+
+  private final FairExecutor.Lane lane;
+  private final QueuedDownloads queued;
+  private final long smallFileBytes;
+  private final long agingMillis;
+
+  /**
+   * Constructs a handoff to a lane.
+   *
+   * @param lane
+   * @param queued
+   *          queued downloads of the project
+   * @param smallFileBytes
+   *          size up to which files are not deferred
+   * @param agingMillis
+   *          deferral of a file for each doubling of its size
+   */
+  public PriorityHandoff(FairExecutor.Lane lane, QueuedDownloads queued, long smallFileBytes, long agingMillis) {
+    this.lane = lane;
+    this.queued = queued;
+    this.smallFileBytes = Math.max(1, smallFileBytes);
+    this.agingMillis = agingMillis;
+  }
+
+  public void process(Exchange exchange) throws Exception {
+    AsyncProcessorHelper.process(this, exchange);
+  }
+
+  public boolean process(final Exchange exchange, final AsyncCallback callback) {
+    final QueuedDownloads.Download download = queued.queue(exchange);
+    try {
+      lane.execute(new Runnable() {
+        public void run() {
+          if (!queued.start(download)) {
+            exchange.setProperty(Exchange.ROUTE_STOP, Boolean.TRUE);
+            callback.done(false);
+            return;
+          }
+          try {
+            callback.done(false); // continues the route on this thread
+          } finally {
+            queued.finish(download);
+          }
+        }
+      }, deferMillis(exchange.getIn().getHeader("size", Long.class)));
+    } catch (RejectedExecutionException e) {
+      queued.finish(download);
+      exchange.setException(e);
+      callback.done(true);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Gets the time a file gives way to files arriving after it.
+   *
+   * @param size
+   *          size of the file in bytes, or null if unknown
+   * @return deferral in milliseconds
+   */
+  public long deferMillis(Long size) {
+    if (size == null || size <= smallFileBytes) {
+      return 0;
+    }
+    int doublings = 64 - Long.numberOfLeadingZeros((size - 1) / smallFileBytes); // ceil(log2(size / small))
+    return doublings * agingMillis;
+  }
+
+}
@@ -0,0 +1,219 @@
+package cloudpolling;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the events of an item in order across the download lanes. Deletes &
+ * moves are applied as they arrive, ahead of the downloads queued or deferred
+ * on the lanes (see PriorityHandoff), so a download queued before a delete or
+ * move of its item, or of a folder it is in, would otherwise run after it &
+ * bring the file & its index document back at their old path.
+ *
+ * Instead, a delete drops the queued downloads of its item & of the items
+ * under it, and a move sends them to the item's new path. Either waits for
+ * those of the downloads that are already running. A download queued after
+ * another of the same item drops it, since it fetches the item's latest
+ * content anyway.
+ *
+ * @author tlarrue
+ *
+ */
+public class QueuedDownloads {
+
+  private final PollingProject project;
+  private final List<Download> downloads = new ArrayList<Download>();
+
+  private static Logger log = Logger.getLogger(QueuedDownloads.class);
+
+  /**
+   * Constructs the queued downloads of a project's accounts.
+   *
+   * @param project
+   */
+  public QueuedDownloads(PollingProject project) {
+    this.project = project;
+  }
+
+  /**
+   * Adds the download of an exchange, about to be queued on a lane, dropping
+   * the queued downloads of the same item.
+   *
+   * @param exchange
+   * @return queued download, to start & finish on the lane
+   */
+  public synchronized Download queue(Exchange exchange) {
+    Download download = new Download(exchange);
+    for (Download other : downloads) {
+      if (!other.running && other.accountID.equals(download.accountID) && other.sourceID != null
+          && other.sourceID.equals(download.sourceID)) {
+        other.dropped = true;
+      }
+    }
+    downloads.add(download);
+    return download;
+  }
+
+  /**
+   * Starts a queued download, unless it was dropped meanwhile.
+   *
+   * @param download
+   * @return true if the download is to run, false if it was dropped
+   */
+  public synchronized boolean start(Download download) {
+    if (download.dropped) {
+      downloads.remove(download);
+      log.info("Dropping superseded download of item " + download.sourceID + " of account "
+          + download.accountID);
+      return false;
+    }
+    download.running = true;
+    return true;
+  }
+
+  /**
+   * Removes a download that ran, or could not be queued.
+   *
+   * @param download
+   */
+  public synchronized void finish(Download download) {
+    downloads.remove(download);
+    notifyAll();
+  }
+
+  /**
+   * Creates a processor that, in front of a delete or move, drops or moves the
+   * queued downloads of its item & of the items under it, and waits for the
+   * running ones. The item's paths are those of header "source_path", header
+   * "previous_path" of a move, & the account's item index.
+   *
+   * @return processor
+   */
+  public Processor superseding() {
+    return new Processor() {
+      public void process(Exchange exchange) throws Exception {
+        String accountID = exchange.getIn().getHeader("account_id", String.class);
+        String sourceID = exchange.getIn().getHeader("source_id", String.class);
+        String sourcePath = exchange.getIn().getHeader("source_path", String.class);
+        String previousPath = exchange.getIn().getHeader("previous_path", String.class);
+        boolean move = "move".equals(exchange.getIn().getHeader("action", String.class));
+
+        List<String> paths = new ArrayList<String>();
+        ItemIndex.Item item = sourceID == null ? null : project.getItemIndex(accountID).get(sourceID);
+        if (item != null) {
+          paths.add(item.path);
+        }
+        if (move) {
+          if (previousPath != null) {
+            paths.add(previousPath);
+          }
+        } else if (sourcePath != null) {
+          paths.add(sourcePath);
+        }
+        supersede(accountID, sourceID, paths, move ? sourcePath : null);
+      }
+    };
+  }
+
+  /**
+   * Drops, or moves to a new path, the queued downloads of an item & of the
+   * items under any of its paths, and waits for the running ones.
+   *
+   * @param accountID
+   * @param sourceID
+   * @param paths
+   *          paths of the item
+   * @param newPath
+   *          path the item moved to, or null if it was deleted
+   * @throws InterruptedException
+   */
+  synchronized void supersede(String accountID, String sourceID, List<String> paths, String newPath)
+      throws InterruptedException {
+    while (true) {
+      boolean running = false;
+      for (Iterator<Download> queued = downloads.iterator(); queued.hasNext();) {
+        Download download = queued.next();
+        if (!download.accountID.equals(accountID)) {
+          continue;
+        }
+        String path = download.getPath();
+        boolean itself = sourceID != null && sourceID.equals(download.sourceID);
+        String under = itself ? null : under(path, paths);
+        if (!itself && under == null) {
+          continue;
+        }
+        if (download.running) {
+          running = true;
+        } else if (newPath == null) {
+          download.dropped = true;
+        } else if (!download.dropped && path != null) {
+          String moved = itself ? newPath : newPath + path.substring(under.length());
+          download.exchange.getIn().setHeader("source_path", moved);
+        }
+      }
+      if (!running) {
+        return;
+      }
+      wait();
+    }
+  }
+
+  /**
+   * Finds the path, among a folder's paths, that a path is under.
+   *
+   * @param path
+   * @param folders
+   * @return folder path, or null if the path is under none of them
+   */
+  private static String under(String path, List<String> folders) {
+    if (path == null) {
+      return null;
+    }
+    for (String folder : folders) {
+      if (path.length() > folder.length() && path.startsWith(folder)) {
+        char separator = path.charAt(folder.length());
+        if (separator == '/' || separator == File.separatorChar) {
+          return folder;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the number of downloads queued or running.
+   *
+   * @return downloads
+   */
+  public synchronized int size() {
+    return downloads.size();
+  }
+
+  /**
+   * The download of an item, queued on a lane or running.
+   */
+  public static class Download {
+    final Exchange exchange;
+    final String accountID;
+    final String sourceID;
+    boolean running;
+    boolean dropped;
+
+    Download(Exchange exchange) {
+      this.exchange = exchange;
+      this.accountID = String.valueOf(exchange.getIn().getHeader("account_id"));
+      this.sourceID = exchange.getIn().getHeader("source_id", String.class);
+    }
+
+    String getPath() {
+      return exchange.getIn().getHeader("source_path", String.class);
+    }
+  }
+
+}
@@ -0,0 +1,108 @@
+package cloudpolling;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import com.dropbox.core.http.HttpRequestor;
+
+/**
+ * Sends DropBox SDK requests through another requestor at the pace of an
+ * account's rate limiter, and reports throttled (429 or 503) & successful
+ * responses back to the limiter. The SDK itself retries throttled requests
+ * when auto retry is enabled.
+ *
+ * @author tlarrue
+ *
+ */
+public class RateLimitedHttpRequestor extends HttpRequestor {
+
+  private final HttpRequestor requestor;
+  private final RateLimiter limiter;
+
+  public RateLimitedHttpRequestor(HttpRequestor requestor, RateLimiter limiter) {
+    this.requestor = requestor;
+    this.limiter = limiter;
+  }
+
+  @Override
+  public Response doGet(String url, Iterable<Header> headers) throws IOException {
+    acquire();
+    return observe(requestor.doGet(url, headers));
+  }
+
+  @Override
+  public Uploader startPost(String url, Iterable<Header> headers) throws IOException {
+    acquire();
+    return new ObservedUploader(requestor.startPost(url, headers));
+  }
+
+  @Override
+  public Uploader startPut(String url, Iterable<Header> headers) throws IOException {
+    acquire();
+    return new ObservedUploader(requestor.startPut(url, headers));
+  }
+
+  private void acquire() throws IOException {
+    try {
+      limiter.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting to send request", e);
+    }
+  }
+
+  private Response observe(Response response) {
+    int status = response.getStatusCode();
+    if (status == 429 || status == 503) {
+      limiter.throttled(RateLimiter.parseRetryAfter(getHeader(response, "Retry-After")));
+    } else if (status / 100 == 2) {
+      limiter.succeeded();
+    }
+    return response;
+  }
+
+  private static String getHeader(Response response, String name) {
+    for (Map.Entry<String, List<String>> header : response.getHeaders().entrySet()) {
+      if (name.equalsIgnoreCase(header.getKey()) && !header.getValue().isEmpty()) {
+        return header.getValue().get(0);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Reports the response to an upload once it is finished.
+   */
+  private class ObservedUploader extends Uploader {
+
+    private final Uploader uploader;
+
+    ObservedUploader(Uploader uploader) {
+      this.uploader = uploader;
+    }
+
+    @Override
+    public OutputStream getBody() {
+      return uploader.getBody();
+    }
+
+    @Override
+    public void close() {
+      uploader.close();
+    }
+
+    @Override
+    public void abort() {
+      uploader.abort();
+    }
+
+    @Override
+    public Response finish() throws IOException {
+      return observe(uploader.finish());
+    }
+
+  }
+
+}
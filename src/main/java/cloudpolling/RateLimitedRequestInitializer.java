@@ -0,0 +1,91 @@
+package cloudpolling;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+
+/**
+ * Initializes Google API requests so that every attempt to send them waits
+ * for a token from an account's rate limiter. Throttled (429 or 503)
+ * responses are reported to the limiter and retried, once the limiter lets
+ * requests through again; successful responses are reported too.
+ *
+ * The handlers set by the wrapped initializer, like a credential's token
+ * refresh, still run first.
+ *
+ * @author tlarrue
+ *
+ */
+public class RateLimitedRequestInitializer implements HttpRequestInitializer {
+
+  private final HttpRequestInitializer initializer;
+  private final RateLimiter limiter;
+
+  /**
+   * Constructs a request initializer.
+   *
+   * @param initializer
+   *          initializer to apply first, or null
+   * @param limiter
+   */
+  public RateLimitedRequestInitializer(HttpRequestInitializer initializer, RateLimiter limiter) {
+    this.initializer = initializer;
+    this.limiter = limiter;
+  }
+
+  public void initialize(HttpRequest request) throws IOException {
+    if (initializer != null) {
+      initializer.initialize(request);
+    }
+
+    final HttpExecuteInterceptor interceptor = request.getInterceptor();
+    request.setInterceptor(new HttpExecuteInterceptor() {
+      public void intercept(HttpRequest request) throws IOException {
+        if (interceptor != null) {
+          interceptor.intercept(request);
+        }
+        try {
+          limiter.acquire();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting to send request");
+        }
+      }
+    });
+
+    final HttpUnsuccessfulResponseHandler handler = request.getUnsuccessfulResponseHandler();
+    request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+      public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry)
+          throws IOException {
+        if (handler != null && handler.handleResponse(request, response, supportsRetry)) {
+          return true;
+        }
+        int status = response.getStatusCode();
+        if (status == 429 || status == 503) {
+          limiter.throttled(RateLimiter.parseRetryAfter(response.getHeaders().getRetryAfter()));
+          return supportsRetry;
+        }
+        return false;
+      }
+    });
+
+    final HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+    request.setResponseInterceptor(new HttpResponseInterceptor() {
+      public void interceptResponse(HttpResponse response) throws IOException {
+        if (responseInterceptor != null) {
+          responseInterceptor.interceptResponse(response);
+        }
+        if (response.isSuccessStatusCode()) {
+          limiter.succeeded();
+        }
+      }
+    });
+  }
+
+}
@@ -0,0 +1,104 @@
+package cloudpolling;
+
+import java.util.concurrent.TimeUnit;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxAPIException;
+import com.box.sdk.BoxAPIRequest;
+import com.box.sdk.BoxAPIResponse;
+import com.box.sdk.RequestInterceptor;
+
+/**
+ * Paces the requests of a Box API connection with an account's rate limiter,
+ * and reports throttled (429 or 503) & successful responses back to the
+ * limiter as soon as they arrive.
+ *
+ * The Box SDK hides the responses it retries from interceptors, so this
+ * interceptor sends each request itself, one attempt at a time, & takes over
+ * the connection's retries: throttled requests & those failing with another
+ * server error are retried, but only throttled ones slow the account down.
+ * Requests with a body, which the SDK alone can rewind, are sent once.
+ *
+ * @author tlarrue
+ *
+ */
+public class RateLimitedRequestInterceptor implements RequestInterceptor {
+
+  /** Wait before the first retry of a server error, doubled for each next. */
+  private static final long BACKOFF_MILLIS = 1000;
+
+  private final RateLimiter limiter;
+  private final int maxAttempts;
+  private final ThreadLocal<BoxAPIRequest> sending = new ThreadLocal<BoxAPIRequest>();
+
+  /**
+   * Constructs an interceptor.
+   *
+   * @param limiter
+   * @param maxAttempts
+   *          times a request is sent before its failure is thrown
+   */
+  public RateLimitedRequestInterceptor(RateLimiter limiter, int maxAttempts) {
+    this.limiter = limiter;
+    this.maxAttempts = Math.max(1, maxAttempts);
+  }
+
+  /**
+   * Paces the requests of a connection with a rate limiter, taking over the
+   * connection's retries.
+   *
+   * @param api
+   * @param limiter
+   */
+  public static void install(BoxAPIConnection api, RateLimiter limiter) {
+    api.setRequestInterceptor(new RateLimitedRequestInterceptor(limiter, api.getMaxRequestAttempts()));
+    api.setMaxRequestAttempts(1);
+  }
+
+  public BoxAPIResponse onRequest(BoxAPIRequest request) {
+    if (sending.get() == request) {
+      return null; // the attempt sent below, or a redirect of it
+    }
+    for (int attempt = 1;; attempt++) {
+      limiter.acquireUninterruptibly();
+      sending.set(request);
+      try {
+        BoxAPIResponse response = request.send();
+        limiter.succeeded();
+        return response;
+      } catch (BoxAPIException e) {
+        int code = e.getResponseCode();
+        boolean throttled = code == 429 || code == 503;
+        if (throttled) {
+          limiter.throttled(0); // the SDK does not expose Retry-After
+        }
+        if (attempt >= maxAttempts || request.getBody() != null || !throttled && code < 500) {
+          throw e;
+        }
+        if (!throttled) {
+          backoff(attempt, e);
+        }
+      } finally {
+        sending.remove();
+      }
+    }
+  }
+
+  /**
+   * Waits before retrying a request that failed with a server error.
+   *
+   * @param attempt
+   *          number of the attempt that failed
+   * @param failure
+   *          thrown, if interrupted while waiting
+   */
+  private static void backoff(int attempt, BoxAPIException failure) {
+    try {
+      TimeUnit.MILLISECONDS.sleep(BACKOFF_MILLIS << Math.min(attempt - 1, 5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw failure;
+    }
+  }
+
+}
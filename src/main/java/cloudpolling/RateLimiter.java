@@ -0,0 +1,193 @@
+package cloudpolling;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Token bucket limiting the rate of API requests to a cloud account, shared by
+ * its connector & download processors. Each request takes a token, & tokens
+ * refill at the current rate up to a burst size.
+ *
+ * The rate adapts to the provider's throttling: a throttled response (429 or
+ * 503) halves the rate & stops all requests until its Retry-After has passed,
+ * and each successful response raises the rate again by a fraction of the
+ * configured rate, up to the configured rate.
+ *
+ * @author tlarrue
+ *
+ */
+public class RateLimiter {
+
+  /** Smallest fraction of the configured rate the rate is lowered to. */
+  private static final double MIN_RATE_FRACTION = 1.0 / 32;
+  /** Fraction of the configured rate each successful response adds back. */
+  private static final double RECOVERY_FRACTION = 1.0 / 50;
+  /**
+   * Default rate, within the per user quotas of Box, DropBox & Google Drive.
+   */
+  private static final double DEFAULT_REQUESTS_PER_SECOND = 10;
+  /** Pause after a throttled response without a Retry-After header. */
+  private static final long DEFAULT_PAUSE_MILLIS = 1000;
+
+  private final String name;
+  private final double maxRate;
+  private final double burst;
+  private final AtomicLong throttledCount;
+
+  private double rate;
+  private double tokens;
+  private long lastRefill = System.nanoTime();
+  private long pausedUntil = lastRefill;
+
+  private static Logger log = Logger.getLogger(RateLimiter.class);
+
+  /**
+   * Constructs a rate limiter.
+   *
+   * @param name
+   *          name used in log messages
+   * @param requestsPerSecond
+   *          highest rate of requests
+   * @param burst
+   *          number of requests that may be made at once after a quiet period
+   * @param throttledCount
+   *          counter of throttled responses
+   */
+  public RateLimiter(String name, double requestsPerSecond, int burst, AtomicLong throttledCount) {
+    this.name = name;
+    this.maxRate = requestsPerSecond;
+    this.burst = Math.max(1, burst);
+    this.throttledCount = throttledCount;
+    this.rate = requestsPerSecond;
+    this.tokens = this.burst;
+  }
+
+  /**
+   * Creates the rate limiter of a cloud account from its "requestsPerSecond"
+   * & "requestBurst" settings, by default 10 requests/s in bursts of 10.
+   *
+   * @param account
+   * @return rate limiter for the account's requests
+   */
+  public static RateLimiter forAccount(CloudAccount account) {
+    String type = account.readConfiguration("configType").toLowerCase();
+    String accountID = Integer.toString(account.getID());
+    double rate = parse(account.readConfiguration("requestsPerSecond"), DEFAULT_REQUESTS_PER_SECOND);
+    int burst = (int) parse(account.readConfiguration("requestBurst"), Math.max(1, rate));
+    AtomicLong throttled = account.getParent().getMetrics().counter("throttled_responses_total", "account",
+        accountID, "provider", type);
+    return new RateLimiter(type + " account " + accountID, rate, burst, throttled);
+  }
+
+  /**
+   * Waits until a request may be made, taking a token.
+   *
+   * @throws InterruptedException
+   */
+  public void acquire() throws InterruptedException {
+    while (true) {
+      long waitNanos;
+      synchronized (this) {
+        long now = System.nanoTime();
+        refill(now);
+        if (now - pausedUntil < 0) {
+          waitNanos = pausedUntil - now;
+        } else if (tokens >= 1) {
+          tokens -= 1;
+          return;
+        } else {
+          waitNanos = (long) ((1 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+      }
+      TimeUnit.NANOSECONDS.sleep(Math.max(waitNanos, 1));
+    }
+  }
+
+  /**
+   * Waits until a request may be made, like acquire(), but keeps the thread's
+   * interrupt status instead of throwing, for callers that cannot throw
+   * InterruptedException.
+   */
+  public void acquireUninterruptibly() {
+    try {
+      acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Lowers the rate after the provider throttled a request, and stops all
+   * requests until the given delay has passed.
+   *
+   * @param retryAfterMillis
+   *          delay the provider asked for, or 0 if it gave none
+   */
+  public synchronized void throttled(long retryAfterMillis) {
+    long now = System.nanoTime();
+    refill(now);
+    rate = Math.max(maxRate * MIN_RATE_FRACTION, rate / 2);
+    tokens = 0;
+    long pause = TimeUnit.MILLISECONDS.toNanos(retryAfterMillis > 0 ? retryAfterMillis : DEFAULT_PAUSE_MILLIS);
+    if (now + pause - pausedUntil > 0) {
+      pausedUntil = now + pause;
+    }
+    if (throttledCount != null) {
+      throttledCount.incrementAndGet();
+    }
+    log.warn("Requests to " + name + " were throttled; pausing " + TimeUnit.NANOSECONDS.toMillis(pause)
+        + "ms & lowering rate to " + String.format("%.2f", rate) + " requests/s");
+  }
+
+  /**
+   * Raises the rate towards the configured rate after a successful request.
+   */
+  public synchronized void succeeded() {
+    if (rate < maxRate) {
+      refill(System.nanoTime());
+      rate = Math.min(maxRate, rate + maxRate * RECOVERY_FRACTION);
+    }
+  }
+
+  /**
+   * Gets the current rate.
+   *
+   * @return requests per second
+   */
+  public synchronized double getRate() {
+    return rate;
+  }
+
+  /**
+   * Parses a Retry-After header value given in seconds.
+   *
+   * @param value
+   *          header value, or null
+   * @return delay in milliseconds, or 0 if there is none
+   */
+  public static long parseRetryAfter(String value) {
+    if (value == null) {
+      return 0;
+    }
+    try {
+      return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+    } catch (NumberFormatException e) {
+      return 0; // an HTTP date, which these providers do not send
+    }
+  }
+
+  private void refill(long now) {
+    tokens = Math.min(burst, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+    lastRefill = now;
+  }
+
+  private static double parse(String value, double defaultValue) {
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    return Double.parseDouble(value.trim());
+  }
+
+}
@@ -0,0 +1,60 @@
+package cloudpolling;
+
+import java.io.IOException;
+
+import com.dropbox.core.http.HttpRequestor;
+
+/**
+ * Sends DropBox SDK requests to another base URL, such as a local stand-in
+ * for the DropBox API. The SDK only builds https URLs for its own hosts, so
+ * the scheme & host of each request URL are replaced, keeping its path.
+ *
+ * @author tlarrue
+ *
+ */
+public class RebasingHttpRequestor extends HttpRequestor {
+
+  private final HttpRequestor requestor;
+  private final String baseURL;
+
+  /**
+   * Constructs a requestor sending requests through another one.
+   *
+   * @param requestor
+   * @param baseURL
+   *          scheme, host & port (and optionally a path prefix) to send
+   *          requests to
+   */
+  public RebasingHttpRequestor(HttpRequestor requestor, String baseURL) {
+    this.requestor = requestor;
+    this.baseURL = baseURL.replaceAll("/+$", "");
+  }
+
+  @Override
+  public Response doGet(String url, Iterable<Header> headers) throws IOException {
+    return requestor.doGet(rebase(url), headers);
+  }
+
+  @Override
+  public Uploader startPost(String url, Iterable<Header> headers) throws IOException {
+    return requestor.startPost(rebase(url), headers);
+  }
+
+  @Override
+  public Uploader startPut(String url, Iterable<Header> headers) throws IOException {
+    return requestor.startPut(rebase(url), headers);
+  }
+
+  /**
+   * Replaces the scheme & host of a URL with this requestor's base URL.
+   *
+   * @param url
+   * @return rebased URL
+   */
+  String rebase(String url) {
+    int hostStart = url.indexOf("://");
+    int pathStart = url.indexOf('/', hostStart < 0 ? 0 : hostStart + 3);
+    return baseURL + (pathStart < 0 ? "/" : url.substring(pathStart));
+  }
+
+}
@@ -0,0 +1,120 @@
+package cloudpolling;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.ProducerTemplate;
+import org.apache.log4j.Logger;
+
+/**
+ * Represents a replay account, which sends the change events of a
+ * ChangeRecording made by another account's connector again, at their
+ * original pace or sped up, so that a past workload can be reproduced
+ * without its cloud account. Files are served from the recording's blob
+ * folder by ReplayDownloadProcessor.
+ *
+ * Events keep their original account type, but are synced to this account's
+ * folder & item index, & their change times are shifted so that each keeps
+ * the lag it had when it was recorded.
+ *
+ * @author tlarrue
+ *
+ */
+public class ReplayConnector extends CloudConnector {
+
+  private String accountID;
+  private File recordFile;
+  private File blobFolder;
+  private double speed;
+
+  private static Logger log = Logger.getLogger(ReplayConnector.class);
+
+  /**
+   * Constructs a replay connector from a cloud account and a producer template
+   *
+   * @param account
+   * @param producer
+   */
+  public ReplayConnector(CloudAccount account, ProducerTemplate producer) {
+    super(account, producer);
+    setReplayInfo(account.getConfiguration());
+  }
+
+  /**
+   * Sets the recording to replay & its speed from this account's
+   * configuration.
+   *
+   * @param config
+   */
+  private void setReplayInfo(Properties config) {
+    this.accountID = config.getProperty("configID");
+    this.recordFile = new File(config.getProperty("recordFile"));
+    String blobs = config.getProperty("blobFolder", "");
+    this.blobFolder = blobs.isEmpty() ? new File(recordFile.getAbsoluteFile().getParentFile(), "blobs")
+        : new File(blobs);
+    this.speed = Double.parseDouble(config.getProperty("speed", "1"));
+  }
+
+  /**
+   * Sends every event of the recording to ActionListener, waiting between
+   * them as long as was originally waited divided by speed, or not at all if
+   * speed is 0.
+   *
+   * @throws IOException
+   */
+  public void poll() throws IOException {
+    log.info("Replaying " + recordFile.getAbsolutePath() + " for account " + accountID + " at "
+        + (speed > 0 ? speed + "x speed" : "full speed") + "...");
+
+    ChangeRecording.Reader reader = new ChangeRecording.Reader(recordFile);
+    long start = System.nanoTime();
+    long first = -1;
+    long last = 0;
+    long sent = 0;
+
+    try {
+      ChangeRecording.Record record;
+      while ((record = reader.next()) != null) {
+        if (first < 0) {
+          first = record.time;
+        }
+        last = record.time;
+
+        if (speed > 0) {
+          long due = start + (long) (TimeUnit.MILLISECONDS.toNanos(record.time - first) / speed);
+          long wait = due - System.nanoTime();
+          if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+          }
+        } else if (Thread.currentThread().isInterrupted()) {
+          break;
+        }
+
+        String changeTime = record.headers.get("change_time");
+        if (changeTime != null) {
+          long lag = record.time - Long.parseLong(changeTime);
+          record.headers.put("change_time", String.valueOf(System.currentTimeMillis() - lag));
+        }
+        record.headers.put("account_id", accountID);
+        record.headers.put("replay_blob_folder", blobFolder.getAbsolutePath());
+        sendActionExchange(record.headers, record.body);
+        sent++;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      reader.close();
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    log.info(String.format("Replayed %d events (recorded over %.1fs) for account %s in %.1fs: %.0f events/s", sent,
+        (last - Math.max(first, 0)) / 1e3, accountID, seconds, sent / seconds));
+  }
+
+  public String getAccountID() {
+    return accountID;
+  }
+
+}
@@ -0,0 +1,57 @@
+package cloudpolling;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.camel.Exchange;
+import org.apache.log4j.Logger;
+
+/**
+ * Serves the files of events sent by a ReplayConnector from the blob folder
+ * of its recording, in place of downloading them. A file that was not kept
+ * when recording is replaced by an empty one.
+ *
+ * @author tlarrue
+ *
+ */
+public class ReplayDownloadProcessor extends CloudDownloadProcessor {
+
+  private static Logger log = Logger.getLogger(ReplayDownloadProcessor.class);
+
+  public ReplayDownloadProcessor(PollingProject project) {
+    super(project);
+  }
+
+  @Override
+  public void process(Exchange exchange) throws Exception {
+
+    // Get source file info
+    String accountID = exchange.getIn().getHeader("account_id", String.class);
+    String sourceID = exchange.getIn().getHeader("source_id", String.class);
+    String sourcePath = exchange.getIn().getHeader("source_path", String.class);
+    String key = ChangeRecording.blobKey(sourceID, exchange.getIn().getHeader("details", String.class),
+        exchange.getIn().getHeader("content_hash", String.class));
+    File blob = new File(exchange.getIn().getHeader("replay_blob_folder", String.class), key);
+
+    // Get download destination
+    String dest = Paths.get(getProject().getSyncFolder(), "acct" + accountID, sourcePath).toString();
+
+    log.info("Copying a recorded file for replay account " + accountID + " to destination: " + dest);
+
+    File file = new File(dest);
+    file.getParentFile().mkdirs();
+    if (blob.isFile()) {
+      Files.copy(blob.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      log.warn("No recorded file " + key + " for item " + sourceID + ". Syncing it as an empty file.");
+      Files.write(file.toPath(), new byte[0]);
+    }
+
+    // create JSON for SolrUpdater exchange
+    log.info("Creating JSON for indexing replayed file with ID:" + sourceID);
+    super.process(exchange);
+  }
+
+}
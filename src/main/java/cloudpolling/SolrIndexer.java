@@ -0,0 +1,616 @@
+package cloudpolling;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.camel.Exchange;
+import org.apache.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Sends document updates & deletions to a Solr instance in batches.
+ *
+ * Commands are buffered and flushed once a batch reaches a document count or
+ * byte size limit, or once its oldest command has waited for the maximum
+ * latency. Batches are posted with commitWithin rather than explicit commits.
+ * Commands are partitioned by item ID so that each partition keeps its own
+ * order while partitions are sent concurrently over keep-alive connections,
+ * which the JDK's HTTP client pools per host. Documents are streamed into the
+ * request body from their spool files, so a batch is never held in memory.
+ *
+ * @author tlarrue
+ *
+ */
+public class SolrIndexer implements IndexSink {
+
+  private final String updateURL;
+  private final int maxDocs;
+  private final long maxBytes;
+  private final long maxLatencyMillis;
+  private final Partition[] partitions;
+  private final ScheduledExecutorService scheduler;
+  private final AtomicInteger pending = new AtomicInteger();
+  private final Object barriers = new Object();
+  private int retryAttempts = 5;
+  private long retryDelayMillis = 1000;
+  private long retryMaxDelayMillis = 60000;
+  private File failedBatchDir;
+  private LatencyHistogram batchLatency;
+  private ChangeLag changeLag;
+
+  private static Logger log = Logger.getLogger(SolrIndexer.class);
+
+  /**
+   * Constructs a Solr indexer from a polling project's configuration.
+   *
+   * @param project
+   */
+  public SolrIndexer(PollingProject project) {
+    this(project.readConfiguration("solrURL"),
+        Integer.parseInt(project.readConfiguration("solrBatchSize", "500")),
+        Long.parseLong(project.readConfiguration("solrBatchBytes", "10485760")),
+        Long.parseLong(project.readConfiguration("solrMaxLatencyMillis", "1000")),
+        Integer.parseInt(project.readConfiguration("solrCommitWithin", "10000")),
+        Integer.parseInt(project.readConfiguration("solrConnections", "4")));
+    this.retryAttempts = Integer.parseInt(project.readConfiguration("retryAttempts", "5"));
+    this.retryDelayMillis = Long.parseLong(project.readConfiguration("retryDelayMillis", "1000"));
+    this.retryMaxDelayMillis = Long.parseLong(project.readConfiguration("retryMaxDelayMillis", "60000"));
+    this.failedBatchDir = new File(project.getDeadLetterStore().getDir(), "index");
+    this.batchLatency = project.getMetrics().histogram("index_batch_latency_micros", "sink", "solr");
+    this.changeLag = project.getChangeLag();
+  }
+
+  /**
+   * Constructs a Solr indexer for a Solr core or collection URL.
+   *
+   * @param solrURL
+   *          base URL of Solr core, e.g. http://localhost:8983/solr/core
+   * @param maxDocs
+   *          number of commands that triggers a flush
+   * @param maxBytes
+   *          batch size in bytes that triggers a flush
+   * @param maxLatencyMillis
+   *          longest a command may wait before it is flushed
+   * @param commitWithin
+   *          milliseconds in which Solr should commit each batch
+   * @param connections
+   *          number of batches sent concurrently
+   */
+  public SolrIndexer(String solrURL, int maxDocs, long maxBytes, long maxLatencyMillis, int commitWithin,
+      int connections) {
+    String base = solrURL.endsWith("/") ? solrURL.substring(0, solrURL.length() - 1) : solrURL;
+    this.updateURL = base + "/update?wt=json&commitWithin=" + commitWithin;
+    this.maxDocs = maxDocs;
+    this.maxBytes = maxBytes;
+    this.maxLatencyMillis = maxLatencyMillis;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor();
+    this.partitions = new Partition[Math.max(1, connections)];
+    for (int i = 0; i < partitions.length; i++) {
+      partitions[i] = new Partition();
+    }
+  }
+
+  /**
+   * Queues the index document in an exchange's body for addition to the
+   * index.
+   *
+   * @param exchange
+   */
+  public void update(Exchange exchange) {
+    final IndexDocument doc = exchange.getIn().getBody(IndexDocument.class);
+    doc.claim(); // its batch is sent after the exchange is done
+    add(doc.get("id"), new Command(doc.length()) {
+      void writeTo(JsonStreamWriter json) throws IOException {
+        json.name("add").beginObject().name("doc");
+        doc.writeTo(json);
+        json.endObject();
+      }
+
+      void release() {
+        doc.release();
+      }
+    }.changeOf(exchange));
+  }
+
+  /**
+   * Queues the list of partial index documents in an exchange's body as
+   * atomic updates, which set only the fields present in each document.
+   *
+   * @param exchange
+   */
+  @SuppressWarnings("unchecked")
+  public void partialUpdate(Exchange exchange) {
+    List<IndexDocument> docs = exchange.getIn().getBody(List.class);
+    for (int i = 0; i < docs.size(); i++) {
+      final IndexDocument doc = docs.get(i);
+      Command command = new Command(doc.length()) {
+        void writeTo(JsonStreamWriter json) throws IOException {
+          json.name("add").beginObject().name("doc").beginObject();
+          for (Map.Entry<String, String> field : doc.getFields().entrySet()) {
+            if (field.getKey().equals("id")) {
+              json.name("id").value(field.getValue());
+            } else {
+              json.name(field.getKey()).beginObject().name("set").value(field.getValue()).endObject();
+            }
+          }
+          json.endObject().endObject();
+        }
+      };
+      add(doc.get("id"), i == 0 ? command.changeOf(exchange) : command); // one change moves the whole subtree
+    }
+  }
+
+  /**
+   * Queues a delete of the document with header "source_id", or of the
+   * document with header "index_path" if set. If header "index_path_prefix" is
+   * set, every document whose path starts with it is removed as well by a
+   * single delete-by-query, sent once across all partitions.
+   *
+   * @param exchange
+   * @throws JSONException
+   */
+  public void delete(Exchange exchange) throws JSONException {
+    String sourceID = exchange.getIn().getHeader("source_id", String.class);
+    String path = exchange.getIn().getHeader("index_path", String.class);
+    String pathPrefix = exchange.getIn().getHeader("index_path_prefix", String.class);
+
+    JSONObject command = new JSONObject();
+    if (path != null) {
+      command.put("query", "{!term f=path}" + path);
+    } else {
+      command.put("id", sourceID);
+    }
+    final String delete = command.toString();
+    add(sourceID, new Command(delete.length()) {
+      void writeTo(JsonStreamWriter json) throws IOException {
+        json.name("delete").raw(delete);
+      }
+    }.changeOf(exchange));
+
+    if (pathPrefix != null) {
+      JSONObject query = new JSONObject();
+      query.put("query", "{!prefix f=path}" + pathPrefix);
+      final String deleteByQuery = query.toString();
+
+      // the query spans all partitions, so it is sent once all of them have
+      // sent their pending updates, & before any of their later ones
+      sendAcrossPartitions(new Command(deleteByQuery.length()) {
+        void writeTo(JsonStreamWriter json) throws IOException {
+          json.name("delete").raw(deleteByQuery);
+        }
+      });
+    }
+  }
+
+  /**
+   * Sends a command that spans all partitions once, after the commands queued
+   * in each partition before it & before those queued after it. Each partition
+   * is flushed and its sender then waits at a barrier; the last sender to reach
+   * it sends the command, and they all carry on once it is sent.
+   *
+   * @param command
+   */
+  private void sendAcrossPartitions(final Command command) {
+    final AtomicInteger waiting = new AtomicInteger(partitions.length);
+    final CountDownLatch sent = new CountDownLatch(1);
+    pending.incrementAndGet();
+    // barriers reach every sender in the same order, or two of them could
+    // each hold up a sender the other is waiting for
+    synchronized (barriers) {
+      for (Partition partition : partitions) {
+        synchronized (partition) {
+          partition.flush();
+          partition.sender.execute(new Runnable() {
+            public void run() {
+              if (waiting.decrementAndGet() > 0) {
+                awaitUninterruptibly(sent);
+                return;
+              }
+              try {
+                sendWithRetries(Collections.singletonList(command));
+              } finally {
+                pending.decrementAndGet();
+                sent.countDown();
+              }
+            }
+          });
+        }
+      }
+    }
+  }
+
+  /**
+   * Waits for a latch, keeping the thread's interrupt for after it opens, so
+   * that no partition passes a barrier before the command at it is sent.
+   *
+   * @param latch
+   */
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        latch.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Adds a command to the partition of the given item.
+   *
+   * @param sourceID
+   * @param command
+   */
+  private void add(String sourceID, Command command) {
+    int hash = sourceID == null ? 0 : sourceID.hashCode();
+    add(partitions[(hash & Integer.MAX_VALUE) % partitions.length], command);
+  }
+
+  /**
+   * Adds a command to a partition, flushing the partition if it has reached
+   * its size limits.
+   *
+   * @param partition
+   * @param command
+   */
+  private void add(final Partition partition, Command command) {
+    synchronized (partition) {
+      if (partition.commands.isEmpty()) {
+        scheduler.schedule(new Runnable() {
+          public void run() {
+            partition.flush();
+          }
+        }, maxLatencyMillis, TimeUnit.MILLISECONDS);
+      }
+      partition.commands.add(command);
+      pending.incrementAndGet();
+      partition.bytes += command.length;
+
+      if (partition.commands.size() >= maxDocs || partition.bytes >= maxBytes) {
+        partition.flush();
+      }
+    }
+  }
+
+  /**
+   * Gets the number of commands waiting to be sent or being sent, including
+   * batches waiting to be retried.
+   */
+  public int getPending() {
+    return pending.get();
+  }
+
+  /**
+   * Flushes all pending commands.
+   */
+  public void flush() {
+    for (Partition partition : partitions) {
+      partition.flush();
+    }
+  }
+
+  /**
+   * Posts a batch of commands to Solr's update handler as one JSON object.
+   *
+   * @param batch
+   * @throws IOException
+   */
+  private void send(final List<Command> batch) throws IOException {
+    long start = System.nanoTime();
+    post(new Payload() {
+      public void writeTo(Writer writer) throws IOException {
+        JsonStreamWriter json = new JsonStreamWriter(writer);
+        json.beginObject();
+        for (Command command : batch) {
+          command.writeTo(json);
+        }
+        json.endObject();
+      }
+    });
+    if (batchLatency != null) {
+      batchLatency.record((System.nanoTime() - start) / 1000);
+    }
+    if (changeLag != null) {
+      for (Command command : batch) {
+        changeLag.record(command.accountID, command.changeTime);
+      }
+    }
+    log.info("Sent batch of " + batch.size() + " commands to Solr.");
+  }
+
+  /**
+   * Sends a batch, retrying with exponential backoff if it fails for a reason
+   * that may be temporary. A batch that cannot be sent is saved to the
+   * project's dead letter store to be replayed later.
+   *
+   * @param batch
+   * @return true if the batch was sent or saved
+   */
+  private boolean sendWithRetries(List<Command> batch) {
+    for (int attempt = 0;; attempt++) {
+      try {
+        send(batch);
+        return true;
+      } catch (RejectedBatchException e) {
+        return saveFailedBatch(batch, e);
+      } catch (IOException e) {
+        if (attempt >= retryAttempts) {
+          return saveFailedBatch(batch, e);
+        }
+        long delay = Math.min(retryMaxDelayMillis, retryDelayMillis << Math.min(attempt, 20));
+        log.warn("Failed to send batch of " + batch.size() + " commands to Solr (" + e.getMessage()
+            + "). Retrying in " + delay + " ms.");
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return saveFailedBatch(batch, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes a batch that could not be sent to the failed batch folder.
+   *
+   * @param batch
+   * @param failure
+   * @return true if the batch was saved
+   */
+  private boolean saveFailedBatch(final List<Command> batch, IOException failure) {
+    if (failedBatchDir == null) {
+      log.error("Dropped batch of " + batch.size() + " commands that could not be sent to Solr.", failure);
+      return false;
+    }
+    try {
+      failedBatchDir.mkdirs();
+      File file = new File(failedBatchDir, System.currentTimeMillis() + "-" + System.identityHashCode(batch)
+          + ".json");
+      Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      try {
+        JsonStreamWriter json = new JsonStreamWriter(writer);
+        json.beginObject();
+        for (Command command : batch) {
+          command.writeTo(json);
+        }
+        json.endObject();
+      } finally {
+        writer.close();
+      }
+      log.error("Failed to send batch of " + batch.size() + " commands to Solr. Saved to " + file.getAbsolutePath(),
+          failure);
+      return true;
+    } catch (IOException e) {
+      log.error("Could not save failed batch of " + batch.size() + " commands.", e);
+      return false;
+    }
+  }
+
+  /**
+   * Sends every batch saved in the failed batch folder, oldest first, deleting
+   * each one once Solr has accepted it.
+   *
+   * @return number of batches sent
+   */
+  public int replayFailedBatches() {
+    int sent = 0;
+    File[] files = failedBatchDir == null ? null : failedBatchDir.listFiles();
+    if (files == null) {
+      return sent;
+    }
+    Arrays.sort(files);
+    for (final File file : files) {
+      try {
+        post(new Payload() {
+          public void writeTo(Writer writer) throws IOException {
+            Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            try {
+              char[] buffer = new char[8192];
+              int n;
+              while ((n = reader.read(buffer)) != -1) {
+                writer.write(buffer, 0, n);
+              }
+            } finally {
+              reader.close();
+            }
+          }
+        });
+        file.delete();
+        sent++;
+      } catch (IOException e) {
+        log.error("Could not replay failed batch " + file.getAbsolutePath(), e);
+      }
+    }
+    return sent;
+  }
+
+  /**
+   * Posts a JSON payload to Solr's update handler.
+   *
+   * @param payload
+   * @throws IOException
+   */
+  private void post(Payload payload) throws IOException {
+
+    HttpURLConnection connection = (HttpURLConnection) new URL(updateURL).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    connection.setChunkedStreamingMode(64 * 1024);
+    connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+
+    Writer writer = new BufferedWriter(new OutputStreamWriter(connection.getOutputStream(), "UTF-8"));
+    payload.writeTo(writer);
+    writer.close();
+
+    int status = connection.getResponseCode();
+    InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    String response = readFully(in);
+
+    if (status >= 400 && status < 500 && status != 408 && status != 429) {
+      throw new RejectedBatchException("Solr rejected batch with status " + status + ": " + response);
+    } else if (status >= 300) {
+      throw new IOException("Solr responded with status " + status + ": " + response);
+    }
+  }
+
+  /**
+   * Reads & closes a response stream so its connection can be reused.
+   *
+   * @param in
+   * @return response as a string
+   * @throws IOException
+   */
+  private static String readFully(InputStream in) throws IOException {
+    if (in == null) {
+      return "";
+    }
+    StringBuilder response = new StringBuilder();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      if (response.length() < 4096) {
+        response.append(new String(buffer, 0, n, "UTF-8"));
+      }
+    }
+    in.close();
+    return response.toString();
+  }
+
+  public void start() throws Exception {
+    log.info("Indexing to Solr at " + updateURL);
+  }
+
+  /**
+   * Flushes pending commands & waits for all batches to be sent.
+   */
+  public void stop() throws Exception {
+    flush();
+    scheduler.shutdown();
+    for (Partition partition : partitions) {
+      partition.sender.shutdown();
+    }
+    for (Partition partition : partitions) {
+      partition.sender.awaitTermination(1, TimeUnit.MINUTES);
+    }
+  }
+
+  /**
+   * The body of a request to Solr's update handler.
+   */
+  private interface Payload {
+    void writeTo(Writer writer) throws IOException;
+  }
+
+  /**
+   * Thrown when Solr refuses a batch as invalid, so retrying cannot help.
+   */
+  private static class RejectedBatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    RejectedBatchException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * An update command written into a batch as a member of its JSON object.
+   */
+  private abstract static class Command {
+
+    final long length;
+    String accountID;
+    String changeTime;
+    BackfillCheckpoint.Completion completion;
+
+    Command(long length) {
+      this.length = length;
+    }
+
+    /**
+     * Marks this command as applying the change described by an exchange, so
+     * the change's lag is recorded once it is sent, and the exchange's backfill
+     * event does not complete until then.
+     *
+     * @param exchange
+     * @return this command
+     */
+    Command changeOf(Exchange exchange) {
+      this.accountID = exchange.getIn().getHeader("account_id", String.class);
+      this.changeTime = exchange.getIn().getHeader("change_time", String.class);
+      this.completion = BackfillCheckpoint.hold(exchange);
+      return this;
+    }
+
+    abstract void writeTo(JsonStreamWriter json) throws IOException;
+
+    /**
+     * Frees any resources held by this command once it has been sent.
+     */
+    void release() {
+    }
+  }
+
+  /**
+   * An ordered buffer of commands sent by its own single thread.
+   */
+  private class Partition {
+
+    List<Command> commands = new ArrayList<Command>();
+    long bytes = 0;
+    ExecutorService sender = Executors.newSingleThreadExecutor();
+
+    synchronized void flush() {
+      if (commands.isEmpty()) {
+        return;
+      }
+      final List<Command> batch = commands;
+      commands = new ArrayList<Command>();
+      bytes = 0;
+
+      sender.execute(new Runnable() {
+        public void run() {
+          boolean kept = false;
+          try {
+            kept = sendWithRetries(batch);
+          } finally {
+            for (Command command : batch) {
+              command.release();
+              if (command.completion != null) {
+                command.completion.release(kept);
+              }
+            }
+            pending.addAndGet(-batch.size());
+          }
+        }
+      });
+    }
+  }
+
+}
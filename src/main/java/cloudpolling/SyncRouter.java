@@ -1,9 +1,15 @@
 package cloudpolling;
 
+import org.apache.camel.Exchange;
+import org.apache.camel.Expression;
 import org.apache.camel.LoggingLevel;
 import org.apache.camel.Predicate;
+import org.apache.camel.Processor;
 import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.PredicateBuilder;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.model.RouteDefinition;
+import org.apache.log4j.Logger;
 
 /**
  * SyncRouter contains all route configurations to sync disparate Box, DropBox,
@@ -17,57 +23,289 @@ public class SyncRouter extends RouteBuilder {
 
   public PollingProject project;
   public ProducerTemplate producer;
+  public IndexSink indexer;
+  public OverflowBuffer buffer;
+  public boolean poll;
+  public boolean work = true;
+  public String eventQueue;
+  public FairExecutor executor;
+  public WebhookReceiver webhooks;
+  public long defaultPollIntervalMillis;
+
+  private static Logger log = Logger.getLogger(SyncRouter.class);
 
   Predicate delete = header("action").isEqualTo("delete");
   Predicate download = header("action").isEqualTo("download");
   Predicate makedir = header("action").isEqualTo("make_directory");
+  Predicate move = header("action").isEqualTo("move");
+  Predicate folder = header("source_type").isEqualTo("folder");
+  Predicate none = header("action").isEqualTo(EventCoalescingStrategy.NONE);
   Predicate box = header("account_type").isEqualTo("box");
   Predicate dropbox = header("account_type").isEqualTo("dropbox");
   Predicate googledrive = header("account_type").isEqualTo("googledrive");
+  Predicate synthetic = header("account_type").isEqualTo("synthetic");
+  Predicate replayed = header("replay_blob_folder").isNotNull();
+  Predicate backfill = header("traffic").isEqualTo("backfill");
 
   public SyncRouter(PollingProject project, ProducerTemplate producer) {
+    this(project, producer, true);
+  }
+
+  /**
+   * Constructs a router for a project.
+   *
+   * @param project
+   * @param producer
+   * @param poll
+   *          whether to poll the project's cloud accounts, or only handle
+   *          events sent to the router (e.g. when replaying dead letters)
+   */
+  public SyncRouter(PollingProject project, ProducerTemplate producer, boolean poll) {
     this.project = project;
     this.producer = producer;
+    this.poll = poll;
+  }
+
+  /**
+   * Constructs a router for one of several projects run in the same camel
+   * context, downloading on a shared executor.
+   *
+   * @param project
+   * @param producer
+   * @param executor
+   *          threads shared fairly by the projects' accounts
+   * @param defaultPollIntervalMillis
+   *          interval of polls when the project does not set one, or 0 to
+   *          poll once
+   */
+  public SyncRouter(PollingProject project, ProducerTemplate producer, FairExecutor executor,
+      long defaultPollIntervalMillis) {
+    this(project, producer, true);
+    this.executor = executor;
+    this.defaultPollIntervalMillis = defaultPollIntervalMillis;
   }
 
   @Override
   public void configure() throws Exception {
 
+    // Send index updates to the project's index sink, if it has one
+    if (work) {
+      indexer = createIndexSink();
+      if (indexer != null) {
+        getContext().addService(indexer);
+      } else {
+        log.warn("No index sink configured for project '" + getProject().getName() + "'. Items will not be indexed.");
+      }
+
+      // Hold no more than maxBufferedEvents events in memory, spilling the
+      // rest, of which no more than maxBufferedBackfill events of full syncs
+      int maxBuffered = Integer.parseInt(getProject().readConfiguration("maxBufferedEvents", "10000"));
+      buffer = new OverflowBuffer(getProject().getOverflowStore(), maxBuffered,
+          Integer.parseInt(getProject().readConfiguration("maxBufferedBackfill", Integer.toString(maxBuffered / 2))),
+          getProducer(), endpointUri("dispatch"));
+      getContext().addService(buffer);
+    }
+
+    // Report each stage's latency & each account's throughput over JMX, and
+    // over http if a metricsPort is configured
+    PipelineMetrics metrics = getProject().getMetrics();
+    if (buffer != null) {
+      metrics.gauge("events_in_flight", new PipelineMetrics.Gauge() {
+        public long getValue() {
+          return buffer.getInFlight();
+        }
+      });
+      metrics.gauge("backfill_in_flight", new PipelineMetrics.Gauge() {
+        public long getValue() {
+          return buffer.getBackfillInFlight();
+        }
+      });
+    }
+    if (indexer != null) {
+      metrics.gauge("index_pending", new PipelineMetrics.Gauge() {
+        public long getValue() {
+          return indexer.getPending();
+        }
+      });
+    }
+    String metricsPort = getProject().readConfiguration("metricsPort", "");
+    if (!metricsPort.isEmpty()) {
+      getContext().addService(new MetricsServer(metrics, Integer.parseInt(metricsPort)));
+    }
+
+    // Poll accounts as soon as their providers notify the project's webhooks
+    // of changes, if a webhookPort is configured
+    String webhookPort = getProject().readConfiguration("webhookPort", "");
+    if (poll && !webhookPort.isEmpty()) {
+      webhooks = new WebhookReceiver(getProject(), getProducer(), Integer.parseInt(webhookPort));
+      getContext().addService(webhooks);
+    }
+
+    // Events that still fail after retrying are kept in the dead letter store
+    errorHandler(deadLetterChannel(endpointUri("deadletter"))
+        .useOriginalMessage()
+        .maximumRedeliveries(0));
+
+    // Retry failures that may be temporary with exponential backoff, without
+    // holding up the thread that handles the next event
+    onException(Exception.class)
+        .onWhen(new TransientFailure())
+        .maximumRedeliveries(Integer.parseInt(getProject().readConfiguration("retryAttempts", "5")))
+        .redeliveryDelay(Long.parseLong(getProject().readConfiguration("retryDelayMillis", "1000")))
+        .useExponentialBackOff()
+        .backOffMultiplier(2)
+        .maximumRedeliveryDelay(Long.parseLong(getProject().readConfiguration("retryMaxDelayMillis", "60000")))
+        .asyncDelayedRedelivery()
+        .retryAttemptedLogLevel(LoggingLevel.WARN);
+
+    /**
+     * DeadLetterWriter: receives events that failed permanently or ran out of
+     * retries & stores them in the project's dead letter store for replay
+     */
+    from(endpointUri("deadletter"))
+        .routeId(routeName("DeadLetterWriter"))
+        .errorHandler(defaultErrorHandler())
+        .process(new DeadLetterProcessor(this.getProject()));
+
     /**
      * Starting Point: poll changes from each cloud source, handle responses by
-     * sending exchange to ActionListener route.
+     * sending exchange to ActionListener route. Each account polls on its own
+     * timer thread, and is quarantined by its circuit breaker while it keeps
+     * failing, so that a broken account does not hold up the others. When
+     * events pass through a queue, an account is only polled by the node
+     * holding its lease.
+     *
+     * Downloads run on a fair executor, with one lane for each account's
+     * incremental changes & one for its backfill (full sync) events, each
+     * running up to accountThreads downloads. While lanes compete for threads
+     * they get them in proportion to their weights: an account's downloadWeight
+     * for its incremental lane, times the project's backfillWeight for its
+     * backfill lane. The executor is shared by every project in the JVM when
+     * run with poll-all or daemon, with each project using no more than
+     * projectThreads of its threads, or else has projectThreads threads of its
+     * own (by default accountThreads for each account). Within a lane, files
+     * up to smallFileBytes go first, and larger files give way to them for
+     * sizeAgingMillis per doubling of their size (see PriorityHandoff).
+     * Deletes & moves, which do not wait in the lanes, drop or redirect the
+     * downloads of their items still waiting there (see QueuedDownloads).
      */
+    int accountThreads = Integer.parseInt(getProject().readConfiguration("accountThreads", "4"));
+    long pollIntervalMillis = Long.parseLong(getProject().readConfiguration("pollIntervalMillis", "0"));
+    if (pollIntervalMillis <= 0) {
+      pollIntervalMillis = defaultPollIntervalMillis;
+    }
+    String projectThreads = getProject().readConfiguration("projectThreads", "");
+    if (executor != null) {
+      executor.setQuota(getProject().getName(), projectThreads.isEmpty() ? 0 : Integer.parseInt(projectThreads));
+    } else if (work) {
+      executor = new FairExecutor("Downloader", projectThreads.isEmpty()
+          ? accountThreads * Math.max(1, getProject().getAccountIds().size()) : Integer.parseInt(projectThreads));
+      getContext().addService(executor);
+    }
+    double backfillWeight = Double.parseDouble(getProject().readConfiguration("backfillWeight", "0.25"));
+    long smallFileBytes = Long.parseLong(getProject().readConfiguration("smallFileBytes", "1048576"));
+    long sizeAgingMillis = Long.parseLong(getProject().readConfiguration("sizeAgingMillis", "2000"));
+    QueuedDownloads queued = new QueuedDownloads(getProject());
     for (int id : this.getProject().getAccountIds()) {
 
+      CircuitBreaker breaker = getProject().getCircuitBreaker(Integer.toString(id));
+
+      /**
+       * AccountDownloader: hands an account's files to FileDownloader on the
+       * lane of their traffic, failing them at once while it is quarantined
+       */
+      if (work) {
+        String weight = new CloudAccount(id, getProject()).getConfiguration().getProperty("downloadWeight", "");
+        double downloadWeight = weight.trim().isEmpty() ? 1 : Double.parseDouble(weight);
+
+        from(endpointUri("download.acct") + id)
+            .routeId(routeName("AccountDownloader-acct") + id)
+            .choice()
+            .when(backfill)
+            .to(endpointUri("download.backfill.acct") + id)
+            .otherwise()
+            .to(endpointUri("download.incremental.acct") + id);
+
+        from(endpointUri("download.incremental.acct") + id)
+            .routeId(routeName("IncrementalDownloader-acct") + id)
+            .process(new PriorityHandoff(executor.lane(getProject().getName(), "acct" + id, accountThreads,
+                downloadWeight), queued, smallFileBytes, sizeAgingMillis))
+            .process(breaker.guard())
+            .to(endpointUri("download.filesys"));
+
+        from(endpointUri("download.backfill.acct") + id)
+            .routeId(routeName("BackfillDownloader-acct") + id)
+            .process(new PriorityHandoff(executor.lane(getProject().getName(), "acct" + id + ".backfill",
+                accountThreads, downloadWeight * backfillWeight), queued, smallFileBytes, sizeAgingMillis))
+            .process(breaker.guard())
+            .to(endpointUri("download.filesys"));
+      }
+
+      if (!poll) {
+        continue;
+      }
+
       CloudAccount account = new CloudAccount(id, getProject());
-      boolean pollReady = account.setConfiguration();
-      if (!pollReady) {
-        System.out.println("\nERROR: Cloud account configuration not valid. Cannot poll this project.");
-        System.exit(1);
+      CloudConnector connector = null;
+      try {
+        if (account.setConfiguration()) {
+          connector = createConnector(account);
+        }
+      } catch (RuntimeException e) {
+        log.error("Could not connect to cloud account " + id, e);
+      }
+      if (connector == null) {
+        log.error("Cloud account " + id + " is not configured correctly. It will not be polled.");
+        continue;
+      }
+
+      /**
+       * AccountPoller: polls an account once, or every pollIntervalMillis
+       * while it is not quarantined (and this node holds its lease)
+       */
+      RouteDefinition poller = from("timer://" + getProject().getEndpointPrefix() + "poll.acct" + id
+          + (pollIntervalMillis > 0 ? "?period=" + pollIntervalMillis : "?repeatCount=1"))
+          .routeId(routeName("AccountPoller-acct") + id)
+          .errorHandler(defaultErrorHandler()); // a failed poll is not an event to replay
+      AccountLease lease = null;
+      if (eventQueue != null) {
+        lease = AccountLease.forAccount(getProject(), Integer.toString(id));
+        getContext().addService(lease);
+        poller.process(lease.skipUnlessHeld());
+
+        /**
+         * LeaseKeeper: renews the account's lease while this node holds it,
+         * however long its polls take, or takes it over once it expires
+         */
+        from("timer://" + getProject().getEndpointPrefix() + "lease.acct" + id + "?period="
+            + Math.max(1, lease.getLeaseMillis() / 3))
+            .routeId(routeName("LeaseKeeper-acct") + id)
+            .errorHandler(defaultErrorHandler())
+            .bean(lease, "acquire");
+      }
+      poller.process(breaker.skipWhenOpen())
+          .bean(connector, "poll");
+      if (pollIntervalMillis <= 0) {
+        poller.bean(connector, "closeRecording"); // repeated polls record until shutdown
       }
 
-      switch (account.getType()) {
-
-      case BOX:
-        BoxConnector boxconnect = new BoxConnector(account, this.getProducer());
-        from("timer://foo?repeatCount=1")
-            .threads(20) // dont wait for polling processing before continuing
-            .bean(boxconnect, "poll");
-        break;
-
-      case DROPBOX:
-        DropBoxConnector dbconnect = new DropBoxConnector(account, this.getProducer());
-        from("timer://foo?repeatCount=1")
-            .threads(20) // dont wait for polling processing before continuing
-            .bean(dbconnect, "poll");
-        break;
-
-      case GOOGLEDRIVE:
-        GoogleDriveConnector gdconnect = new GoogleDriveConnector(account, this.getProducer());
-        from("timer://foo?repeatCount=1")
-            .threads(20) // dont wait for polling processing before continuing
-            .bean(gdconnect, "poll");
-        break;
+      /**
+       * NotifiedPoller: polls an account's changes at once when its provider
+       * notifies the project's webhooks of them, one poll at a time
+       */
+      if (webhooks != null && (connector instanceof BoxConnector || connector instanceof DropBoxConnector
+          || connector instanceof GoogleDriveConnector)) {
+        String notified = "seda:" + getProject().getEndpointPrefix() + "notify.acct" + id;
+        webhooks.watch(account, notified);
+        RouteDefinition notifiedPoller = from(notified)
+            .routeId(routeName("NotifiedPoller-acct") + id)
+            .errorHandler(defaultErrorHandler())
+            .process(webhooks.pollStarted(Integer.toString(id)));
+        if (lease != null) {
+          notifiedPoller.process(lease.skipUnlessHeld());
+        }
+        notifiedPoller.process(breaker.skipWhenOpen())
+            .bean(connector, "pollNotified");
       }
 
     }
@@ -90,97 +328,321 @@ public class SyncRouter extends RouteBuilder {
      */
 
     /**
-     * ActionListener: receives exchanges resulting from polling cloud account
-     * changes & redirects them based on the required action specified in
-     * 'action' header
+     * EventCoalescer: receives exchanges resulting from polling cloud account
+     * changes & holds each one for a debounce window, merging repeated events
+     * for the same item so only their net effect reaches ActionListener, or
+     * the event queue read by the worker nodes. Deletes & new directories are
+     * cheap, so they are passed on at once, merged with any events held for
+     * their item. Held events are also kept on disk, until the event passed on
+     * for their item is done, so that they outlive a crash after their poll
+     * token is saved. Backfill checkpoints record each item once its event is
+     * done. The events of an account form one message group of the queue, so
+     * that one worker consumer handles them all, in order, with the account's
+     * item index up to date. No more than maxBufferedEvents items are held at
+     * once; events of further items wait for room on the connectors' threads.
+     */
+    String coalesced = eventQueue != null ? eventQueue : endpointUri("dispatch");
+    long debounceMillis = this.getProject().getDebounceMillis();
+    if (debounceMillis > 0) {
+      Expression item = simple("${header.account_id}:${header.source_id}");
+      EventCoalescingStrategy strategy = new EventCoalescingStrategy(getProject());
+      CoalescingRepository repository = new CoalescingRepository(getProject().getCoalescingStore(), strategy,
+          debounceMillis);
+      final CoalescingLimit coalescing = new CoalescingLimit(repository, item,
+          Integer.parseInt(getProject().readConfiguration("maxBufferedEvents", "10000")));
+      metrics.gauge("events_coalescing", new PipelineMetrics.Gauge() {
+        public long getValue() {
+          return coalescing.getPending();
+        }
+      });
+      from(endpointUri("actions"))
+          .routeId(routeName("EventCoalescer"))
+          .process(coalescing)
+          .aggregate(item, strategy)
+          .aggregationRepository(repository)
+          .completionTimeout(debounceMillis)
+          .completionPredicate(PredicateBuilder.or(delete, makedir)) // cheap, so not held back
+          .forceCompletionOnStop()
+          .parallelProcessing() // dont hold up the timeout checker with downloads
+          .process(repository.releasing())
+          .process(BackfillCheckpoint.recorder(getProject()))
+          .choice()
+          .when(none)
+          .log("Events for item ${header.source_id} cancelled each other out.")
+          .otherwise()
+          .setHeader("JMSXGroupID", header("account_id"))
+          .inOnly(coalesced);
+    } else {
+      from(endpointUri("actions"))
+          .routeId(routeName("EventCoalescer"))
+          .process(BackfillCheckpoint.recorder(getProject()))
+          .setHeader("JMSXGroupID", header("account_id"))
+          .inOnly(coalesced);
+    }
+
+    if (!work) {
+      return;
+    }
+
+    /**
+     * EventConsumer: receives events published to the event queue by the
+     * poller nodes & hands them to ActionListener. When the broker gives it an
+     * account's events that another consumer had, e.g. on a worker that died,
+     * it first catches up with the account's item index.
+     */
+    if (eventQueue != null) {
+      from(eventQueue + "?concurrentConsumers=" + getProject().readConfiguration("workerConsumers", "4"))
+          .routeId(routeName("EventConsumer"))
+          .filter(header("JMSXGroupFirstForConsumer").isEqualTo(true))
+          .process(new Processor() {
+            public void process(Exchange exchange) throws Exception {
+              getProject().getItemIndex(exchange.getIn().getHeader("account_id", String.class)).refresh();
+            }
+          })
+          .end()
+          .to(endpointUri("dispatch"));
+    }
+
+    /**
+     * ActionListener: receives coalesced exchanges & redirects them based on
+     * the required action specified in 'action' header
      */
-    from("direct:actions").streamCaching()
-        .routeId("ActionListener")
+    from(endpointUri("dispatch")).streamCaching()
+        .routeId(routeName("ActionListener"))
+        .process(buffer)
+        .process(metrics.startTimer("ActionListener"))
+        .process(metrics.eventCounter())
         .log("Received an event from cloud polling.")
+        .process(new MoveDetector(this.getProject()))
+        .process(metrics.stopTimer("ActionListener")) // the stages it dispatches to time themselves
         .choice()
+        .when(move)
+        .to(endpointUri("move.filesys"))
         .when(download)
-        .to("direct:download.filesys")
+        .toD(endpointUri("download.acct") + "${header.account_id}")
         .when(delete)
-        .to("direct:delete.filesys")
+        .to(endpointUri("delete.filesys"))
         .when(makedir)
-        .to("direct:makedir.filesys")
+        .to(endpointUri("makedir.filesys"))
         .otherwise()
-        .to("direct:default");
+        .to(endpointUri("default"));
 
     /**
      * FileDownloader: receives exchanges with info about a file to download &
      * its associated cloud account & processes with appropriate
      * CloudDownloadProcessor determined by 'account_type' header
      */
-    from("direct:download.filesys")
-        .routeId("FileDownloader")
+    from(endpointUri("download.filesys"))
+        .routeId(routeName("FileDownloader"))
+        .process(metrics.startTimer("FileDownloader"))
         .log("Request received to download a file from the cloud.")
         .choice()
+        .when(replayed) // replayed events keep their original account type
+        .process(new ReplayDownloadProcessor(this.getProject()))
+        .process(metrics.stopTimer("FileDownloader"))
+        .to(endpointUri("update.solr"))
         .when(box)
         .process(new BoxDownloadProcessor(this.getProject()))
-        .to("direct:update.solr")
+        .process(metrics.stopTimer("FileDownloader"))
+        .to(endpointUri("update.solr"))
         .when(dropbox)
         .process(new DropBoxDownloadProcessor(this.getProject()))
-        .to("direct:update.solr")
+        .process(metrics.stopTimer("FileDownloader"))
+        .to(endpointUri("update.solr"))
         .when(googledrive)
         .process(new GoogleDriveDownloadProcessor(this.getProject()))
-        .to("direct:update.solr")
+        .process(metrics.stopTimer("FileDownloader"))
+        .to(endpointUri("update.solr"))
+        .when(synthetic)
+        .process(new SyntheticDownloadProcessor(this.getProject()))
+        .process(metrics.stopTimer("FileDownloader"))
+        .to(endpointUri("update.solr"))
         .otherwise()
-        .to("direct:default");
+        .process(metrics.stopTimer("FileDownloader"))
+        .to(endpointUri("default"));
 
     /**
      * FileDeleter: receives message with info about a file to delete & handles
      * by deleting file on local system & sending message to SolrDeleter
      */
-    from("direct:delete.filesys")
-        .routeId("FileDeleter")
+    from(endpointUri("delete.filesys"))
+        .routeId(routeName("FileDeleter"))
+        .process(metrics.startTimer("FileDeleter"))
         .log("Deleting a file on local file system")
+        .process(queued.superseding())
         .process(new DeleteProcessor(this.getProject()))
-        .to("direct:delete.solr");
+        .process(metrics.stopTimer("FileDeleter"))
+        .to(endpointUri("delete.solr"));
 
     /**
      * DirectoryMaker: receives a message with info about a folder to make &
      * handles by making that directory on the local file system.
      */
-    from("direct:makedir.filesys")
-        .routeId("DirectoryMaker")
+    from(endpointUri("makedir.filesys"))
+        .routeId(routeName("DirectoryMaker"))
+        .process(metrics.startTimer("DirectoryMaker"))
         .log("Creating a directory on local file system")
         .process(new MakedirProcessor(this.getProject()))
-        .to("direct:update.solr");
+        .process(metrics.stopTimer("DirectoryMaker"))
+        .to(endpointUri("update.solr"));
+
+    /**
+     * ItemMover: receives a message with info about a renamed or moved item &
+     * handles by moving it on the local file system & sending its partial
+     * updates to SolrPartialUpdater. If the item's content changed as well, it
+     * is downloaded again; if it could not be moved, it is handed to
+     * ItemResyncer instead.
+     */
+    from(endpointUri("move.filesys"))
+        .routeId(routeName("ItemMover"))
+        .process(metrics.startTimer("ItemMover"))
+        .log("Moving an item on local file system")
+        .process(queued.superseding())
+        .process(new MoveProcessor(this.getProject()))
+        .process(metrics.stopTimer("ItemMover"))
+        .choice()
+        .when(header("move_failed").isEqualTo(true))
+        .to(endpointUri("resync.filesys"))
+        .otherwise()
+        .to(endpointUri("partial.solr"))
+        .end()
+        .filter(header("content_changed").isEqualTo(true))
+        .choice()
+        .when(folder)
+        .setHeader("action", constant("make_directory"))
+        .to(endpointUri("makedir.filesys"))
+        .otherwise()
+        .setHeader("action", constant("download"))
+        .toD(endpointUri("download.acct") + "${header.account_id}");
+
+    /**
+     * ItemResyncer: receives the events syncing an item that could not be
+     * moved again from the cloud, & handles each in turn: the delete of the
+     * item's previous path, then the item & everything below it at its new path
+     */
+    from(endpointUri("resync.filesys"))
+        .routeId(routeName("ItemResyncer"))
+        .log(LoggingLevel.WARN, "Syncing ${header.source_path} again after a failed move.")
+        .split(body())
+        .process(MoveProcessor.resyncEvent())
+        .choice()
+        .when(delete)
+        .to(endpointUri("delete.filesys"))
+        .when(makedir)
+        .to(endpointUri("makedir.filesys"))
+        .when(download)
+        .toD(endpointUri("download.acct") + "${header.account_id}");
 
     /**
-     * SolrUpdater: receives file exchange, processes it, & sends request to
-     * solr instance to index update
-     */
-    // TODO: Add Solr address for updates
-    // Example:
-    // https://github.com/Rameshb-umd/camel-solr/blob/feature/LIBWEB-3321/src/main/java/edu/umd/lib/routes/SolrRouter.java
-    from("direct:update.solr")
-        .routeId("SolrUpdater")
+     * SolrUpdater: receives file exchange & sends its index document to the
+     * project's index sink (a solr instance or embedded Lucene index)
+     */
+    RouteDefinition updater = from(endpointUri("update.solr"))
+        .routeId(routeName("SolrUpdater"))
         .log("Updating Solr object.");
-    // .to("http4://" + this.PROJECT.getSolrURL());
+    if (indexer != null) {
+      updater.process(metrics.startTimer("SolrUpdater"))
+          .bean(indexer, "update")
+          .process(metrics.stopTimer("SolrUpdater"));
+    }
+
+    /**
+     * SolrPartialUpdater: receives partial documents of moved items & queues
+     * them as atomic updates of name, path & parent to the project's index sink
+     */
+    RouteDefinition partialUpdater = from(endpointUri("partial.solr"))
+        .routeId(routeName("SolrPartialUpdater"))
+        .log("Updating moved Solr objects.");
+    if (indexer != null) {
+      partialUpdater.bean(indexer, "partialUpdate");
+    }
 
     /**
-     * SolrDeleter: receives file exchange, processes it, & sends request to
-     * solr instance to delete file from indexing
-     */
-    // TODO: Add Solr address for deletions
-    // Example:
-    // https://github.com/Rameshb-umd/camel-solr/blob/feature/LIBWEB-3321/src/main/java/edu/umd/lib/routes/SolrRouter.java
-    from("direct:delete.solr")
-        .routeId("SolrDeleter")
+     * SolrDeleter: receives file exchange & sends its deletion to the project's
+     * index sink
+     */
+    RouteDefinition deleter = from(endpointUri("delete.solr"))
+        .routeId(routeName("SolrDeleter"))
         .log("Deleting Solr object.");
-    // .to("http4://" + this.PROJECT.getSolrURL());
+    if (indexer != null) {
+      deleter.process(metrics.startTimer("SolrDeleter"))
+          .bean(indexer, "delete")
+          .process(metrics.stopTimer("SolrDeleter"));
+    }
 
     /**
      * Default Route
      */
-    from("direct:default")
-        .routeId("DefaultListener")
+    from(endpointUri("default"))
+        .routeId(routeName("DefaultListener"))
         .log(LoggingLevel.INFO, "Default Action");
 
   }
 
+  /**
+   * Gets the uri of one of this router's direct endpoints, namespaced by the
+   * project's endpoint prefix.
+   *
+   * @param name
+   * @return endpoint uri
+   */
+  private String endpointUri(String name) {
+    return "direct:" + getProject().getEndpointPrefix() + name;
+  }
+
+  /**
+   * Gets the id of one of this router's routes, namespaced by the project's
+   * endpoint prefix.
+   *
+   * @param name
+   * @return route id
+   */
+  private String routeName(String name) {
+    return getProject().getEndpointPrefix() + name;
+  }
+
+  /**
+   * Creates the connector polling a cloud account.
+   *
+   * @param account
+   * @return connector of the account's type
+   */
+  private CloudConnector createConnector(CloudAccount account) {
+    switch (account.getType()) {
+    case BOX:
+      return new BoxConnector(account, this.getProducer());
+    case DROPBOX:
+      return new DropBoxConnector(account, this.getProducer());
+    case GOOGLEDRIVE:
+      return new GoogleDriveConnector(account, this.getProducer());
+    case SYNTHETIC:
+      return new SyntheticConnector(account, this.getProducer());
+    case REPLAY:
+      return new ReplayConnector(account, this.getProducer());
+    default:
+      throw new IllegalArgumentException("Unknown account type: " + account.getType());
+    }
+  }
+
+  /**
+   * Creates the index sink named by this project's indexSink field: "solr" for
+   * a remote solr instance, "lucene" for an embedded Lucene index, or "none".
+   * Defaults to solr if a solrURL is configured.
+   *
+   * @return index sink of this project, or null if it is not indexed
+   */
+  private IndexSink createIndexSink() {
+    String defaultSink = this.getProject().getSolrURL() != null ? "solr" : "none";
+    String sink = this.getProject().readConfiguration("indexSink", defaultSink).toLowerCase();
+
+    if (sink.equals("solr")) {
+      return new SolrIndexer(getProject());
+    } else if (sink.equals("lucene")) {
+      return new LuceneIndexer(getProject());
+    }
+    return null;
+  }
+
   public PollingProject getProject() {
     return project;
   }
@@ -0,0 +1,286 @@
+package cloudpolling;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.ProducerTemplate;
+import org.apache.log4j.Logger;
+
+/**
+ * Represents a synthetic cloud account, which produces a configurable stream
+ * of changes to files that SyntheticDownloadProcessor generates locally. It
+ * is used to measure the sustained events & bytes per second the sync
+ * pipeline handles, with no network involved.
+ *
+ * The stream creates files of log-normally distributed sizes in a folder tree
+ * of configurable depth & fan-out, making each folder the first time it is
+ * used. Once files exist, each event may instead rename, update or delete a
+ * random file, or repeat the previous event, as providers sometimes do. The
+ * stream is reproducible from its seed.
+ *
+ * @author tlarrue
+ *
+ */
+public class SyntheticConnector extends CloudConnector {
+
+  private String accountID;
+  private long seed;
+  private long eventCount;
+  private double eventsPerSecond;
+  private long medianFileBytes;
+  private double fileSizeSigma;
+  private long maxFileBytes;
+  private int folderDepth;
+  private int foldersPerLevel;
+  private double renameRatio;
+  private double updateRatio;
+  private double deleteRatio;
+  private double duplicateRatio;
+  private int run;
+
+  private Random random;
+  private ArrayList<SyntheticFile> files = new ArrayList<SyntheticFile>();
+  private Set<String> folders = new HashSet<String>();
+  private HashMap<String, String> lastEvent;
+  private long sent;
+  private long bytes;
+  private long nextFileID;
+
+  private static Logger log = Logger.getLogger(SyntheticConnector.class);
+
+  /**
+   * A file of the synthetic stream that currently exists.
+   */
+  private static class SyntheticFile {
+    String id;
+    String name;
+    String folder;
+    long size;
+    int version;
+  }
+
+  /**
+   * Constructs a synthetic connector from a cloud account and a producer
+   * template
+   *
+   * @param account
+   * @param producer
+   */
+  public SyntheticConnector(CloudAccount account, ProducerTemplate producer) {
+    super(account, producer);
+    setStreamInfo(account.getConfiguration());
+  }
+
+  /**
+   * Sets the shape of this account's change stream from its configuration.
+   *
+   * @param config
+   */
+  private void setStreamInfo(Properties config) {
+    this.accountID = config.getProperty("configID");
+    this.seed = Long.parseLong(config.getProperty("seed", "1"));
+    this.eventCount = Long.parseLong(config.getProperty("eventCount", "100000"));
+    this.eventsPerSecond = Double.parseDouble(config.getProperty("eventsPerSecond", "0"));
+    this.medianFileBytes = Long.parseLong(config.getProperty("medianFileBytes", "32768"));
+    this.fileSizeSigma = Double.parseDouble(config.getProperty("fileSizeSigma", "1.5"));
+    this.maxFileBytes = Long.parseLong(config.getProperty("maxFileBytes", "16777216"));
+    this.folderDepth = Integer.parseInt(config.getProperty("folderDepth", "4"));
+    this.foldersPerLevel = Integer.parseInt(config.getProperty("foldersPerLevel", "4"));
+    this.renameRatio = Double.parseDouble(config.getProperty("renameRatio", "0.1"));
+    this.updateRatio = Double.parseDouble(config.getProperty("updateRatio", "0.1"));
+    this.deleteRatio = Double.parseDouble(config.getProperty("deleteRatio", "0.05"));
+    this.duplicateRatio = Double.parseDouble(config.getProperty("duplicateRatio", "0.05"));
+    this.run = Integer.parseInt(config.getProperty("pollToken", "0"));
+  }
+
+  /**
+   * Sends eventCount events (or events until interrupted, if eventCount is 0)
+   * to ActionListener, paced at eventsPerSecond (or as fast as they are
+   * accepted, if eventsPerSecond is 0). The poll token counts runs, so that
+   * each poll creates new files rather than replaying the last poll's. Each
+   * poll starts a new stream, so repeated polls of a running project send
+   * eventCount events each.
+   */
+  public void poll() {
+    random = new Random(seed * 31 + run);
+    files = new ArrayList<SyntheticFile>();
+    folders = new HashSet<String>();
+    lastEvent = null;
+    sent = 0;
+    bytes = 0;
+    nextFileID = 0;
+    log.info("Sending synthetic changes for account " + accountID + " (run " + run + ")...");
+
+    long start = System.nanoTime();
+    long interval = eventsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / eventsPerSecond) : 0;
+
+    try {
+      while (eventCount == 0 || sent < eventCount) {
+        if (interval > 0) {
+          long wait = start + sent * interval - System.nanoTime();
+          if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+          }
+        } else if (Thread.currentThread().isInterrupted()) {
+          break;
+        }
+        nextEvent();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    double seconds = (System.nanoTime() - start) / 1e9;
+    log.info(String.format("Sent %d synthetic events (%d bytes of files) for account %s in %.1fs: "
+        + "%.0f events/s, %.0f bytes/s", sent, bytes, accountID, seconds, sent / seconds, bytes / seconds));
+
+    run++;
+    this.getAccount().updateConfiguration("pollToken", Integer.toString(run));
+  }
+
+  /**
+   * Sends the next event of the stream.
+   */
+  private void nextEvent() {
+    if (lastEvent != null && random.nextDouble() < duplicateRatio) {
+      send(new HashMap<String, String>(lastEvent));
+      return;
+    }
+
+    double choice = files.isEmpty() ? 1 : random.nextDouble();
+    if (choice < deleteRatio) {
+      deleteFile(random.nextInt(files.size()));
+    } else if (choice < deleteRatio + renameRatio) {
+      renameFile(files.get(random.nextInt(files.size())));
+    } else if (choice < deleteRatio + renameRatio + updateRatio) {
+      SyntheticFile file = files.get(random.nextInt(files.size()));
+      file.version++;
+      file.size = nextFileSize();
+      sendFile(file);
+    } else {
+      createFile();
+    }
+  }
+
+  private void createFile() {
+    SyntheticFile file = new SyntheticFile();
+    file.id = "syn" + run + "-" + nextFileID++;
+    file.name = "file" + file.id + ".txt";
+    file.folder = nextFolder();
+    file.size = nextFileSize();
+    files.add(file);
+    sendFile(file);
+  }
+
+  /**
+   * Renames a file, moving it to another folder half of the time. Its content
+   * is unchanged.
+   */
+  private void renameFile(SyntheticFile file) {
+    file.name = "renamed" + sent + "-" + file.id + ".txt";
+    if (random.nextBoolean()) {
+      file.folder = nextFolder();
+    }
+    sendFile(file);
+  }
+
+  private void deleteFile(int index) {
+    // swap in the last file so removal is constant time
+    SyntheticFile file = files.get(index);
+    files.set(index, files.get(files.size() - 1));
+    files.remove(files.size() - 1);
+
+    HashMap<String, String> headers = new HashMap<String, String>();
+    headers.put("action", "delete");
+    headers.put("source_id", file.id);
+    headers.put("source_path", pathOf(file.folder, file.name));
+    headers.put("source_type", "file");
+    send(headers);
+  }
+
+  /**
+   * Sends a download event for a file's current name, folder & version. The
+   * version's size & number are its details, from which
+   * SyntheticDownloadProcessor generates its content.
+   */
+  private void sendFile(SyntheticFile file) {
+    String details = file.size + ":" + file.version;
+
+    HashMap<String, String> headers = new HashMap<String, String>();
+    headers.put("action", "download");
+    headers.put("source_id", file.id);
+    headers.put("source_name", file.name);
+    headers.put("source_path", pathOf(file.folder, file.name));
+    headers.put("parent_id", folderID(file.folder));
+    headers.put("details", details);
+    headers.put("content_hash", details);
+    headers.put("size", Long.toString(file.size));
+    headers.put("source_type", "file");
+    headers.put("metadata", "none");
+    send(headers);
+    bytes += file.size;
+  }
+
+  /**
+   * Picks a folder at a random depth, sending a make_directory event for it &
+   * each of its ancestors the first time they are used.
+   *
+   * @return path of the folder, empty for the root folder
+   */
+  private String nextFolder() {
+    String path = "";
+    int depth = folderDepth > 0 ? random.nextInt(folderDepth + 1) : 0;
+    for (int level = 0; level < depth; level++) {
+      String parent = path;
+      String name = "folder" + random.nextInt(Math.max(1, foldersPerLevel));
+      path = pathOf(parent, name);
+      if (folders.add(path)) {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("action", "make_directory");
+        headers.put("source_id", folderID(path));
+        headers.put("source_name", name);
+        headers.put("source_path", path);
+        headers.put("parent_id", folderID(parent));
+        headers.put("source_type", "folder");
+        headers.put("metadata", "none");
+        send(headers);
+      }
+    }
+    return path;
+  }
+
+  /**
+   * Draws a file size from a log-normal distribution around medianFileBytes,
+   * capped at maxFileBytes.
+   */
+  private long nextFileSize() {
+    double size = medianFileBytes * Math.exp(fileSizeSigma * random.nextGaussian());
+    return Math.min(maxFileBytes, Math.round(size));
+  }
+
+  private void send(HashMap<String, String> headers) {
+    headers.put("account_type", "synthetic");
+    headers.put("account_id", accountID);
+    lastEvent = new HashMap<String, String>(headers);
+    sendActionExchange(headers, "");
+    sent++;
+  }
+
+  private static String pathOf(String folder, String name) {
+    return folder.isEmpty() ? name : folder + "/" + name;
+  }
+
+  private static String folderID(String path) {
+    return path.isEmpty() ? "0" : "dir:" + path; // dummy ID for root folder
+  }
+
+  public String getAccountID() {
+    return accountID;
+  }
+
+}
@@ -0,0 +1,98 @@
+package cloudpolling;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.apache.camel.Exchange;
+import org.apache.log4j.Logger;
+
+/**
+ * Generates the content of a SyntheticConnector file in place of downloading
+ * it: plain text of the size given by header "details", the same for the same
+ * file version each time.
+ *
+ * @author tlarrue
+ *
+ */
+public class SyntheticDownloadProcessor extends CloudDownloadProcessor {
+
+  private static final byte[][] WORDS;
+  static {
+    String[] words = ("archive collection digital preservation library metadata record university research data "
+        + "storage cloud account folder file sync index search catalog access policy retention format migration")
+            .split(" ");
+    WORDS = new byte[words.length][];
+    for (int i = 0; i < words.length; i++) {
+      WORDS[i] = (words[i] + " ").getBytes();
+    }
+  }
+
+  private static Logger log = Logger.getLogger(SyntheticDownloadProcessor.class);
+
+  public SyntheticDownloadProcessor(PollingProject project) {
+    super(project);
+  }
+
+  @Override
+  public void process(Exchange exchange) throws Exception {
+
+    // Get source file info
+    String accountID = exchange.getIn().getHeader("account_id", String.class);
+    String sourceID = exchange.getIn().getHeader("source_id", String.class);
+    String sourcePath = exchange.getIn().getHeader("source_path", String.class);
+    String details = exchange.getIn().getHeader("details", String.class);
+    long size = Long.parseLong(details.substring(0, details.indexOf(':')));
+
+    // Get download destination
+    String dest = Paths.get(getProject().getSyncFolder(), "acct" + accountID, sourcePath).toString();
+
+    log.info("Generating a synthetic file for account " + accountID + " at destination: " + dest);
+
+    File file = new File(dest);
+    file.getParentFile().mkdirs();
+
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+    try {
+      write(out, size, new Random(sourceID.hashCode() * 31L + details.hashCode()));
+    } finally {
+      out.close();
+    }
+
+    // create JSON for SolrUpdater exchange
+    log.info("Creating JSON for indexing synthetic file with ID:" + sourceID);
+    super.process(exchange);
+  }
+
+  /**
+   * Writes size bytes of random words from the given generator, in lines of
+   * about 80 characters.
+   *
+   * @param out
+   * @param size
+   * @param random
+   * @throws IOException
+   */
+  static void write(OutputStream out, long size, Random random) throws IOException {
+    long written = 0;
+    int line = 0;
+    while (written < size) {
+      byte[] word = WORDS[random.nextInt(WORDS.length)];
+      int length = (int) Math.min(word.length, size - written);
+      if (line + length > 80) {
+        out.write('\n');
+        written++;
+        line = 0;
+        continue;
+      }
+      out.write(word, 0, length);
+      written += length;
+      line += length;
+    }
+  }
+
+}
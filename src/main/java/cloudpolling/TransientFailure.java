@@ -0,0 +1,72 @@
+package cloudpolling;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Predicate;
+
+import com.box.sdk.BoxAPIException;
+import com.dropbox.core.NetworkIOException;
+import com.dropbox.core.RetryException;
+import com.dropbox.core.ServerException;
+import com.google.api.client.http.HttpResponseException;
+
+/**
+ * Matches exchanges that failed for a reason that may go away on its own, such
+ * as a network error, a provider's server error or throttling, which are worth
+ * retrying. Other failures, like a missing item or a bad configuration, are not.
+ *
+ * @author tlarrue
+ *
+ */
+public class TransientFailure implements Predicate {
+
+  public boolean matches(Exchange exchange) {
+    Throwable failure = exchange.getException();
+    if (failure == null) {
+      failure = exchange.getProperty(Exchange.EXCEPTION_CAUGHT, Throwable.class);
+    }
+    return isTransient(failure);
+  }
+
+  /**
+   * Returns true if the given failure, or any of its causes, is transient.
+   *
+   * @param failure
+   * @return true if the failure may succeed when retried
+   */
+  public static boolean isTransient(Throwable failure) {
+    for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+
+      if (cause instanceof HttpResponseException) {
+        return isTransientStatus(((HttpResponseException) cause).getStatusCode());
+
+      } else if (cause instanceof BoxAPIException) {
+        int status = ((BoxAPIException) cause).getResponseCode();
+        // Box reports network errors without a response code
+        return status == 0 || isTransientStatus(status);
+
+      } else if (cause instanceof RetryException || cause instanceof ServerException
+          || cause instanceof NetworkIOException) {
+        return true;
+
+      } else if (cause instanceof FileNotFoundException) {
+        return false;
+
+      } else if (cause instanceof IOException) {
+        return true;
+      }
+
+      if (cause.getCause() == cause) {
+        break;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isTransientStatus(int status) {
+    return status == 408 || status == 429 || status >= 500;
+  }
+
+}
@@ -0,0 +1,416 @@
+package cloudpolling;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.Service;
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.google.api.client.util.Base64;
+import com.google.api.client.util.DateTime;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Receives the change notifications of cloud providers at
+ * http://&lt;host&gt;:&lt;port&gt;/webhooks/&lt;provider&gt;, and polls the
+ * changes of the accounts they name at once instead of waiting for their next
+ * poll:
+ *
+ * /webhooks/box/&lt;account&gt; takes Box webhooks, signed with the account's
+ * webhookPrimaryKey or webhookSecondaryKey (HMAC-SHA256 of the body & the
+ * BOX-DELIVERY-TIMESTAMP header, which must be less than 10 minutes old).
+ *
+ * /webhooks/dropbox takes DropBox webhooks, signed with the app secret of the
+ * project's DropBox accounts (X-Dropbox-Signature header), polling each
+ * account whose app signed it & whose user it lists. It answers the challenge
+ * DropBox sends when the webhook is registered.
+ *
+ * /webhooks/googledrive/&lt;account&gt; takes the notifications of the
+ * Google Drive channel the account watches its changes through, carrying the
+ * account's webhookToken (X-Goog-Channel-Token header).
+ *
+ * Notifications that fail verification are refused. While a notified poll of
+ * an account is waiting to start, further notifications of the account are
+ * merged into it; notifications arriving while it runs start one more.
+ *
+ * @author tlarrue
+ *
+ */
+public class WebhookReceiver implements Service {
+
+  private static final int MAX_BODY_BYTES = 1 << 20;
+  private static final long MAX_TIMESTAMP_AGE_MILLIS = 10 * 60 * 1000;
+
+  private final PollingProject project;
+  private final ProducerTemplate producer;
+  private final int port;
+  private final LinkedHashMap<String, Watched> accounts = new LinkedHashMap<String, Watched>();
+  private HttpServer server;
+
+  private static Logger log = Logger.getLogger(WebhookReceiver.class);
+
+  /**
+   * Constructs a receiver of a project's webhooks.
+   *
+   * @param project
+   * @param producer
+   * @param port
+   *          port to listen on, on all interfaces
+   */
+  public WebhookReceiver(PollingProject project, ProducerTemplate producer, int port) {
+    this.project = project;
+    this.producer = producer;
+    this.port = port;
+  }
+
+  /**
+   * Polls an account at an endpoint when its provider notifies this receiver
+   * of a change.
+   *
+   * @param account
+   * @param pollUri
+   *          endpoint polling the account's changes
+   */
+  public synchronized void watch(CloudAccount account, String pollUri) {
+    accounts.put(Integer.toString(account.getID()), new Watched(account, pollUri));
+  }
+
+  /**
+   * Creates a processor marking the start of a notified poll of an account,
+   * from which on notifications start another poll.
+   *
+   * @param accountID
+   * @return processor
+   */
+  public Processor pollStarted(final String accountID) {
+    return new Processor() {
+      public void process(Exchange exchange) throws Exception {
+        Watched watched = find(accountID);
+        if (watched != null) {
+          watched.pending.set(false);
+        }
+      }
+    };
+  }
+
+  public void start() throws Exception {
+    server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/webhooks/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          receive(exchange);
+        } catch (RuntimeException e) {
+          log.error("Could not handle webhook " + exchange.getRequestURI(), e);
+          respond(exchange, 500, "error");
+        }
+      }
+    });
+    server.start();
+    log.info("Receiving webhooks of project '" + project.getName() + "' at http://*:" + port + "/webhooks/");
+  }
+
+  public void stop() throws Exception {
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  private void receive(HttpExchange exchange) throws IOException {
+    String[] path = exchange.getRequestURI().getPath().split("/");
+    String provider = path.length > 2 ? path[2] : "";
+    String accountID = path.length > 3 ? path[3] : null;
+    String method = exchange.getRequestMethod();
+
+    if (provider.equals("dropbox") && method.equals("GET")) {
+      // DropBox checks a webhook by having it echo a challenge
+      String challenge = query(exchange, "challenge");
+      exchange.getResponseHeaders().set("X-Content-Type-Options", "nosniff");
+      respond(exchange, challenge != null ? 200 : 400, challenge != null ? challenge : "no challenge");
+      return;
+    }
+    if (!method.equals("POST")) {
+      respond(exchange, 405, "method not allowed");
+      return;
+    }
+    byte[] body = readBody(exchange);
+    if (body == null) {
+      respond(exchange, 413, "too large");
+      return;
+    }
+
+    if (provider.equals("box") || provider.equals("googledrive")) {
+      Watched watched = find(accountID);
+      if (watched == null || !watched.account.getType().name().equalsIgnoreCase(provider)) {
+        respond(exchange, 404, "unknown account");
+        return;
+      }
+      boolean verified = provider.equals("box") ? verifyBox(watched.account, exchange, body)
+          : verifyGoogleDrive(watched.account, exchange);
+      if (!verified) {
+        reject(watched, exchange);
+        return;
+      }
+      // a new Drive channel first confirms it is set up, with no change
+      if (!"sync".equals(exchange.getRequestHeaders().getFirst("X-Goog-Resource-State"))) {
+        notify(watched);
+      }
+      respond(exchange, 200, "ok");
+
+    } else if (provider.equals("dropbox")) {
+      String signature = exchange.getRequestHeaders().getFirst("X-Dropbox-Signature");
+      List<Watched> signed = new ArrayList<Watched>();
+      for (Watched watched : watchedOf(CloudAccount.Type.DROPBOX)) {
+        String secret = watched.account.getConfiguration().getProperty("appSecret", "").trim();
+        if (signature != null && !secret.isEmpty() && matches(signature, hex(hmac(secret, body)))) {
+          signed.add(watched);
+        }
+      }
+      if (signed.isEmpty()) {
+        log.warn("Refused DropBox webhook of project '" + project.getName() + "': signature does not match.");
+        respond(exchange, 403, "forbidden");
+        return;
+      }
+      JSONObject notification;
+      try {
+        notification = new JSONObject(new String(body, "UTF-8"));
+      } catch (JSONException e) {
+        respond(exchange, 400, "malformed");
+        return;
+      }
+      for (Watched watched : signed) {
+        if (lists(notification, watched.account.getConfiguration().getProperty("userID", ""))) {
+          notify(watched);
+        }
+      }
+      respond(exchange, 200, "ok");
+
+    } else {
+      respond(exchange, 404, "unknown provider");
+    }
+  }
+
+  /**
+   * Checks the signatures of a Box webhook against the account's keys. Box
+   * signs with both keys, so that either can be rotated at a time.
+   */
+  private boolean verifyBox(CloudAccount account, HttpExchange exchange, byte[] body) throws IOException {
+    String timestamp = exchange.getRequestHeaders().getFirst("BOX-DELIVERY-TIMESTAMP");
+    if (timestamp == null) {
+      return false;
+    }
+    try {
+      long sent = DateTime.parseRfc3339(timestamp).getValue();
+      if (Math.abs(System.currentTimeMillis() - sent) > MAX_TIMESTAMP_AGE_MILLIS) {
+        return false; // may be a replay
+      }
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    ByteArrayOutputStream signed = new ByteArrayOutputStream();
+    signed.write(body);
+    signed.write(timestamp.getBytes("UTF-8"));
+    String[][] keys = { { "webhookPrimaryKey", "BOX-SIGNATURE-PRIMARY" },
+        { "webhookSecondaryKey", "BOX-SIGNATURE-SECONDARY" } };
+    for (String[] key : keys) {
+      String secret = account.getConfiguration().getProperty(key[0], "").trim();
+      String signature = exchange.getRequestHeaders().getFirst(key[1]);
+      if (!secret.isEmpty() && signature != null
+          && matches(signature, Base64.encodeBase64String(hmac(secret, signed.toByteArray())))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks the token of a Google Drive channel notification against the
+   * account's webhookToken.
+   */
+  private boolean verifyGoogleDrive(CloudAccount account, HttpExchange exchange) {
+    String expected = account.getConfiguration().getProperty("webhookToken", "").trim();
+    String token = exchange.getRequestHeaders().getFirst("X-Goog-Channel-Token");
+    return !expected.isEmpty() && token != null && matches(token, expected);
+  }
+
+  /**
+   * Returns true if a DropBox notification lists a user, or the user is not
+   * known, in which case every account of the app is polled.
+   */
+  private static boolean lists(JSONObject notification, String userID) {
+    if (userID.trim().isEmpty() || userID.startsWith("DO_NOT_FILL")) {
+      return true;
+    }
+    JSONObject listFolder = notification.optJSONObject("list_folder");
+    JSONObject delta = notification.optJSONObject("delta");
+    JSONArray[] lists = { listFolder != null ? listFolder.optJSONArray("accounts") : null,
+        delta != null ? delta.optJSONArray("users") : null };
+    for (JSONArray list : lists) {
+      for (int i = 0; list != null && i < list.length(); i++) {
+        if (userID.equals(String.valueOf(list.opt(i)))) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Starts a notified poll of an account, unless one is already waiting to.
+   */
+  private void notify(Watched watched) {
+    String accountID = Integer.toString(watched.account.getID());
+    if (!watched.pending.compareAndSet(false, true)) {
+      project.getMetrics().counter("webhook_notifications_total", "account", accountID, "result", "merged")
+          .incrementAndGet();
+      return;
+    }
+    project.getMetrics().counter("webhook_notifications_total", "account", accountID, "result", "polled")
+        .incrementAndGet();
+    log.info("Webhook notified account " + accountID + " of project '" + project.getName() + "' of changes.");
+    try {
+      producer.sendBody(watched.pollUri, null);
+    } catch (RuntimeException e) {
+      watched.pending.set(false);
+      throw e;
+    }
+  }
+
+  private void reject(Watched watched, HttpExchange exchange) throws IOException {
+    String accountID = Integer.toString(watched.account.getID());
+    project.getMetrics().counter("webhook_notifications_total", "account", accountID, "result", "rejected")
+        .incrementAndGet();
+    log.warn("Refused webhook for account " + accountID + " of project '" + project.getName()
+        + "': it could not be verified.");
+    respond(exchange, 403, "forbidden");
+  }
+
+  private synchronized Watched find(String accountID) {
+    return accountID == null ? null : accounts.get(accountID);
+  }
+
+  private synchronized List<Watched> watchedOf(CloudAccount.Type type) {
+    List<Watched> matching = new ArrayList<Watched>();
+    for (Watched watched : accounts.values()) {
+      if (watched.account.getType() == type) {
+        matching.add(watched);
+      }
+    }
+    return matching;
+  }
+
+  private static byte[] hmac(String secret, byte[] data) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256"));
+      return mac.doFinal(data);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("HmacSHA256 is not available", e);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Compares a signature in constant time, so that its timing does not give
+   * away how much of it was right.
+   */
+  private static boolean matches(String signature, String expected) {
+    try {
+      return MessageDigest.isEqual(signature.trim().getBytes("UTF-8"), expected.getBytes("UTF-8"));
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static String query(HttpExchange exchange, String name) {
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query == null) {
+      return null;
+    }
+    for (String pair : query.split("&")) {
+      if (pair.startsWith(name + "=")) {
+        try {
+          return URLDecoder.decode(pair.substring(name.length() + 1), "UTF-8");
+        } catch (IOException e) {
+          return null;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static byte[] readBody(HttpExchange exchange) throws IOException {
+    InputStream in = exchange.getRequestBody();
+    try {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        body.write(buffer, 0, read);
+        if (body.size() > MAX_BODY_BYTES) {
+          return null;
+        }
+      }
+      return body.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+    byte[] body = text.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(body);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * An account polled on notification, and whether a notified poll of it is
+   * waiting to start.
+   */
+  private static class Watched {
+    final CloudAccount account;
+    final String pollUri;
+    final AtomicBoolean pending = new AtomicBoolean();
+
+    Watched(CloudAccount account, String pollUri) {
+      this.account = account;
+      this.pollUri = pollUri;
+    }
+  }
+
+}
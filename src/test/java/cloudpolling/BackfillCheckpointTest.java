@@ -0,0 +1,157 @@
+package cloudpolling;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that a backfill checkpoint records the events of an account's backfill
+ * once they have completed & their index updates have been sent, and that a
+ * backfill read back from its journal resumes after them. Events pass through
+ * a route with the checkpoint's recorder, whose index sink is a hold released
+ * by the test.
+ *
+ * @author tlarrue
+ *
+ */
+public class BackfillCheckpointTest extends TestCase {
+
+  private PollingProject project;
+  private CloudAccount account;
+  private BackfillCheckpoint checkpoint;
+  private CamelContext context;
+  private ProducerTemplate producer;
+  private final Map<String, BackfillCheckpoint.Completion> batched =
+      new HashMap<String, BackfillCheckpoint.Completion>();
+
+  @Override
+  protected void setUp() throws Exception {
+    project = TestFixtures.createProject("backfilltest", new Properties());
+    account = TestFixtures.createAccount(project, 1, CloudAccount.Type.BOX, new Properties());
+    checkpoint = project.getBackfillCheckpoint(account);
+
+    context = new DefaultCamelContext();
+    context.addRoutes(new RouteBuilder() {
+      public void configure() {
+        from("direct:actions")
+            .process(BackfillCheckpoint.recorder(project))
+            .process(new Processor() {
+              public void process(Exchange exchange) throws Exception {
+                if ("fail".equals(exchange.getIn().getHeader("action"))) {
+                  throw new IllegalStateException("Could not sync " + exchange.getIn().getHeader("source_id"));
+                }
+                batched.put(exchange.getIn().getHeader("source_id", String.class),
+                    BackfillCheckpoint.hold(exchange));
+              }
+            });
+      }
+    });
+    context.start();
+    producer = context.createProducerTemplate();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    context.stop();
+    TestFixtures.delete(project.getProjectDir().getParentFile());
+  }
+
+  public void testRecordsItemOnceItsIndexUpdateIsSent() throws Exception {
+    checkpoint.start("42");
+    checkpoint.beginFolder("10");
+    send("11", "download");
+    checkpoint.endFolder();
+
+    assertFalse(new BackfillCheckpoint(account).isItemCompleted("11")); // still in the index batch
+    assertFalse(checkpoint.isFolderCompleted("10"));
+
+    batched.get("11").release(true);
+    assertTrue(new BackfillCheckpoint(account).isItemCompleted("11"));
+    assertTrue(checkpoint.isFolderCompleted("10"));
+  }
+
+  public void testResumesAfterCompletedItems() throws Exception {
+    checkpoint.start("42");
+    checkpoint.beginFolder("10");
+    send("11", "download");
+    send("12", "download");
+    checkpoint.endFolder();
+    batched.get("11").release(true); // 12 is lost with its batch
+
+    BackfillCheckpoint resumed = new BackfillCheckpoint(account);
+    assertTrue(resumed.isStarted());
+    assertEquals("42", resumed.getPollToken());
+    assertTrue(resumed.isItemCompleted("11"));
+    assertFalse(resumed.isItemCompleted("12"));
+    assertFalse(resumed.isFolderCompleted("10"));
+  }
+
+  public void testFailedEventHoldsBackBackfill() throws Exception {
+    checkpoint.start("42");
+    checkpoint.beginFolder("10");
+    send("11", "download");
+    send("12", "fail");
+    checkpoint.endFolder();
+    batched.get("11").release(true);
+    checkpoint.crawled();
+
+    assertFalse(new BackfillCheckpoint(account).isItemCompleted("12"));
+    assertFalse(checkpoint.isFolderCompleted("10"));
+    assertFalse(checkpoint.isComplete());
+    assertEquals("0", account.readConfiguration("pollToken"));
+  }
+
+  public void testUnsentIndexBatchHoldsBackBackfill() throws Exception {
+    checkpoint.start("42");
+    send("11", "download");
+    batched.get("11").release(false);
+    checkpoint.crawled();
+
+    assertFalse(new BackfillCheckpoint(account).isItemCompleted("11"));
+    assertFalse(checkpoint.isComplete());
+  }
+
+  public void testCompletesOnceEveryItemIsSent() throws Exception {
+    checkpoint.start("42");
+    checkpoint.beginFolder("10");
+    send("11", "download");
+    send("12", "delete");
+    checkpoint.endFolder();
+    checkpoint.crawled();
+    batched.get("11").release(true);
+    assertFalse(checkpoint.isComplete());
+
+    batched.get("12").release(true);
+    assertTrue(checkpoint.isComplete());
+    assertEquals("42", account.readConfiguration("pollToken"));
+    assertFalse(BackfillCheckpoint.journalFile(project, "1").exists());
+  }
+
+  /**
+   * Sends the event of an item of the folder being listed.
+   */
+  private void send(String id, String action) {
+    checkpoint.sent(id);
+    Map<String, Object> headers = new HashMap<String, Object>();
+    headers.put("account_id", "1");
+    headers.put("source_id", id);
+    headers.put("action", action);
+    producer.send("direct:actions", exchange(headers));
+  }
+
+  private Exchange exchange(Map<String, Object> headers) {
+    Exchange exchange = context.getEndpoint("direct:actions").createExchange();
+    exchange.getIn().setHeaders(headers);
+    return exchange;
+  }
+
+}
@@ -0,0 +1,165 @@
+package cloudpolling;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+
+import com.box.sdk.BoxAPIConnection;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that BoxEnricher sends the events of a Box account in order, with the
+ * info fetched for them, against a stub of the Box API that knows files "1" &
+ * "2", in folder "reports", answers 404 for file "9" & 500 for file "5".
+ *
+ * @author tlarrue
+ *
+ */
+public class BoxEnricherTest extends TestCase {
+
+  private HttpServer box;
+  private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+  private PollingProject project;
+  private CamelContext context;
+  private BoxEnricher enricher;
+
+  @Override
+  protected void setUp() throws Exception {
+    box = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    box.createContext("/2.0/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        requests.add(path);
+        String id = path.replaceAll("^/2.0/files/([^/]+).*$", "$1");
+        if (path.contains("/metadata/") || id.equals("9")) {
+          respond(exchange, 404, "{\"type\":\"error\",\"status\":404,\"code\":\"not_found\"}");
+        } else if (id.equals("5")) {
+          respond(exchange, 500, "{\"type\":\"error\",\"status\":500}");
+        } else {
+          String parent = "{\"type\":\"folder\",\"id\":\"7\",\"name\":\"reports\"}";
+          respond(exchange, 200, "{\"type\":\"file\",\"id\":\"" + id + "\",\"name\":\"file" + id
+              + ".txt\",\"sha1\":\"sha" + id + "\",\"size\":" + id + "0,\"parent\":" + parent
+              + ",\"path_collection\":{\"total_count\":2,\"entries\":["
+              + "{\"type\":\"folder\",\"id\":\"0\",\"name\":\"All Files\"}," + parent + "]}}");
+        }
+      }
+    });
+    box.start();
+
+    project = TestFixtures.createProject("enrichtest", new Properties());
+    context = new DefaultCamelContext();
+    context.addRoutes(new RouteBuilder() {
+      public void configure() {
+        from("direct:" + project.getEndpointPrefix() + "actions").to("mock:actions");
+      }
+    });
+    context.start();
+
+    CloudAccount account = TestFixtures.createAccount(project, 1, CloudAccount.Type.BOX, new Properties());
+    BoxConnector connector = new BoxConnector(account, context.createProducerTemplate());
+    BoxAPIConnection api = new BoxAPIConnection("token");
+    api.setBaseURL("http://localhost:" + box.getAddress().getPort() + "/2.0/");
+    api.setMaxRequestAttempts(1);
+    enricher = new BoxEnricher(connector, api, 4, BoxEnricher.newMetadataCache(), 60000);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    enricher.shutdown();
+    context.stop();
+    box.stop(0);
+    TestFixtures.delete(project.getProjectDir().getParentFile());
+  }
+
+  public void testSendsEventsInOrderWithFetchedInfo() throws Exception {
+    enricher.submitFile(event("1", "download"), "", "1");
+    enricher.submit(event("3", "delete"), "");
+    enricher.submitFile(event("2", "download"), "", "2");
+    enricher.submitFile(event("1", "download"), "", "1");
+    enricher.flush();
+
+    List<Exchange> sent = sent();
+    assertEquals(4, sent.size());
+    String[] ids = { "1", "3", "2", "1" };
+    for (int i = 0; i < ids.length; i++) {
+      assertEquals(ids[i], sent.get(i).getIn().getHeader("source_id"));
+    }
+    assertEquals("sha1", sent.get(0).getIn().getHeader("content_hash"));
+    assertEquals("10", sent.get(0).getIn().getHeader("size"));
+    assertEquals("7", sent.get(0).getIn().getHeader("parent_id"));
+    assertEquals("reports/file1.txt", sent.get(0).getIn().getHeader("source_path"));
+    assertEquals("none", sent.get(0).getIn().getHeader("metadata"));
+    assertEquals("sha2", sent.get(2).getIn().getHeader("content_hash"));
+    assertEquals("sha1", sent.get(3).getIn().getHeader("content_hash"));
+
+    // the events of file 1 shared one fetch
+    assertEquals(1, Collections.frequency(requests, "/2.0/files/1"));
+  }
+
+  public void testSendsEventOfGoneFileAsDelete() throws Exception {
+    enricher.submitFile(event("9", "download"), "", "9");
+    enricher.submitFile(event("1", "download"), "", "1");
+    enricher.flush();
+
+    List<Exchange> sent = sent();
+    assertEquals(2, sent.size());
+    assertEquals("9", sent.get(0).getIn().getHeader("source_id"));
+    assertEquals("delete", sent.get(0).getIn().getHeader("action"));
+    assertEquals("download", sent.get(1).getIn().getHeader("action"));
+  }
+
+  public void testFailsFlushOnServerError() throws Exception {
+    enricher.submitFile(event("1", "download"), "", "1");
+    enricher.submitFile(event("5", "download"), "", "5");
+    enricher.submitFile(event("2", "download"), "", "2");
+    try {
+      enricher.flush();
+      fail("flush should fail while file 5 cannot be fetched");
+    } catch (IllegalStateException e) {
+      // the page is polled again
+    }
+
+    // only the event before the failed fetch was sent
+    List<Exchange> sent = sent();
+    assertEquals(1, sent.size());
+    assertEquals("1", sent.get(0).getIn().getHeader("source_id"));
+  }
+
+  private List<Exchange> sent() {
+    return context.getEndpoint("mock:actions", MockEndpoint.class).getReceivedExchanges();
+  }
+
+  private static HashMap<String, String> event(String id, String action) {
+    HashMap<String, String> headers = new HashMap<String, String>();
+    headers.put("source_id", id);
+    headers.put("source_path", "file" + id);
+    headers.put("source_type", "file");
+    headers.put("action", action);
+    return headers;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+    byte[] response = json.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, response.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(response);
+    out.close();
+  }
+
+}
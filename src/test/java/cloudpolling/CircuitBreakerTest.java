@@ -0,0 +1,121 @@
+package cloudpolling;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.impl.DefaultCamelContext;
+
+import com.box.sdk.BoxAPIException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that a circuit breaker quarantines an account after consecutive
+ * failures pointing at it, lets a single trial through once its open period
+ * has passed, and opens for longer when the trial fails.
+ *
+ * @author tlarrue
+ *
+ */
+public class CircuitBreakerTest extends TestCase {
+
+  private final AtomicLong rejected = new AtomicLong();
+  private CircuitBreaker breaker;
+
+  @Override
+  protected void setUp() throws Exception {
+    breaker = new CircuitBreaker("account 1", 3, 100, 300, rejected);
+  }
+
+  public void testOpensAfterConsecutiveAccountFailures() throws Exception {
+    breaker.record(new IOException("connection reset"));
+    breaker.record(new IOException("connection reset"));
+    breaker.record(null); // a success starts the count over
+    breaker.record(new IOException("connection reset"));
+    breaker.record(new BoxAPIException("unauthorized", 401, ""));
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+    breaker.record(new IOException("connection reset"));
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+    assertEquals(1, rejected.get());
+  }
+
+  public void testItemFailuresDoNotCountAgainstAccount() throws Exception {
+    for (int i = 0; i < 5; i++) {
+      breaker.record(new FileNotFoundException("reports/q3.pdf"));
+      breaker.record(new BoxAPIException("not found", 404, ""));
+    }
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  public void testLetsOneTrialThroughAfterOpenPeriod() throws Exception {
+    open();
+    Thread.sleep(150);
+
+    assertTrue(breaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest()); // the trial is still in flight
+
+    breaker.record(null);
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+  }
+
+  public void testFailedTrialOpensForLonger() throws Exception {
+    open();
+    Thread.sleep(150);
+    assertTrue(breaker.allowRequest());
+    breaker.record(new IOException("connection reset"));
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+    Thread.sleep(150);
+    assertFalse(breaker.allowRequest()); // open for 200ms now
+    Thread.sleep(100);
+    assertTrue(breaker.allowRequest());
+  }
+
+  public void testGuardFailsEventsOfQuarantinedAccount() throws Exception {
+    CamelContext context = new DefaultCamelContext();
+    context.addRoutes(new RouteBuilder() {
+      public void configure() {
+        from("direct:download")
+            .process(breaker.guard())
+            .process(new Processor() {
+              public void process(Exchange exchange) throws Exception {
+                throw new IOException("connection reset");
+              }
+            });
+      }
+    });
+    context.start();
+    try {
+      ProducerTemplate producer = context.createProducerTemplate();
+      for (int i = 0; i < 3; i++) {
+        assertTrue(producer.send("direct:download", exchange(context)).getException() instanceof IOException);
+      }
+      assertTrue(producer.send("direct:download", exchange(context))
+          .getException() instanceof CircuitBreaker.OpenException);
+    } finally {
+      context.stop();
+    }
+  }
+
+  private void open() {
+    for (int i = 0; i < 3; i++) {
+      breaker.record(new IOException("connection reset"));
+    }
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+  }
+
+  private static Exchange exchange(CamelContext context) {
+    return context.getEndpoint("direct:download").createExchange();
+  }
+
+}
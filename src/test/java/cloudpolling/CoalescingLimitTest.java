@@ -0,0 +1,64 @@
+package cloudpolling;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+import org.apache.camel.processor.aggregate.MemoryAggregationRepository;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that a coalescing limit holds up the events of new items, on the
+ * thread sending them, while as many items as it allows are being coalesced,
+ * but lets through the events of items already held.
+ *
+ * @author tlarrue
+ *
+ */
+public class CoalescingLimitTest extends TestCase {
+
+  private CamelContext context;
+  private MemoryAggregationRepository repository;
+  private CoalescingLimit limit;
+
+  @Override
+  protected void setUp() throws Exception {
+    context = new DefaultCamelContext();
+    repository = new MemoryAggregationRepository();
+    limit = new CoalescingLimit(repository, context.resolveLanguage("simple")
+        .createExpression("${header.account_id}:${header.source_id}"), 1);
+  }
+
+  public void testHoldsUpNewItemUntilThereIsRoom() throws Exception {
+    repository.add(context, "1:11", event("11"));
+
+    Thread sender = new Thread() {
+      public void run() {
+        try {
+          limit.process(event("12"));
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    sender.start();
+    sender.join(200);
+    assertTrue(sender.isAlive()); // item 11 takes up the only room
+
+    limit.process(event("11")); // merged into the held item, so not held up
+    assertEquals(1, limit.getPending());
+
+    repository.remove(context, "1:11", null);
+    sender.join(5000);
+    assertFalse(sender.isAlive());
+  }
+
+  private Exchange event(String id) {
+    Exchange exchange = new DefaultExchange(context);
+    exchange.getIn().setHeader("account_id", "1");
+    exchange.getIn().setHeader("source_id", id);
+    return exchange;
+  }
+
+}
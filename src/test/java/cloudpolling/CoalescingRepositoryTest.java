@@ -0,0 +1,153 @@
+package cloudpolling;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the events held by a coalescing aggregator stay on disk until the
+ * event passed on for their item is done, and that events left on disk by a
+ * process that died are coalesced & passed on again. Passed on events wait at
+ * a hold released by the test, & fail if their action is "fail".
+ *
+ * @author tlarrue
+ *
+ */
+public class CoalescingRepositoryTest extends TestCase {
+
+  private PollingProject project;
+  private EventStore store;
+  private CamelContext context;
+  private ProducerTemplate producer;
+  private final CountDownLatch passing = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  @Override
+  protected void setUp() throws Exception {
+    project = TestFixtures.createProject("coalescingtest", new Properties());
+    store = project.getCoalescingStore();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    release.countDown();
+    if (context != null) {
+      context.stop();
+    }
+    TestFixtures.delete(project.getProjectDir().getParentFile());
+  }
+
+  public void testKeepsEventOnDiskUntilItIsDone() throws Exception {
+    start();
+    send("download", "11", "reports/q3.pdf");
+    assertEquals(1, store.list().length);
+    send("download", "11", "reports/q3-final.pdf");
+    assertEquals(1, store.list().length); // merged into one event
+
+    assertTrue(passing.await(5, TimeUnit.SECONDS));
+    assertEquals(1, store.list().length); // passed on, but not done yet
+
+    release.countDown();
+    MockEndpoint passed = context.getEndpoint("mock:passed", MockEndpoint.class);
+    passed.setExpectedMessageCount(1);
+    passed.assertIsSatisfied(5000);
+    assertEquals("reports/q3-final.pdf", passed.getReceivedExchanges().get(0).getIn().getHeader("source_path"));
+    assertStoreEmptied();
+  }
+
+  public void testRemovesFailedEventFromDisk() throws Exception {
+    start();
+    release.countDown();
+    send("fail", "11", "reports/q3.pdf");
+    assertTrue(passing.await(5, TimeUnit.SECONDS));
+    assertStoreEmptied();
+  }
+
+  public void testPassesOnEventsLeftOnDisk() throws Exception {
+    store.write(event("download", "11", "reports/q3.pdf"), null);
+    store.write(event("download", "11", "reports/q3-final.pdf"), null);
+    store.write(event("download", "12", "reports/q4.pdf"), null);
+    release.countDown();
+    start();
+
+    MockEndpoint passed = context.getEndpoint("mock:passed", MockEndpoint.class);
+    passed.setExpectedMessageCount(2);
+    passed.assertIsSatisfied(5000);
+    Map<String, Exchange> items = new HashMap<String, Exchange>();
+    for (Exchange exchange : passed.getReceivedExchanges()) {
+      items.put(exchange.getIn().getHeader("source_id", String.class), exchange);
+    }
+    assertEquals("reports/q3-final.pdf", items.get("11").getIn().getHeader("source_path"));
+    assertEquals(2, (int) items.get("11").getIn().getHeader("coalesced_events", Integer.class));
+    assertEquals("reports/q4.pdf", items.get("12").getIn().getHeader("source_path"));
+    assertStoreEmptied();
+  }
+
+  /**
+   * Starts a coalescing aggregator, like the one of SyncRouter, on the events
+   * in the store.
+   */
+  private void start() throws Exception {
+    final EventCoalescingStrategy strategy = new EventCoalescingStrategy(project);
+    final CoalescingRepository repository = new CoalescingRepository(store, strategy, 200);
+    context = new DefaultCamelContext();
+    context.addRoutes(new RouteBuilder() {
+      public void configure() {
+        from("direct:actions")
+            .aggregate(simple("${header.account_id}:${header.source_id}"), strategy)
+            .aggregationRepository(repository)
+            .completionTimeout(200)
+            .parallelProcessing()
+            .process(repository.releasing())
+            .process(new Processor() {
+              public void process(Exchange exchange) throws Exception {
+                passing.countDown();
+                release.await();
+                if ("fail".equals(exchange.getIn().getHeader("action"))) {
+                  throw new IllegalStateException("Could not sync " + exchange.getIn().getHeader("source_id"));
+                }
+              }
+            })
+            .to("mock:passed");
+      }
+    });
+    context.start();
+    producer = context.createProducerTemplate();
+  }
+
+  private void send(String action, String id, String path) {
+    producer.send("direct:actions", event(action, id, path));
+  }
+
+  private Exchange event(String action, String id, String path) {
+    Exchange exchange = new DefaultExchange(context != null ? context : new DefaultCamelContext());
+    exchange.getIn().setHeader("action", action);
+    exchange.getIn().setHeader("account_id", "1");
+    exchange.getIn().setHeader("source_id", id);
+    exchange.getIn().setHeader("source_path", path);
+    exchange.getIn().setBody("");
+    return exchange;
+  }
+
+  private void assertStoreEmptied() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (store.list().length > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, store.list().length);
+  }
+
+}
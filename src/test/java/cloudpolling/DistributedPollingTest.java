@@ -0,0 +1,104 @@
+package cloudpolling;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.activemq.camel.component.ActiveMQComponent;
+import org.apache.camel.CamelContext;
+import org.apache.camel.impl.DefaultCamelContext;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests a poller node & a worker node, each in a camel context of its own,
+ * passing a project's events through a queue of a broker embedded in the JVM,
+ * as nodes sharing the project's folder would through a broker of their own.
+ *
+ * @author tlarrue
+ *
+ */
+public class DistributedPollingTest extends TestCase {
+
+  private static final String BROKER = "vm://cpolltest?broker.persistent=false&broker.useJmx=false";
+
+  private PollingProject project;
+  private CamelContext poller;
+  private CamelContext worker;
+
+  @Override
+  protected void setUp() throws Exception {
+    Properties settings = new Properties();
+    settings.setProperty("debounceMillis", "50");
+    settings.setProperty("workerConsumers", "2");
+    project = TestFixtures.createProject("queuetest", settings);
+
+    worker = createNode(false, true);
+    poller = createNode(true, false);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    poller.stop();
+    worker.stop();
+    TestFixtures.delete(project.getProjectDir().getParentFile());
+  }
+
+  public void testWorkerHandlesEventsPublishedByPoller() throws Exception {
+    for (String folder : new String[] { "/reports", "/reports/2016", "/photos" }) {
+      Map<String, Object> headers = new HashMap<String, Object>();
+      headers.put("action", "make_directory");
+      headers.put("account_id", "1");
+      headers.put("account_type", "box");
+      headers.put("source_id", folder.replace('/', '-'));
+      headers.put("source_path", folder);
+      headers.put("source_type", "folder");
+      poller.createProducerTemplate().sendBodyAndHeaders("direct:actions", "", headers);
+    }
+
+    File synced = new File(Paths.get(project.getSyncFolder(), "acct1", "reports", "2016").toString());
+    File other = new File(Paths.get(project.getSyncFolder(), "acct1", "photos").toString());
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!(synced.isDirectory() && other.isDirectory()) && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertTrue(synced.isDirectory());
+    assertTrue(other.isDirectory());
+
+    // the worker, not the poller, keeps the account's item index
+    PollingProject pollerProject = new PollingProject(project.getName(),
+        project.getProjectDir().getParentFile().getAbsolutePath());
+    ItemIndex items = pollerProject.getItemIndex("1");
+    deadline = System.currentTimeMillis() + 10000;
+    while (items.size() < 3 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+      items.refresh();
+    }
+    assertEquals("/reports/2016", items.get("-reports-2016").path);
+    pollerProject.closeItemIndexes();
+  }
+
+  /**
+   * Starts a node of the project, with a project object of its own.
+   *
+   * @param poll
+   * @param work
+   * @return camel context of the node
+   * @throws Exception
+   */
+  private CamelContext createNode(boolean poll, boolean work) throws Exception {
+    PollingProject nodeProject = new PollingProject(project.getName(),
+        project.getProjectDir().getParentFile().getAbsolutePath());
+    CamelContext context = new DefaultCamelContext();
+    context.addComponent("activemq", ActiveMQComponent.activeMQComponent(BROKER));
+    SyncRouter routes = new SyncRouter(nodeProject, context.createProducerTemplate(), poll);
+    routes.work = work;
+    routes.eventQueue = "activemq:queue:cloudpolling." + project.getName() + ".events";
+    context.addRoutes(routes);
+    context.start();
+    return context;
+  }
+
+}
@@ -0,0 +1,153 @@
+package cloudpolling;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that a DropBoxConnector sends a moved item's entry at its new path,
+ * but not the delete of its old path, whichever DropBox lists first, against
+ * a stub of the DropBox API. File "id:q3" moved from /reports to /archive,
+ * while file "id:q4" was deleted for good.
+ *
+ * @author tlarrue
+ *
+ */
+public class DropBoxConnectorTest extends TestCase {
+
+  private static final String MOVED = file("id:q3", "/archive/q3.pdf");
+  private static final String MOVED_AWAY = deleted("/reports/q3.pdf");
+  private static final String DELETED = deleted("/reports/q4.pdf");
+
+  private HttpServer dropbox;
+  private String entries;
+  private PollingProject project;
+  private CamelContext context;
+  private DropBoxConnector connector;
+
+  @Override
+  protected void setUp() throws Exception {
+    dropbox = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    dropbox.createContext("/2/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String body = read(exchange.getRequestBody());
+        if (path.equals("/2/files/list_folder/longpoll")) {
+          respond(exchange, 200, "{\"changes\": true}");
+        } else if (path.equals("/2/files/list_folder/continue")) {
+          respond(exchange, 200, "{\"entries\": [" + entries + "], \"cursor\": \"cursor2\", \"has_more\": false}");
+        } else if (path.equals("/2/files/list_revisions")) {
+          String id = body.contains("q3.pdf") ? "id:q3" : "id:q4";
+          respond(exchange, 200, "{\"is_deleted\": true, \"entries\": [" + file(id, "/reports/" + id.substring(3)
+              + ".pdf") + "]}");
+        } else if (path.equals("/2/files/get_metadata") && body.contains("id:q3")) {
+          respond(exchange, 200, MOVED);
+        } else if (path.equals("/2/files/get_metadata") && body.contains("\"/archive\"")) {
+          respond(exchange, 200, "{\".tag\": \"folder\", \"name\": \"archive\", \"id\": \"id:archive\", "
+              + "\"path_lower\": \"/archive\", \"path_display\": \"/archive\"}");
+        } else {
+          respond(exchange, 409, "{\"error_summary\": \"path/not_found/\", "
+              + "\"error\": {\".tag\": \"path\", \"path\": {\".tag\": \"not_found\"}}}");
+        }
+      }
+    });
+    dropbox.start();
+
+    project = TestFixtures.createProject("dropboxtest", new Properties());
+    context = new DefaultCamelContext();
+    context.addRoutes(new RouteBuilder() {
+      public void configure() {
+        from("direct:" + project.getEndpointPrefix() + "actions").to("mock:actions");
+      }
+    });
+    context.start();
+
+    Properties config = new Properties();
+    config.setProperty("accessToken", "token");
+    config.setProperty("apiBaseURL", "http://localhost:" + dropbox.getAddress().getPort());
+    CloudAccount account = TestFixtures.createAccount(project, 1, CloudAccount.Type.DROPBOX, config);
+    account.updateConfiguration("pollToken", "cursor1");
+    connector = new DropBoxConnector(account, context.createProducerTemplate());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    context.stop();
+    dropbox.stop(0);
+    TestFixtures.delete(project.getProjectDir().getParentFile());
+  }
+
+  public void testSendsMoveListedBeforeDeleteOfOldPath() throws Exception {
+    entries = MOVED + ", " + MOVED_AWAY + ", " + DELETED;
+    connector.poll();
+    assertSentMoveAndDelete();
+  }
+
+  public void testSendsMoveListedAfterDeleteOfOldPath() throws Exception {
+    entries = MOVED_AWAY + ", " + DELETED + ", " + MOVED;
+    connector.poll();
+    assertSentMoveAndDelete();
+  }
+
+  private void assertSentMoveAndDelete() {
+    List<Exchange> sent = context.getEndpoint("mock:actions", MockEndpoint.class).getReceivedExchanges();
+    assertEquals(2, sent.size());
+    for (Exchange exchange : sent) {
+      if ("id:q3".equals(exchange.getIn().getHeader("source_id"))) {
+        assertEquals("download", exchange.getIn().getHeader("action"));
+        assertEquals("/archive/q3.pdf", exchange.getIn().getHeader("source_path"));
+      } else {
+        assertEquals("id:q4", exchange.getIn().getHeader("source_id"));
+        assertEquals("delete", exchange.getIn().getHeader("action"));
+        assertEquals("/reports/q4.pdf", exchange.getIn().getHeader("source_path"));
+      }
+    }
+  }
+
+  private static String file(String id, String path) {
+    return "{\".tag\": \"file\", \"name\": \"" + path.substring(path.lastIndexOf('/') + 1) + "\", \"id\": \"" + id
+        + "\", \"client_modified\": \"2016-10-01T00:00:00Z\", \"server_modified\": \"2016-10-01T00:00:00Z\", "
+        + "\"rev\": \"0123456789\", \"size\": 10, \"path_lower\": \"" + path + "\", \"path_display\": \"" + path
+        + "\"}";
+  }
+
+  private static String deleted(String path) {
+    return "{\".tag\": \"deleted\", \"name\": \"" + path.substring(path.lastIndexOf('/') + 1)
+        + "\", \"path_lower\": \"" + path + "\", \"path_display\": \"" + path + "\"}";
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int n; (n = in.read(buffer)) > 0;) {
+      out.write(buffer, 0, n);
+    }
+    return out.toString("UTF-8");
+  }
+
+  private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+    byte[] response = json.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, response.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(response);
+    out.close();
+  }
+
+}
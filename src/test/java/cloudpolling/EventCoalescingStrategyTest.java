@@ -0,0 +1,85 @@
+package cloudpolling;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that EventCoalescingStrategy merges the pending events of an item into
+ * their net effect, against a sync folder holding file "reports/q3.pdf" of
+ * account 1.
+ *
+ * @author tlarrue
+ *
+ */
+public class EventCoalescingStrategyTest extends TestCase {
+
+  private PollingProject project;
+  private CamelContext context;
+  private EventCoalescingStrategy strategy;
+
+  @Override
+  protected void setUp() throws Exception {
+    project = TestFixtures.createProject("coalescetest", new Properties());
+    File synced = new File(project.getSyncFolder(), "acct1/reports/q3.pdf");
+    synced.getParentFile().mkdirs();
+    synced.createNewFile();
+    context = new DefaultCamelContext();
+    strategy = new EventCoalescingStrategy(project);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    TestFixtures.delete(project.getProjectDir().getParentFile());
+  }
+
+  public void testCollapsesRepeatedUploadsIntoLatest() throws Exception {
+    Exchange pending = strategy.aggregate(null, event("download", "reports/q3.pdf", "box", "300"));
+    pending = strategy.aggregate(pending, event("download", "reports/q3.pdf", "box", "100"));
+    pending = strategy.aggregate(pending, event("download", "reports/q3.pdf", "box", "200"));
+
+    assertEquals("download", pending.getIn().getHeader("action"));
+    assertEquals(3, (int) pending.getIn().getHeader("coalesced_events", Integer.class));
+    assertEquals("100", pending.getIn().getHeader("change_time")); // the earliest change
+  }
+
+  public void testCancelsItemCreatedAndTrashedBeforeItWasSynced() throws Exception {
+    Exchange pending = strategy.aggregate(null, event("download", "reports/draft.pdf", "box", "100"));
+    pending = strategy.aggregate(pending, event("delete", "reports/draft.pdf", "box", "200"));
+
+    assertEquals(EventCoalescingStrategy.NONE, pending.getIn().getHeader("action"));
+  }
+
+  public void testKeepsDeleteOfSyncedItem() throws Exception {
+    Exchange pending = strategy.aggregate(null, event("download", "reports/q3.pdf", "box", "100"));
+    pending = strategy.aggregate(pending, event("delete", "reports/q3.pdf", "box", "200"));
+
+    assertEquals("delete", pending.getIn().getHeader("action"));
+  }
+
+  public void testKeepsDropBoxMoveOverDeleteOfOldPath() throws Exception {
+    Exchange pending = strategy.aggregate(null, event("download", "archive/q3.pdf", "dropbox", "100"));
+    pending = strategy.aggregate(pending, event("delete", "reports/q3.pdf", "dropbox", "100"));
+
+    assertEquals("download", pending.getIn().getHeader("action"));
+    assertEquals("archive/q3.pdf", pending.getIn().getHeader("source_path"));
+  }
+
+  private Exchange event(String action, String path, String accountType, String changeTime) {
+    Exchange exchange = new DefaultExchange(context);
+    exchange.getIn().setHeader("action", action);
+    exchange.getIn().setHeader("account_id", "1");
+    exchange.getIn().setHeader("account_type", accountType);
+    exchange.getIn().setHeader("source_id", "11");
+    exchange.getIn().setHeader("source_path", path);
+    exchange.getIn().setHeader("change_time", changeTime);
+    return exchange;
+  }
+
+}
@@ -0,0 +1,107 @@
+package cloudpolling;
+
+import java.util.Properties;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that MoveDetector tells moved items from items changed in place,
+ * against an item index holding the paths that a backfill synced items under.
+ *
+ * @author tlarrue
+ *
+ */
+public class MoveDetectorTest extends TestCase {
+
+  private PollingProject project;
+  private MoveDetector detector;
+
+  @Override
+  protected void setUp() throws Exception {
+    project = TestFixtures.createProject("movetest", new Properties());
+    ItemIndex items = project.getItemIndex("1");
+    items.put(new ItemIndex.Item("11446498", "reports", "0", "folder", null));
+    items.put(new ItemIndex.Item("5000948880", "reports/q3-report.pdf", "11446498", "file", "sha"));
+    detector = new MoveDetector(project);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    project.closeItemIndexes();
+    TestFixtures.delete(project.getProjectDir().getParentFile());
+  }
+
+  public void testLeavesItemAtSamePath() throws Exception {
+    Exchange event = event("download", "5000948880", "reports/q3-report.pdf", "sha2");
+    detector.process(event);
+
+    assertEquals("download", event.getIn().getHeader("action"));
+    assertNull(event.getIn().getHeader("previous_path"));
+  }
+
+  public void testRedirectsMovedFile() throws Exception {
+    Exchange event = event("download", "5000948880", "archive/q3-report.pdf", "sha");
+    detector.process(event);
+
+    assertEquals("move", event.getIn().getHeader("action"));
+    assertEquals("reports/q3-report.pdf", event.getIn().getHeader("previous_path"));
+    assertEquals(Boolean.FALSE, event.getIn().getHeader("content_changed"));
+  }
+
+  public void testRedirectsMovedFileWithNewContent() throws Exception {
+    Exchange event = event("download", "5000948880", "archive/q3-report.pdf", "sha2");
+    detector.process(event);
+
+    assertEquals("move", event.getIn().getHeader("action"));
+    assertEquals(Boolean.TRUE, event.getIn().getHeader("content_changed"));
+  }
+
+  public void testRedirectsRenamedFolder() throws Exception {
+    Exchange event = event("make_directory", "11446498", "quarterly", null);
+    detector.process(event);
+
+    assertEquals("move", event.getIn().getHeader("action"));
+    assertEquals("reports", event.getIn().getHeader("previous_path"));
+    assertNull(event.getIn().getHeader("content_changed"));
+  }
+
+  public void testLeavesUnknownItem() throws Exception {
+    Exchange event = event("download", "5000948881", "reports/q4-report.pdf", "sha");
+    detector.process(event);
+
+    assertEquals("download", event.getIn().getHeader("action"));
+  }
+
+  public void testLeavesBoxUploadOfNestedFileInPlace() throws Exception {
+    // an event's item has the collection of its ancestor folders, from the
+    // root folder down, of which the path of its backfill is built
+    BoxFile.Info file = new BoxFile(new BoxAPIConnection("token"), "5000948880").new Info(
+        "{\"type\": \"file\", \"id\": \"5000948880\", \"name\": \"q3-report.pdf\", \"sha1\": \"sha\", "
+            + "\"parent\": {\"type\": \"folder\", \"id\": \"11446498\", \"name\": \"reports\"}, "
+            + "\"path_collection\": {\"total_count\": 2, \"entries\": ["
+            + "{\"type\": \"folder\", \"id\": \"0\", \"name\": \"All Files\"}, "
+            + "{\"type\": \"folder\", \"id\": \"11446498\", \"name\": \"reports\"}]}}");
+    Exchange event = event("download", "5000948880", BoxConnector.getFullBoxPath(file), file.getSha1());
+    detector.process(event);
+
+    assertEquals("download", event.getIn().getHeader("action"));
+  }
+
+  private static Exchange event(String action, String id, String path, String hash) {
+    Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+    exchange.getIn().setHeader("action", action);
+    exchange.getIn().setHeader("account_id", "1");
+    exchange.getIn().setHeader("source_id", id);
+    exchange.getIn().setHeader("source_path", path);
+    exchange.getIn().setHeader("content_hash", hash);
+    return exchange;
+  }
+
+}
@@ -0,0 +1,187 @@
+package cloudpolling;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that deletes & moves, applied at once, drop or redirect the downloads
+ * of their items queued on a lane, whose only thread is kept busy until the
+ * delete or move is done.
+ *
+ * @author tlarrue
+ *
+ */
+public class QueuedDownloadsTest extends TestCase {
+
+  private PollingProject project;
+  private FairExecutor executor;
+  private FairExecutor.Lane lane;
+  private QueuedDownloads queued;
+  private CamelContext context;
+  private ProducerTemplate producer;
+  private CountDownLatch busy;
+
+  @Override
+  protected void setUp() throws Exception {
+    project = TestFixtures.createProject("queuedtest", new Properties());
+    project.getItemIndex("1").put(new ItemIndex.Item("10", "reports", "0", "folder", null));
+    project.getItemIndex("1").put(new ItemIndex.Item("11", "reports/q3.pdf", "10", "file", "sha"));
+
+    executor = new FairExecutor("Test", 1);
+    lane = executor.lane("queuedtest", "acct1", 1);
+    queued = new QueuedDownloads(project);
+    context = new DefaultCamelContext();
+    context.addRoutes(new RouteBuilder() {
+      public void configure() {
+        from("direct:download").process(new PriorityHandoff(lane, queued, 1024, 2000)).to("mock:downloaded");
+        from("direct:delete").process(queued.superseding()).to("mock:deleted");
+      }
+    });
+    context.start();
+    producer = context.createProducerTemplate();
+
+    busy = new CountDownLatch(1);
+    lane.execute(new Runnable() {
+      public void run() {
+        try {
+          busy.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    busy.countDown();
+    context.stop();
+    executor.shutdown();
+    project.closeItemIndexes();
+    TestFixtures.delete(project.getProjectDir().getParentFile());
+  }
+
+  public void testDeleteDropsQueuedDownloadOfItem() throws Exception {
+    queue("direct:download", "11", "reports/q3.pdf");
+    queue("direct:download", "12", "photos/a.jpg");
+    send("direct:delete", "delete", "11", "reports/q3.pdf");
+    busy.countDown();
+
+    MockEndpoint downloaded = context.getEndpoint("mock:downloaded", MockEndpoint.class);
+    downloaded.setExpectedMessageCount(1);
+    downloaded.assertIsSatisfied(5000);
+    assertEquals("12", downloaded.getReceivedExchanges().get(0).getIn().getHeader("source_id"));
+    assertEquals(0, queued.size());
+  }
+
+  public void testFolderDeleteDropsQueuedDownloadsUnderIt() throws Exception {
+    queue("direct:download", "11", "reports/q3.pdf");
+    queue("direct:download", "13", "reports/2016/q4.pdf");
+    queue("direct:download", "14", "reports-old/q2.pdf");
+    send("direct:delete", "delete", "10", "reports");
+    busy.countDown();
+
+    MockEndpoint downloaded = context.getEndpoint("mock:downloaded", MockEndpoint.class);
+    downloaded.setExpectedMessageCount(1);
+    downloaded.assertIsSatisfied(5000);
+    assertEquals("14", downloaded.getReceivedExchanges().get(0).getIn().getHeader("source_id"));
+  }
+
+  public void testFolderMoveRedirectsQueuedDownloadsUnderIt() throws Exception {
+    queue("direct:download", "11", "reports/q3.pdf");
+    Map<String, Object> move = headers("move", "10", "archive/reports");
+    move.put("previous_path", "reports");
+    producer.sendBodyAndHeaders("direct:delete", "", move);
+    busy.countDown();
+
+    MockEndpoint downloaded = context.getEndpoint("mock:downloaded", MockEndpoint.class);
+    downloaded.setExpectedMessageCount(1);
+    downloaded.assertIsSatisfied(5000);
+    assertEquals("archive/reports/q3.pdf", downloaded.getExchanges().get(0).getIn().getHeader("source_path"));
+  }
+
+  public void testNewerDownloadDropsQueuedDownloadOfItem() throws Exception {
+    queue("direct:download", "11", "reports/q3.pdf");
+    queue("direct:download", "11", "reports/q3-final.pdf");
+    busy.countDown();
+
+    MockEndpoint downloaded = context.getEndpoint("mock:downloaded", MockEndpoint.class);
+    downloaded.setExpectedMessageCount(1);
+    downloaded.assertIsSatisfied(5000);
+    assertEquals("reports/q3-final.pdf", downloaded.getExchanges().get(0).getIn().getHeader("source_path"));
+  }
+
+  public void testDeleteWaitsForRunningDownloadOfItem() throws Exception {
+    final CountDownLatch downloading = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    context.addRoutes(new RouteBuilder() {
+      public void configure() {
+        from("direct:slow").process(new PriorityHandoff(lane, queued, 1024, 2000))
+            .process(new Processor() {
+              public void process(Exchange exchange) throws Exception {
+                downloading.countDown();
+                release.await();
+              }
+            }).to("mock:downloaded");
+      }
+    });
+    queue("direct:slow", "11", "reports/q3.pdf");
+    busy.countDown();
+    assertTrue(downloading.await(5, TimeUnit.SECONDS));
+
+    Thread delete = new Thread() {
+      public void run() {
+        send("direct:delete", "delete", "11", "reports/q3.pdf");
+      }
+    };
+    delete.start();
+    delete.join(200);
+    assertTrue(delete.isAlive()); // held up by the running download
+
+    release.countDown();
+    delete.join(5000);
+    assertFalse(delete.isAlive());
+    assertEquals(1, context.getEndpoint("mock:downloaded", MockEndpoint.class).getReceivedCounter());
+    assertEquals(1, context.getEndpoint("mock:deleted", MockEndpoint.class).getReceivedCounter());
+  }
+
+  /**
+   * Sends a download, without waiting for it, once the downloads sent before
+   * it are queued.
+   */
+  private void queue(String uri, String id, String path) throws InterruptedException {
+    int size = queued.size();
+    producer.asyncRequestBodyAndHeaders(uri, "", headers("download", id, path));
+    long deadline = System.currentTimeMillis() + 5000;
+    while (queued.size() == size && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+  }
+
+  private void send(String uri, String action, String id, String path) {
+    producer.sendBodyAndHeaders(uri, "", headers(action, id, path));
+  }
+
+  private static Map<String, Object> headers(String action, String id, String path) {
+    Map<String, Object> headers = new HashMap<String, Object>();
+    headers.put("action", action);
+    headers.put("account_id", "1");
+    headers.put("source_id", id);
+    headers.put("source_path", path);
+    return headers;
+  }
+
+}
@@ -0,0 +1,119 @@
+package cloudpolling;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.box.sdk.BoxAPIConnection;
+import com.box.sdk.BoxAPIException;
+import com.box.sdk.BoxFile;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that a Box connection paced by a rate limiter retries failed requests,
+ * and slows down for throttled ones only, against a stub of the Box API that
+ * first answers 429 for file "1", 500 for file "5" & 503 for file "7", and
+ * always 404 for file "9".
+ *
+ * @author tlarrue
+ *
+ */
+public class RateLimitedRequestInterceptorTest extends TestCase {
+
+  private HttpServer box;
+  private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+  private final AtomicLong throttledCount = new AtomicLong();
+  private RateLimiter limiter;
+  private BoxAPIConnection api;
+
+  @Override
+  protected void setUp() throws Exception {
+    box = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    box.createContext("/2.0/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String id = path.replaceAll("^/2.0/files/([^/]+).*$", "$1");
+        boolean first = !requests.contains(path);
+        requests.add(path);
+        if (id.equals("9")) {
+          respond(exchange, 404);
+        } else if (first && id.equals("1")) {
+          respond(exchange, 429);
+        } else if (first && id.equals("5")) {
+          respond(exchange, 500);
+        } else if (first && id.equals("7")) {
+          respond(exchange, 503);
+        } else {
+          respond(exchange, 200);
+        }
+      }
+    });
+    box.start();
+
+    limiter = new RateLimiter("test", 100, 100, throttledCount);
+    api = new BoxAPIConnection("token");
+    api.setBaseURL("http://localhost:" + box.getAddress().getPort() + "/2.0/");
+    RateLimitedRequestInterceptor.install(api, limiter);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    box.stop(0);
+  }
+
+  public void testRetriesThrottledRequestAfterSlowingDown() throws Exception {
+    assertEquals("1", new BoxFile(api, "1").getInfo("name").getID());
+
+    assertEquals(2, requests.size());
+    assertEquals(1, throttledCount.get());
+    // halved, then raised again by the success of the retry
+    assertEquals(52.0, limiter.getRate(), 0.001);
+  }
+
+  public void testSlowsDownOnServiceUnavailable() throws Exception {
+    new BoxFile(api, "7").getInfo("name");
+
+    assertEquals(2, requests.size());
+    assertEquals(1, throttledCount.get());
+  }
+
+  public void testRetriesServerErrorWithoutSlowingDown() throws Exception {
+    new BoxFile(api, "5").getInfo("name");
+
+    assertEquals(2, requests.size());
+    assertEquals(0, throttledCount.get());
+    assertEquals(100.0, limiter.getRate(), 0.001);
+  }
+
+  public void testThrowsClientErrorWithoutRetrying() throws Exception {
+    try {
+      new BoxFile(api, "9").getInfo("name");
+      fail("file 9 is not found");
+    } catch (BoxAPIException e) {
+      assertEquals(404, e.getResponseCode());
+    }
+
+    assertEquals(1, requests.size());
+    assertEquals(0, throttledCount.get());
+  }
+
+  private static void respond(HttpExchange exchange, int status) throws IOException {
+    String json = status == 200 ? "{\"type\":\"file\",\"id\":\"1\",\"name\":\"file.txt\"}"
+        : "{\"type\":\"error\",\"status\":" + status + "}";
+    byte[] response = json.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(status, response.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(response);
+    out.close();
+  }
+
+}
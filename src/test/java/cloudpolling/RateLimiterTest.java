@@ -0,0 +1,57 @@
+package cloudpolling;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that a rate limiter lets bursts through, paces requests beyond them,
+ * and adapts its rate to throttled & successful responses.
+ *
+ * @author tlarrue
+ *
+ */
+public class RateLimiterTest extends TestCase {
+
+  public void testPacesRequestsBeyondBurst() throws Exception {
+    RateLimiter limiter = new RateLimiter("test", 20, 5, null);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 5; i++) {
+      limiter.acquire();
+    }
+    assertTrue(System.currentTimeMillis() - start < 100); // the burst
+
+    for (int i = 0; i < 4; i++) {
+      limiter.acquire();
+    }
+    assertTrue(System.currentTimeMillis() - start >= 150); // 4 more at 20/s
+  }
+
+  public void testThrottledResponsePausesAndHalvesRate() throws Exception {
+    AtomicLong throttled = new AtomicLong();
+    RateLimiter limiter = new RateLimiter("test", 100, 100, throttled);
+    limiter.throttled(300);
+    assertEquals(50.0, limiter.getRate(), 0.001);
+    assertEquals(1, throttled.get());
+
+    long start = System.currentTimeMillis();
+    limiter.acquire();
+    assertTrue(System.currentTimeMillis() - start >= 250);
+  }
+
+  public void testRateRecoversWithSuccessesUpToConfiguredRate() throws Exception {
+    RateLimiter limiter = new RateLimiter("test", 100, 100, null);
+    for (int i = 0; i < 10; i++) {
+      limiter.throttled(1);
+    }
+    assertEquals(100.0 / 32, limiter.getRate(), 0.001); // lowest rate
+
+    limiter.succeeded();
+    assertEquals(100.0 / 32 + 2, limiter.getRate(), 0.001);
+    for (int i = 0; i < 100; i++) {
+      limiter.succeeded();
+    }
+    assertEquals(100.0, limiter.getRate(), 0.001);
+  }
+
+}
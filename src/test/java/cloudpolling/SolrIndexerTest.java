@@ -0,0 +1,198 @@
+package cloudpolling;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.apache.camel.impl.DefaultExchange;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the batching of SolrIndexer against a stub of Solr's update handler,
+ * which records the query & body of each request it accepts.
+ *
+ * @author tlarrue
+ *
+ */
+public class SolrIndexerTest extends TestCase {
+
+  private HttpServer solr;
+  private final List<String> queries = Collections.synchronizedList(new ArrayList<String>());
+  private final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+
+  @Override
+  protected void setUp() throws Exception {
+    solr = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    solr.createContext("/solr/core/update", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        queries.add(exchange.getRequestURI().getQuery());
+        bodies.add(read(exchange.getRequestBody()));
+        byte[] response = "{\"responseHeader\":{\"status\":0}}".getBytes("UTF-8");
+        exchange.sendResponseHeaders(200, response.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(response);
+        out.close();
+      }
+    });
+    solr.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    solr.stop(0);
+  }
+
+  public void testFlushesBatchesOfMaxDocs() throws Exception {
+    SolrIndexer indexer = newIndexer(5, 1 << 20, 60000, 1);
+    for (int i = 0; i < 12; i++) {
+      indexer.delete(deleteOf("item" + i));
+    }
+    indexer.stop();
+
+    assertEquals(3, bodies.size());
+    assertEquals(5, count(bodies.get(0), "\"delete\""));
+    assertEquals(5, count(bodies.get(1), "\"delete\""));
+    assertEquals(2, count(bodies.get(2), "\"delete\""));
+    assertEquals(0, indexer.getPending());
+  }
+
+  public void testFlushesBatchesOfMaxBytes() throws Exception {
+    SolrIndexer indexer = newIndexer(500, 1, 60000, 1);
+    for (int i = 0; i < 3; i++) {
+      indexer.delete(deleteOf("item" + i));
+    }
+    indexer.stop();
+
+    assertEquals(3, bodies.size());
+  }
+
+  public void testFlushesAfterMaxLatency() throws Exception {
+    SolrIndexer indexer = newIndexer(500, 1 << 20, 100, 1);
+    indexer.delete(deleteOf("item1"));
+    indexer.delete(deleteOf("item2"));
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (indexer.getPending() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, indexer.getPending());
+    assertEquals(1, bodies.size());
+    assertEquals(2, count(bodies.get(0), "\"delete\""));
+    indexer.stop();
+  }
+
+  public void testPostsDocumentsWithCommitWithin() throws Exception {
+    SolrIndexer indexer = newIndexer(500, 1 << 20, 60000, 2);
+    IndexDocument doc = new IndexDocument();
+    doc.put("id", "file1");
+    doc.put("path", "/folder/file1.txt");
+    Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+    exchange.getIn().setBody(doc);
+    indexer.update(exchange);
+    indexer.stop();
+
+    assertEquals(1, bodies.size());
+    assertTrue(queries.get(0), queries.get(0).contains("commitWithin=2500"));
+    assertEquals("{\"add\":{\"doc\":{\"id\":\"file1\",\"path\":\"/folder/file1.txt\"}}}", bodies.get(0));
+  }
+
+  public void testSendsPrefixDeleteOnceAfterEarlierUpdates() throws Exception {
+    SolrIndexer indexer = newIndexer(500, 1 << 20, 60000, 4);
+    for (int i = 0; i < 20; i++) {
+      indexer.delete(deleteOf("item" + i));
+    }
+    Exchange folder = deleteOf("folder");
+    folder.getIn().setHeader("index_path_prefix", "/folder/");
+    indexer.delete(folder);
+    indexer.stop();
+
+    int prefixDeletes = 0;
+    for (String body : bodies) {
+      prefixDeletes += count(body, "{!prefix f=path}/folder/");
+    }
+    assertEquals(1, prefixDeletes);
+    assertTrue(bodies.get(bodies.size() - 1).contains("{!prefix f=path}/folder/"));
+    assertEquals(0, indexer.getPending());
+  }
+
+  public void testConcurrentPrefixDeletesDoNotHoldUpPartitions() throws Exception {
+    final SolrIndexer indexer = newIndexer(500, 1 << 20, 10, 4);
+    Thread[] threads = new Thread[2];
+    for (int t = 0; t < threads.length; t++) {
+      final String folder = "/folder" + t + "/";
+      threads[t] = new Thread() {
+        public void run() {
+          try {
+            for (int i = 0; i < 20; i++) {
+              indexer.delete(deleteOf(folder + i));
+              Exchange delete = deleteOf(folder);
+              delete.getIn().setHeader("index_path_prefix", folder);
+              indexer.delete(delete);
+            }
+          } catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    long deadline = System.currentTimeMillis() + 30000;
+    while (indexer.getPending() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, indexer.getPending());
+    int prefixDeletes = 0;
+    for (String body : bodies) {
+      prefixDeletes += count(body, "{!prefix f=path}");
+    }
+    assertEquals(40, prefixDeletes);
+    indexer.stop();
+  }
+
+  private SolrIndexer newIndexer(int maxDocs, long maxBytes, long maxLatencyMillis, int connections) {
+    return new SolrIndexer("http://localhost:" + solr.getAddress().getPort() + "/solr/core/", maxDocs, maxBytes,
+        maxLatencyMillis, 2500, connections);
+  }
+
+  private static Exchange deleteOf(String sourceID) {
+    Exchange exchange = new DefaultExchange(new DefaultCamelContext());
+    exchange.getIn().setHeader("source_id", sourceID);
+    return exchange;
+  }
+
+  private static int count(String text, String part) {
+    int count = 0;
+    for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + part.length())) {
+      count++;
+    }
+    return count;
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      bytes.write(buffer, 0, n);
+    }
+    in.close();
+    return bytes.toString("UTF-8");
+  }
+
+}
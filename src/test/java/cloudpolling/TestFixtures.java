@@ -0,0 +1,95 @@
+package cloudpolling;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Builds the throwaway polling projects & cloud accounts that tests run
+ * against.
+ *
+ * @author tlarrue
+ *
+ */
+final class TestFixtures {
+
+  private TestFixtures() {
+  }
+
+  /**
+   * Creates a polling project in a new temporary configuration directory, with
+   * a sync folder of its own, no index sink & no debouncing.
+   *
+   * @param name
+   * @param settings
+   *          further configuration fields of the project
+   * @return polling project
+   * @throws IOException
+   */
+  static PollingProject createProject(String name, Properties settings) throws IOException {
+    File configDir = Files.createTempDirectory("cloudpolling-test").toFile();
+    PollingProject project = new PollingProject(name, configDir.getAbsolutePath());
+    project.getAccountsDir().mkdirs();
+
+    File syncFolder = new File(project.getProjectDir(), "sync");
+    syncFolder.mkdirs();
+
+    Properties config = new Properties();
+    config.setProperty("syncFolder", syncFolder.getAbsolutePath());
+    config.setProperty("lastPoll", "1900/01/01-00:00:00");
+    config.setProperty("debounceMillis", "0");
+    config.setProperty("indexSink", "none");
+    config.putAll(settings);
+    store(config, project.getConfigFile());
+    return project;
+  }
+
+  /**
+   * Creates a cloud account of a project from its configuration fields.
+   *
+   * @param project
+   * @param id
+   * @param type
+   * @param config
+   * @return cloud account
+   * @throws IOException
+   */
+  static CloudAccount createAccount(PollingProject project, int id, CloudAccount.Type type, Properties config)
+      throws IOException {
+    CloudAccount account = new CloudAccount(id, project, type);
+    config.setProperty("configType", type.name());
+    config.setProperty("configID", Integer.toString(id));
+    config.setProperty("pollToken", "0");
+    store(config, account.getConfigFile());
+    return account;
+  }
+
+  /**
+   * Deletes a file, or a folder & everything in it.
+   *
+   * @param file
+   */
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  private static void store(Properties config, File file) throws IOException {
+    file.getParentFile().mkdirs();
+    OutputStream out = new FileOutputStream(file);
+    try {
+      config.store(out, null);
+    } finally {
+      out.close();
+    }
+  }
+
+}
@@ -0,0 +1,194 @@
+package cloudpolling;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.impl.DefaultCamelContext;
+
+import com.google.api.client.util.Base64;
+import com.google.api.client.util.DateTime;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that WebhookReceiver polls the accounts named by notifications it can
+ * verify, and refuses the rest, with a Box, a DropBox & a Google Drive account
+ * each polled through a mock endpoint.
+ *
+ * @author tlarrue
+ *
+ */
+public class WebhookReceiverTest extends TestCase {
+
+  private PollingProject project;
+  private CamelContext context;
+  private WebhookReceiver receiver;
+  private int port;
+
+  @Override
+  protected void setUp() throws Exception {
+    project = TestFixtures.createProject("webhooktest", new Properties());
+    context = new DefaultCamelContext();
+    ServerSocket socket = new ServerSocket(0);
+    port = socket.getLocalPort();
+    socket.close();
+    receiver = new WebhookReceiver(project, context.createProducerTemplate(), port);
+
+    Properties box = new Properties();
+    box.setProperty("webhookPrimaryKey", "primary-key");
+    box.setProperty("webhookSecondaryKey", "secondary-key");
+    receiver.watch(TestFixtures.createAccount(project, 1, CloudAccount.Type.BOX, box), "mock:poll.acct1");
+
+    Properties dropbox = new Properties();
+    dropbox.setProperty("appSecret", "app-secret");
+    dropbox.setProperty("userID", "12345");
+    receiver.watch(TestFixtures.createAccount(project, 2, CloudAccount.Type.DROPBOX, dropbox), "mock:poll.acct2");
+
+    Properties drive = new Properties();
+    drive.setProperty("webhookToken", "channel-token");
+    receiver.watch(TestFixtures.createAccount(project, 3, CloudAccount.Type.GOOGLEDRIVE, drive),
+        "mock:poll.acct3");
+
+    receiver.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    receiver.stop();
+    TestFixtures.delete(project.getProjectDir().getParentFile());
+  }
+
+  public void testPollsBoxAccountOnSignedNotification() throws Exception {
+    String body = "{\"trigger\":\"FILE.UPLOADED\"}";
+    String timestamp = new DateTime(System.currentTimeMillis()).toStringRfc3339();
+    Map<String, String> headers = new TreeMap<String, String>();
+    headers.put("BOX-DELIVERY-TIMESTAMP", timestamp);
+    headers.put("BOX-SIGNATURE-PRIMARY", "not-the-signature");
+    headers.put("BOX-SIGNATURE-SECONDARY", Base64.encodeBase64String(hmac("secondary-key", body + timestamp)));
+
+    assertEquals(200, post("box/1", headers, body));
+    assertEquals(1, polls(1));
+  }
+
+  public void testRefusesBoxNotificationWithWrongSignature() throws Exception {
+    String body = "{\"trigger\":\"FILE.UPLOADED\"}";
+    String timestamp = new DateTime(System.currentTimeMillis()).toStringRfc3339();
+    Map<String, String> headers = new TreeMap<String, String>();
+    headers.put("BOX-DELIVERY-TIMESTAMP", timestamp);
+    headers.put("BOX-SIGNATURE-PRIMARY", Base64.encodeBase64String(hmac("other-key", body + timestamp)));
+
+    assertEquals(403, post("box/1", headers, body));
+    assertEquals(0, polls(1));
+  }
+
+  public void testRefusesStaleBoxNotification() throws Exception {
+    String body = "{\"trigger\":\"FILE.UPLOADED\"}";
+    String timestamp = new DateTime(System.currentTimeMillis() - 60 * 60 * 1000).toStringRfc3339();
+    Map<String, String> headers = new TreeMap<String, String>();
+    headers.put("BOX-DELIVERY-TIMESTAMP", timestamp);
+    headers.put("BOX-SIGNATURE-PRIMARY", Base64.encodeBase64String(hmac("primary-key", body + timestamp)));
+
+    assertEquals(403, post("box/1", headers, body));
+    assertEquals(0, polls(1));
+  }
+
+  public void testPollsDropBoxAccountOnSignedNotification() throws Exception {
+    String body = "{\"list_folder\":{\"accounts\":[\"12345\"]},\"delta\":{\"users\":[12345]}}";
+    Map<String, String> headers = new TreeMap<String, String>();
+    headers.put("X-Dropbox-Signature", hex(hmac("app-secret", body)));
+
+    assertEquals(200, post("dropbox", headers, body));
+    assertEquals(1, polls(2));
+  }
+
+  public void testRefusesDropBoxNotificationWithWrongSignature() throws Exception {
+    String body = "{\"list_folder\":{\"accounts\":[\"12345\"]}}";
+    Map<String, String> headers = new TreeMap<String, String>();
+    headers.put("X-Dropbox-Signature", hex(hmac("other-secret", body)));
+
+    assertEquals(403, post("dropbox", headers, body));
+    assertEquals(0, polls(2));
+  }
+
+  public void testPollsGoogleDriveAccountOnChannelToken() throws Exception {
+    Map<String, String> headers = new TreeMap<String, String>();
+    headers.put("X-Goog-Channel-Token", "channel-token");
+    headers.put("X-Goog-Resource-State", "sync"); // the channel was set up, nothing changed
+
+    assertEquals(200, post("googledrive/3", headers, ""));
+    assertEquals(0, polls(3));
+
+    headers.put("X-Goog-Resource-State", "change");
+    assertEquals(200, post("googledrive/3", headers, ""));
+    assertEquals(1, polls(3));
+  }
+
+  public void testRefusesGoogleDriveNotificationWithWrongToken() throws Exception {
+    Map<String, String> headers = new TreeMap<String, String>();
+    headers.put("X-Goog-Channel-Token", "other-token");
+    headers.put("X-Goog-Resource-State", "change");
+
+    assertEquals(403, post("googledrive/3", headers, ""));
+    assertEquals(0, polls(3));
+  }
+
+  public void testMergesNotificationsWhilePollIsWaiting() throws Exception {
+    Map<String, String> headers = new TreeMap<String, String>();
+    headers.put("X-Goog-Channel-Token", "channel-token");
+    headers.put("X-Goog-Resource-State", "change");
+
+    assertEquals(200, post("googledrive/3", headers, ""));
+    assertEquals(200, post("googledrive/3", headers, ""));
+    assertEquals(1, polls(3));
+
+    receiver.pollStarted("3").process(null);
+    assertEquals(200, post("googledrive/3", headers, ""));
+    assertEquals(2, polls(3));
+  }
+
+  private int polls(int accountID) {
+    return context.getEndpoint("mock:poll.acct" + accountID, MockEndpoint.class).getReceivedCounter();
+  }
+
+  private int post(String path, Map<String, String> headers, String body) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/webhooks/" + path)
+        .openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      connection.setRequestProperty(header.getKey(), header.getValue());
+    }
+    OutputStream out = connection.getOutputStream();
+    out.write(body.getBytes("UTF-8"));
+    out.close();
+    int status = connection.getResponseCode();
+    connection.disconnect();
+    return status;
+  }
+
+  private static byte[] hmac(String secret, String data) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(secret.getBytes("UTF-8"), "HmacSHA256"));
+    return mac.doFinal(data.getBytes("UTF-8"));
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+}